@@ -0,0 +1,82 @@
+package com.carmatechnologies.servlet;
+
+import org.jvnet.libpam.PAM;
+import org.jvnet.libpam.PAMException;
+import org.jvnet.libpam.UnixUser;
+import org.objenesis.ObjenesisStd;
+
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/**
+ * {@link PAM} stand-in for benchmarks and load tests, which authenticates any user whose password is {@link #PASSWORD}
+ * after a configurable latency, and optionally fails at a configurable rate as if the directory behind PAM was down,
+ * without calling the native PAM library.
+ * {@link PAM}'s constructor starts a native PAM transaction, so instances are created via Objenesis, which skips it.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+final class FakePam extends PAM {
+    static final String USERNAME = "luke_skywalker";
+    static final String PASSWORD = "pass123";
+
+    private static final UnixUser USER = new FakeUser();
+
+    private LongSupplier latencyNanos;
+    private double errorRate;
+
+    private FakePam() throws PAMException {
+        super("fake"); // Never called.
+    }
+
+    /**
+     * @param latencyNanos time each authentication takes. The calling thread is parked, as it would be while PAM
+     *                     waits on I/O.
+     */
+    static FakePam newFakePam(final long latencyNanos) {
+        return newFakePam(() -> latencyNanos, 0);
+    }
+
+    /**
+     * @param latencyNanos supplies the time each authentication takes, e.g. a {@link LatencyProfile}.
+     * @param errorRate    fraction, between 0 and 1, of authentications failing with PAM_AUTHINFO_UNAVAIL.
+     */
+    static FakePam newFakePam(final LongSupplier latencyNanos, final double errorRate) {
+        final FakePam pam = new ObjenesisStd().newInstance(FakePam.class);
+        pam.latencyNanos = latencyNanos;
+        pam.errorRate = errorRate;
+        return pam;
+    }
+
+    @Override
+    public UnixUser authenticate(final String username, final String password) throws PAMException {
+        final long latency = latencyNanos.getAsLong();
+        if (latency > 0) {
+            LockSupport.parkNanos(latency);
+        }
+        if ((errorRate > 0) && (ThreadLocalRandom.current().nextDouble() < errorRate)) {
+            throw new PAMException("pam_authenticate failed : " + CircuitBreaker.AUTHINFO_UNAVAIL);
+        }
+        if (PASSWORD.equals(password)) {
+            return USERNAME.equals(username) ? USER : new FakeUser(username);
+        }
+        throw new PAMException("Authentication failure");
+    }
+
+    @Override
+    public void dispose() {
+        // Nothing to release.
+    }
+
+    private static final class FakeUser extends UnixUser {
+        private FakeUser() {
+            this(USERNAME);
+        }
+
+        private FakeUser(final String username) {
+            super(username, username, "/home/" + username, "/bin/bash", 1000, 1000, Collections.singleton("jedi"));
+        }
+    }
+}
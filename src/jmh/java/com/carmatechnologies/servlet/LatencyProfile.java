@@ -0,0 +1,96 @@
+package com.carmatechnologies.servlet;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongSupplier;
+
+import static java.lang.String.format;
+
+/**
+ * Simulated PAM latency distribution, for {@link FakePam}, parsed from a specification whose times are in
+ * milliseconds:
+ * - fixed:[latency], e.g. fixed:5,
+ * - uniform:[min]:[max], e.g. uniform:1:20,
+ * - exponential:[mean], e.g. exponential:5,
+ * - lognormal:[median]:[sigma], e.g. lognormal:5:0.5, typical of network-bound services,
+ * - bimodal:[fast]:[slow]:[slow fraction], e.g. bimodal:2:500:0.01, for when a fraction of calls hit a slow
+ *   directory server.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+final class LatencyProfile implements LongSupplier {
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    private enum Distribution {
+        FIXED(1),
+        UNIFORM(2),
+        EXPONENTIAL(1),
+        LOGNORMAL(2),
+        BIMODAL(3);
+
+        private final int arity;
+
+        Distribution(final int arity) {
+            this.arity = arity;
+        }
+    }
+
+    private final String specification;
+    private final Distribution distribution;
+    private final double[] parameters;
+
+    private LatencyProfile(final String specification, final Distribution distribution, final double[] parameters) {
+        this.specification = specification;
+        this.distribution = distribution;
+        this.parameters = parameters;
+    }
+
+    static LatencyProfile parse(final String specification) {
+        final String[] fields = specification.trim().split(":");
+        final Distribution distribution;
+        try {
+            distribution = Distribution.valueOf(fields[0].toUpperCase(Locale.ROOT));
+        } catch (final IllegalArgumentException e) {
+            throw new IllegalArgumentException(format("Unknown latency distribution [%s] in [%s].", fields[0], specification), e);
+        }
+        if (fields.length != (distribution.arity + 1)) {
+            throw new IllegalArgumentException(format("Invalid latency profile [%s]: %s expects %d parameters.", specification, fields[0], distribution.arity));
+        }
+        final double[] parameters = new double[distribution.arity];
+        for (int i = 0; i < parameters.length; ++i) {
+            parameters[i] = Double.parseDouble(fields[i + 1]);
+            if (parameters[i] < 0) {
+                throw new IllegalArgumentException(format("Invalid latency profile [%s]: parameters must be positive.", specification));
+            }
+        }
+        return new LatencyProfile(specification.trim(), distribution, parameters);
+    }
+
+    @Override
+    public long getAsLong() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final double millis;
+        switch (distribution) {
+            case FIXED:
+                millis = parameters[0];
+                break;
+            case UNIFORM:
+                millis = parameters[0] + (random.nextDouble() * (parameters[1] - parameters[0]));
+                break;
+            case EXPONENTIAL:
+                millis = -parameters[0] * Math.log(1 - random.nextDouble());
+                break;
+            case LOGNORMAL:
+                millis = parameters[0] * Math.exp(parameters[1] * random.nextGaussian());
+                break;
+            default:
+                millis = (random.nextDouble() < parameters[2]) ? parameters[1] : parameters[0];
+        }
+        return (long) (millis * NANOS_PER_MILLI);
+    }
+
+    @Override
+    public String toString() {
+        return specification;
+    }
+}
@@ -0,0 +1,133 @@
+package com.carmatechnologies.servlet;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+/**
+ * Benchmarks {@link PamAuthFilter#doFilter} for each kind of Authorization header, against a {@link FakePam} with
+ * configurable latency, both on a single thread and with several threads sharing the same filter.
+ * Run with: gradle jmh (see build.gradle), which also reports allocation rates.
+ * Logging is disabled, so that results reflect the filter itself rather than the configured log handlers.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PamAuthFilterBenchmark {
+    private static final FilterChain CHAIN = (request, response) -> {
+        // Next filter: nothing to do.
+    };
+
+    /**
+     * Authorization headers, one per branch of the filter, see also: PamAuthFilterTest.
+     */
+    public enum Header {
+        VALID("Basic bHVrZV9za3l3YWxrZXI6cGFzczEyMw=="), // luke_skywalker:pass123
+        WRONG_PASSWORD("Basic bHVrZV9za3l3YWxrZXI6cGFzczQ1Ng=="), // luke_skywalker:pass456
+        NULL(null),
+        EMPTY(""),
+        BLANK("     "),
+        TOO_MANY_FIELDS("Basic quantumly encrypted credentials bHVrZV9za3l3YWxrZXI6cGFzczEyMw=="),
+        NOT_BASIC("Complex bHVrZV9za3l3YWxrZXI6cGFzczEyMw=="),
+        NOT_BASE64("Basic Hello-World!"),
+        EMPTY_CREDENTIALS("Basic "),
+        NO_COLON("Basic bm9Db2xvbkJldHdlZW5Vc2VybmFtZUFuZFBhc3N3b3Jk"), // noColonBetweenUsernameAndPassword
+        EMPTY_USERNAME("Basic OnNlY3JldF9wYXNzd29yZF9iZWxvbmdpbmdfdG9fbm9fb25l"); // :secret_password_belonging_to_no_one
+
+        private final String value;
+
+        Header(final String value) {
+            this.value = value;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Filter {
+        // Strong reference, as loggers are otherwise only weakly referenced, and would lose their level:
+        private static final Logger logger = Logger.getLogger(PamAuthEngine.class.getSimpleName());
+
+        @Param({"0", "100"})
+        public long pamLatencyMicros;
+
+        @Param({"0", "1024"})
+        public int cacheSize;
+
+        @Param({"0", "16"})
+        public int pamPoolMaxSize;
+
+        private PamAuthFilter filter;
+
+        @Setup(Level.Trial)
+        public void setUp() throws ServletException {
+            logger.setLevel(java.util.logging.Level.OFF);
+            final FakePam pam = FakePam.newFakePam(MICROSECONDS.toNanos(pamLatencyMicros));
+            filter = new PamAuthFilter(service -> pam);
+            final Map<String, String> parameters = new HashMap<>();
+            parameters.put(PamAuthFilter.REALM, "Tatooine");
+            parameters.put(PamAuthFilter.CACHE_SIZE, Integer.toString(cacheSize));
+            parameters.put(PamAuthFilter.PAM_POOL_MAX_SIZE, Integer.toString(pamPoolMaxSize));
+            filter.init(new StubFilterConfig(parameters));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            filter.destroy();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Exchange {
+        @Param
+        public Header header;
+
+        private StubHttpServletRequest request;
+        private StubHttpServletResponse response;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            request = new StubHttpServletRequest(header.value, "127.0.0.1");
+            response = new StubHttpServletResponse();
+        }
+    }
+
+    @Benchmark
+    public int doFilter(final Filter filter, final Exchange exchange) throws IOException, ServletException {
+        return filter(filter, exchange);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public int doFilterContended(final Filter filter, final Exchange exchange) throws IOException, ServletException {
+        return filter(filter, exchange);
+    }
+
+    private static int filter(final Filter filter, final Exchange exchange) throws IOException, ServletException {
+        exchange.response.reset();
+        filter.filter.doFilter(exchange.request, exchange.response, CHAIN);
+        return exchange.response.getStatus();
+    }
+}
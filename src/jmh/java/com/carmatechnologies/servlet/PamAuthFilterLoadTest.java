@@ -0,0 +1,353 @@
+package com.carmatechnologies.servlet;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * In-process load test of {@link PamAuthFilter}: many client threads, platform or virtual, drive the filter with a mix
+ * of valid, invalid and malformed requests, via the same lightweight request, response and chain stand-ins as the
+ * benchmarks, while {@link FakePam} simulates PAM's latency and failures. Unlike the micro-benchmarks, this shows the
+ * filter's behaviour as a whole: saturation, tail latency when PAM slows down, throttling, shedding, etc.
+ * Throughput, latency percentiles, response statuses and the filter's own metrics are printed, and written as JSON to
+ * the report file, so that runs can be compared across versions.
+ * Arguments are key=value pairs, see {@link #DEFAULTS}. Arguments prefixed with filter. are passed to the filter as
+ * init parameters, e.g. filter.cacheSize=1024.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+public final class PamAuthFilterLoadTest {
+    private static final String FILTER_PREFIX = "filter.";
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+    static {
+        DEFAULTS.put("threads", "64"); // Number of concurrent clients.
+        DEFAULTS.put("virtualThreads", "false"); // Whether clients run on virtual threads, when available (Java 21+).
+        DEFAULTS.put("warmupSeconds", "5");
+        DEFAULTS.put("durationSeconds", "20");
+        DEFAULTS.put("latency", "lognormal:5:0.5"); // See: LatencyProfile.
+        DEFAULTS.put("pamErrorRate", "0"); // Fraction of PAM calls failing as if the directory behind PAM was down.
+        DEFAULTS.put("invalidRate", "0.1"); // Fraction of requests with a wrong password.
+        DEFAULTS.put("malformedRate", "0.01"); // Fraction of requests with a malformed Authorization header.
+        DEFAULTS.put("users", "100"); // Number of distinct users.
+        DEFAULTS.put("ips", "1000"); // Number of distinct client IPs.
+        DEFAULTS.put("logLevel", "OFF"); // The filter logs every request at INFO, which would otherwise dominate.
+        DEFAULTS.put("report", "build/reports/loadtest/results.json");
+        DEFAULTS.put("version", "unknown");
+    }
+
+    private static final String WRONG_PASSWORD = "wrong";
+    private static final String MALFORMED = "Basic Hello-World!";
+    private static final long SAMPLING_INTERVAL_MILLIS = 10;
+    private static final double NANOS_PER_MILLI = MILLISECONDS.toNanos(1);
+
+    // Strong references, as loggers are otherwise only weakly referenced, and would lose their level:
+    private static final List<Logger> LOGGERS = new ArrayList<>();
+
+    private final Map<String, String> arguments;
+    private final Map<String, String> filterParameters = new TreeMap<>();
+    private final int threads;
+    private final boolean virtualThreads;
+    private final long warmupSeconds;
+    private final long durationSeconds;
+    private final LatencyProfile latency;
+    private final double pamErrorRate;
+    private final double invalidRate;
+    private final double malformedRate;
+    private final String[] validHeaders;
+    private final String[] invalidHeaders;
+    private final String[] ips;
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder latencySumNanos = new LongAdder();
+    private final LongAccumulator maxLatencyNanos = new LongAccumulator(Math::max, 0);
+    private final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+    private final AtomicInteger peakRequestsInFlight = new AtomicInteger();
+    private final AtomicInteger peakPamInFlight = new AtomicInteger();
+    private volatile boolean running = true;
+    private volatile boolean measuring = false;
+
+    private PamAuthFilterLoadTest(final Map<String, String> arguments) {
+        this.arguments = arguments;
+        for (final Map.Entry<String, String> argument : arguments.entrySet()) {
+            if (argument.getKey().startsWith(FILTER_PREFIX)) {
+                filterParameters.put(argument.getKey().substring(FILTER_PREFIX.length()), argument.getValue());
+            }
+        }
+        this.threads = Integer.parseInt(arguments.get("threads"));
+        this.virtualThreads = Boolean.parseBoolean(arguments.get("virtualThreads"));
+        this.warmupSeconds = Long.parseLong(arguments.get("warmupSeconds"));
+        this.durationSeconds = Long.parseLong(arguments.get("durationSeconds"));
+        this.latency = LatencyProfile.parse(arguments.get("latency"));
+        this.pamErrorRate = Double.parseDouble(arguments.get("pamErrorRate"));
+        this.invalidRate = Double.parseDouble(arguments.get("invalidRate"));
+        this.malformedRate = Double.parseDouble(arguments.get("malformedRate"));
+        final int users = Integer.parseInt(arguments.get("users"));
+        this.validHeaders = new String[users];
+        this.invalidHeaders = new String[users];
+        for (int i = 0; i < users; ++i) {
+            validHeaders[i] = basic("user" + i, FakePam.PASSWORD);
+            invalidHeaders[i] = basic("user" + i, WRONG_PASSWORD);
+        }
+        this.ips = new String[Integer.parseInt(arguments.get("ips"))];
+        for (int i = 0; i < ips.length; ++i) {
+            ips[i] = format("10.%d.%d.%d", (i >> 16) & 0xFF, (i >> 8) & 0xFF, i & 0xFF);
+        }
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final Map<String, String> arguments = new LinkedHashMap<>(DEFAULTS);
+        for (final String arg : args) {
+            final int separator = arg.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException(format("Invalid argument [%s]: please provide key=value pairs, with keys among %s, or prefixed with %s.", arg, DEFAULTS.keySet(), FILTER_PREFIX));
+            }
+            final String key = arg.substring(0, separator).trim();
+            if (!DEFAULTS.containsKey(key) && !key.startsWith(FILTER_PREFIX)) {
+                throw new IllegalArgumentException(format("Unknown argument [%s]: please provide keys among %s, or prefixed with %s.", key, DEFAULTS.keySet(), FILTER_PREFIX));
+            }
+            arguments.put(key, arg.substring(separator + 1).trim());
+        }
+        setLogLevel(Level.parse(arguments.get("logLevel").toUpperCase(Locale.ROOT)));
+        new PamAuthFilterLoadTest(arguments).run();
+    }
+
+    private static void setLogLevel(final Level level) {
+        for (final Class<?> clazz : new Class<?>[]{PamAuthFilter.class, PamAuthEngine.class, AuditLog.class, AuthExecutor.class, CircuitBreaker.class, PamWorkers.class}) {
+            final Logger logger = Logger.getLogger(clazz.getSimpleName());
+            logger.setLevel(level);
+            LOGGERS.add(logger);
+        }
+    }
+
+    private void run() throws Exception {
+        final PamAuthFilter filter = new PamAuthFilter(service -> FakePam.newFakePam(latency, pamErrorRate));
+        final Map<String, String> parameters = new TreeMap<>(filterParameters);
+        parameters.putIfAbsent(PamAuthFilter.REALM, "Tatooine");
+        parameters.putIfAbsent(PamAuthFilter.JMX, "false");
+        filter.init(new StubFilterConfig(parameters));
+        final LongAdder chained = new LongAdder();
+        final FilterChain chain = (request, response) -> chained.increment();
+        final List<Thread> clients = new ArrayList<>(threads);
+        try {
+            for (int i = 0; i < threads; ++i) {
+                clients.add(startClient(i, () -> drive(filter, chain)));
+            }
+            System.out.println(format("Warming up for %d seconds with %d %s threads...", warmupSeconds, threads, virtualThreads ? "virtual" : "platform"));
+            SECONDS.sleep(warmupSeconds);
+            final Map<String, Number> before = snapshot(filter.metrics());
+            measuring = true;
+            final long start = System.nanoTime();
+            System.out.println(format("Measuring for %d seconds...", durationSeconds));
+            final long end = start + SECONDS.toNanos(durationSeconds);
+            while (System.nanoTime() < end) {
+                peakRequestsInFlight.accumulateAndGet(filter.metrics().getRequestsInFlight(), Math::max);
+                peakPamInFlight.accumulateAndGet(filter.metrics().getPamAuthenticationsInFlight(), Math::max);
+                MILLISECONDS.sleep(SAMPLING_INTERVAL_MILLIS);
+            }
+            measuring = false;
+            final long elapsedNanos = System.nanoTime() - start;
+            final Map<String, Number> after = snapshot(filter.metrics());
+            running = false;
+            for (final Thread client : clients) {
+                client.join();
+            }
+            report(elapsedNanos, delta(before, after), filter.metrics());
+        } finally {
+            running = false;
+            filter.destroy();
+        }
+    }
+
+    private Thread startClient(final int index, final Runnable client) throws ReflectiveOperationException {
+        if (virtualThreads) {
+            try {
+                final Method startVirtualThread = Thread.class.getMethod("startVirtualThread", Runnable.class);
+                return (Thread) startVirtualThread.invoke(null, client);
+            } catch (final NoSuchMethodException e) {
+                System.err.println(format("Virtual threads are not available on Java [%s], falling back to platform threads.", System.getProperty("java.specification.version")));
+            }
+        }
+        final Thread thread = new Thread(client, "load-test-client-" + index);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private void drive(final PamAuthFilter filter, final FilterChain chain) {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (running) {
+            final double dice = random.nextDouble();
+            final int user = random.nextInt(validHeaders.length);
+            final String header = (dice < malformedRate) ? MALFORMED : ((dice < (malformedRate + invalidRate)) ? invalidHeaders[user] : validHeaders[user]);
+            final StubHttpServletRequest request = new StubHttpServletRequest(header, ips[random.nextInt(ips.length)]);
+            final StubHttpServletResponse response = new StubHttpServletResponse();
+            final long start = System.nanoTime();
+            try {
+                filter.doFilter(request, response, chain);
+            } catch (final IOException | ServletException | RuntimeException e) {
+                if (measuring) {
+                    errors.increment();
+                }
+                continue;
+            }
+            final long latencyNanos = System.nanoTime() - start;
+            if (measuring) {
+                requests.increment();
+                histogram.record(latencyNanos);
+                latencySumNanos.add(latencyNanos);
+                maxLatencyNanos.accumulate(latencyNanos);
+                statuses.computeIfAbsent(response.getStatus(), (status) -> new LongAdder()).increment();
+            }
+        }
+    }
+
+    private static Map<String, Number> snapshot(final PamAuthFilterMXBean metrics) {
+        final Map<String, Number> snapshot = new LinkedHashMap<>();
+        snapshot.put("pamSuccesses", metrics.getPamSuccesses());
+        snapshot.put("pamFailures", metrics.getPamFailures());
+        snapshot.put("pamUnavailable", metrics.getPamUnavailable());
+        snapshot.put("cacheHits", metrics.getCacheHits());
+        snapshot.put("sessionTokenHits", metrics.getSessionTokenHits());
+        snapshot.put("coalescedAuthentications", metrics.getCoalescedAuthentications());
+        snapshot.put("throttledRequests", metrics.getThrottledRequests());
+        snapshot.put("overloadedRequests", metrics.getOverloadedRequests());
+        snapshot.put("circuitOpenRejections", metrics.getCircuitOpenRejections());
+        snapshot.put("staleSuccesses", metrics.getStaleSuccesses());
+        return snapshot;
+    }
+
+    private static Map<String, Number> delta(final Map<String, Number> before, final Map<String, Number> after) {
+        final Map<String, Number> delta = new LinkedHashMap<>();
+        for (final Map.Entry<String, Number> entry : after.entrySet()) {
+            delta.put(entry.getKey(), entry.getValue().longValue() - before.get(entry.getKey()).longValue());
+        }
+        return delta;
+    }
+
+    private void report(final long elapsedNanos, final Map<String, Number> filterCounters, final PamAuthFilterMXBean metrics) throws IOException {
+        final long count = requests.sum();
+        final Map<String, Object> latencies = new LinkedHashMap<>();
+        latencies.put("mean", (count == 0) ? 0 : (latencySumNanos.sum() / (double) count) / NANOS_PER_MILLI);
+        latencies.put("p50", histogram.percentile(50) / NANOS_PER_MILLI);
+        latencies.put("p90", histogram.percentile(90) / NANOS_PER_MILLI);
+        latencies.put("p99", histogram.percentile(99) / NANOS_PER_MILLI);
+        latencies.put("p999", histogram.percentile(99.9) / NANOS_PER_MILLI);
+        latencies.put("max", maxLatencyNanos.get() / NANOS_PER_MILLI);
+        final Map<String, Object> statusCounts = new TreeMap<>();
+        for (final Map.Entry<Integer, LongAdder> status : statuses.entrySet()) {
+            statusCounts.put(Integer.toString(status.getKey()), status.getValue().sum());
+        }
+        final Map<String, Object> filter = new LinkedHashMap<>(filterCounters);
+        filter.put("peakRequestsInFlight", peakRequestsInFlight.get());
+        filter.put("peakPamAuthenticationsInFlight", peakPamInFlight.get());
+        filter.put("pamLatencyP50Millis", metrics.getPamLatencyP50Millis());
+        filter.put("pamLatencyP99Millis", metrics.getPamLatencyP99Millis());
+        filter.put("circuitBreakerState", metrics.getCircuitBreakerState());
+        final Map<String, Object> configuration = new LinkedHashMap<>();
+        for (final Map.Entry<String, String> argument : arguments.entrySet()) {
+            if (!argument.getKey().startsWith(FILTER_PREFIX) && !"report".equals(argument.getKey()) && !"version".equals(argument.getKey())) {
+                configuration.put(argument.getKey(), argument.getValue());
+            }
+        }
+        configuration.put("filter", new LinkedHashMap<String, Object>(filterParameters));
+        final Map<String, Object> report = new LinkedHashMap<>();
+        report.put("version", arguments.get("version"));
+        report.put("timestamp", Instant.now().toString());
+        report.put("java", System.getProperty("java.version"));
+        report.put("cpus", Runtime.getRuntime().availableProcessors());
+        report.put("configuration", configuration);
+        report.put("elapsedSeconds", elapsedNanos / 1e9);
+        report.put("requests", count);
+        report.put("errors", errors.sum());
+        report.put("throughputPerSecond", count / (elapsedNanos / 1e9));
+        report.put("statuses", statusCounts);
+        report.put("latencyMillis", latencies);
+        report.put("filter", filter);
+
+        final StringBuilder json = new StringBuilder();
+        appendJson(json, report, "");
+        json.append('\n');
+        System.out.print(json);
+        final Path file = Paths.get(arguments.get("report"));
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write(json.toString());
+        }
+        System.out.println(format("Report written to [%s].", file.toAbsolutePath()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void appendJson(final StringBuilder json, final Object value, final String indent) {
+        if (value instanceof Map) {
+            final String nested = indent + "  ";
+            json.append('{');
+            boolean first = true;
+            for (final Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                json.append(first ? "\n" : ",\n").append(nested);
+                appendString(json, entry.getKey());
+                json.append(": ");
+                appendJson(json, entry.getValue(), nested);
+                first = false;
+            }
+            json.append(first ? "}" : "\n" + indent + "}");
+        } else if (value instanceof Double) {
+            final double number = (Double) value;
+            json.append((Double.isNaN(number) || Double.isInfinite(number)) ? "null" : format(Locale.ROOT, "%.3f", number));
+        } else if ((value instanceof Number) || (value instanceof Boolean)) {
+            json.append(value);
+        } else if (value == null) {
+            json.append("null");
+        } else {
+            appendString(json, value.toString());
+        }
+    }
+
+    private static void appendString(final StringBuilder json, final String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); ++i) {
+            final char c = value.charAt(i);
+            if ((c == '"') || (c == '\\')) {
+                json.append('\\').append(c);
+            } else if (c < ' ') {
+                json.append(format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    private static String basic(final String username, final String password) {
+        return "Basic " + Base64.getEncoder().encodeToString((username + ':' + password).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,57 @@
+package com.carmatechnologies.servlet;
+
+import org.jvnet.libpam.PAMException;
+import org.jvnet.libpam.UnixUser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+/**
+ * Compares verifying a session token with looking up the same user in the credential cache, which session tokens
+ * should always beat, since both skip PAM.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SessionTokensBenchmark {
+    private static final String SERVICE = "login";
+
+    private SessionTokens tokens;
+    private String token;
+    private CredentialCache cache;
+
+    @Setup
+    public void setUp() throws PAMException {
+        final UnixUser user = FakePam.newFakePam(0).authenticate(FakePam.USERNAME, FakePam.PASSWORD);
+        tokens = new SessionTokens(PamAuthFilter.DEFAULT_SERVICE, Collections.<byte[]>emptyList(), PamAuthFilter.DEFAULT_CACHE_TTL_SECONDS, PamAuthFilter.DEFAULT_SESSION_TOKEN_KEY_ROTATION_SECONDS);
+        token = tokens.issue(user);
+        cache = new CredentialCache(1024, PamAuthFilter.DEFAULT_CACHE_TTL_SECONDS, PamAuthFilter.DEFAULT_CACHE_IDLE_SECONDS, PamAuthFilter.DEFAULT_CACHE_DIGEST_ITERATIONS);
+        cache.put(cache.key(SERVICE, FakePam.USERNAME, FakePam.PASSWORD), user);
+    }
+
+    @Benchmark
+    public UnixUser verifySessionToken() {
+        return tokens.verify(token);
+    }
+
+    @Benchmark
+    public UnixUser lookUpCachedCredentials() {
+        return cache.get(cache.key(SERVICE, FakePam.USERNAME, FakePam.PASSWORD));
+    }
+}
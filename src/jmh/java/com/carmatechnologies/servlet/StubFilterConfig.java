@@ -0,0 +1,40 @@
+package com.carmatechnologies.servlet;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Map;
+
+/**
+ * {@link FilterConfig} for benchmarks, backed by the provided init parameters.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+final class StubFilterConfig implements FilterConfig {
+    private final Map<String, String> parameters;
+
+    StubFilterConfig(final Map<String, String> parameters) {
+        this.parameters = parameters;
+    }
+
+    @Override
+    public String getFilterName() {
+        return PamAuthFilter.class.getSimpleName();
+    }
+
+    @Override
+    public ServletContext getServletContext() {
+        throw new UnsupportedOperationException("getServletContext");
+    }
+
+    @Override
+    public String getInitParameter(final String name) {
+        return parameters.get(name);
+    }
+
+    @Override
+    public Enumeration<String> getInitParameterNames() {
+        return Collections.enumeration(parameters.keySet());
+    }
+}
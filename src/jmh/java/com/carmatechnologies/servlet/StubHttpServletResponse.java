@@ -0,0 +1,61 @@
+package com.carmatechnologies.servlet;
+
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.lang.reflect.Proxy;
+
+/**
+ * Lightweight {@link HttpServletResponse} for benchmarks, which only records the status sent by
+ * {@link PamAuthFilter}, and ignores headers.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+final class StubHttpServletResponse extends HttpServletResponseWrapper {
+    private static final HttpServletResponse UNSUPPORTED = (HttpServletResponse) Proxy.newProxyInstance(
+            StubHttpServletResponse.class.getClassLoader(),
+            new Class<?>[]{HttpServletResponse.class},
+            (proxy, method, args) -> {
+                throw new UnsupportedOperationException(method.getName());
+            });
+
+    private int status = SC_OK;
+
+    StubHttpServletResponse() {
+        super(UNSUPPORTED);
+    }
+
+    @Override
+    public void setHeader(final String name, final String value) {
+        // Ignored.
+    }
+
+    @Override
+    public void addHeader(final String name, final String value) {
+        // Ignored.
+    }
+
+    @Override
+    public void setStatus(final int status) {
+        this.status = status;
+    }
+
+    @Override
+    public void sendError(final int status) {
+        this.status = status;
+    }
+
+    @Override
+    public void sendError(final int status, final String message) {
+        this.status = status;
+    }
+
+    @Override
+    public int getStatus() {
+        return status;
+    }
+
+    @Override
+    public void reset() {
+        status = SC_OK;
+    }
+}
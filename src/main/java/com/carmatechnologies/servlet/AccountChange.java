@@ -0,0 +1,85 @@
+package com.carmatechnologies.servlet;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Users and groups whose accounts changed, e.g. because /etc/passwd or /etc/group was edited, and whose cached
+ * authentications should therefore be discarded. A change either lists the users, groups and GIDs affected, or
+ * affects everyone, e.g. because a PAM configuration changed, or because a file could not be diffed.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+final class AccountChange {
+    static final AccountChange ALL = new AccountChange(true, Collections.<String>emptySet(), Collections.<String>emptySet(), Collections.<Integer>emptySet());
+
+    private final boolean all;
+    private final Set<String> users;
+    private final Set<String> groups;
+    private final Set<Integer> gids;
+
+    private AccountChange(final boolean all, final Set<String> users, final Set<String> groups, final Set<Integer> gids) {
+        this.all = all;
+        this.users = users;
+        this.groups = groups;
+        this.gids = gids;
+    }
+
+    /**
+     * @param users  names of the users whose accounts changed.
+     * @param groups names of the groups which changed, e.g. gained or lost members.
+     * @param gids   identifiers of the groups which changed, so that users whose primary group changed are affected.
+     */
+    static AccountChange of(final Set<String> users, final Set<String> groups, final Set<Integer> gids) {
+        return new AccountChange(false, Collections.unmodifiableSet(new HashSet<>(users)), Collections.unmodifiableSet(new HashSet<>(groups)),
+                Collections.unmodifiableSet(new HashSet<>(gids)));
+    }
+
+    boolean affectsAll() {
+        return all;
+    }
+
+    boolean isEmpty() {
+        return !all && users.isEmpty() && groups.isEmpty() && gids.isEmpty();
+    }
+
+    /**
+     * @param groups the user's groups, or null.
+     * @return true if the provided user's cached authentication should be discarded.
+     */
+    boolean affects(final String username, final int gid, final Set<String> groups) {
+        if (all || users.contains(username) || gids.contains(gid)) {
+            return true;
+        }
+        if ((groups != null) && !this.groups.isEmpty()) {
+            for (final String group : groups) {
+                if (this.groups.contains(group)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a change affecting whoever this change or the provided one affects.
+     */
+    AccountChange merge(final AccountChange other) {
+        if (all || other.all) {
+            return ALL;
+        }
+        final Set<String> users = new HashSet<>(this.users);
+        users.addAll(other.users);
+        final Set<String> groups = new HashSet<>(this.groups);
+        groups.addAll(other.groups);
+        final Set<Integer> gids = new HashSet<>(this.gids);
+        gids.addAll(other.gids);
+        return of(users, groups, gids);
+    }
+
+    @Override
+    public String toString() {
+        return all ? "all accounts" : String.format("users %s, groups %s and GIDs %s", users, groups, gids);
+    }
+}
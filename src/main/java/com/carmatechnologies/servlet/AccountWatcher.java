@@ -0,0 +1,366 @@
+package com.carmatechnologies.servlet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import static java.lang.String.format;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.logging.Level.SEVERE;
+
+/**
+ * Watches account files, e.g. /etc/passwd, /etc/shadow, /etc/group and /etc/pam.d/[service], and reports which
+ * accounts changed, so that cached authentications can be discarded as soon as, rather than long after, an account
+ * is locked, its password changed, or its groups edited.
+ * - Files named passwd or shadow are diffed line by line, keyed on their first field, the username, and report the
+ *   users added, removed or modified.
+ * - Files named group are diffed the same way, keyed on the group's name, and report the groups added, removed or
+ *   modified, along with their GIDs, and their members before and after the change.
+ * - Any other file, e.g. a PAM configuration, and any file which cannot be read, e.g. /etc/shadow when not running as
+ *   root, reports a change to all accounts.
+ * Only a SHA-256 digest of each line is kept in memory, so that password hashes read from /etc/shadow are not.
+ * Changes are debounced: they are only reported once the files have not changed for the configured period, or at most
+ * {@link #MAX_DEBOUNCE_PERIODS} periods after the first change, so that a burst of changes, e.g. a bulk user import,
+ * is reported once.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+final class AccountWatcher {
+    static final int MAX_DEBOUNCE_PERIODS = 10;
+
+    private static final Logger logger = Logger.getLogger(AccountWatcher.class.getSimpleName());
+    private static final Charset UTF_8 = Charset.forName("UTF-8"); // UTF-8: eight-bit UCS Transformation Format.
+    private static final String THREAD_NAME = "pam-account-watcher";
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final long CLOSE_TIMEOUT_MILLIS = SECONDS.toMillis(5);
+    private static final char SEPARATOR = ':';
+    private static final String MEMBERS_SEPARATOR = ",";
+    private static final char COMMENT = '#';
+    private static final int NO_GID = -1;
+
+    private final Map<Path, AccountFile> files = new LinkedHashMap<>();
+    private final long debounceNanos;
+    private final Consumer<AccountChange> listener;
+    private final WatchService watchService;
+    private final Thread watcher;
+    private volatile boolean running = false;
+
+    /**
+     * @param files          files to watch. Files which do not exist yet are watched for creation, as long as their
+     *                       directory exists.
+     * @param debounceMillis time during which files must not have changed before changes are reported.
+     * @param listener       notified of changes, by the watching thread.
+     */
+    AccountWatcher(final List<Path> files, final long debounceMillis, final Consumer<AccountChange> listener) throws IOException {
+        if ((files == null) || files.isEmpty()) {
+            throw new IllegalArgumentException("Please provide at least one file to watch.");
+        }
+        if (debounceMillis < 0) {
+            throw new IllegalArgumentException("Please provide a positive debounce period.");
+        }
+        if (listener == null) {
+            throw new NullPointerException("Please provide a non-null listener.");
+        }
+        try {
+            MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(DIGEST_ALGORITHM + " is not available on this JVM.", e);
+        }
+        for (final Path file : files) {
+            final Path path = file.toAbsolutePath().normalize();
+            this.files.put(path, new AccountFile(path));
+        }
+        this.debounceNanos = MILLISECONDS.toNanos(debounceMillis);
+        this.listener = listener;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.watcher = new Thread(this::watch, THREAD_NAME);
+        this.watcher.setDaemon(true);
+    }
+
+    void start() throws IOException {
+        final Set<Path> directories = new HashSet<>();
+        for (final AccountFile file : files.values()) {
+            file.reload();
+            final Path directory = file.path.getParent();
+            if (directories.contains(directory)) {
+                continue;
+            }
+            if (Files.isDirectory(directory)) {
+                directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+                directories.add(directory);
+            } else {
+                logger.warning(format("Cannot watch [%s], as its directory does not exist.", file.path));
+            }
+        }
+        running = true;
+        watcher.start();
+    }
+
+    void close() {
+        running = false;
+        try {
+            watchService.close();
+        } catch (final IOException e) {
+            logger.warning(format("Failed to close account files watcher: %s", e.getMessage()));
+        }
+        try {
+            watcher.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void watch() {
+        final Set<AccountFile> changed = new HashSet<>();
+        long firstChangeNanos = 0;
+        long lastChangeNanos = 0;
+        while (running) {
+            final WatchKey key;
+            try {
+                if (changed.isEmpty()) {
+                    key = watchService.take();
+                } else {
+                    final long deadline = Math.min(lastChangeNanos + debounceNanos, firstChangeNanos + (MAX_DEBOUNCE_PERIODS * debounceNanos));
+                    final long waitNanos = deadline - System.nanoTime();
+                    key = (waitNanos <= 0) ? null : watchService.poll(waitNanos, NANOSECONDS);
+                }
+            } catch (final InterruptedException | ClosedWatchServiceException e) {
+                break;
+            }
+            if (key == null) {
+                report(changed);
+                changed.clear();
+                continue;
+            }
+            final int before = changed.size();
+            boolean modified = false;
+            final Path directory = (Path) key.watchable();
+            for (final WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    // Events were lost, hence assume all files in this directory changed:
+                    for (final AccountFile file : files.values()) {
+                        if (file.path.getParent().equals(directory)) {
+                            changed.add(file);
+                            modified = true;
+                        }
+                    }
+                } else {
+                    final AccountFile file = files.get(directory.resolve((Path) event.context()));
+                    if (file != null) {
+                        changed.add(file);
+                        modified = true;
+                    }
+                }
+            }
+            key.reset();
+            if (modified) {
+                final long now = System.nanoTime();
+                if (before == 0) {
+                    firstChangeNanos = now;
+                }
+                lastChangeNanos = now;
+            }
+        }
+    }
+
+    private void report(final Set<AccountFile> changed) {
+        AccountChange change = AccountChange.of(Collections.<String>emptySet(), Collections.<String>emptySet(), Collections.<Integer>emptySet());
+        for (final AccountFile file : changed) {
+            change = change.merge(file.reload());
+        }
+        if (change.isEmpty()) {
+            return;
+        }
+        logger.info(format("Account files changed, affecting %s.", change));
+        try {
+            listener.accept(change);
+        } catch (final RuntimeException e) {
+            logger.log(SEVERE, format("Failed to process change to %s: %s", change, e.getMessage()), e);
+        }
+    }
+
+    private enum Format {
+        USERS, GROUPS, OTHER;
+
+        private static Format of(final Path path) {
+            final String name = path.getFileName().toString();
+            if ("passwd".equals(name) || "shadow".equals(name)) {
+                return USERS;
+            }
+            if ("group".equals(name)) {
+                return GROUPS;
+            }
+            return OTHER;
+        }
+    }
+
+    /**
+     * Last known content of a watched file. Only ever accessed by the watching thread, once started.
+     */
+    private static final class AccountFile {
+        private final Path path;
+        private final Format format;
+        /**
+         * Accounts, by name, or null if the file could not be read, or is not diffed.
+         */
+        private Map<String, Account> accounts;
+
+        private AccountFile(final Path path) {
+            this.path = path;
+            this.format = Format.of(path);
+        }
+
+        /**
+         * @return the accounts which changed since the file was last read.
+         */
+        private AccountChange reload() {
+            final Map<String, Account> previous = accounts;
+            accounts = read();
+            if ((previous == null) || (accounts == null)) {
+                return AccountChange.ALL;
+            }
+            final Set<String> users = new HashSet<>();
+            final Set<String> groups = new HashSet<>();
+            final Set<Integer> gids = new HashSet<>();
+            final Set<String> names = new HashSet<>(previous.keySet());
+            names.addAll(accounts.keySet());
+            for (final String name : names) {
+                final Account before = previous.get(name);
+                final Account after = accounts.get(name);
+                if ((before != null) && (after != null) && before.digest.equals(after.digest)) {
+                    continue;
+                }
+                if (format == Format.USERS) {
+                    users.add(name);
+                } else {
+                    groups.add(name);
+                    for (final Account account : new Account[]{before, after}) {
+                        if (account != null) {
+                            if (account.gid != NO_GID) {
+                                gids.add(account.gid);
+                            }
+                            users.addAll(account.members);
+                        }
+                    }
+                }
+            }
+            return AccountChange.of(users, groups, gids);
+        }
+
+        private Map<String, Account> read() {
+            if (format == Format.OTHER) {
+                return null;
+            }
+            final byte[] bytes;
+            try {
+                bytes = Files.readAllBytes(path);
+            } catch (final IOException e) {
+                logger.warning(format("Failed to read [%s], hence any change to it affects all accounts: %s", path, e));
+                return null;
+            }
+            final MessageDigest digest = newDigest();
+            final Map<String, Account> accounts = new HashMap<>();
+            int start = 0;
+            for (int i = 0; i <= bytes.length; ++i) {
+                if ((i == bytes.length) || (bytes[i] == '\n')) {
+                    if ((i > start) && (bytes[start] != COMMENT)) {
+                        digest.update(bytes, start, i - start);
+                        final ByteBuffer lineDigest = ByteBuffer.wrap(digest.digest());
+                        // Only decode the fields needed, so that password hashes are never turned into strings:
+                        final String[] fields = fields(bytes, start, i, (format == Format.GROUPS) ? 4 : 1);
+                        if (format == Format.GROUPS) {
+                            accounts.put(fields[0], new Account(lineDigest, parseGid(fields[2]), parseMembers(fields[3])));
+                        } else {
+                            accounts.put(fields[0], new Account(lineDigest, NO_GID, Collections.<String>emptySet()));
+                        }
+                    }
+                    start = i + 1;
+                }
+            }
+            return accounts;
+        }
+
+        /**
+         * @return the first count fields of the line between from and to, empty if the line has fewer fields.
+         */
+        private static String[] fields(final byte[] bytes, final int from, final int to, final int count) {
+            final String[] fields = new String[count];
+            int start = from;
+            for (int field = 0; field < count; ++field) {
+                int end = start;
+                while ((end < to) && (bytes[end] != SEPARATOR)) {
+                    ++end;
+                }
+                // Skip field 1, i.e. the password, which is only ever hashed:
+                fields[field] = ((field == 1) || (start >= to)) ? "" : new String(bytes, start, end - start, UTF_8).trim();
+                start = end + 1;
+            }
+            return fields;
+        }
+
+        private static int parseGid(final String gid) {
+            try {
+                return Integer.parseInt(gid);
+            } catch (final NumberFormatException e) {
+                return NO_GID;
+            }
+        }
+
+        private static Set<String> parseMembers(final String members) {
+            if (members.isEmpty()) {
+                return Collections.emptySet();
+            }
+            final Set<String> names = new HashSet<>();
+            for (final String member : members.split(MEMBERS_SEPARATOR)) {
+                if (!member.trim().isEmpty()) {
+                    names.add(member.trim());
+                }
+            }
+            return names;
+        }
+
+        private static MessageDigest newDigest() {
+            try {
+                return MessageDigest.getInstance(DIGEST_ALGORITHM);
+            } catch (final NoSuchAlgorithmException e) {
+                throw new IllegalStateException(DIGEST_ALGORITHM + " is not available on this JVM.", e);
+            }
+        }
+    }
+
+    private static final class Account {
+        private final ByteBuffer digest;
+        private final int gid;
+        private final Set<String> members;
+
+        private Account(final ByteBuffer digest, final int gid, final Set<String> members) {
+            this.digest = digest;
+            this.gid = gid;
+            this.members = members;
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package com.carmatechnologies.servlet;
+
+import org.jvnet.libpam.UnixUser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+import static java.lang.String.format;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.logging.Level.SEVERE;
+
+/**
+ * Asynchronous audit log of authentication events, written as JSON lines to a rolling file, so that request threads
+ * neither format nor write log records, nor contend on a log handler's lock.
+ * - Request threads publish events to a bounded, lock-free, multi-producer ring buffer (see also: Dmitry Vyukov's
+ *   bounded MPMC queue), which only stores references to the (immutable) events.
+ * - A single background thread drains the ring buffer in batches, formats events, and writes them via a
+ *   {@link FileChannel}, rolling the file over once it reaches its maximum size.
+ * - When the ring buffer is full, events are either dropped and counted, or the request thread waits for the writer
+ *   to catch up, depending on the configured {@link Overflow} policy. Events are always dropped once the writer
+ *   stopped, e.g. because it failed, so that request threads never wait for it forever.
+ * Events only ever contain what {@link PamAuthEngine} would otherwise log, and passwords are never recorded.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+final class AuditLog {
+    /**
+     * What to do when an event is recorded while the ring buffer is full.
+     */
+    enum Overflow {
+        /**
+         * Drop the event, and periodically log how many events were dropped.
+         */
+        DROP,
+
+        /**
+         * Wait for the writer to make space for the event.
+         */
+        BLOCK
+    }
+
+    /**
+     * Opens the provided file for appending, see also: {@link #openForAppend(Path)}.
+     */
+    interface Opener {
+        FileChannel open(Path file) throws IOException;
+    }
+
+    private static final Logger logger = Logger.getLogger(AuditLog.class.getSimpleName());
+    private static final Charset UTF_8 = Charset.forName("UTF-8"); // UTF-8: eight-bit UCS Transformation Format.
+    private static final String THREAD_NAME = "pam-audit-writer";
+    private static final int BATCH_SIZE = 256;
+    private static final int WRITE_BUFFER_BYTES = 64 * 1024;
+    private static final int LINE_LENGTH = 512;
+    private static final long IDLE_PARK_NANOS = MILLISECONDS.toNanos(10);
+    private static final long BLOCKED_PARK_NANOS = MICROSECONDS.toNanos(50);
+    private static final long DROPS_REPORT_INTERVAL_NANOS = SECONDS.toNanos(60);
+    private static final long CLOSE_TIMEOUT_MILLIS = SECONDS.toMillis(5);
+    private static final char QUOTE = '"';
+    private static final char BACKSLASH = '\\';
+    private static final char SPACE = ' ';
+    private static final String HEX = "0123456789abcdef";
+
+    private final Path file;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final Overflow overflow;
+    private final Opener opener;
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean running = false;
+
+    // Only ever accessed by the writer thread:
+    private long head = 0;
+    private FileChannel channel;
+    private long fileBytes;
+    private long reportedDrops = 0;
+    private long lastDropsReportNanos = System.nanoTime();
+    private final StringBuilder line = new StringBuilder(LINE_LENGTH);
+    private final CharsetEncoder encoder = UTF_8.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES);
+
+    /**
+     * @param file         file to write events to. Rolled over files are suffixed with .1, .2, etc., .1 being the most
+     *                     recent.
+     * @param capacity     maximum number of events buffered, which must be a power of two.
+     * @param maxFileBytes size beyond which the file is rolled over.
+     * @param maxFiles     number of rolled over files to keep.
+     * @param overflow     what to do with events recorded while the buffer is full.
+     */
+    AuditLog(final Path file, final int capacity, final long maxFileBytes, final int maxFiles, final Overflow overflow) {
+        this(file, capacity, maxFileBytes, maxFiles, overflow, AuditLog::openForAppend);
+    }
+
+    AuditLog(final Path file, final int capacity, final long maxFileBytes, final int maxFiles, final Overflow overflow, final Opener opener) {
+        if (file == null) {
+            throw new NullPointerException("Please provide a non-null audit file.");
+        }
+        if ((capacity <= 0) || (Integer.bitCount(capacity) != 1)) {
+            throw new IllegalArgumentException("Please provide a capacity which is a power of two.");
+        }
+        if (maxFileBytes <= 0) {
+            throw new IllegalArgumentException("Please provide a strictly positive maximum file size.");
+        }
+        if (maxFiles < 0) {
+            throw new IllegalArgumentException("Please provide a positive number of files to keep.");
+        }
+        if (overflow == null) {
+            throw new NullPointerException("Please provide a non-null overflow policy.");
+        }
+        this.file = file;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+        this.overflow = overflow;
+        this.opener = opener;
+        this.slots = new Slot[capacity];
+        for (int i = 0; i < capacity; ++i) {
+            slots[i] = new Slot(i);
+        }
+        this.mask = capacity - 1;
+        this.writer = new Thread(this::drain, THREAD_NAME);
+        this.writer.setDaemon(true);
+    }
+
+    void start() throws IOException {
+        open();
+        running = true;
+        writer.start();
+    }
+
+    /**
+     * @return true if the event was recorded, or false if it was dropped.
+     */
+    boolean record(final AuthResult result, final String ip) {
+        if (!running) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        final long timestampMillis = System.currentTimeMillis();
+        while (true) {
+            final long position = tail.get();
+            final Slot slot = slots[(int) position & mask];
+            final long difference = slot.sequence - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slot.timestampMillis = timestampMillis;
+                    slot.ip = ip;
+                    slot.result = result;
+                    slot.sequence = position + 1; // Publishes the above to the writer.
+                    return true;
+                }
+            } else if (difference < 0) {
+                // Ring buffer is full, and will stay so if the writer stopped:
+                if ((overflow == Overflow.DROP) || !running || !writer.isAlive()) {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+                LockSupport.parkNanos(BLOCKED_PARK_NANOS);
+            }
+            // Otherwise, another thread claimed this position first: retry.
+        }
+    }
+
+    long dropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Stops accepting events, and waits for the writer to write all pending ones.
+     */
+    void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                final int count = drainBatch();
+                if (count > 0) {
+                    flush();
+                } else if (running) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                } else {
+                    break;
+                }
+                reportDrops();
+            }
+        } catch (final RuntimeException | Error e) {
+            // Stop accepting events, as nothing would make space for them anymore:
+            running = false;
+            logger.log(SEVERE, format("Audit log writer failed, dropping all further events: %s", e), e);
+        } finally {
+            closeChannel();
+        }
+    }
+
+    private int drainBatch() {
+        int count = 0;
+        while (count < BATCH_SIZE) {
+            final Slot slot = slots[(int) head & mask];
+            if (slot.sequence != (head + 1)) {
+                break; // Nothing (more) published yet.
+            }
+            try {
+                append(slot.timestampMillis, slot.ip, slot.result);
+            } catch (final RuntimeException e) {
+                // Skip this event only, rather than stop auditing altogether:
+                logger.log(SEVERE, format("Failed to audit event from IP [%s]: %s", slot.ip, e), e);
+            }
+            slot.ip = null;
+            slot.result = null;
+            slot.sequence = head + slots.length; // Makes the slot available to producers again.
+            ++head;
+            ++count;
+        }
+        return count;
+    }
+
+    private void append(final long timestampMillis, final String ip, final AuthResult result) {
+        line.setLength(0);
+        line.append("{\"timestamp\":\"");
+        DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochMilli(timestampMillis), line);
+        line.append("\",\"ip\":");
+        appendString(ip);
+        line.append(",\"user\":");
+        appendString(result.username());
+        final UnixUser user = result.user();
+        if (user != null) {
+            line.append(",\"uid\":").append(user.getUID());
+            line.append(",\"gid\":").append(user.getGID());
+        }
+        line.append(",\"event\":\"").append(result.event().name());
+        line.append("\",\"outcome\":\"").append(result.outcome().name()).append(QUOTE);
+        if (result.pamLatencyNanos() > 0) {
+            line.append(",\"pamLatencyMicros\":").append(NANOSECONDS.toMicros(result.pamLatencyNanos()));
+        }
+        if (result.detail() != null) {
+            line.append(",\"detail\":");
+            appendString(result.detail());
+        }
+        line.append("}\n");
+        encode();
+    }
+
+    private void appendString(final String value) {
+        if (value == null) {
+            line.append("null");
+            return;
+        }
+        line.append(QUOTE);
+        for (int i = 0; i < value.length(); ++i) {
+            final char c = value.charAt(i);
+            if ((c == QUOTE) || (c == BACKSLASH)) {
+                line.append(BACKSLASH).append(c);
+            } else if (c < SPACE) {
+                line.append("\\u00").append(HEX.charAt(c >> 4)).append(HEX.charAt(c & 0xF));
+            } else {
+                line.append(c);
+            }
+        }
+        line.append(QUOTE);
+    }
+
+    private void encode() {
+        final CharBuffer chars = CharBuffer.wrap(line);
+        encoder.reset();
+        while (encoder.encode(chars, buffer, true).isOverflow()) {
+            flush();
+        }
+        while (encoder.flush(buffer).isOverflow()) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        buffer.flip();
+        try {
+            if (channel == null) {
+                // Failed to reopen the file after rolling it over: retry, rather than roll it over again.
+                open();
+            } else if ((fileBytes > 0) && ((fileBytes + buffer.remaining()) > maxFileBytes)) {
+                roll();
+            }
+            while (buffer.hasRemaining()) {
+                fileBytes += channel.write(buffer);
+            }
+        } catch (final IOException e) {
+            logger.log(SEVERE, format("Failed to write audit events to [%s]: %s", file, e.getMessage()), e);
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    private void roll() throws IOException {
+        closeChannel();
+        channel = null;
+        if (maxFiles == 0) {
+            Files.deleteIfExists(file);
+        } else if (Files.exists(file)) {
+            // Otherwise, already rolled over, and shifting files again would only discard the oldest one.
+            Files.deleteIfExists(rolled(maxFiles));
+            for (int i = maxFiles - 1; i > 0; --i) {
+                final Path rolled = rolled(i);
+                if (Files.exists(rolled)) {
+                    Files.move(rolled, rolled(i + 1), REPLACE_EXISTING);
+                }
+            }
+            Files.move(file, rolled(1), REPLACE_EXISTING);
+        }
+        open();
+    }
+
+    private Path rolled(final int i) {
+        return Paths.get(file.toString() + '.' + i);
+    }
+
+    private void open() throws IOException {
+        final FileChannel opened = opener.open(file);
+        fileBytes = opened.size();
+        channel = opened;
+    }
+
+    static FileChannel openForAppend(final Path file) throws IOException {
+        return FileChannel.open(file, CREATE, WRITE, APPEND);
+    }
+
+    private void closeChannel() {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (final IOException e) {
+            logger.log(SEVERE, format("Failed to close audit file [%s]: %s", file, e.getMessage()), e);
+        }
+    }
+
+    private void reportDrops() {
+        final long now = System.nanoTime();
+        if ((now - lastDropsReportNanos) < DROPS_REPORT_INTERVAL_NANOS) {
+            return;
+        }
+        lastDropsReportNanos = now;
+        final long drops = dropped.get();
+        if (drops > reportedDrops) {
+            logger.warning(format("Audit log buffer full: dropped %d events in the last %d seconds.", drops - reportedDrops, NANOSECONDS.toSeconds(DROPS_REPORT_INTERVAL_NANOS)));
+            reportedDrops = drops;
+        }
+    }
+
+    private static final class Slot {
+        private volatile long sequence;
+        private long timestampMillis;
+        private String ip;
+        private AuthResult result;
+
+        private Slot(final long sequence) {
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.carmatechnologies.servlet;
+
+/**
+ * Detailed reason for the {@link AuthOutcome} of an authentication attempt by {@link PamAuthEngine}.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+enum AuthEvent {
+    BLANK_HEADER(AuthOutcome.UNAUTHENTICATED),
+    MALFORMED_HEADER(AuthOutcome.UNAUTHENTICATED),
+    MALFORMED_BASE64(AuthOutcome.UNAUTHENTICATED),
+    MALFORMED_CREDENTIALS(AuthOutcome.UNAUTHENTICATED),
+    CACHE_HIT(AuthOutcome.AUTHENTICATED),
+    SESSION_TOKEN(AuthOutcome.AUTHENTICATED),
+    STALE_SUCCESS(AuthOutcome.AUTHENTICATED),
+    PAM_SUCCESS(AuthOutcome.AUTHENTICATED),
+    PAM_FAILURE(AuthOutcome.UNAUTHENTICATED),
+    PAM_UNAVAILABLE(AuthOutcome.OVERLOADED),
+    COALESCED_SUCCESS(AuthOutcome.AUTHENTICATED),
+    COALESCED_FAILURE(AuthOutcome.UNAUTHENTICATED),
+    THROTTLED_IP(AuthOutcome.THROTTLED),
+    THROTTLED_USER(AuthOutcome.THROTTLED),
+    OVERLOADED(AuthOutcome.OVERLOADED),
+    CIRCUIT_OPEN(AuthOutcome.OVERLOADED);
+
+    private final AuthOutcome outcome;
+
+    AuthEvent(final AuthOutcome outcome) {
+        this.outcome = outcome;
+    }
+
+    AuthOutcome outcome() {
+        return outcome;
+    }
+}
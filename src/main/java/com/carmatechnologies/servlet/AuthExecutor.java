@@ -0,0 +1,145 @@
+package com.carmatechnologies.servlet;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import static com.carmatechnologies.servlet.PamAuthParameters.ASYNC_QUEUE_SIZE;
+import static com.carmatechnologies.servlet.PamAuthParameters.ASYNC_THREADS;
+import static com.carmatechnologies.servlet.PamAuthParameters.ASYNC_VIRTUAL_THREADS;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_ASYNC_QUEUE_SIZE;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_ASYNC_THREADS;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_ASYNC_VIRTUAL_THREADS;
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Bounded executor dedicated to running PAM authentications off the servlet container's request threads, or off an
+ * event loop. Tasks which cannot be accepted are rejected with {@link RejectedExecutionException}, so that callers can
+ * either fall back to running them on their own thread, or reject the request.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+final class AuthExecutor {
+    private static final Logger logger = Logger.getLogger(AuthExecutor.class.getSimpleName());
+    private static final String THREAD_NAME = "pam-auth-%d";
+    private static final long KEEP_ALIVE_SECONDS = 60;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 5;
+
+    private final ExecutorService executor;
+    private final Semaphore permits;
+
+    private AuthExecutor(final ExecutorService executor, final Semaphore permits) {
+        this.executor = executor;
+        this.permits = permits;
+    }
+
+    /**
+     * @return an executor configured via {@link PamAuthParameters#ASYNC_THREADS},
+     * {@link PamAuthParameters#ASYNC_QUEUE_SIZE} and {@link PamAuthParameters#ASYNC_VIRTUAL_THREADS}.
+     */
+    static AuthExecutor configure(final InitParameters parameters) throws PamConfigurationException {
+        final int threads = parameters.getOrDefault(ASYNC_THREADS, DEFAULT_ASYNC_THREADS);
+        final int queueSize = parameters.getOrDefault(ASYNC_QUEUE_SIZE, DEFAULT_ASYNC_QUEUE_SIZE);
+        final boolean useVirtualThreads = parameters.getOrDefault(ASYNC_VIRTUAL_THREADS, DEFAULT_ASYNC_VIRTUAL_THREADS);
+        logger.info(format("PAM asynchronous authentication configured with %s=[%d], %s=[%d] and %s=[%s].", ASYNC_THREADS, threads, ASYNC_QUEUE_SIZE, queueSize, ASYNC_VIRTUAL_THREADS, useVirtualThreads));
+        try {
+            return useVirtualThreads ? virtualThreads(threads, queueSize) : platformThreads(threads, queueSize);
+        } catch (final RuntimeException e) {
+            throw new PamConfigurationException("Failed to create PAM authentication executor", e);
+        }
+    }
+
+    /**
+     * @return an executor running at most the provided number of tasks concurrently on platform threads, and queueing
+     * at most queueSize more.
+     */
+    static AuthExecutor platformThreads(final int threads, final int queueSize) {
+        checkSizes(threads, queueSize);
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, SECONDS, new ArrayBlockingQueue<>(queueSize), new DaemonThreadFactory());
+        executor.allowCoreThreadTimeOut(true);
+        return new AuthExecutor(executor, null);
+    }
+
+    /**
+     * @return an executor running each task on a new virtual thread, with at most threads + queueSize tasks in flight,
+     * or, if virtual threads are not available on this JVM (i.e. before Java 21), the equivalent platform threads
+     * executor.
+     * N.B.: JNA's native calls occupy the virtual thread's carrier thread for their whole duration, so the carrier
+     * pool (-Djdk.virtualThreadScheduler.parallelism) bounds the number of concurrent PAM calls.
+     */
+    static AuthExecutor virtualThreads(final int threads, final int queueSize) {
+        checkSizes(threads, queueSize);
+        final ExecutorService executor;
+        try {
+            final Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            executor = (ExecutorService) factory.invoke(null);
+        } catch (final ReflectiveOperationException e) {
+            logger.warning(format("Virtual threads are not available on Java [%s], falling back to platform threads.", System.getProperty("java.specification.version")));
+            return platformThreads(threads, queueSize);
+        }
+        return new AuthExecutor(executor, new Semaphore(threads + queueSize));
+    }
+
+    private static void checkSizes(final int threads, final int queueSize) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Please provide a strictly positive number of threads.");
+        }
+        if (queueSize <= 0) {
+            throw new IllegalArgumentException("Please provide a strictly positive queue size.");
+        }
+    }
+
+    void execute(final Runnable task) {
+        if (permits == null) {
+            executor.execute(task);
+            return;
+        }
+        if (!permits.tryAcquire()) {
+            throw new RejectedExecutionException("Too many PAM authentications queued.");
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, SECONDS)) {
+                logger.warning(format("PAM authentication executor did not terminate within %d seconds.", SHUTDOWN_TIMEOUT_SECONDS));
+                executor.shutdownNow();
+            }
+        } catch (final InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class DaemonThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, format(THREAD_NAME, count.incrementAndGet()));
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
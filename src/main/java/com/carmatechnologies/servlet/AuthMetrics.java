@@ -0,0 +1,191 @@
+package com.carmatechnologies.servlet;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Counters, gauges and latency histograms of {@link PamAuthEngine}, exposed via JMX.
+ * Recording is lock-free and does not allocate: counters are {@link LongAdder}s indexed by {@link AuthEvent},
+ * latencies are recorded in {@link LatencyHistogram}s, and gauges are atomic integers.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+final class AuthMetrics implements PamAuthFilterMXBean {
+    private static final double NANOS_PER_MILLI = MILLISECONDS.toNanos(1);
+
+    private final LongAdder[] events = new LongAdder[AuthEvent.values().length];
+    private final LatencyHistogram pamLatency = new LatencyHistogram();
+    private final LatencyHistogram filterLatency = new LatencyHistogram();
+    private final AtomicInteger pamInFlight = new AtomicInteger();
+    private final AtomicInteger requestsInFlight = new AtomicInteger();
+    private volatile CircuitBreaker breaker;
+
+    AuthMetrics() {
+        for (int i = 0; i < events.length; ++i) {
+            events[i] = new LongAdder();
+        }
+    }
+
+    void onRequestStart() {
+        requestsInFlight.incrementAndGet();
+    }
+
+    /**
+     * @param result null if authentication failed unexpectedly, in which case only the gauge is updated.
+     */
+    void onRequestEnd(final AuthResult result, final long filterLatencyNanos) {
+        requestsInFlight.decrementAndGet();
+        if (result == null) {
+            return;
+        }
+        events[result.event().ordinal()].increment();
+        filterLatency.record(filterLatencyNanos);
+        if ((result.event() == AuthEvent.PAM_SUCCESS) || (result.event() == AuthEvent.PAM_FAILURE) || (result.event() == AuthEvent.PAM_UNAVAILABLE)) {
+            pamLatency.record(result.pamLatencyNanos());
+        }
+    }
+
+    void monitor(final CircuitBreaker breaker) {
+        this.breaker = breaker;
+    }
+
+    void onPamStart() {
+        pamInFlight.incrementAndGet();
+    }
+
+    void onPamEnd() {
+        pamInFlight.decrementAndGet();
+    }
+
+    long count(final AuthEvent event) {
+        return events[event.ordinal()].sum();
+    }
+
+    @Override
+    public long getBlankHeaders() {
+        return count(AuthEvent.BLANK_HEADER);
+    }
+
+    @Override
+    public long getMalformedHeaders() {
+        return count(AuthEvent.MALFORMED_HEADER);
+    }
+
+    @Override
+    public long getMalformedBase64() {
+        return count(AuthEvent.MALFORMED_BASE64);
+    }
+
+    @Override
+    public long getMalformedCredentials() {
+        return count(AuthEvent.MALFORMED_CREDENTIALS);
+    }
+
+    @Override
+    public long getCacheHits() {
+        return count(AuthEvent.CACHE_HIT);
+    }
+
+    @Override
+    public long getSessionTokenHits() {
+        return count(AuthEvent.SESSION_TOKEN);
+    }
+
+    @Override
+    public long getPamSuccesses() {
+        return count(AuthEvent.PAM_SUCCESS);
+    }
+
+    @Override
+    public long getPamFailures() {
+        return count(AuthEvent.PAM_FAILURE);
+    }
+
+    @Override
+    public long getPamUnavailable() {
+        return count(AuthEvent.PAM_UNAVAILABLE);
+    }
+
+    @Override
+    public long getCoalescedAuthentications() {
+        return count(AuthEvent.COALESCED_SUCCESS) + count(AuthEvent.COALESCED_FAILURE);
+    }
+
+    @Override
+    public long getThrottledRequests() {
+        return count(AuthEvent.THROTTLED_IP) + count(AuthEvent.THROTTLED_USER);
+    }
+
+    @Override
+    public long getOverloadedRequests() {
+        return count(AuthEvent.OVERLOADED);
+    }
+
+    @Override
+    public long getCircuitOpenRejections() {
+        return count(AuthEvent.CIRCUIT_OPEN);
+    }
+
+    @Override
+    public long getStaleSuccesses() {
+        return count(AuthEvent.STALE_SUCCESS);
+    }
+
+    @Override
+    public String getCircuitBreakerState() {
+        final CircuitBreaker breaker = this.breaker;
+        return (breaker == null) ? null : breaker.state().name();
+    }
+
+    @Override
+    public int getPamAuthenticationsInFlight() {
+        return pamInFlight.get();
+    }
+
+    @Override
+    public int getRequestsInFlight() {
+        return requestsInFlight.get();
+    }
+
+    @Override
+    public double getPamLatencyP50Millis() {
+        return millis(pamLatency, 50);
+    }
+
+    @Override
+    public double getPamLatencyP99Millis() {
+        return millis(pamLatency, 99);
+    }
+
+    @Override
+    public double getPamLatencyP999Millis() {
+        return millis(pamLatency, 99.9);
+    }
+
+    @Override
+    public double getFilterLatencyP50Millis() {
+        return millis(filterLatency, 50);
+    }
+
+    @Override
+    public double getFilterLatencyP99Millis() {
+        return millis(filterLatency, 99);
+    }
+
+    @Override
+    public double getFilterLatencyP999Millis() {
+        return millis(filterLatency, 99.9);
+    }
+
+    @Override
+    public void resetLatencies() {
+        pamLatency.reset();
+        filterLatency.reset();
+    }
+
+    private static double millis(final LatencyHistogram histogram, final double percentile) {
+        return histogram.percentile(percentile) / NANOS_PER_MILLI;
+    }
+}
@@ -0,0 +1,30 @@
+package com.carmatechnologies.servlet;
+
+/**
+ * Outcome of an authentication attempt by {@link PamAuthEngine}.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+enum AuthOutcome {
+    /**
+     * The user was successfully authenticated, and the request should proceed to the next filter.
+     */
+    AUTHENTICATED,
+
+    /**
+     * The user could not be authenticated, and should be challenged with HTTP 401 Unauthorized.
+     */
+    UNAUTHENTICATED,
+
+    /**
+     * Too many authentications are currently in flight, and the request should be rejected with HTTP 503 Service
+     * Unavailable.
+     */
+    OVERLOADED,
+
+    /**
+     * The client or user failed to authenticate too many times recently, and the request should be rejected without
+     * calling PAM.
+     */
+    THROTTLED
+}
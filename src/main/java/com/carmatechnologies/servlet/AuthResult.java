@@ -0,0 +1,105 @@
+package com.carmatechnologies.servlet;
+
+import org.jvnet.libpam.UnixUser;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Result of an authentication attempt by {@link PamAuthEngine}: what happened, and, when known, for which user.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+final class AuthResult {
+    private static final Map<AuthEvent, AuthResult> ANONYMOUS = new EnumMap<>(AuthEvent.class);
+
+    static {
+        for (final AuthEvent event : AuthEvent.values()) {
+            ANONYMOUS.put(event, new AuthResult(event, null, null, 0, null));
+        }
+    }
+
+    private final AuthEvent event;
+    private final String username;
+    private final UnixUser user;
+    private final long pamLatencyNanos;
+    private final String detail;
+
+    private AuthResult(final AuthEvent event, final String username, final UnixUser user, final long pamLatencyNanos, final String detail) {
+        this.event = event;
+        this.username = username;
+        this.user = user;
+        this.pamLatencyNanos = pamLatencyNanos;
+        this.detail = detail;
+    }
+
+    /**
+     * @return a shared result for the provided event, for when no more is known about the user.
+     */
+    static AuthResult of(final AuthEvent event) {
+        return ANONYMOUS.get(event);
+    }
+
+    /**
+     * @param detail safe to log description of what was wrong with the request, e.g. with any password masked.
+     */
+    static AuthResult malformed(final AuthEvent event, final String detail) {
+        return new AuthResult(event, null, null, 0, detail);
+    }
+
+    static AuthResult of(final AuthEvent event, final String username) {
+        return new AuthResult(event, username, null, 0, null);
+    }
+
+    static AuthResult of(final AuthEvent event, final String username, final UnixUser user, final long pamLatencyNanos) {
+        return new AuthResult(event, username, user, pamLatencyNanos, null);
+    }
+
+    /**
+     * @return this result, as seen by a request which waited for another, identical, authentication to complete,
+     * rather than calling PAM itself.
+     */
+    AuthResult coalesced() {
+        switch (event) {
+            case PAM_SUCCESS:
+                return new AuthResult(AuthEvent.COALESCED_SUCCESS, username, user, 0, detail);
+            case PAM_FAILURE:
+                return new AuthResult(AuthEvent.COALESCED_FAILURE, username, user, 0, detail);
+            default:
+                return this;
+        }
+    }
+
+    AuthEvent event() {
+        return event;
+    }
+
+    AuthOutcome outcome() {
+        return event.outcome();
+    }
+
+    /**
+     * @return the username provided by the client, or null if it could not be decoded.
+     */
+    String username() {
+        return username;
+    }
+
+    /**
+     * @return the user authenticated by PAM, or null if not authenticated.
+     */
+    UnixUser user() {
+        return user;
+    }
+
+    /**
+     * @return the time PAM took to authenticate, or 0 if PAM was not called.
+     */
+    long pamLatencyNanos() {
+        return pamLatencyNanos;
+    }
+
+    String detail() {
+        return detail;
+    }
+}
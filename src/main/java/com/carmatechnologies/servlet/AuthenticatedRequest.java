@@ -0,0 +1,45 @@
+package com.carmatechnologies.servlet;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import java.security.Principal;
+
+/**
+ * Request authenticated by {@link PamAuthFilter}, which exposes the authenticated user to the rest of the filter
+ * chain, and maps roles to the user's Unix groups.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+final class AuthenticatedRequest extends HttpServletRequestWrapper {
+    /**
+     * Role any authenticated user has, see also: Servlet 3.1 specification, section 13.3.
+     */
+    private static final String ANY_AUTHENTICATED_USER = "**";
+
+    private final UnixUserPrincipal principal;
+
+    AuthenticatedRequest(final HttpServletRequest request, final UnixUserPrincipal principal) {
+        super(request);
+        this.principal = principal;
+    }
+
+    @Override
+    public String getAuthType() {
+        return BASIC_AUTH;
+    }
+
+    @Override
+    public Principal getUserPrincipal() {
+        return principal;
+    }
+
+    @Override
+    public String getRemoteUser() {
+        return principal.getName();
+    }
+
+    @Override
+    public boolean isUserInRole(final String role) {
+        return ANY_AUTHENTICATED_USER.equals(role) || principal.isMemberOf(role);
+    }
+}
@@ -0,0 +1,24 @@
+package com.carmatechnologies.servlet;
+
+import org.jvnet.libpam.PAMException;
+import org.jvnet.libpam.UnixUser;
+
+/**
+ * Backend authenticating users against a given PAM service, on behalf of {@link PamAuthEngine}: either in-process, via
+ * {@link PamPool}, or out-of-process, via {@link PamWorkers}.
+ * Implementations are thread-safe.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+interface Authenticator {
+    /**
+     * @return the authenticated user.
+     * @throws PAMException if the user could not be authenticated.
+     */
+    UnixUser authenticate(String username, String password) throws PAMException;
+
+    /**
+     * Releases resources held by this backend. Authentications in flight may fail.
+     */
+    void close();
+}
@@ -0,0 +1,89 @@
+package com.carmatechnologies.servlet;
+
+import java.util.Arrays;
+
+/**
+ * Allocation-free decoder for the "Basic" base64 alphabet (see: https://tools.ietf.org/html/rfc4648#section-4), which
+ * decodes a region of a {@link CharSequence} directly into a caller-provided buffer, rather than into a new array like
+ * {@link java.util.Base64.Decoder} does.
+ * Accepts and rejects exactly the same inputs as {@link java.util.Base64#getDecoder()}: padding is optional but must
+ * be correct when present, and no character may follow it.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+final class Base64Decoder {
+    static final int MALFORMED = -1;
+
+    private static final char PADDING = '=';
+    private static final int INVALID = -1;
+    private static final int BITS_PER_CHAR = 6;
+    private static final int BITS_PER_BYTE = 8;
+    private static final int BYTE_MASK = 0xFF;
+    private static final int[] VALUES = new int[128];
+
+    static {
+        Arrays.fill(VALUES, INVALID);
+        final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); ++i) {
+            VALUES[alphabet.charAt(i)] = i;
+        }
+    }
+
+    private Base64Decoder() {
+        // Pure utility class, do NOT instantiate.
+    }
+
+    /**
+     * @return the maximum number of bytes decoded from the provided number of base64 characters.
+     */
+    static int maxDecodedLength(final int length) {
+        return ((length + 3) / 4) * 3;
+    }
+
+    /**
+     * Decodes characters [from, to) of the provided base64-encoded characters into the provided buffer, which must be
+     * at least {@link #maxDecodedLength(int)} long.
+     *
+     * @return the number of decoded bytes, or {@link #MALFORMED} if the provided characters are not valid base64.
+     */
+    static int decode(final CharSequence chars, final int from, final int to, final byte[] buffer) {
+        int bits = 0;
+        int bitCount = 0;
+        int length = 0;
+        int i = from;
+        for (; i < to; ++i) {
+            final char c = chars.charAt(i);
+            if (c == PADDING) {
+                break;
+            }
+            final int value = (c < VALUES.length) ? VALUES[c] : INVALID;
+            if (value == INVALID) {
+                return MALFORMED;
+            }
+            bits = (bits << BITS_PER_CHAR) | value;
+            bitCount += BITS_PER_CHAR;
+            if (bitCount >= BITS_PER_BYTE) {
+                bitCount -= BITS_PER_BYTE;
+                buffer[length++] = (byte) ((bits >> bitCount) & BYTE_MASK);
+            }
+        }
+        // Number of characters in the last, incomplete, 4-characters unit: 0, 2 or 3 are valid, 1 is not.
+        final int remainder = (i - from) % 4;
+        if (remainder == 1) {
+            return MALFORMED;
+        }
+        if (i < to) {
+            // Padding must complete the last unit, and nothing may follow it:
+            final int padding = (remainder == 0) ? 0 : (4 - remainder);
+            if ((padding == 0) || ((to - i) != padding)) {
+                return MALFORMED;
+            }
+            for (; i < to; ++i) {
+                if (chars.charAt(i) != PADDING) {
+                    return MALFORMED;
+                }
+            }
+        }
+        return length;
+    }
+}
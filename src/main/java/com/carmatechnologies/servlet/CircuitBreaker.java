@@ -0,0 +1,155 @@
+package com.carmatechnologies.servlet;
+
+import org.jvnet.libpam.PAMException;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Circuit breaker guarding a PAM service, so that, when whatever is behind it (e.g. sssd, LDAP, Kerberos) is down,
+ * requests fail fast rather than each wait for PAM to give up, and pile up.
+ * - {@link State#CLOSED}: PAM is called. The breaker opens after a number of consecutive calls for which PAM was
+ *   unavailable, see also: {@link #isUnavailable(Throwable)}. Rejected credentials do not count, so that clients
+ *   cannot open the breaker by sending wrong passwords.
+ * - {@link State#OPEN}: PAM is not called. Once the open period elapsed, the breaker lets a single trial call through.
+ * - {@link State#HALF_OPEN}: a trial call is in flight, and PAM is otherwise not called. The breaker closes if PAM is
+ *   available again, or re-opens otherwise. Should the trial never report back, e.g. because it was rejected further
+ *   down, another trial is let through once the open period elapsed again.
+ * Checking the breaker's state is lock-free, and only state transitions, which are rare, synchronise.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+final class CircuitBreaker {
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    /**
+     * Linux-PAM's description of PAM_AUTHINFO_UNAVAIL, returned when the underlying authentication service cannot be
+     * reached, and included by libpam4j in {@link PAMException}'s message.
+     */
+    static final String AUTHINFO_UNAVAIL = "Authentication service cannot retrieve authentication info";
+
+    private static final Logger logger = Logger.getLogger(CircuitBreaker.class.getSimpleName());
+
+    private final String service;
+    private final int failureThreshold;
+    private final long openNanos;
+    private final LongSupplier nanoClock;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile State state = State.CLOSED;
+    private volatile long transitionNanos;
+
+    CircuitBreaker(final String service, final int failureThreshold, final long openSeconds) {
+        this(service, failureThreshold, openSeconds, System::nanoTime);
+    }
+
+    CircuitBreaker(final String service, final int failureThreshold, final long openSeconds, final LongSupplier nanoClock) {
+        if (service == null) {
+            throw new NullPointerException("Please provide a non-null PAM service.");
+        }
+        if (failureThreshold <= 0) {
+            throw new IllegalArgumentException("Please provide a strictly positive number of failures.");
+        }
+        if (openSeconds <= 0) {
+            throw new IllegalArgumentException("Please provide a strictly positive open period.");
+        }
+        if (nanoClock == null) {
+            throw new NullPointerException("Please provide a non-null clock.");
+        }
+        this.service = service;
+        this.failureThreshold = failureThreshold;
+        this.openNanos = SECONDS.toNanos(openSeconds);
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * @return true if the caller may call PAM, in which case it must then call either {@link #onAvailable()} or
+     * {@link #onUnavailable()}.
+     */
+    boolean allowRequest() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if ((nanoClock.getAsLong() - transitionNanos) < openNanos) {
+            return false;
+        }
+        synchronized (this) {
+            final long now = nanoClock.getAsLong();
+            if ((state == State.CLOSED) || ((now - transitionNanos) < openNanos)) {
+                return state == State.CLOSED;
+            }
+            transition(State.HALF_OPEN, now);
+            return true;
+        }
+    }
+
+    /**
+     * Records that PAM responded, whether it authenticated the user or not.
+     */
+    void onAvailable() {
+        consecutiveFailures.set(0);
+        if (state != State.CLOSED) {
+            synchronized (this) {
+                if (state != State.CLOSED) {
+                    transition(State.CLOSED, nanoClock.getAsLong());
+                }
+            }
+        }
+    }
+
+    /**
+     * Records that PAM could not tell whether the user is authenticated.
+     */
+    void onUnavailable() {
+        final int failures = consecutiveFailures.incrementAndGet();
+        if ((state == State.HALF_OPEN) || ((state == State.CLOSED) && (failures >= failureThreshold))) {
+            synchronized (this) {
+                if (state != State.OPEN) {
+                    transition(State.OPEN, nanoClock.getAsLong());
+                }
+            }
+        }
+    }
+
+    State state() {
+        return state;
+    }
+
+    /**
+     * @return true if the provided error means PAM was unavailable, rather than rejected the user's credentials.
+     */
+    static boolean isUnavailable(final Throwable error) {
+        if (error instanceof PamUnavailableException) {
+            return true;
+        }
+        if (error instanceof PAMException) {
+            final String message = error.getMessage();
+            return (message != null) && message.contains(AUTHINFO_UNAVAIL);
+        }
+        return true; // Any other error is unexpected, e.g. PAM could not be initialised.
+    }
+
+    private void transition(final State next, final long now) {
+        final State previous = state;
+        transitionNanos = now;
+        state = next;
+        switch (next) {
+            case OPEN:
+                logger.warning(format("PAM circuit breaker for service [%s] opened after %d consecutive failures: failing fast for %d seconds.", service, consecutiveFailures.get(), NANOSECONDS.toSeconds(openNanos)));
+                break;
+            case HALF_OPEN:
+                logger.info(format("PAM circuit breaker for service [%s] half-open: trying PAM again.", service));
+                break;
+            default:
+                logger.info(format("PAM circuit breaker for service [%s] closed (was %s): PAM is available again.", service, previous));
+        }
+    }
+}
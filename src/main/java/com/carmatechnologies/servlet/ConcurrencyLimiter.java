@@ -0,0 +1,97 @@
+package com.carmatechnologies.servlet;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Adaptive limit on the number of in-flight PAM authentications, so that a slow PAM backend cannot tie up every
+ * container thread. Requests beyond the limit are rejected immediately rather than queued.
+ * The limit follows an AIMD (additive increase, multiplicative decrease) policy based on observed PAM latency:
+ * - it decreases by {@link #BACKOFF_RATIO} whenever an authentication takes longer than the latency threshold, or
+ *   fails unexpectedly (i.e. PAM itself failed, not the user's credentials),
+ * - it increases by one whenever an authentication completes within the latency threshold while at least half of the
+ *   current limit was in use,
+ * - it always stays within [minLimit, maxLimit].
+ * Failed authentications do not adjust the limit, since PAM modules like pam_faildelay deliberately delay these.
+ * Acquiring and releasing permits is lock-free.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+final class ConcurrencyLimiter {
+    static final double BACKOFF_RATIO = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyThresholdNanos;
+    private final AtomicInteger limit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    ConcurrencyLimiter(final int minLimit, final int maxLimit, final long latencyThresholdMillis) {
+        if ((minLimit <= 0) || (maxLimit < minLimit)) {
+            throw new IllegalArgumentException("Please provide limits such that 0 < minLimit <= maxLimit.");
+        }
+        if (latencyThresholdMillis <= 0) {
+            throw new IllegalArgumentException("Please provide a strictly positive latency threshold.");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyThresholdNanos = MILLISECONDS.toNanos(latencyThresholdMillis);
+        this.limit = new AtomicInteger(maxLimit);
+    }
+
+    /**
+     * @return true if the caller may proceed with a PAM authentication, in which case it must then call one of the
+     * release methods, or false if the limit has been reached.
+     */
+    boolean tryAcquire() {
+        while (true) {
+            final int current = inFlight.get();
+            if (current >= limit.get()) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Releases a permit after PAM authenticated the user, adjusting the limit based on the provided latency.
+     */
+    void onSuccess(final long latencyNanos) {
+        final int current = inFlight.getAndDecrement();
+        if (latencyNanos > latencyThresholdNanos) {
+            decrease();
+        } else if ((current * 2) >= limit.get()) {
+            limit.getAndUpdate(value -> Math.min(maxLimit, value + 1));
+        }
+    }
+
+    /**
+     * Releases a permit after PAM rejected the user's credentials, leaving the limit unchanged.
+     */
+    void onFailure() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Releases a permit after PAM itself failed, decreasing the limit.
+     */
+    void onError() {
+        inFlight.decrementAndGet();
+        decrease();
+    }
+
+    int limit() {
+        return limit.get();
+    }
+
+    int inFlight() {
+        return inFlight.get();
+    }
+
+    private void decrease() {
+        limit.getAndUpdate(value -> Math.max(minLimit, (int) (value * BACKOFF_RATIO)));
+    }
+}
@@ -0,0 +1,338 @@
+package com.carmatechnologies.servlet;
+
+import org.jvnet.libpam.UnixUser;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Bounded, in-memory cache of successful PAM authentications, so that requests repeatedly sending the same credentials
+ * do not go through PAM every time.
+ * Passwords are never stored: entries are keyed on a salted PBKDF2 digest of the PAM service, username and password,
+ * and the salt is randomly generated for each cache instance, unless restored from a {@link WarmStartSnapshot}.
+ * Entries expire after a fixed time-to-live, or after a period of inactivity, and the least recently used entry is
+ * evicted once the cache is full.
+ * Expired entries may optionally be retained for a grace period, during which they are only returned by
+ * {@link #getStale(Key)}, e.g. to keep authenticating users while PAM is unavailable.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+final class CredentialCache {
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_LENGTH_BYTES = 16;
+    private static final int KEY_LENGTH_BITS = 256;
+    private static final char SEPARATOR = '\0';
+    private static final float LOAD_FACTOR = 0.75f;
+    private static final boolean ACCESS_ORDER = true;
+
+    private final int maxSize;
+    private final long ttlNanos;
+    private final long idleNanos;
+    private final long graceNanos;
+    private final int iterations;
+    // Only replaced by restoreSalt(), before the cache is used:
+    private volatile byte[] salt;
+    private final LongSupplier nanoClock;
+    private final LinkedHashMap<Key, CachedUser> entries;
+    // Incremented, under the entries' lock, every time entries are invalidated:
+    private long generation = 0;
+
+    CredentialCache(final int maxSize, final long ttlSeconds, final long idleSeconds, final int iterations) {
+        this(maxSize, ttlSeconds, idleSeconds, iterations, 0, System::nanoTime);
+    }
+
+    CredentialCache(final int maxSize, final long ttlSeconds, final long idleSeconds, final int iterations, final long graceSeconds) {
+        this(maxSize, ttlSeconds, idleSeconds, iterations, graceSeconds, System::nanoTime);
+    }
+
+    CredentialCache(final int maxSize, final long ttlSeconds, final long idleSeconds, final int iterations, final LongSupplier nanoClock) {
+        this(maxSize, ttlSeconds, idleSeconds, iterations, 0, nanoClock);
+    }
+
+    /**
+     * @param graceSeconds time, after an entry was created, beyond its time-to-live, during which it is still returned by
+     *                     {@link #getStale(Key)}.
+     */
+    CredentialCache(final int maxSize, final long ttlSeconds, final long idleSeconds, final int iterations, final long graceSeconds, final LongSupplier nanoClock) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Please provide a strictly positive maximum cache size.");
+        }
+        if (ttlSeconds <= 0) {
+            throw new IllegalArgumentException("Please provide a strictly positive time-to-live.");
+        }
+        if (iterations <= 0) {
+            throw new IllegalArgumentException("Please provide a strictly positive number of digest iterations.");
+        }
+        if (graceSeconds < 0) {
+            throw new IllegalArgumentException("Please provide a positive grace period.");
+        }
+        if (nanoClock == null) {
+            throw new NullPointerException("Please provide a non-null clock.");
+        }
+        try {
+            SecretKeyFactory.getInstance(ALGORITHM);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available on this JVM.", e);
+        }
+        this.maxSize = maxSize;
+        this.ttlNanos = SECONDS.toNanos(ttlSeconds);
+        this.idleNanos = SECONDS.toNanos(idleSeconds);
+        this.graceNanos = SECONDS.toNanos(graceSeconds);
+        this.iterations = iterations;
+        this.salt = new byte[SALT_LENGTH_BYTES];
+        new SecureRandom().nextBytes(salt);
+        this.nanoClock = nanoClock;
+        this.entries = new LinkedHashMap<Key, CachedUser>(maxSize, LOAD_FACTOR, ACCESS_ORDER) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Key, CachedUser> eldest) {
+                return size() > CredentialCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return the salted digest of the provided credentials, to be used to look up or store an authenticated user.
+     */
+    Key key(final String service, final String username, final String password) {
+        final char[] chars = new char[service.length() + username.length() + password.length() + 2];
+        int i = 0;
+        service.getChars(0, service.length(), chars, i);
+        chars[i += service.length()] = SEPARATOR;
+        username.getChars(0, username.length(), chars, ++i);
+        chars[i += username.length()] = SEPARATOR;
+        password.getChars(0, password.length(), chars, ++i);
+        final PBEKeySpec spec = new PBEKeySpec(chars, salt, iterations, KEY_LENGTH_BITS);
+        Arrays.fill(chars, SEPARATOR);
+        try {
+            return new Key(SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded());
+        } catch (final GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to digest credentials", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * @return the user previously authenticated with the credentials matching the provided key, or null if there is
+     * no such user or if the corresponding entry expired.
+     */
+    UnixUser get(final Key key) {
+        final long now = nanoClock.getAsLong();
+        synchronized (entries) {
+            final CachedUser entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (isExpired(entry, now)) {
+                if (isStale(entry, now)) {
+                    entries.remove(key);
+                }
+                return null;
+            }
+            entry.lastAccessNanos = now;
+            return entry.user;
+        }
+    }
+
+    /**
+     * @return the user previously authenticated with the credentials matching the provided key, even if the
+     * corresponding entry expired, as long as it was created within its time-to-live and grace period, or null
+     * otherwise.
+     */
+    UnixUser getStale(final Key key) {
+        final long now = nanoClock.getAsLong();
+        synchronized (entries) {
+            final CachedUser entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (isStale(entry, now)) {
+                entries.remove(key);
+                return null;
+            }
+            return entry.user;
+        }
+    }
+
+    void put(final Key key, final UnixUser user) {
+        final long now = nanoClock.getAsLong();
+        synchronized (entries) {
+            entries.put(key, new CachedUser(user, now));
+        }
+    }
+
+    /**
+     * Caches the provided user, unless entries were invalidated since the provided generation was read, in which case
+     * the user may have been authenticated against an account which has since changed.
+     *
+     * @param generation as returned by {@link #generation()} before authenticating the user.
+     */
+    void put(final Key key, final UnixUser user, final long generation) {
+        final long now = nanoClock.getAsLong();
+        synchronized (entries) {
+            if (this.generation == generation) {
+                entries.put(key, new CachedUser(user, now));
+            }
+        }
+    }
+
+    long generation() {
+        synchronized (entries) {
+            return generation;
+        }
+    }
+
+    /**
+     * Removes the entries of the users affected by the provided change.
+     *
+     * @return the number of entries removed.
+     */
+    int invalidate(final AccountChange change) {
+        synchronized (entries) {
+            ++generation;
+            final int size = entries.size();
+            entries.values().removeIf(entry -> change.affects(entry.user.getUserName(), entry.user.getGID(), entry.user.getGroups()));
+            return size - entries.size();
+        }
+    }
+
+    /**
+     * Passes each entry, even if it expired, to the provided consumer, e.g. to snapshot the cache.
+     */
+    void forEach(final EntryConsumer consumer) {
+        synchronized (entries) {
+            for (final Map.Entry<Key, CachedUser> entry : entries.entrySet()) {
+                consumer.accept(entry.getKey(), entry.getValue().user, entry.getValue().createdNanos);
+            }
+        }
+    }
+
+    /**
+     * Replaces this empty cache's salt by the provided one, so that entries digested with it, e.g. by a previous
+     * instance, can be restored via {@link #restore(Key, UnixUser, long)}.
+     *
+     * @throws IllegalStateException if the cache is not empty.
+     */
+    void restoreSalt(final byte[] salt) {
+        if ((salt == null) || (salt.length != SALT_LENGTH_BYTES)) {
+            throw new IllegalArgumentException(format("Please provide a salt of %d bytes.", SALT_LENGTH_BYTES));
+        }
+        synchronized (entries) {
+            if (!entries.isEmpty()) {
+                throw new IllegalStateException("Cannot replace the salt of a non-empty cache.");
+            }
+            this.salt = salt.clone();
+        }
+    }
+
+    /**
+     * Restores an entry created the provided time ago, unless it is already past its time-to-live and grace period.
+     */
+    void restore(final Key key, final UnixUser user, final long ageNanos) {
+        final long now = nanoClock.getAsLong();
+        if (ageNanos >= (ttlNanos + graceNanos)) {
+            return;
+        }
+        final CachedUser entry = new CachedUser(user, now - Math.max(ageNanos, 0));
+        entry.lastAccessNanos = now;
+        synchronized (entries) {
+            entries.putIfAbsent(key, entry);
+        }
+    }
+
+    byte[] salt() {
+        return salt.clone();
+    }
+
+    int iterations() {
+        return iterations;
+    }
+
+    /**
+     * @return time, after an entry was created, after which it can never be returned again.
+     */
+    long retentionNanos() {
+        return ttlNanos + graceNanos;
+    }
+
+    long nanoTime() {
+        return nanoClock.getAsLong();
+    }
+
+    void clear() {
+        synchronized (entries) {
+            ++generation;
+            entries.clear();
+        }
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private boolean isExpired(final CachedUser entry, final long now) {
+        return ((now - entry.createdNanos) >= ttlNanos) || ((idleNanos > 0) && ((now - entry.lastAccessNanos) >= idleNanos));
+    }
+
+    /**
+     * @return true if the provided entry is past its grace period, and can therefore never be returned again.
+     */
+    private boolean isStale(final CachedUser entry, final long now) {
+        return (graceNanos == 0) ? isExpired(entry, now) : ((now - entry.createdNanos) >= (ttlNanos + graceNanos));
+    }
+
+    /**
+     * Salted digest of a service, username and password.
+     */
+    static final class Key {
+        private final byte[] digest;
+        private final int hashCode;
+
+        Key(final byte[] digest) {
+            this.digest = digest;
+            this.hashCode = Arrays.hashCode(digest);
+        }
+
+        byte[] digest() {
+            return digest;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            return (this == other) || ((other instanceof Key) && Arrays.equals(digest, ((Key) other).digest));
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    interface EntryConsumer {
+        void accept(Key key, UnixUser user, long createdNanos);
+    }
+
+    private static final class CachedUser {
+        private final UnixUser user;
+        private final long createdNanos;
+        private long lastAccessNanos;
+
+        private CachedUser(final UnixUser user, final long createdNanos) {
+            this.user = user;
+            this.createdNanos = createdNanos;
+            this.lastAccessNanos = createdNanos;
+        }
+    }
+}
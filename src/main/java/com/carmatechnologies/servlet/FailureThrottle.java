@@ -0,0 +1,122 @@
+package com.carmatechnologies.servlet;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Lock-free tracker of recent authentication failures per key (e.g. IP address or username), used to reject clients
+ * once they failed to authenticate too many times, before they cost a PAM call.
+ * Failures are counted in a count-min sketch, i.e. a fixed number of rows of atomic counters, each row indexed by a
+ * different hash of the key, so that memory stays bounded however many distinct keys are seen. Estimates can only
+ * overestimate, and do so more as the number of distinct failing keys per window grows beyond the width of the sketch.
+ * Each counter is packed with the index of the time window it was last updated in, and is halved when rolling over
+ * to the next window, so that failures decay over time.
+ * Hashes are seeded randomly for each instance, so that collisions cannot be precomputed to throttle other clients.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+final class FailureThrottle {
+    private static final int DEPTH = 3;
+    private static final long GOLDEN_RATIO = 0x9E3779B97F4A7C15L;
+    private static final long COUNT_MASK = 0xFFFFFFFFL;
+    private static final int WINDOW_SHIFT = 32;
+
+    private final int threshold;
+    private final long windowNanos;
+    private final int width;
+    private final int mask;
+    private final long[] seeds = new long[DEPTH];
+    private final AtomicLongArray counters;
+    private final LongSupplier nanoClock;
+
+    FailureThrottle(final int threshold, final long windowSeconds, final int width) {
+        this(threshold, windowSeconds, width, System::nanoTime);
+    }
+
+    FailureThrottle(final int threshold, final long windowSeconds, final int width, final LongSupplier nanoClock) {
+        if (threshold <= 0) {
+            throw new IllegalArgumentException("Please provide a strictly positive threshold.");
+        }
+        if (windowSeconds <= 0) {
+            throw new IllegalArgumentException("Please provide a strictly positive window.");
+        }
+        if ((width <= 0) || (Integer.bitCount(width) != 1)) {
+            throw new IllegalArgumentException("Please provide a width which is a power of two.");
+        }
+        if (nanoClock == null) {
+            throw new NullPointerException("Please provide a non-null clock.");
+        }
+        this.threshold = threshold;
+        this.windowNanos = SECONDS.toNanos(windowSeconds);
+        this.width = width;
+        this.mask = width - 1;
+        final SecureRandom random = new SecureRandom();
+        for (int i = 0; i < DEPTH; ++i) {
+            seeds[i] = random.nextLong();
+        }
+        this.counters = new AtomicLongArray(DEPTH * width);
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * @return true if the provided key failed to authenticate at least threshold times recently.
+     */
+    boolean isThrottled(final CharSequence key) {
+        return estimate(key, window()) >= threshold;
+    }
+
+    void recordFailure(final CharSequence key) {
+        final int window = window();
+        final long target = estimate(key, window) + 1;
+        // Conservative update: only raise counters below the new estimate, to limit overestimation.
+        for (int row = 0; row < DEPTH; ++row) {
+            final int index = index(key, row);
+            while (true) {
+                final long packed = counters.get(index);
+                if ((decayedCount(packed, window) >= target) || counters.compareAndSet(index, packed, pack(window, target))) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private long estimate(final CharSequence key, final int window) {
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; ++row) {
+            min = Math.min(min, decayedCount(counters.get(index(key, row)), window));
+        }
+        return min;
+    }
+
+    private int window() {
+        return (int) (nanoClock.getAsLong() / windowNanos);
+    }
+
+    private int index(final CharSequence key, final int row) {
+        long hash = seeds[row];
+        for (int i = 0; i < key.length(); ++i) {
+            hash = (hash + key.charAt(i)) * GOLDEN_RATIO;
+            hash ^= hash >>> WINDOW_SHIFT;
+        }
+        return (row * width) + ((int) hash & mask);
+    }
+
+    private static long decayedCount(final long packed, final int window) {
+        final int lastWindow = (int) (packed >>> WINDOW_SHIFT);
+        final long count = packed & COUNT_MASK;
+        if (lastWindow == window) {
+            return count;
+        }
+        if (lastWindow == (window - 1)) {
+            return count >>> 1;
+        }
+        return 0;
+    }
+
+    private static long pack(final int window, final long count) {
+        return (((long) window) << WINDOW_SHIFT) | Math.min(count, COUNT_MASK);
+    }
+}
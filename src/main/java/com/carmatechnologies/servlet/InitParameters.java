@@ -0,0 +1,106 @@
+package com.carmatechnologies.servlet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Function;
+
+import static java.lang.Character.isWhitespace;
+import static java.lang.String.format;
+
+/**
+ * Parses named parameters, e.g. a servlet filter's init parameters, into the values {@link PamAuthEngine},
+ * {@link PamAuthFilter} and {@link NonBlockingPamAuth} are configured with.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+final class InitParameters {
+    private static final String TRUE = "true";
+    private static final String FALSE = "false";
+    private static final String COMMA_SEPARATOR = ",";
+
+    private final Function<String, String> parameters;
+
+    /**
+     * @param parameters returns the value of the provided parameter, or null if it is not set.
+     */
+    InitParameters(final Function<String, String> parameters) {
+        if (parameters == null) {
+            throw new NullPointerException("Please provide non-null parameters.");
+        }
+        this.parameters = parameters;
+    }
+
+    /**
+     * @return the raw value of the provided parameter, or null if it is not set.
+     */
+    String get(final String name) {
+        return parameters.apply(name);
+    }
+
+    String getOrDefault(final String name, final String defaultValue) {
+        final String value = get(name);
+        return isBlank(value) ? defaultValue : value;
+    }
+
+    int getOrDefault(final String name, final int defaultValue) throws PamConfigurationException {
+        final String value = get(name);
+        if (isBlank(value)) {
+            return defaultValue;
+        }
+        try {
+            final int number = Integer.parseInt(value.trim());
+            if (number < 0) {
+                throw new PamConfigurationException(format("Invalid %s [%s]: please provide a positive integer.", name, value));
+            }
+            return number;
+        } catch (final NumberFormatException e) {
+            throw new PamConfigurationException(format("Invalid %s [%s]: please provide a positive integer.", name, value), e);
+        }
+    }
+
+    boolean getOrDefault(final String name, final boolean defaultValue) throws PamConfigurationException {
+        final String value = get(name);
+        if (isBlank(value)) {
+            return defaultValue;
+        }
+        switch (value.trim().toLowerCase(Locale.ROOT)) {
+            case TRUE:
+                return true;
+            case FALSE:
+                return false;
+            default:
+                throw new PamConfigurationException(format("Invalid %s [%s]: please provide either %s or %s.", name, value, TRUE, FALSE));
+        }
+    }
+
+    /**
+     * @return the trimmed, non-blank, elements of the provided comma-separated parameter, or null if there are none.
+     */
+    List<String> getList(final String name) {
+        final String value = get(name);
+        if (isBlank(value)) {
+            return null;
+        }
+        final List<String> elements = new ArrayList<>();
+        for (final String element : value.split(COMMA_SEPARATOR)) {
+            if (!isBlank(element)) {
+                elements.add(element.trim());
+            }
+        }
+        return elements.isEmpty() ? null : elements;
+    }
+
+    static boolean isBlank(final CharSequence characters) {
+        int length;
+        if (characters == null || (length = characters.length()) == 0) {
+            return true;
+        }
+        for (int i = 0; i < length; i++) {
+            if (!isWhitespace(characters.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,90 @@
+package com.carmatechnologies.servlet;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free, allocation-free histogram of latencies, in nanoseconds, with log-linear buckets (see also:
+ * HdrHistogram): each power of two is split into {@link #SUB_BUCKETS} equally sized buckets, so that any recorded
+ * value is reported within 1/{@link #SUB_BUCKETS} (~6%) of its actual value, whatever its magnitude.
+ * Recording a value is a single atomic increment, and reading percentiles scans the (fixed number of) buckets, so
+ * readers never block writers.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+final class LatencyHistogram {
+    static final int SUB_BUCKET_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int SUB_BUCKET_MASK = SUB_BUCKETS - 1;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    void record(final long latencyNanos) {
+        counts.incrementAndGet(index(Math.max(0, latencyNanos)));
+    }
+
+    /**
+     * @param percentile between 0 and 100, e.g. 99.9.
+     * @return the upper bound of the bucket containing the provided percentile, in nanoseconds, or 0 if no value was
+     * recorded.
+     */
+    long percentile(final double percentile) {
+        if ((percentile < 0) || (percentile > 100)) {
+            throw new IllegalArgumentException("Please provide a percentile between 0 and 100.");
+        }
+        final long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil((percentile / 100) * total));
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            cumulative += snapshot[i];
+            if (cumulative >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    long count() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Clears all recorded values. Values recorded concurrently may or may not be cleared.
+     */
+    void reset() {
+        for (int i = 0; i < BUCKETS; ++i) {
+            counts.set(i, 0);
+        }
+    }
+
+    static int index(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        final int subBucket = (int) (value >>> shift) & SUB_BUCKET_MASK;
+        return ((shift + 1) << SUB_BUCKET_BITS) + subBucket;
+    }
+
+    static long upperBound(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = (index >> SUB_BUCKET_BITS) - 1;
+        final long lowerBound = ((long) (SUB_BUCKETS + (index & SUB_BUCKET_MASK))) << shift;
+        return lowerBound + ((1L << shift) - 1);
+    }
+}
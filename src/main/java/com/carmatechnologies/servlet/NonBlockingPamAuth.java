@@ -0,0 +1,88 @@
+package com.carmatechnologies.servlet;
+
+import org.jvnet.libpam.PAM;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+
+/**
+ * Adapts {@link PamAuthEngine} to event loop based HTTP servers, e.g. Netty or Vert.x, whose I/O threads must never
+ * block: PAM is only ever called on a dedicated executor, configured via {@link PamAuthParameters#ASYNC_THREADS},
+ * {@link PamAuthParameters#ASYNC_QUEUE_SIZE} and {@link PamAuthParameters#ASYNC_VIRTUAL_THREADS}, and requests beyond
+ * its queue are rejected with HTTP 503 Service Unavailable, rather than authenticated on the I/O thread. Results are
+ * handed back to the I/O thread via the event loop's {@link Executor}, e.g. Netty's EventLoop, so that the server
+ * can respond without any synchronisation.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+public final class NonBlockingPamAuth implements AutoCloseable {
+    private final PamAuthEngine engine;
+    private final AuthExecutor executor;
+
+    /**
+     * @param name       name the metrics are registered under, or null.
+     * @param parameters returns the value of the provided parameter, see also: {@link PamAuthParameters}, or null if it
+     *                   is not set, e.g. {@code Map::get}.
+     */
+    public NonBlockingPamAuth(final String name, final Function<String, String> parameters) throws PamConfigurationException {
+        this(name, parameters, PamAuthEngine::newPam);
+    }
+
+    NonBlockingPamAuth(final String name, final Function<String, String> parameters, final Function<String, PAM> pamFactory) throws PamConfigurationException {
+        executor = AuthExecutor.configure(new InitParameters(parameters));
+        try {
+            engine = new PamAuthEngine(name, parameters, pamFactory);
+        } catch (final PamConfigurationException | RuntimeException e) {
+            executor.shutdown();
+            throw e;
+        }
+    }
+
+    public PamAuthEngine engine() {
+        return engine;
+    }
+
+    /**
+     * Authenticates the provided request without ever blocking the calling thread, typically one of the server's I/O
+     * threads: requests carrying a valid session token are authenticated immediately, and others on the dedicated
+     * executor.
+     *
+     * @param eventLoop executor of the I/O thread which received the request, on which to complete the returned stage.
+     * @return a stage either already completed, or completed on the provided event loop.
+     */
+    public CompletionStage<PamAuthResult> authenticate(final PamAuthRequest request, final Executor eventLoop) {
+        final CompletableFuture<PamAuthResult> result = engine.authenticateAsync(request, executor::execute).toCompletableFuture();
+        if (result.isDone()) {
+            // E.g. authenticated via a session token: dependent stages run on the calling, I/O, thread.
+            return result;
+        }
+        final CompletableFuture<PamAuthResult> handedBack = new CompletableFuture<>();
+        result.whenComplete((authenticated, failure) -> {
+            try {
+                eventLoop.execute(() -> {
+                    if (failure == null) {
+                        handedBack.complete(authenticated);
+                    } else {
+                        handedBack.completeExceptionally(failure);
+                    }
+                });
+            } catch (final RejectedExecutionException e) {
+                // Event loop shut down, e.g. as the server stops:
+                handedBack.completeExceptionally(e);
+            }
+        });
+        return handedBack;
+    }
+
+    /**
+     * Waits for authentications in flight to complete, and then closes the engine.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        engine.close();
+    }
+}
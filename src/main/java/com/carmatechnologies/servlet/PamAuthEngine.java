@@ -0,0 +1,1032 @@
+package com.carmatechnologies.servlet;
+
+import org.jvnet.libpam.PAM;
+import org.jvnet.libpam.PAMException;
+import org.jvnet.libpam.UnixUser;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.carmatechnologies.servlet.AuthEvent.BLANK_HEADER;
+import static com.carmatechnologies.servlet.AuthEvent.CACHE_HIT;
+import static com.carmatechnologies.servlet.AuthEvent.CIRCUIT_OPEN;
+import static com.carmatechnologies.servlet.AuthEvent.COALESCED_FAILURE;
+import static com.carmatechnologies.servlet.AuthEvent.COALESCED_SUCCESS;
+import static com.carmatechnologies.servlet.AuthEvent.MALFORMED_BASE64;
+import static com.carmatechnologies.servlet.AuthEvent.MALFORMED_CREDENTIALS;
+import static com.carmatechnologies.servlet.AuthEvent.MALFORMED_HEADER;
+import static com.carmatechnologies.servlet.AuthEvent.PAM_FAILURE;
+import static com.carmatechnologies.servlet.AuthEvent.PAM_SUCCESS;
+import static com.carmatechnologies.servlet.AuthEvent.PAM_UNAVAILABLE;
+import static com.carmatechnologies.servlet.AuthEvent.SESSION_TOKEN;
+import static com.carmatechnologies.servlet.AuthEvent.STALE_SUCCESS;
+import static com.carmatechnologies.servlet.AuthEvent.THROTTLED_IP;
+import static com.carmatechnologies.servlet.AuthEvent.THROTTLED_USER;
+import static com.carmatechnologies.servlet.AuthOutcome.AUTHENTICATED;
+import static com.carmatechnologies.servlet.AuthOutcome.UNAUTHENTICATED;
+import static com.carmatechnologies.servlet.InitParameters.isBlank;
+import static com.carmatechnologies.servlet.PamAuthParameters.AUDIT_BUFFER_SIZE;
+import static com.carmatechnologies.servlet.PamAuthParameters.AUDIT_FILE;
+import static com.carmatechnologies.servlet.PamAuthParameters.AUDIT_MAX_FILES;
+import static com.carmatechnologies.servlet.PamAuthParameters.AUDIT_MAX_FILE_BYTES;
+import static com.carmatechnologies.servlet.PamAuthParameters.AUDIT_OVERFLOW;
+import static com.carmatechnologies.servlet.PamAuthParameters.CACHE_DIGEST_ITERATIONS;
+import static com.carmatechnologies.servlet.PamAuthParameters.CACHE_IDLE_SECONDS;
+import static com.carmatechnologies.servlet.PamAuthParameters.CACHE_SIZE;
+import static com.carmatechnologies.servlet.PamAuthParameters.CACHE_TTL_SECONDS;
+import static com.carmatechnologies.servlet.PamAuthParameters.CIRCUIT_BREAKER_FAILURES;
+import static com.carmatechnologies.servlet.PamAuthParameters.CIRCUIT_BREAKER_GRACE_SECONDS;
+import static com.carmatechnologies.servlet.PamAuthParameters.CIRCUIT_BREAKER_OPEN_SECONDS;
+import static com.carmatechnologies.servlet.PamAuthParameters.COALESCE_AUTHENTICATIONS;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_AUDIT_BUFFER_SIZE;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_AUDIT_MAX_FILES;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_AUDIT_MAX_FILE_BYTES;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_AUDIT_OVERFLOW;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_CACHE_DIGEST_ITERATIONS;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_CACHE_IDLE_SECONDS;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_CACHE_SIZE;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_CACHE_TTL_SECONDS;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_CIRCUIT_BREAKER_FAILURES;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_CIRCUIT_BREAKER_GRACE_SECONDS;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_CIRCUIT_BREAKER_OPEN_SECONDS;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_COALESCE_AUTHENTICATIONS;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_FAILURE_TRACKER_WIDTH;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_FAILURE_WINDOW_SECONDS;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_JMX;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_MAX_CONCURRENT_AUTHENTICATIONS;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_MAX_FAILURES_PER_IP;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_MAX_FAILURES_PER_USER;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_MIN_CONCURRENT_AUTHENTICATIONS;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_PAM_LATENCY_THRESHOLD_MILLIS;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_PAM_POOL_MAX_AGE_SECONDS;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_PAM_POOL_MAX_SIZE;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_PAM_POOL_MIN_SIZE;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_PAM_TIMEOUT_MILLIS;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_PAM_WORKERS;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_PAM_WORKER_QUEUE_SIZE;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_PAM_WORKER_TIMEOUT_MILLIS;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_REALM;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_RETRY_AFTER_SECONDS;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_SERVICE;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_SESSION_TOKEN_KEY_ROTATION_SECONDS;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_SESSION_TOKEN_NAME;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_SESSION_TOKEN_TRANSPORT;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_SESSION_TOKEN_TTL_SECONDS;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_THROTTLED_STATUS;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_USER_PRINCIPAL;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_USER_PRINCIPAL_CACHE_SIZE;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_USER_PRINCIPAL_TTL_SECONDS;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_WATCHED_FILES;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_WATCH_ACCOUNTS;
+import static com.carmatechnologies.servlet.PamAuthParameters.DEFAULT_WATCH_DEBOUNCE_MILLIS;
+import static com.carmatechnologies.servlet.PamAuthParameters.FAILURE_TRACKER_WIDTH;
+import static com.carmatechnologies.servlet.PamAuthParameters.FAILURE_WINDOW_SECONDS;
+import static com.carmatechnologies.servlet.PamAuthParameters.JMX;
+import static com.carmatechnologies.servlet.PamAuthParameters.MAX_CONCURRENT_AUTHENTICATIONS;
+import static com.carmatechnologies.servlet.PamAuthParameters.MAX_FAILURES_PER_IP;
+import static com.carmatechnologies.servlet.PamAuthParameters.MAX_FAILURES_PER_USER;
+import static com.carmatechnologies.servlet.PamAuthParameters.MIN_CONCURRENT_AUTHENTICATIONS;
+import static com.carmatechnologies.servlet.PamAuthParameters.PAM_LATENCY_THRESHOLD_MILLIS;
+import static com.carmatechnologies.servlet.PamAuthParameters.PAM_POOL_MAX_AGE_SECONDS;
+import static com.carmatechnologies.servlet.PamAuthParameters.PAM_POOL_MAX_SIZE;
+import static com.carmatechnologies.servlet.PamAuthParameters.PAM_POOL_MIN_SIZE;
+import static com.carmatechnologies.servlet.PamAuthParameters.PAM_TIMEOUT_MILLIS;
+import static com.carmatechnologies.servlet.PamAuthParameters.PAM_WORKERS;
+import static com.carmatechnologies.servlet.PamAuthParameters.PAM_WORKER_COMMAND;
+import static com.carmatechnologies.servlet.PamAuthParameters.PAM_WORKER_QUEUE_SIZE;
+import static com.carmatechnologies.servlet.PamAuthParameters.PAM_WORKER_TIMEOUT_MILLIS;
+import static com.carmatechnologies.servlet.PamAuthParameters.REALM;
+import static com.carmatechnologies.servlet.PamAuthParameters.RETRY_AFTER_SECONDS;
+import static com.carmatechnologies.servlet.PamAuthParameters.SERVICE;
+import static com.carmatechnologies.servlet.PamAuthParameters.SESSION_TOKEN_AUDIENCE;
+import static com.carmatechnologies.servlet.PamAuthParameters.SESSION_TOKEN_KEYS;
+import static com.carmatechnologies.servlet.PamAuthParameters.SESSION_TOKEN_KEY_ROTATION_SECONDS;
+import static com.carmatechnologies.servlet.PamAuthParameters.SESSION_TOKEN_NAME;
+import static com.carmatechnologies.servlet.PamAuthParameters.SESSION_TOKEN_TRANSPORT;
+import static com.carmatechnologies.servlet.PamAuthParameters.SESSION_TOKEN_TTL_SECONDS;
+import static com.carmatechnologies.servlet.PamAuthParameters.SNAPSHOT_FILE;
+import static com.carmatechnologies.servlet.PamAuthParameters.SNAPSHOT_KEY;
+import static com.carmatechnologies.servlet.PamAuthParameters.THROTTLED_STATUS;
+import static com.carmatechnologies.servlet.PamAuthParameters.USER_PRINCIPAL;
+import static com.carmatechnologies.servlet.PamAuthParameters.USER_PRINCIPAL_CACHE_SIZE;
+import static com.carmatechnologies.servlet.PamAuthParameters.USER_PRINCIPAL_TTL_SECONDS;
+import static com.carmatechnologies.servlet.PamAuthParameters.WATCHED_FILES;
+import static com.carmatechnologies.servlet.PamAuthParameters.WATCH_ACCOUNTS;
+import static com.carmatechnologies.servlet.PamAuthParameters.WATCH_DEBOUNCE_MILLIS;
+import static java.lang.String.format;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.SEVERE;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Authenticates HTTP requests using Basic Authentication and PAM (Linux Pluggable Authentication Modules), independently
+ * of the server which received them: {@link PamAuthFilter} adapts it to servlet containers, and
+ * {@link NonBlockingPamAuth} to event loop based servers. It is configured via {@link PamAuthParameters}.
+ * Requests carrying a valid session token are always authenticated on the calling thread, as this never calls PAM.
+ * Other requests are authenticated either on the calling thread, via {@link #authenticate(PamAuthRequest)}, or on the
+ * provided executor, via {@link #authenticateAsync(PamAuthRequest, Executor)}.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+public final class PamAuthEngine implements AutoCloseable {
+    private static final String WHITESPACE = " ";
+    private static final char SPACE = ' ';
+    private static final byte COLON_BYTE = ':';
+    private static final byte ZERO = 0;
+    private static final int DECODING_BUFFER_LENGTH = 256;
+    private static final String COLON = ":";
+    private static final int AT_MOST_ONCE = 2;
+    private static final String AUTHORIZATION = "Authorization";
+    private static final int INDEX_USERNAME = 0;
+    private static final String BASIC = "Basic";
+    private static final int INDEX_BASIC = 0;
+    private static final Charset UTF_8 = Charset.forName("UTF-8"); // UTF-8: eight-bit UCS Transformation Format.
+    private static final String WWW_AUTHENTICATE = "WWW-Authenticate";
+    private static final String RETRY_AFTER = "Retry-After";
+    private static final int SC_UNAUTHORIZED = 401;
+    private static final int SC_TOO_MANY_REQUESTS = 429; // See also: https://tools.ietf.org/html/rfc6585#section-4
+    private static final int SC_SERVICE_UNAVAILABLE = 503;
+    private static final char STAR = '*';
+    private static final char LEFT_SQUARE_BRACKET = '[';
+    private static final char RIGHT_SQUARE_BRACKET = ']';
+    private static final char COMMA = ',';
+    private static final String COMMA_SEPARATOR = ",";
+    private static final int MAX_TIMED_PAM_CALLS = 256; // Bounds the number of threads which may be stuck in PAM.
+    private static final String PAM_CONFIGURATION_DIRECTORY = "/etc/pam.d/";
+    // Metrics are still registered as the filter's, so that existing monitoring keeps finding them:
+    private static final String MBEAN_TYPE = "PamAuthFilter";
+
+    private static final Logger logger = Logger.getLogger(PamAuthEngine.class.getSimpleName());
+    private static final ThreadLocal<byte[]> DECODING_BUFFER = ThreadLocal.withInitial(() -> new byte[DECODING_BUFFER_LENGTH]);
+
+    private final Function<String, PAM> pamFactory;
+    private final String realm;
+    private final String service;
+    private final Map<String, String> unauthorizedHeaders;
+    private final Map<String, String> overloadedHeaders;
+    private final Map<String, String> throttledHeaders;
+    private final CircuitBreaker breaker;
+    private final CredentialCache cache;
+    private final WarmStartSnapshot snapshot;
+    private volatile boolean snapshotPending;
+    private final Authenticator authenticator;
+    private final ConcurrencyLimiter limiter;
+    private final AuditLog audit;
+    private final FailureThrottle ipThrottle;
+    private final FailureThrottle userThrottle;
+    private final int throttledStatus;
+    private final SingleFlight singleFlight;
+    private final int sessionTokenTtlSeconds;
+    private final String sessionTokenName;
+    private final SessionTokens.Transport sessionTokenTransport;
+    private final SessionTokens sessionTokens;
+    private final UserPrincipals principals;
+    private final AccountWatcher accountWatcher;
+    private final AuthMetrics metrics = new AuthMetrics();
+    private final ObjectName mbeanName;
+    private boolean closed = false;
+
+    /**
+     * @param name       name this engine's metrics are registered under, e.g. the filter's name, or null.
+     * @param parameters returns the value of the provided parameter, see also: {@link PamAuthParameters}, or null if it
+     *                   is not set, e.g. {@code Map::get}.
+     * @throws PamConfigurationException if a parameter is invalid, or if PAM workers or the audit log could not be
+     *                                   started.
+     */
+    public PamAuthEngine(final String name, final Function<String, String> parameters) throws PamConfigurationException {
+        this(name, parameters, PamAuthEngine::newPam);
+    }
+
+    static PAM newPam(final String service) {
+        try {
+            return new PAM(service);
+        } catch (final PAMException e) {
+            throw new RuntimeException("Failed to create PAM", e);
+        }
+    }
+
+    PamAuthEngine(final String name, final Function<String, String> parameters, final Function<String, PAM> pamFactory) throws PamConfigurationException {
+        if (pamFactory == null) {
+            throw new NullPointerException("Please provide a non-null PAM factory.");
+        }
+        this.pamFactory = pamFactory;
+        final InitParameters config = new InitParameters(parameters);
+        realm = config.getOrDefault(REALM, DEFAULT_REALM);
+        service = config.getOrDefault(SERVICE, DEFAULT_SERVICE);
+        unauthorizedHeaders = Collections.singletonMap(WWW_AUTHENTICATE, format("%s realm=\"%s\"", BASIC, realm));
+        overloadedHeaders = Collections.singletonMap(RETRY_AFTER, Integer.toString(config.getOrDefault(RETRY_AFTER_SECONDS, DEFAULT_RETRY_AFTER_SECONDS)));
+        breaker = newCircuitBreaker(config);
+        cache = newCache(config);
+        snapshot = newSnapshot(config);
+        // Restored on first use rather than here, so that reading the snapshot does not delay start-up:
+        snapshotPending = (snapshot != null);
+        // Components holding threads, processes or native handles, in reverse start order:
+        final Deque<Runnable> started = new ArrayDeque<>();
+        try {
+            authenticator = newAuthenticator(config);
+            started.push(authenticator::close);
+            limiter = newLimiter(config);
+            audit = newAuditLog(config);
+            if (audit != null) {
+                started.push(audit::close);
+            }
+            ipThrottle = newThrottle(config, MAX_FAILURES_PER_IP, DEFAULT_MAX_FAILURES_PER_IP);
+            userThrottle = newThrottle(config, MAX_FAILURES_PER_USER, DEFAULT_MAX_FAILURES_PER_USER);
+            throttledStatus = config.getOrDefault(THROTTLED_STATUS, DEFAULT_THROTTLED_STATUS);
+            if ((throttledStatus != SC_TOO_MANY_REQUESTS) && (throttledStatus != SC_UNAUTHORIZED)) {
+                throw new PamConfigurationException(format("Invalid %s [%d]: please provide either %d or %d.", THROTTLED_STATUS, throttledStatus, SC_TOO_MANY_REQUESTS, SC_UNAUTHORIZED));
+            }
+            // Hide throttling behind a regular HTTP 401 Unauthorized, unless clients should be told when to retry:
+            throttledHeaders = (throttledStatus == SC_UNAUTHORIZED) ? unauthorizedHeaders
+                    : Collections.singletonMap(RETRY_AFTER, Integer.toString(config.getOrDefault(FAILURE_WINDOW_SECONDS, DEFAULT_FAILURE_WINDOW_SECONDS)));
+            singleFlight = config.getOrDefault(COALESCE_AUTHENTICATIONS, DEFAULT_COALESCE_AUTHENTICATIONS) ? new SingleFlight() : null;
+            sessionTokenTtlSeconds = config.getOrDefault(SESSION_TOKEN_TTL_SECONDS, DEFAULT_SESSION_TOKEN_TTL_SECONDS);
+            sessionTokenName = (sessionTokenTtlSeconds == 0) ? null : config.getOrDefault(SESSION_TOKEN_NAME, DEFAULT_SESSION_TOKEN_NAME).trim();
+            sessionTokenTransport = (sessionTokenTtlSeconds == 0) ? null : newSessionTokenTransport(config);
+            sessionTokens = (sessionTokenTtlSeconds == 0) ? null : newSessionTokens(config);
+            principals = newPrincipals(config);
+            accountWatcher = newAccountWatcher(config);
+            if (accountWatcher != null) {
+                started.push(accountWatcher::close);
+            }
+            mbeanName = config.getOrDefault(JMX, DEFAULT_JMX) ? registerMBean(name) : null;
+        } catch (final PamConfigurationException | RuntimeException | Error e) {
+            // Release what was already started, e.g. PAM workers or the audit log's thread, as close() will never be called:
+            for (final Runnable stop : started) {
+                try {
+                    stop.run();
+                } catch (final RuntimeException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+            }
+            throw e;
+        }
+        logger.info(format("PAM authentication configured with %s=[%s] and %s=[%s].", REALM, realm, SERVICE, service));
+    }
+
+    private CredentialCache newCache(final InitParameters config) throws PamConfigurationException {
+        final int size = config.getOrDefault(CACHE_SIZE, DEFAULT_CACHE_SIZE);
+        if (size == 0) {
+            return null;
+        }
+        final int ttlSeconds = config.getOrDefault(CACHE_TTL_SECONDS, DEFAULT_CACHE_TTL_SECONDS);
+        final int idleSeconds = config.getOrDefault(CACHE_IDLE_SECONDS, DEFAULT_CACHE_IDLE_SECONDS);
+        final int iterations = config.getOrDefault(CACHE_DIGEST_ITERATIONS, DEFAULT_CACHE_DIGEST_ITERATIONS);
+        final int graceSeconds = (breaker == null) ? 0 : config.getOrDefault(CIRCUIT_BREAKER_GRACE_SECONDS, DEFAULT_CIRCUIT_BREAKER_GRACE_SECONDS);
+        logger.info(format("PAM authentication cache configured with %s=[%d], %s=[%d], %s=[%d], %s=[%d] and %s=[%d].", CACHE_SIZE, size, CACHE_TTL_SECONDS, ttlSeconds, CACHE_IDLE_SECONDS, idleSeconds, CACHE_DIGEST_ITERATIONS, iterations,
+                CIRCUIT_BREAKER_GRACE_SECONDS, graceSeconds));
+        try {
+            return new CredentialCache(size, ttlSeconds, idleSeconds, iterations, graceSeconds);
+        } catch (final RuntimeException e) {
+            throw new PamConfigurationException("Failed to create PAM authentication cache", e);
+        }
+    }
+
+    private WarmStartSnapshot newSnapshot(final InitParameters config) throws PamConfigurationException {
+        final String file = config.get(SNAPSHOT_FILE);
+        if (isBlank(file)) {
+            return null;
+        }
+        if (cache == null) {
+            throw new PamConfigurationException(format("Invalid %s [%s]: please also enable the cache via %s.", SNAPSHOT_FILE, file, CACHE_SIZE));
+        }
+        final String key = config.get(SNAPSHOT_KEY);
+        if (isBlank(key)) {
+            throw new PamConfigurationException(format("Invalid %s [%s]: please also provide %s.", SNAPSHOT_FILE, file, SNAPSHOT_KEY));
+        }
+        // Do not log the key:
+        logger.info(format("PAM authentication snapshot configured with %s=[%s].", SNAPSHOT_FILE, file));
+        try {
+            return new WarmStartSnapshot(Paths.get(file.trim()), Base64.getDecoder().decode(key.trim()), service, accountFiles(config));
+        } catch (final RuntimeException e) {
+            throw new PamConfigurationException("Failed to configure PAM authentication snapshot", e);
+        }
+    }
+
+    private CircuitBreaker newCircuitBreaker(final InitParameters config) throws PamConfigurationException {
+        final int failures = config.getOrDefault(CIRCUIT_BREAKER_FAILURES, DEFAULT_CIRCUIT_BREAKER_FAILURES);
+        if (failures == 0) {
+            return null;
+        }
+        final int openSeconds = config.getOrDefault(CIRCUIT_BREAKER_OPEN_SECONDS, DEFAULT_CIRCUIT_BREAKER_OPEN_SECONDS);
+        final int graceSeconds = config.getOrDefault(CIRCUIT_BREAKER_GRACE_SECONDS, DEFAULT_CIRCUIT_BREAKER_GRACE_SECONDS);
+        if ((graceSeconds > 0) && (config.getOrDefault(CACHE_SIZE, DEFAULT_CACHE_SIZE) == 0)) {
+            throw new PamConfigurationException(format("Invalid %s [%d]: please also enable the cache via %s.", CIRCUIT_BREAKER_GRACE_SECONDS, graceSeconds, CACHE_SIZE));
+        }
+        logger.info(format("PAM circuit breaker configured with %s=[%d], %s=[%d] and %s=[%d].", CIRCUIT_BREAKER_FAILURES, failures, CIRCUIT_BREAKER_OPEN_SECONDS, openSeconds, CIRCUIT_BREAKER_GRACE_SECONDS, graceSeconds));
+        try {
+            final CircuitBreaker breaker = new CircuitBreaker(service, failures, openSeconds);
+            metrics.monitor(breaker);
+            return breaker;
+        } catch (final RuntimeException e) {
+            throw new PamConfigurationException("Failed to create PAM circuit breaker", e);
+        }
+    }
+
+    private Authenticator newAuthenticator(final InitParameters config) throws PamConfigurationException {
+        final int workers = config.getOrDefault(PAM_WORKERS, DEFAULT_PAM_WORKERS);
+        if (workers == 0) {
+            final PamPool pool = newPool(config);
+            final int timeoutMillis = config.getOrDefault(PAM_TIMEOUT_MILLIS, DEFAULT_PAM_TIMEOUT_MILLIS);
+            if (timeoutMillis == 0) {
+                return pool;
+            }
+            logger.info(format("PAM authentication timeout configured with %s=[%d].", PAM_TIMEOUT_MILLIS, timeoutMillis));
+            return new TimeLimitedAuthenticator(pool, timeoutMillis, MAX_TIMED_PAM_CALLS);
+        }
+        final String command = config.get(PAM_WORKER_COMMAND);
+        final int timeoutMillis = config.getOrDefault(PAM_WORKER_TIMEOUT_MILLIS, DEFAULT_PAM_WORKER_TIMEOUT_MILLIS);
+        final int queueSize = config.getOrDefault(PAM_WORKER_QUEUE_SIZE, DEFAULT_PAM_WORKER_QUEUE_SIZE);
+        try {
+            final List<String> arguments = isBlank(command) ? PamWorkers.defaultCommand(service) : Arrays.asList(command.trim().split("\\s+"));
+            logger.info(format("PAM workers configured with %s=[%d], %s=%s, %s=[%d] and %s=[%d].", PAM_WORKERS, workers, PAM_WORKER_COMMAND, arguments,
+                    PAM_WORKER_TIMEOUT_MILLIS, timeoutMillis, PAM_WORKER_QUEUE_SIZE, queueSize));
+            final PamWorkers pamWorkers = new PamWorkers(arguments, workers, queueSize, timeoutMillis);
+            try {
+                pamWorkers.start();
+            } catch (final IOException e) {
+                // Stop the workers started before this one failed to:
+                pamWorkers.close();
+                throw e;
+            }
+            return pamWorkers;
+        } catch (final IOException | RuntimeException e) {
+            throw new PamConfigurationException("Failed to start PAM workers", e);
+        }
+    }
+
+    private PamPool newPool(final InitParameters config) throws PamConfigurationException {
+        final int minSize = config.getOrDefault(PAM_POOL_MIN_SIZE, DEFAULT_PAM_POOL_MIN_SIZE);
+        final int maxSize = config.getOrDefault(PAM_POOL_MAX_SIZE, DEFAULT_PAM_POOL_MAX_SIZE);
+        final int maxAgeSeconds = config.getOrDefault(PAM_POOL_MAX_AGE_SECONDS, DEFAULT_PAM_POOL_MAX_AGE_SECONDS);
+        try {
+            final PamPool pool = new PamPool(service, pamFactory, minSize, maxSize, maxAgeSeconds);
+            try {
+                pool.start();
+            } catch (final RuntimeException e) {
+                pool.close();
+                throw e;
+            }
+            if (maxSize > 0) {
+                logger.info(format("PAM handle pool configured with %s=[%d], %s=[%d] and %s=[%d].", PAM_POOL_MIN_SIZE, minSize, PAM_POOL_MAX_SIZE, maxSize, PAM_POOL_MAX_AGE_SECONDS, maxAgeSeconds));
+            }
+            return pool;
+        } catch (final RuntimeException e) {
+            throw new PamConfigurationException("Failed to create PAM handle pool", e);
+        }
+    }
+
+    private ConcurrencyLimiter newLimiter(final InitParameters config) throws PamConfigurationException {
+        final int maxLimit = config.getOrDefault(MAX_CONCURRENT_AUTHENTICATIONS, DEFAULT_MAX_CONCURRENT_AUTHENTICATIONS);
+        if (maxLimit == 0) {
+            return null;
+        }
+        final int minLimit = config.getOrDefault(MIN_CONCURRENT_AUTHENTICATIONS, DEFAULT_MIN_CONCURRENT_AUTHENTICATIONS);
+        final int latencyThresholdMillis = config.getOrDefault(PAM_LATENCY_THRESHOLD_MILLIS, DEFAULT_PAM_LATENCY_THRESHOLD_MILLIS);
+        logger.info(format("PAM concurrency limit configured with %s=[%d], %s=[%d] and %s=[%d].", MAX_CONCURRENT_AUTHENTICATIONS, maxLimit, MIN_CONCURRENT_AUTHENTICATIONS, minLimit, PAM_LATENCY_THRESHOLD_MILLIS, latencyThresholdMillis));
+        try {
+            return new ConcurrencyLimiter(minLimit, maxLimit, latencyThresholdMillis);
+        } catch (final RuntimeException e) {
+            throw new PamConfigurationException("Failed to create PAM concurrency limiter", e);
+        }
+    }
+
+    private FailureThrottle newThrottle(final InitParameters config, final String name, final int defaultValue) throws PamConfigurationException {
+        final int threshold = config.getOrDefault(name, defaultValue);
+        if (threshold == 0) {
+            return null;
+        }
+        final int windowSeconds = config.getOrDefault(FAILURE_WINDOW_SECONDS, DEFAULT_FAILURE_WINDOW_SECONDS);
+        final int width = config.getOrDefault(FAILURE_TRACKER_WIDTH, DEFAULT_FAILURE_TRACKER_WIDTH);
+        logger.info(format("PAM authentication failures throttled with %s=[%d], %s=[%d] and %s=[%d].", name, threshold, FAILURE_WINDOW_SECONDS, windowSeconds, FAILURE_TRACKER_WIDTH, width));
+        try {
+            return new FailureThrottle(threshold, windowSeconds, width);
+        } catch (final RuntimeException e) {
+            throw new PamConfigurationException(format("Failed to create PAM authentication failures tracker for %s", name), e);
+        }
+    }
+
+    private AuditLog newAuditLog(final InitParameters config) throws PamConfigurationException {
+        final String file = config.get(AUDIT_FILE);
+        if (isBlank(file)) {
+            return null;
+        }
+        final int bufferSize = config.getOrDefault(AUDIT_BUFFER_SIZE, DEFAULT_AUDIT_BUFFER_SIZE);
+        final int maxFileBytes = config.getOrDefault(AUDIT_MAX_FILE_BYTES, DEFAULT_AUDIT_MAX_FILE_BYTES);
+        final int maxFiles = config.getOrDefault(AUDIT_MAX_FILES, DEFAULT_AUDIT_MAX_FILES);
+        final String overflow = config.getOrDefault(AUDIT_OVERFLOW, DEFAULT_AUDIT_OVERFLOW);
+        logger.info(format("PAM authentication audit configured with %s=[%s], %s=[%d], %s=[%d], %s=[%d] and %s=[%s].", AUDIT_FILE, file, AUDIT_BUFFER_SIZE, bufferSize, AUDIT_MAX_FILE_BYTES, maxFileBytes, AUDIT_MAX_FILES, maxFiles, AUDIT_OVERFLOW, overflow));
+        try {
+            final AuditLog audit = new AuditLog(Paths.get(file.trim()), bufferSize, maxFileBytes, maxFiles, AuditLog.Overflow.valueOf(overflow.trim().toUpperCase(Locale.ROOT)));
+            audit.start();
+            return audit;
+        } catch (final IOException | RuntimeException e) {
+            throw new PamConfigurationException("Failed to create PAM authentication audit log", e);
+        }
+    }
+
+    private UserPrincipals newPrincipals(final InitParameters config) throws PamConfigurationException {
+        if (!config.getOrDefault(USER_PRINCIPAL, DEFAULT_USER_PRINCIPAL)) {
+            return null;
+        }
+        final int cacheSize = config.getOrDefault(USER_PRINCIPAL_CACHE_SIZE, DEFAULT_USER_PRINCIPAL_CACHE_SIZE);
+        final int ttlSeconds = config.getOrDefault(USER_PRINCIPAL_TTL_SECONDS, DEFAULT_USER_PRINCIPAL_TTL_SECONDS);
+        logger.info(format("PAM user principals configured with %s=[%d] and %s=[%d].", USER_PRINCIPAL_CACHE_SIZE, cacheSize, USER_PRINCIPAL_TTL_SECONDS, ttlSeconds));
+        try {
+            return new UserPrincipals(cacheSize, ttlSeconds);
+        } catch (final RuntimeException e) {
+            throw new PamConfigurationException("Failed to create PAM user principals cache", e);
+        }
+    }
+
+    /**
+     * @return the files accounts and the PAM service's configuration are read from, see also: {@link PamAuthParameters#WATCHED_FILES}.
+     */
+    private List<Path> accountFiles(final InitParameters config) {
+        final List<String> names = config.getList(WATCHED_FILES);
+        final List<String> files = (names != null) ? names : new ArrayList<>(Arrays.asList(DEFAULT_WATCHED_FILES.split(COMMA_SEPARATOR)));
+        if (names == null) {
+            files.add(PAM_CONFIGURATION_DIRECTORY + service);
+        }
+        final List<Path> paths = new ArrayList<>(files.size());
+        for (final String file : files) {
+            paths.add(Paths.get(file));
+        }
+        return paths;
+    }
+
+    private AccountWatcher newAccountWatcher(final InitParameters config) throws PamConfigurationException {
+        if (!config.getOrDefault(WATCH_ACCOUNTS, DEFAULT_WATCH_ACCOUNTS)) {
+            return null;
+        }
+        final int debounceMillis = config.getOrDefault(WATCH_DEBOUNCE_MILLIS, DEFAULT_WATCH_DEBOUNCE_MILLIS);
+        try {
+            final List<Path> paths = accountFiles(config);
+            logger.info(format("PAM account watcher configured with %s=%s and %s=[%d].", WATCHED_FILES, paths, WATCH_DEBOUNCE_MILLIS, debounceMillis));
+            final AccountWatcher watcher = new AccountWatcher(paths, debounceMillis, this::invalidate);
+            watcher.start();
+            return watcher;
+        } catch (final IOException | RuntimeException e) {
+            throw new PamConfigurationException("Failed to watch account files", e);
+        }
+    }
+
+    /**
+     * Discards the cached authentications, user principals and session tokens of the users affected by the provided
+     * change.
+     */
+    private void invalidate(final AccountChange change) {
+        final int entries = (cache == null) ? 0 : cache.invalidate(change);
+        if (principals != null) {
+            principals.invalidate(change);
+        }
+        if (sessionTokens != null) {
+            sessionTokens.revoke(change);
+        }
+        logger.info(format("Invalidated %d cached PAM authentications, and the user principals and session tokens of %s.", entries, change));
+    }
+
+    private SessionTokens.Transport newSessionTokenTransport(final InitParameters config) throws PamConfigurationException {
+        final String transport = config.getOrDefault(SESSION_TOKEN_TRANSPORT, DEFAULT_SESSION_TOKEN_TRANSPORT);
+        try {
+            return SessionTokens.Transport.valueOf(transport.trim().toUpperCase(Locale.ROOT));
+        } catch (final RuntimeException e) {
+            throw new PamConfigurationException("Failed to create PAM session tokens", e);
+        }
+    }
+
+    private SessionTokens newSessionTokens(final InitParameters config) throws PamConfigurationException {
+        final String keys = config.get(SESSION_TOKEN_KEYS);
+        final int rotationSeconds = config.getOrDefault(SESSION_TOKEN_KEY_ROTATION_SECONDS, DEFAULT_SESSION_TOKEN_KEY_ROTATION_SECONDS);
+        final String audience = config.getOrDefault(SESSION_TOKEN_AUDIENCE, service).trim();
+        // Do not log keys, only how many there are:
+        logger.info(format("PAM session tokens configured with %s=[%d], %s=[%s], %s=[%s], %s=[%s], %s=[%d] and %s=[%s].", SESSION_TOKEN_TTL_SECONDS, sessionTokenTtlSeconds, SESSION_TOKEN_TRANSPORT, sessionTokenTransport,
+                SESSION_TOKEN_NAME, sessionTokenName, SESSION_TOKEN_KEYS, isBlank(keys) ? "generated" : (keys.split(COMMA_SEPARATOR).length + " keys"), SESSION_TOKEN_KEY_ROTATION_SECONDS, rotationSeconds,
+                SESSION_TOKEN_AUDIENCE, audience));
+        try {
+            final List<byte[]> secrets = new ArrayList<>();
+            if (!isBlank(keys)) {
+                for (final String key : keys.split(COMMA_SEPARATOR)) {
+                    secrets.add(Base64.getDecoder().decode(key.trim()));
+                }
+            }
+            return new SessionTokens(audience, secrets, sessionTokenTtlSeconds, rotationSeconds);
+        } catch (final RuntimeException e) {
+            throw new PamConfigurationException("Failed to create PAM session tokens", e);
+        }
+    }
+
+    /**
+     * @return the name the metrics were registered under, or null if they could not be registered, e.g. because another
+     * engine with the same name and service already registered its metrics. Metrics are only exposed, hence failing to
+     * do so does not prevent users from being authenticated.
+     */
+    private ObjectName registerMBean(final String engineName) {
+        try {
+            final ObjectName name = new ObjectName(format("%s:type=%s,name=%s,service=%s", PamAuthFilterMXBean.DOMAIN, MBEAN_TYPE,
+                    ObjectName.quote(isBlank(engineName) ? MBEAN_TYPE : engineName), ObjectName.quote(service)));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            logger.info(format("PAM authentication metrics registered as [%s].", name));
+            return name;
+        } catch (final JMException e) {
+            logger.warning(format("Failed to register PAM authentication metrics: %s", e));
+            return null;
+        }
+    }
+
+    public String realm() {
+        return realm;
+    }
+
+    public String service() {
+        return service;
+    }
+
+    /**
+     * @return the state of the PAM service's circuit breaker: CLOSED, OPEN or HALF_OPEN, or null if it is disabled.
+     */
+    public String circuitBreakerState() {
+        return (breaker == null) ? null : breaker.state().name();
+    }
+
+    /**
+     * @return the name of the cookie or header carrying session tokens, or null if session tokens are disabled.
+     */
+    public String sessionTokenName() {
+        return sessionTokenName;
+    }
+
+    /**
+     * @return the number of seconds session tokens remain valid, or 0 if session tokens are disabled.
+     */
+    public int sessionTokenTtlSeconds() {
+        return sessionTokenTtlSeconds;
+    }
+
+    /**
+     * Authenticates the provided request on the calling thread, which may therefore be blocked by PAM.
+     */
+    public PamAuthResult authenticate(final PamAuthRequest request) {
+        metrics.onRequestStart();
+        final long start = System.nanoTime();
+        return authenticate(request, verifySessionToken(request, start), start);
+    }
+
+    /**
+     * Authenticates the provided request on the provided executor, unless it carries a valid session token, in which
+     * case it is authenticated on the calling thread, as this never calls PAM. Requests the executor rejects are
+     * rejected with HTTP 503 Service Unavailable, rather than authenticated on the calling thread.
+     *
+     * @return a stage completed either already, or by the provided executor.
+     */
+    public CompletionStage<PamAuthResult> authenticateAsync(final PamAuthRequest request, final Executor executor) {
+        metrics.onRequestStart();
+        final long start = System.nanoTime();
+        final AuthResult fromSessionToken = verifySessionToken(request, start);
+        if (fromSessionToken != null) {
+            return CompletableFuture.completedFuture(authenticate(request, fromSessionToken, start));
+        }
+        final CompletableFuture<PamAuthResult> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(authenticate(request, null, start));
+                } catch (final RuntimeException | Error e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            if (logs(WARNING)) {
+                logger.warning(format("Too many PAM authentications queued, rejected request from IP [%s].", request.remoteAddress()));
+            }
+            future.complete(authenticate(request, AuthResult.of(AuthEvent.OVERLOADED), start));
+        }
+        return future;
+    }
+
+    /**
+     * @param result the request's result if already known, or null to authenticate it via Basic Authentication.
+     */
+    private PamAuthResult authenticate(final PamAuthRequest request, final AuthResult result, final long start) {
+        AuthResult finalResult = result;
+        try {
+            if (finalResult == null) {
+                finalResult = authenticateThrottled(request);
+            }
+            if (audit != null) {
+                audit.record(finalResult, request.remoteAddress());
+            }
+            return respond(finalResult);
+        } finally {
+            // Only measure authentication, not the rest of the request:
+            metrics.onRequestEnd(finalResult, System.nanoTime() - start);
+        }
+    }
+
+    private PamAuthResult respond(final AuthResult result) {
+        switch (result.outcome()) {
+            case AUTHENTICATED:
+                return PamAuthResult.authenticated(result, (principals == null) ? null : principals.principal(result.user()), sessionTokenHeader(), issueSessionToken(result));
+            case OVERLOADED:
+                // Too many authentications in flight, respond with HTTP 503 Service Unavailable:
+                return PamAuthResult.rejected(result, SC_SERVICE_UNAVAILABLE, overloadedHeaders);
+            case THROTTLED:
+                // Too many recent failures, respond with either HTTP 429 Too Many Requests, or HTTP 401 Unauthorized:
+                return PamAuthResult.rejected(result, throttledStatus, throttledHeaders);
+            default:
+                // Failed to authenticate user, respond with HTTP 401 Unauthorized:
+                return PamAuthResult.rejected(result, SC_UNAUTHORIZED, unauthorizedHeaders);
+        }
+    }
+
+    /**
+     * @return a new session token for the user authenticated, or null if session tokens are disabled, or if the user
+     * was authenticated via a session token, or without PAM confirming the user's credentials are still valid.
+     */
+    private String issueSessionToken(final AuthResult result) {
+        final AuthEvent event = result.event();
+        return ((sessionTokens != null) && ((event == PAM_SUCCESS) || (event == COALESCED_SUCCESS) || (event == CACHE_HIT))) ? sessionTokens.issue(result.user()) : null;
+    }
+
+    /**
+     * @return the name of the header session tokens are issued in, or null if they are issued as cookies.
+     */
+    private String sessionTokenHeader() {
+        return (sessionTokenTransport == SessionTokens.Transport.HEADER) ? sessionTokenName : null;
+    }
+
+    /**
+     * @return true if per-request events should be logged at the provided level, i.e. if they are not audited instead.
+     */
+    private boolean logs(final Level level) {
+        return (audit == null) && logger.isLoggable(level);
+    }
+
+    /**
+     * @return true if per-request events should either be logged at the provided level, or audited.
+     */
+    private boolean reports(final Level level) {
+        return (audit != null) || logger.isLoggable(level);
+    }
+
+    /**
+     * @return the result of authenticating the provided request via its session token, or null if it did not carry a
+     * valid one.
+     */
+    private AuthResult verifySessionToken(final PamAuthRequest request, final long start) {
+        if (sessionTokens == null) {
+            return null;
+        }
+        try {
+            final String token = (sessionTokenTransport == SessionTokens.Transport.HEADER) ? request.header(sessionTokenName) : request.cookie(sessionTokenName);
+            if (isBlank(token)) {
+                return null;
+            }
+            final UnixUser user = sessionTokens.verify(token.trim());
+            if (user == null) {
+                // Expired or invalid token: fall back to Basic Authentication.
+                return null;
+            }
+            if (logs(FINE)) {
+                logger.fine(format("Successfully authenticated [%s] with IP [%s] from session token.", user.getUserName(), request.remoteAddress()));
+            }
+            return AuthResult.of(SESSION_TOKEN, user.getUserName(), user, 0);
+        } catch (final RuntimeException | Error e) {
+            metrics.onRequestEnd(null, System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    private AuthResult authenticateThrottled(final PamAuthRequest request) {
+        final FailureThrottle ipThrottle = this.ipThrottle;
+        final String ip = request.remoteAddress();
+        if ((ipThrottle == null) || (ip == null)) {
+            return authenticateHeader(request);
+        }
+        if (ipThrottle.isThrottled(ip)) {
+            if (logs(WARNING)) {
+                logger.warning(format("Too many authentication failures from IP [%s], rejected request.", ip));
+            }
+            return AuthResult.of(THROTTLED_IP);
+        }
+        final AuthResult result = authenticateHeader(request);
+        // Requests without credentials, e.g. browsers' first request before they challenge the user, are not failures:
+        if ((result.outcome() == UNAUTHENTICATED) && (result.event() != BLANK_HEADER)) {
+            ipThrottle.recordFailure(ip);
+        }
+        return result;
+    }
+
+    private AuthResult authenticateHeader(final PamAuthRequest request) {
+        final String auth = request.header(AUTHORIZATION);
+        if (isBlank(auth)) {
+            if (logs(SEVERE)) {
+                logger.severe(format("Blank %s header [%s] from IP [%s].", AUTHORIZATION, auth, request.remoteAddress()));
+            }
+            return AuthResult.of(BLANK_HEADER);
+        }
+        // Expect "Basic <base64(username:password)>", in a single pass rather than via String#split:
+        final int separator = auth.indexOf(SPACE);
+        if ((separator != BASIC.length()) || !auth.startsWith(BASIC)) {
+            final String rendered = reports(SEVERE) ? safelyRender(auth.split(WHITESPACE, AT_MOST_ONCE)) : null;
+            if (logs(SEVERE)) {
+                logger.severe(format("Malformed %s header [%s] from IP [%s].", AUTHORIZATION, rendered, request.remoteAddress()));
+            }
+            return AuthResult.malformed(MALFORMED_HEADER, rendered);
+        }
+        final int from = separator + 1;
+        final int maxLength = Base64Decoder.maxDecodedLength(auth.length() - from);
+        // Oversized headers get a buffer of their own, rather than grow this thread's buffer for good:
+        final byte[] buffer = (maxLength <= DECODING_BUFFER_LENGTH) ? DECODING_BUFFER.get() : new byte[maxLength];
+        try {
+            final int length = Base64Decoder.decode(auth, from, auth.length(), buffer);
+            if (length == Base64Decoder.MALFORMED) {
+                if (logs(SEVERE)) {
+                    logger.severe(format("Malformed base64-encoded %s credentials [%s] from IP [%s].", BASIC, auth.substring(from), request.remoteAddress()));
+                }
+                return AuthResult.of(MALFORMED_BASE64);
+            }
+            // ':' is ASCII, and can therefore never be part of a multi-byte UTF-8 character:
+            final int colon = indexOf(buffer, length, COLON_BYTE);
+            final String username = (colon < 0) ? null : new String(buffer, 0, colon, UTF_8);
+            if ((username == null) || isBlank(username)) {
+                final String rendered = reports(SEVERE) ? safelyRender(new String(buffer, 0, length, UTF_8).split(COLON, AT_MOST_ONCE)) : null;
+                if (logs(SEVERE)) {
+                    logger.severe(format("Malformed %s credentials. Encoded: [%s]. Decoded: [%s]. IP: [%s].", BASIC, auth.substring(from), rendered, request.remoteAddress()));
+                }
+                return AuthResult.malformed(MALFORMED_CREDENTIALS, rendered);
+            }
+            final String password = new String(buffer, colon + 1, length - colon - 1, UTF_8);
+            return authenticate(username, password, request);
+        } finally {
+            // Do not leave decoded credentials lying around in memory for longer than necessary, including bytes decoded
+            // before an invalid character:
+            Arrays.fill(buffer, 0, maxLength, ZERO);
+        }
+    }
+
+    /**
+     * @return this thread's buffer to decode credentials into.
+     */
+    static byte[] decodingBuffer() {
+        return DECODING_BUFFER.get();
+    }
+
+    private static int indexOf(final byte[] bytes, final int length, final byte b) {
+        for (int i = 0; i < length; ++i) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private String safelyRender(final String[] array) {
+        final StringBuilder builder = new StringBuilder();
+        final int last = array.length - 1;
+        builder.append(LEFT_SQUARE_BRACKET);
+        for (int i = 0; i < array.length; ++i) {
+            appendOrMask(builder, array, i);
+            if (i < last) {
+                builder.append(COMMA);
+            }
+        }
+        builder.append(RIGHT_SQUARE_BRACKET);
+        return builder.toString();
+    }
+
+    private void appendOrMask(final StringBuilder builder, final String[] array, final int i) {
+        builder.append(LEFT_SQUARE_BRACKET);
+        if ((i == INDEX_USERNAME) || (i == INDEX_BASIC)) {
+            // 'Basic' header and username fields should typically be safe to print:
+            builder.append(array[i]);
+        } else {
+            // Mask details to avoid accidentally leaking information in the logs (e.g. parts of a password):
+            for (int j = 0; j < array[i].length(); ++j) {
+                builder.append(STAR);
+            }
+        }
+        builder.append(RIGHT_SQUARE_BRACKET);
+    }
+
+    private AuthResult authenticate(final String username, final String password, final PamAuthRequest request) {
+        final FailureThrottle userThrottle = this.userThrottle;
+        if (userThrottle == null) {
+            return authenticateCached(username, password, request);
+        }
+        if (userThrottle.isThrottled(username)) {
+            if (logs(WARNING)) {
+                logger.warning(format("Too many authentication failures for [%s], rejected request from IP [%s].", username, request.remoteAddress()));
+            }
+            return AuthResult.of(THROTTLED_USER, username);
+        }
+        final AuthResult result = authenticateCached(username, password, request);
+        if (result.outcome() == UNAUTHENTICATED) {
+            userThrottle.recordFailure(username);
+        }
+        return result;
+    }
+
+    private AuthResult authenticateCached(final String username, final String password, final PamAuthRequest request) {
+        final CredentialCache cache = this.cache;
+        if (cache == null) {
+            return authenticateGuarded(username, password, null, request);
+        }
+        if (snapshotPending) {
+            restoreSnapshot(cache);
+        }
+        final CredentialCache.Key key = cache.key(service, username, password);
+        final UnixUser user = cache.get(key);
+        if (user != null) {
+            if (logs(FINE)) {
+                logger.fine(format("Successfully authenticated [%s] with IP [%s] from cache.", username, request.remoteAddress()));
+            }
+            return AuthResult.of(CACHE_HIT, username, user, 0);
+        }
+        return authenticateGuarded(username, password, key, request);
+    }
+
+    private void restoreSnapshot(final CredentialCache cache) {
+        synchronized (snapshot) {
+            if (snapshotPending) {
+                snapshot.load(cache);
+                snapshotPending = false;
+            }
+        }
+    }
+
+    private AuthResult authenticateGuarded(final String username, final String password, final CredentialCache.Key key, final PamAuthRequest request) {
+        final CircuitBreaker breaker = this.breaker;
+        if ((breaker == null) || breaker.allowRequest()) {
+            return authenticateCoalesced(username, password, key, request);
+        }
+        if (key != null) {
+            final UnixUser user = cache.getStale(key);
+            if (user != null) {
+                if (logs(INFO)) {
+                    logger.info(format("Successfully authenticated [%s] with IP [%s] from a previous PAM authentication, as PAM is unavailable.", username, request.remoteAddress()));
+                }
+                return AuthResult.of(STALE_SUCCESS, username, user, 0);
+            }
+        }
+        if (logs(WARNING)) {
+            logger.warning(format("PAM circuit breaker for service [%s] is %s, rejected [%s] with IP [%s].", service, breaker.state(), username, request.remoteAddress()));
+        }
+        return AuthResult.of(CIRCUIT_OPEN, username);
+    }
+
+    private AuthResult authenticateCoalesced(final String username, final String password, final CredentialCache.Key key, final PamAuthRequest request) {
+        final SingleFlight singleFlight = this.singleFlight;
+        if (singleFlight == null) {
+            return authenticate(username, password, key, request);
+        }
+        final AuthResult result = singleFlight.authenticate(singleFlight.key(service, username, password), () -> authenticate(username, password, key, request));
+        if (((result.event() == COALESCED_SUCCESS) || (result.event() == COALESCED_FAILURE)) && logs(FINE)) {
+            logger.fine(format("%s [%s] with IP [%s] by sharing a concurrent, identical, PAM authentication.", (result.event() == COALESCED_SUCCESS) ? "Successfully authenticated" : "Failed to authenticate", username, request.remoteAddress()));
+        }
+        return result;
+    }
+
+    private AuthResult authenticate(final String username, final String password, final CredentialCache.Key key, final PamAuthRequest request) {
+        final ConcurrencyLimiter limiter = this.limiter;
+        if (limiter == null) {
+            return authenticateWithPam(username, password, key, request);
+        }
+        if (!limiter.tryAcquire()) {
+            if (logs(WARNING)) {
+                logger.warning(format("Too many PAM authentications in flight (limit: [%d]), rejected [%s] with IP [%s].", limiter.limit(), username, request.remoteAddress()));
+            }
+            return AuthResult.of(AuthEvent.OVERLOADED, username);
+        }
+        final AuthResult result;
+        try {
+            result = authenticateWithPam(username, password, key, request);
+        } catch (final RuntimeException | Error e) {
+            limiter.onError();
+            throw e;
+        }
+        if (result.outcome() == AUTHENTICATED) {
+            limiter.onSuccess(result.pamLatencyNanos());
+        } else if (result.event() == PAM_UNAVAILABLE) {
+            limiter.onError();
+        } else {
+            limiter.onFailure();
+        }
+        return result;
+    }
+
+    private AuthResult authenticateWithPam(final String username, final String password, final CredentialCache.Key key, final PamAuthRequest request) {
+        final CircuitBreaker breaker = this.breaker;
+        metrics.onPamStart();
+        final long start = System.nanoTime();
+        final long generation = (key == null) ? 0 : cache.generation();
+        try {
+            final UnixUser user = authenticator.authenticate(username, password);
+            final long latencyNanos = System.nanoTime() - start;
+            if (breaker != null) {
+                breaker.onAvailable();
+            }
+            if (logs(INFO)) {
+                logger.info(format("Successfully authenticated [%s] with IP [%s], UID [%s], GID [%s] and groups [%s].", user.getUserName(), request.remoteAddress(), user.getUID(), user.getGID(), user.getGroups()));
+            }
+            if (key != null) {
+                // Unless accounts changed while PAM was authenticating the user:
+                cache.put(key, user, generation);
+            }
+            return AuthResult.of(PAM_SUCCESS, username, user, latencyNanos);
+        } catch (final PAMException e) {
+            final long latencyNanos = System.nanoTime() - start;
+            final boolean unavailable = CircuitBreaker.isUnavailable(e);
+            if (breaker != null) {
+                if (unavailable) {
+                    breaker.onUnavailable();
+                } else {
+                    breaker.onAvailable();
+                }
+            }
+            if (logs(SEVERE)) {
+                logger.log(SEVERE, format("%s [%s] with IP [%s]: %s", unavailable ? "PAM unavailable to authenticate" : "Failed to authenticate", username, request.remoteAddress(), e.getMessage()), e);
+            }
+            return AuthResult.of(unavailable ? PAM_UNAVAILABLE : PAM_FAILURE, username, null, latencyNanos);
+        } catch (final RuntimeException | Error e) {
+            if (breaker != null) {
+                breaker.onUnavailable();
+            }
+            throw e;
+        } finally {
+            metrics.onPamEnd();
+        }
+    }
+
+    /**
+     * Stops watching accounts, saves the cache's snapshot, and releases PAM handles or workers, the audit log, and the
+     * registered metrics. Authentications still in flight may fail.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (accountWatcher != null) {
+            accountWatcher.close();
+        }
+        // Unless it was never restored, in which case it is still the most recent one:
+        if ((snapshot != null) && !snapshotPending) {
+            try {
+                snapshot.save(cache);
+            } catch (final IOException | RuntimeException e) {
+                logger.log(SEVERE, format("Failed to save PAM authentication snapshot: %s", e.getMessage()), e);
+            }
+        }
+        if (cache != null) {
+            cache.clear();
+        }
+        if (principals != null) {
+            principals.clear();
+        }
+        if (authenticator != null) {
+            authenticator.close();
+        }
+        if (audit != null) {
+            audit.close();
+        }
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (final JMException e) {
+                logger.warning(format("Failed to unregister PAM authentication metrics [%s]: %s", mbeanName, e.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * @return this engine's metrics, also exposed via JMX.
+     */
+    PamAuthFilterMXBean metrics() {
+        return metrics;
+    }
+}
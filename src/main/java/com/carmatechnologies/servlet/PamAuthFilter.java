@@ -1,88 +1,92 @@
 package com.carmatechnologies.servlet;
 
 import org.jvnet.libpam.PAM;
-import org.jvnet.libpam.PAMException;
-import org.jvnet.libpam.UnixUser;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.nio.charset.Charset;
-import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.function.Function;
 import java.util.logging.Logger;
 
-import static java.lang.Character.isWhitespace;
+import static com.carmatechnologies.servlet.InitParameters.isBlank;
 import static java.lang.String.format;
 import static java.util.logging.Level.SEVERE;
-import static javax.servlet.http.HttpServletResponse.SC_UNAUTHORIZED;
+import static javax.servlet.http.HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
 
 /**
  * Servlet filter to authenticate users using Basic Authentication and PAM (Linux Pluggable Authentication Modules).
  * It enables users to login using their Linux username and password.
+ * Requests are authenticated by {@link PamAuthEngine}, configured via the filter's init parameters, see also:
+ * {@link PamAuthParameters}.
  *
  * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
  */
-public class PamAuthFilter implements Filter {
+public class PamAuthFilter implements Filter, PamAuthParameters {
     /**
-     * Basic Authentication Scheme's realm.
-     * See also: https://tools.ietf.org/html/rfc2617#section-2
+     * Whether to authenticate asynchronously (true or false), on a dedicated executor rather than on the servlet
+     * container's request thread, for requests supporting it (see {@link ServletRequest#isAsyncSupported()}).
+     * Other requests are still authenticated synchronously.
+     * N.B.: in asynchronous mode, the rest of the filter chain also runs on the dedicated executor, and must therefore
+     * not itself start asynchronous processing.
      */
-    public static final String REALM = "realm";
+    public static final String ASYNC = "async";
 
     /**
-     * PAM service used to authenticate.
-     * See:
-     * - http://tldp.org/HOWTO/User-Authentication-HOWTO/x115.html
-     * - http://www.linux-pam.org/Linux-PAM-html/sag-overview.html
-     * - http://www.linux-pam.org/Linux-PAM-html/sag-configuration.html
+     * Comma-separated servlet URL patterns, e.g. /api/*, of requests to authenticate. All requests are authenticated
+     * when this is not set, except those matching {@link #EXCLUDE_URL_PATTERNS}.
      */
-    public static final String SERVICE = "service";
-
-    public static final String DEFAULT_REALM = "unknown";
-    public static final String DEFAULT_SERVICE = "login";
-
-    private static final String WHITESPACE = " ";
-    private static final String COLON = ":";
-    private static final int AT_MOST_ONCE = 2;
-    private static final int TWO = 2;
-    private static final String AUTHORIZATION = "Authorization";
-    private static final int INDEX_USERNAME = 0;
-    private static final int INDEX_PASSWORD = 1;
-    private static final String BASIC = "Basic";
-    private static final int INDEX_BASIC = 0;
-    private static final int INDEX_CREDENTIALS = 1;
-    private static final Charset UTF_8 = Charset.forName("UTF-8"); // UTF-8: eight-bit UCS Transformation Format.
-    private static final String EMPTY = "";
-    private static final String WWW_AUTHENTICATE = "WWW-Authenticate";
-    private static final char STAR = '*';
-    private static final char LEFT_SQUARE_BRACKET = '[';
-    private static final char RIGHT_SQUARE_BRACKET = ']';
-    private static final char COMMA = ',';
+    public static final String INCLUDE_URL_PATTERNS = "includeUrlPatterns";
+
+    /**
+     * Comma-separated servlet URL patterns, e.g. /health,/static/*,*.css, of requests passed on to the rest of the filter
+     * chain without being authenticated.
+     */
+    public static final String EXCLUDE_URL_PATTERNS = "excludeUrlPatterns";
+
+    /**
+     * Comma-separated HTTP methods, e.g. GET,POST, of requests to authenticate. Requests with any method are
+     * authenticated when this is not set, except those matching {@link #EXCLUDE_METHODS}.
+     */
+    public static final String INCLUDE_METHODS = "includeMethods";
+
+    /**
+     * Comma-separated HTTP methods, e.g. OPTIONS, of requests passed on to the rest of the filter chain without being
+     * authenticated.
+     */
+    public static final String EXCLUDE_METHODS = "excludeMethods";
+
+    public static final boolean DEFAULT_ASYNC = false;
+
+    private static final long NO_TIMEOUT = 0;
+    private static final String ROOT_PATH = "/";
 
     private static final Logger logger = Logger.getLogger(PamAuthFilter.class.getSimpleName());
 
     private final Function<String, PAM> pamFactory;
     private boolean initialised = false;
-    private String realm;
-    private String service;
+    // Read by request and monitoring threads, hence published once initialised:
+    private volatile PamAuthEngine engine;
+    private boolean filtersRequests;
+    private UrlPatterns includedUrlPatterns;
+    private UrlPatterns excludedUrlPatterns;
+    private String[] includedMethods;
+    private String[] excludedMethods;
+    private volatile AuthExecutor executor;
 
     public PamAuthFilter() {
-        this(PamAuthFilter::newPam);
-    }
-
-    private static PAM newPam(final String service) {
-        try {
-            return new PAM(service);
-        } catch (final PAMException e) {
-            throw new RuntimeException("Failed to create PAM", e);
-        }
+        this(PamAuthEngine::newPam);
     }
 
     PamAuthFilter(final Function<String, PAM> pamFactory) {
@@ -93,130 +97,202 @@ public class PamAuthFilter implements Filter {
     }
 
     public String realm() {
-        return realm;
+        final PamAuthEngine engine = this.engine;
+        return (engine == null) ? null : engine.realm();
     }
 
     public String service() {
-        return service;
+        final PamAuthEngine engine = this.engine;
+        return (engine == null) ? null : engine.service();
+    }
+
+    /**
+     * @return the state of the PAM service's circuit breaker: CLOSED, OPEN or HALF_OPEN, or null if it is disabled.
+     */
+    public String circuitBreakerState() {
+        final PamAuthEngine engine = this.engine;
+        return (engine == null) ? null : engine.circuitBreakerState();
     }
 
     @Override
     public synchronized void init(final FilterConfig config) throws ServletException {
         if (initialised) {
-            logger.info(format("PAM authentication filter already initialised with %s=[%s] and %s=[%s].", REALM, realm, SERVICE, service));
-        } else {
-            realm = getOrDefault(config.getInitParameter(REALM), DEFAULT_REALM);
-            service = getOrDefault(config.getInitParameter(SERVICE), DEFAULT_SERVICE);
-            initialised = true;
-            logger.info(format("PAM authentication filter configured with %s=[%s] and %s=[%s].", REALM, realm, SERVICE, service));
+            logger.info(format("PAM authentication filter already initialised with %s=[%s] and %s=[%s].", REALM, engine.realm(), SERVICE, engine.service()));
+            return;
         }
+        final InitParameters parameters = new InitParameters(config::getInitParameter);
+        includedUrlPatterns = newUrlPatterns(parameters, INCLUDE_URL_PATTERNS);
+        excludedUrlPatterns = newUrlPatterns(parameters, EXCLUDE_URL_PATTERNS);
+        includedMethods = getMethods(parameters, INCLUDE_METHODS);
+        excludedMethods = getMethods(parameters, EXCLUDE_METHODS);
+        filtersRequests = (includedUrlPatterns != null) || (excludedUrlPatterns != null) || (includedMethods != null) || (excludedMethods != null);
+        try {
+            executor = parameters.getOrDefault(ASYNC, DEFAULT_ASYNC) ? AuthExecutor.configure(parameters) : null;
+            engine = new PamAuthEngine(config.getFilterName(), config::getInitParameter, pamFactory);
+        } catch (final PamConfigurationException e) {
+            throw new ServletException(e.getMessage(), e.getCause());
+        } finally {
+            // The engine released its own resources if it failed to start:
+            if ((engine == null) && (executor != null)) {
+                executor.shutdown();
+                executor = null;
+            }
+        }
+        initialised = true;
     }
 
-    private String getOrDefault(final String value, final String defaultValue) throws ServletException {
-        return ((value == null) || isBlank(value)) ? defaultValue : value;
+    private UrlPatterns newUrlPatterns(final InitParameters parameters, final String name) throws ServletException {
+        final List<String> patterns = parameters.getList(name);
+        if (patterns == null) {
+            return null;
+        }
+        logger.info(format("PAM authentication filter configured with %s=%s.", name, patterns));
+        try {
+            return UrlPatterns.compile(patterns);
+        } catch (final RuntimeException e) {
+            throw new ServletException(format("Invalid %s [%s]", name, parameters.get(name)), e);
+        }
     }
 
-    private static boolean isBlank(final CharSequence characters) {
-        int length;
-        if (characters == null || (length = characters.length()) == 0) {
-            return true;
+    private String[] getMethods(final InitParameters parameters, final String name) {
+        final List<String> methods = parameters.getList(name);
+        if (methods == null) {
+            return null;
         }
-        for (int i = 0; i < length; i++) {
-            if (!isWhitespace(characters.charAt(i))) {
-                return false;
-            }
+        logger.info(format("PAM authentication filter configured with %s=%s.", name, methods));
+        final String[] upperCaseMethods = new String[methods.size()];
+        for (int i = 0; i < upperCaseMethods.length; ++i) {
+            upperCaseMethods[i] = methods.get(i).toUpperCase(Locale.ROOT);
         }
-        return true;
+        return upperCaseMethods;
     }
 
     @Override
     public void doFilter(final ServletRequest request, final ServletResponse response, final FilterChain chain) throws IOException, ServletException {
         final HttpServletRequest httpRequest = (HttpServletRequest) request;
         final HttpServletResponse httpResponse = (HttpServletResponse) response;
-        if (isAuthenticated(httpRequest)) {
-            // Successfully authenticated, move to the next filter in the chain:
-            chain.doFilter(httpRequest, httpResponse);
+        if (filtersRequests && !requiresAuthentication(httpRequest)) {
+            chain.doFilter(request, response);
+            return;
+        }
+        final AuthExecutor executor = this.executor;
+        if ((executor != null) && httpRequest.isAsyncSupported()) {
+            doFilterAsynchronously(httpRequest, httpResponse, chain, executor);
         } else {
-            // Failed to authenticate user, respond with HTTP 401 Unauthorized:
-            httpResponse.setHeader(WWW_AUTHENTICATE, format("%s realm=\"%s\"", BASIC, realm));
-            httpResponse.sendError(SC_UNAUTHORIZED);
+            doFilterSynchronously(httpRequest, httpResponse, chain);
         }
     }
 
-    private boolean isAuthenticated(final HttpServletRequest httpRequest) {
-        final String auth = httpRequest.getHeader(AUTHORIZATION);
-        if (isBlank(auth)) {
-            logger.severe(format("Blank %s header [%s] from IP [%s].", AUTHORIZATION, auth, httpRequest.getRemoteAddr()));
+    /**
+     * @return false if the provided request was excluded from authentication, via its method or path.
+     */
+    private boolean requiresAuthentication(final HttpServletRequest httpRequest) {
+        final String method = httpRequest.getMethod();
+        if (((includedMethods != null) && !contains(includedMethods, method)) || ((excludedMethods != null) && contains(excludedMethods, method))) {
             return false;
         }
-        final String[] basic = auth.split(WHITESPACE, AT_MOST_ONCE);
-        if ((basic.length != TWO) || !BASIC.equals(basic[INDEX_BASIC])) {
-            logger.severe(format("Malformed %s header [%s] from IP [%s].", AUTHORIZATION, safelyRender(basic), httpRequest.getRemoteAddr()));
-            return false;
+        if ((includedUrlPatterns == null) && (excludedUrlPatterns == null)) {
+            return true;
         }
-        final String[] credentials = base64Decode(basic[INDEX_CREDENTIALS], httpRequest).split(COLON, AT_MOST_ONCE);
-        if ((credentials.length != TWO) || isBlank(credentials[INDEX_USERNAME])) {
-            logger.severe(format("Malformed %s credentials. Encoded: [%s]. Decoded: [%s]. IP: [%s].", BASIC, basic[INDEX_CREDENTIALS], safelyRender(credentials), httpRequest.getRemoteAddr()));
-            return false;
+        // Servlet path and path info are decoded and normalised by the container, unlike the request URI, hence cannot be
+        // crafted, e.g. /health/../admin, to escape authentication:
+        final String servletPath = httpRequest.getServletPath();
+        final String pathInfo = httpRequest.getPathInfo();
+        return ((includedUrlPatterns == null) || includedUrlPatterns.matches(servletPath, pathInfo))
+                && ((excludedUrlPatterns == null) || !excludedUrlPatterns.matches(servletPath, pathInfo));
+    }
+
+    private static boolean contains(final String[] methods, final String method) {
+        for (final String candidate : methods) {
+            if (candidate.equals(method)) {
+                return true;
+            }
         }
-        return isAuthenticated(credentials, httpRequest);
+        return false;
     }
 
-    private String base64Decode(final String credentials, final HttpServletRequest httpRequest) {
+    private void doFilterAsynchronously(final HttpServletRequest httpRequest, final HttpServletResponse httpResponse, final FilterChain chain, final AuthExecutor executor) {
+        final AsyncContext context = httpRequest.startAsync();
+        // The rest of the filter chain runs within this asynchronous context, hence it should not time out before it does:
+        context.setTimeout(NO_TIMEOUT);
+        final Runnable task = () -> {
+            try {
+                doFilterSynchronously(httpRequest, httpResponse, chain);
+            } catch (final IOException | ServletException | RuntimeException e) {
+                logger.log(SEVERE, format("Failed to process request from IP [%s] asynchronously: %s", httpRequest.getRemoteAddr(), e.getMessage()), e);
+                sendInternalServerError(httpResponse);
+            } finally {
+                context.complete();
+            }
+        };
         try {
-            return new String(Base64.getDecoder().decode(credentials), UTF_8);
-        } catch (final IllegalArgumentException e) {
-            logger.log(SEVERE, format("Malformed base64-encoded %s credentials [%s] from IP [%s]: %s", BASIC, credentials, httpRequest.getRemoteAddr(), e.getMessage()), e);
-            return EMPTY;
+            executor.execute(task);
+        } catch (final RejectedExecutionException e) {
+            // Dedicated executor is saturated, fall back to authenticating on the container's thread:
+            task.run();
         }
     }
 
-    private String safelyRender(final String[] array) {
-        final StringBuilder builder = new StringBuilder();
-        final int last = array.length - 1;
-        builder.append(LEFT_SQUARE_BRACKET);
-        for (int i = 0; i < array.length; ++i) {
-            appendOrMask(builder, array, i);
-            if (i < last) {
-                builder.append(COMMA);
-            }
+    private void sendInternalServerError(final HttpServletResponse httpResponse) {
+        if (httpResponse.isCommitted()) {
+            return;
+        }
+        try {
+            httpResponse.sendError(SC_INTERNAL_SERVER_ERROR);
+        } catch (final IOException e) {
+            logger.log(SEVERE, format("Failed to send HTTP %d: %s", SC_INTERNAL_SERVER_ERROR, e.getMessage()), e);
         }
-        builder.append(RIGHT_SQUARE_BRACKET);
-        return builder.toString();
     }
 
-    private void appendOrMask(final StringBuilder builder, final String[] array, final int i) {
-        builder.append(LEFT_SQUARE_BRACKET);
-        if ((i == INDEX_USERNAME) || (i == INDEX_BASIC)) {
-            // 'Basic' header and username fields should typically be safe to print:
-            builder.append(array[i]);
-        } else {
-            // Mask details to avoid accidentally leaking information in the logs (e.g. parts of a password):
-            for (int j = 0; j < array[i].length(); ++j) {
-                builder.append(STAR);
-            }
+    private void doFilterSynchronously(final HttpServletRequest httpRequest, final HttpServletResponse httpResponse, final FilterChain chain) throws IOException, ServletException {
+        final PamAuthResult result = engine.authenticate(new ServletAuthRequest(httpRequest));
+        setHeaders(result.headers(), httpResponse);
+        if (!result.isAuthenticated()) {
+            httpResponse.sendError(result.status());
+            return;
+        }
+        if (result.sessionCookie() != null) {
+            addSessionCookie(result.sessionCookie(), httpRequest, httpResponse);
         }
-        builder.append(RIGHT_SQUARE_BRACKET);
+        // Successfully authenticated, move to the next filter in the chain:
+        final UnixUserPrincipal principal = result.principal();
+        chain.doFilter((principal == null) ? httpRequest : new AuthenticatedRequest(httpRequest, principal), httpResponse);
     }
 
-    private boolean isAuthenticated(final String[] credentials, final HttpServletRequest httpRequest) {
-        PAM pam = null;
-        try {
-            pam = pamFactory.apply(service);
-            final UnixUser user = pam.authenticate(credentials[INDEX_USERNAME], credentials[INDEX_PASSWORD]);
-            logger.info(format("Successfully authenticated [%s] with IP [%s], UID [%s], GID [%s] and groups [%s].", user.getUserName(), httpRequest.getRemoteAddr(), user.getUID(), user.getGID(), user.getGroups()));
-            return true;
-        } catch (final PAMException e) {
-            logger.log(SEVERE, format("Failed to authenticate [%s] with IP [%s]: %s", credentials[INDEX_USERNAME], httpRequest.getRemoteAddr(), e.getMessage()), e);
-            return false;
-        } finally {
-            if (pam != null) {
-                pam.dispose();
-            }
+    private static void setHeaders(final Map<String, String> headers, final HttpServletResponse httpResponse) {
+        if (headers.isEmpty()) {
+            return;
+        }
+        for (final Map.Entry<String, String> header : headers.entrySet()) {
+            httpResponse.setHeader(header.getKey(), header.getValue());
         }
     }
 
+    private void addSessionCookie(final String token, final HttpServletRequest httpRequest, final HttpServletResponse httpResponse) {
+        final Cookie cookie = new Cookie(engine.sessionTokenName(), token);
+        cookie.setHttpOnly(true);
+        cookie.setSecure(httpRequest.isSecure());
+        final String contextPath = httpRequest.getContextPath();
+        cookie.setPath(isBlank(contextPath) ? ROOT_PATH : contextPath);
+        cookie.setMaxAge(engine.sessionTokenTtlSeconds());
+        httpResponse.addCookie(cookie);
+    }
+
     @Override
-    public void destroy() {
+    public synchronized void destroy() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+        if (engine != null) {
+            engine.close();
+        }
+    }
+
+    /**
+     * @return this filter's metrics, also exposed via JMX, or null if it is not initialised.
+     */
+    PamAuthFilterMXBean metrics() {
+        final PamAuthEngine engine = this.engine;
+        return (engine == null) ? null : engine.metrics();
     }
 }
@@ -0,0 +1,90 @@
+package com.carmatechnologies.servlet;
+
+/**
+ * Management interface of {@link PamAuthEngine}, and therefore of {@link PamAuthFilter}, registered with the platform
+ * MBean server under {@value PamAuthFilterMXBean#DOMAIN}:type=PamAuthFilter,name=[filter name],service=[PAM service].
+ * Counters are cumulative since the engine was created. Latencies are in milliseconds.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+public interface PamAuthFilterMXBean {
+    String DOMAIN = "com.carmatechnologies.servlet";
+
+    long getBlankHeaders();
+
+    long getMalformedHeaders();
+
+    long getMalformedBase64();
+
+    long getMalformedCredentials();
+
+    long getCacheHits();
+
+    long getSessionTokenHits();
+
+    long getPamSuccesses();
+
+    long getPamFailures();
+
+    /**
+     * @return number of PAM authentications which timed out or failed, e.g. because the directory behind PAM is down,
+     * as opposed to rejected the user's credentials.
+     */
+    long getPamUnavailable();
+
+    /**
+     * @return number of requests which shared a concurrent, identical, PAM authentication, rather than calling PAM.
+     */
+    long getCoalescedAuthentications();
+
+    long getThrottledRequests();
+
+    long getOverloadedRequests();
+
+    /**
+     * @return number of requests rejected without calling PAM, because the circuit breaker was open.
+     */
+    long getCircuitOpenRejections();
+
+    /**
+     * @return number of requests authenticated, while the circuit breaker was open, because the same credentials were
+     * successfully authenticated by PAM within the grace period.
+     */
+    long getStaleSuccesses();
+
+    /**
+     * @return the circuit breaker's state: CLOSED, OPEN or HALF_OPEN, or null if it is disabled.
+     */
+    String getCircuitBreakerState();
+
+    /**
+     * @return number of PAM authentications currently in progress.
+     */
+    int getPamAuthenticationsInFlight();
+
+    /**
+     * @return number of requests currently being authenticated, whether by PAM or not.
+     */
+    int getRequestsInFlight();
+
+    double getPamLatencyP50Millis();
+
+    double getPamLatencyP99Millis();
+
+    double getPamLatencyP999Millis();
+
+    /**
+     * @return median time spent authenticating a request, excluding the rest of the filter chain, and any time spent
+     * sending the response.
+     */
+    double getFilterLatencyP50Millis();
+
+    double getFilterLatencyP99Millis();
+
+    double getFilterLatencyP999Millis();
+
+    /**
+     * Clears the latency histograms, e.g. to observe the effect of a configuration change.
+     */
+    void resetLatencies();
+}
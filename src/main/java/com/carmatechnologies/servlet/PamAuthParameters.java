@@ -0,0 +1,362 @@
+package com.carmatechnologies.servlet;
+
+/**
+ * Names and default values of the parameters configuring {@link PamAuthEngine}, and therefore {@link PamAuthFilter}'s
+ * init parameters, and {@link NonBlockingPamAuth}'s parameters.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+public interface PamAuthParameters {
+    /**
+     * Basic Authentication Scheme's realm.
+     * See also: https://tools.ietf.org/html/rfc2617#section-2
+     */
+    String REALM = "realm";
+
+    /**
+     * PAM service used to authenticate.
+     * See:
+     * - http://tldp.org/HOWTO/User-Authentication-HOWTO/x115.html
+     * - http://www.linux-pam.org/Linux-PAM-html/sag-overview.html
+     * - http://www.linux-pam.org/Linux-PAM-html/sag-configuration.html
+     */
+    String SERVICE = "service";
+
+    /**
+     * Maximum number of successful authentications kept in memory, so that requests repeatedly sending the same
+     * credentials do not go through PAM every time. Caching is disabled when this is not set or set to 0.
+     */
+    String CACHE_SIZE = "cacheSize";
+
+    /**
+     * Number of seconds after which a cached authentication expires, and PAM is called again.
+     */
+    String CACHE_TTL_SECONDS = "cacheTtlSeconds";
+
+    /**
+     * Number of seconds after which a cached authentication expires if it has not been used. 0 disables idle expiry.
+     */
+    String CACHE_IDLE_SECONDS = "cacheIdleSeconds";
+
+    /**
+     * Number of PBKDF2 iterations used to digest cached credentials.
+     */
+    String CACHE_DIGEST_ITERATIONS = "cacheDigestIterations";
+
+    /**
+     * Minimum number of PAM handles created upfront and kept for reuse.
+     */
+    String PAM_POOL_MIN_SIZE = "pamPoolMinSize";
+
+    /**
+     * Maximum number of idle PAM handles kept for reuse. Pooling is disabled when this is not set or set to 0, in which
+     * case a PAM handle is created and disposed for every authentication. A handle which authenticated a user is only
+     * reused for the same user, hence pooling requires PAM modules which support repeated authentications on the same
+     * handle, e.g. pam_unix or pam_sss, see also: {@link PamPool}.
+     */
+    String PAM_POOL_MAX_SIZE = "pamPoolMaxSize";
+
+    /**
+     * Number of seconds after which a pooled PAM handle is disposed rather than reused. Handles are also disposed once
+     * the service's configuration file, /etc/pam.d/[service], changed.
+     */
+    String PAM_POOL_MAX_AGE_SECONDS = "pamPoolMaxAgeSeconds";
+
+    /**
+     * Number of helper processes authenticating users out-of-process, so that PAM modules which are not thread-safe,
+     * hang, or crash, cannot affect the server. PAM is called within the server's JVM when this is not set
+     * or set to 0, in which case the {@code pamPool*} parameters apply.
+     */
+    String PAM_WORKERS = "pamWorkers";
+
+    /**
+     * Number of milliseconds after which a PAM authentication is abandoned, and the request rejected with HTTP 503
+     * Service Unavailable. PAM calls are then made on dedicated threads, as native calls cannot be interrupted.
+     * Disabled when this is not set or set to 0. Does not apply to {@link #PAM_WORKERS}, whose own timeout is
+     * {@link #PAM_WORKER_TIMEOUT_MILLIS}.
+     */
+    String PAM_TIMEOUT_MILLIS = "pamTimeoutMillis";
+
+    /**
+     * Number of consecutive PAM authentications which timed out or failed, e.g. because the directory behind PAM is
+     * down, after which the circuit breaker opens, and requests fail fast with HTTP 503 Service Unavailable rather than
+     * call PAM. Rejected credentials do not count. The circuit breaker is disabled when this is not set or set to 0.
+     */
+    String CIRCUIT_BREAKER_FAILURES = "circuitBreakerFailures";
+
+    /**
+     * Number of seconds the circuit breaker stays open, before letting a single PAM authentication through to check
+     * whether PAM is available again.
+     */
+    String CIRCUIT_BREAKER_OPEN_SECONDS = "circuitBreakerOpenSeconds";
+
+    /**
+     * Number of seconds, beyond {@link #CACHE_TTL_SECONDS}, during which users successfully authenticated by PAM are
+     * still authenticated with the same credentials while the circuit breaker is open. Requires the cache to be
+     * enabled. 0 disables this, in which case all requests fail fast while the circuit breaker is open.
+     */
+    String CIRCUIT_BREAKER_GRACE_SECONDS = "circuitBreakerGraceSeconds";
+
+    /**
+     * Space-separated command starting a PAM helper process, see also: {@link PamWorker}. Defaults to running
+     * {@link PamWorker} for the configured service, with this JVM's Java runtime and this library's classpath.
+     */
+    String PAM_WORKER_COMMAND = "pamWorkerCommand";
+
+    /**
+     * Number of milliseconds after which a PAM helper process which did not respond to the request it is processing is
+     * considered hung, and killed. Time spent by requests waiting behind others does not count.
+     */
+    String PAM_WORKER_TIMEOUT_MILLIS = "pamWorkerTimeoutMillis";
+
+    /**
+     * Maximum number of requests in flight on each PAM helper process. Requests beyond it on all helper processes are
+     * rejected with HTTP 503 Service Unavailable.
+     */
+    String PAM_WORKER_QUEUE_SIZE = "pamWorkerQueueSize";
+
+    /**
+     * Maximum number of PAM authentications in flight at any time. The effective limit adapts to PAM latency, between
+     * this value and {@link #MIN_CONCURRENT_AUTHENTICATIONS}, and requests beyond it are rejected with HTTP 503 Service
+     * Unavailable. Limiting is disabled when this is not set or set to 0.
+     */
+    String MAX_CONCURRENT_AUTHENTICATIONS = "maxConcurrentAuthentications";
+
+    /**
+     * Minimum number of PAM authentications allowed in flight at any time, however slow PAM gets.
+     */
+    String MIN_CONCURRENT_AUTHENTICATIONS = "minConcurrentAuthentications";
+
+    /**
+     * Number of milliseconds beyond which a PAM authentication is considered slow, and the number of PAM
+     * authentications allowed in flight is decreased.
+     */
+    String PAM_LATENCY_THRESHOLD_MILLIS = "pamLatencyThresholdMillis";
+
+    /**
+     * Number of seconds clients are asked to wait, via the Retry-After header, when rejected with HTTP 503 Service
+     * Unavailable.
+     */
+    String RETRY_AFTER_SECONDS = "retryAfterSeconds";
+
+    /**
+     * Number of threads authenticating concurrently off the server's request threads, i.e. by {@link PamAuthFilter} in
+     * asynchronous mode, or by {@link NonBlockingPamAuth}.
+     */
+    String ASYNC_THREADS = "asyncThreads";
+
+    /**
+     * Number of requests waiting to be authenticated off the server's request threads. Requests beyond this are
+     * authenticated synchronously, on the servlet container's request thread, by {@link PamAuthFilter}, and rejected
+     * with HTTP 503 Service Unavailable by {@link NonBlockingPamAuth}.
+     */
+    String ASYNC_QUEUE_SIZE = "asyncQueueSize";
+
+    /**
+     * Whether to authenticate on virtual threads (true or false) off the server's request threads. Requires Java 21+,
+     * and falls back to platform threads otherwise.
+     */
+    String ASYNC_VIRTUAL_THREADS = "asyncVirtualThreads";
+
+    /**
+     * Number of recent authentication failures from an IP address beyond which requests from this IP address are
+     * rejected, before even decoding their credentials. Only requests which presented credentials count as failures,
+     * not those without an Authorization header. Throttling per IP address is disabled when this is not set, or is 0.
+     */
+    String MAX_FAILURES_PER_IP = "maxFailuresPerIp";
+
+    /**
+     * Number of recent authentication failures for a username beyond which requests for this username are rejected,
+     * before calling PAM. Throttling per username is disabled when this is not set or set to 0.
+     */
+    String MAX_FAILURES_PER_USER = "maxFailuresPerUser";
+
+    /**
+     * Number of seconds over which authentication failures are counted. Failures from the previous window count for
+     * half, and older failures are forgotten.
+     */
+    String FAILURE_WINDOW_SECONDS = "failureWindowSeconds";
+
+    /**
+     * Number of counters, which must be a power of two, used to track failures per IP address and per username.
+     * Memory used is bounded by this number, however many distinct IP addresses and usernames are seen, but larger
+     * values reduce the risk of throttling clients which share counters with failing ones.
+     */
+    String FAILURE_TRACKER_WIDTH = "failureTrackerWidth";
+
+    /**
+     * HTTP status code used to reject throttled requests: either 429 (Too Many Requests), along with a Retry-After
+     * header, or 401 (Unauthorized), to not reveal throttling to clients.
+     */
+    String THROTTLED_STATUS = "throttledStatus";
+
+    /**
+     * File to which authentication events are written, as JSON lines, by a background thread, rather than logged
+     * synchronously by request threads. Auditing is disabled when this is not set, in which case events are logged.
+     */
+    String AUDIT_FILE = "auditFile";
+
+    /**
+     * Maximum number of authentication events, which must be a power of two, buffered in memory until written to the
+     * audit file.
+     */
+    String AUDIT_BUFFER_SIZE = "auditBufferSize";
+
+    /**
+     * Size, in bytes, beyond which the audit file is rolled over.
+     */
+    String AUDIT_MAX_FILE_BYTES = "auditMaxFileBytes";
+
+    /**
+     * Number of rolled over audit files to keep.
+     */
+    String AUDIT_MAX_FILES = "auditMaxFiles";
+
+    /**
+     * What to do with authentication events when the audit buffer is full: either drop them (drop), or make request
+     * threads wait for space (block).
+     */
+    String AUDIT_OVERFLOW = "auditOverflow";
+
+    /**
+     * Whether to register metrics with the platform MBean server, see also: {@link PamAuthFilterMXBean}.
+     */
+    String JMX = "jmx";
+
+    /**
+     * Number of seconds a session token, issued to clients after they successfully authenticated via PAM, remains
+     * valid. Until then, requests carrying it skip PAM altogether. 0 disables session tokens.
+     */
+    String SESSION_TOKEN_TTL_SECONDS = "sessionTokenTtlSeconds";
+
+    /**
+     * How session tokens are exchanged: either as an HTTP-only cookie (cookie), or as a header (header).
+     */
+    String SESSION_TOKEN_TRANSPORT = "sessionTokenTransport";
+
+    /**
+     * Name of the cookie or header carrying session tokens.
+     */
+    String SESSION_TOKEN_NAME = "sessionTokenName";
+
+    /**
+     * Comma-separated, base64-encoded, secret keys used to sign session tokens. The first key signs new tokens, and all
+     * keys verify tokens. When not set, keys are randomly generated, and rotated every
+     * {@link #SESSION_TOKEN_KEY_ROTATION_SECONDS} seconds.
+     */
+    String SESSION_TOKEN_KEYS = "sessionTokenKeys";
+
+    /**
+     * Number of seconds after which a randomly generated session token key is replaced by a new one.
+     */
+    String SESSION_TOKEN_KEY_ROTATION_SECONDS = "sessionTokenKeyRotationSeconds";
+
+    /**
+     * What session tokens are valid for, signed into each token, so that instances sharing {@link #SESSION_TOKEN_KEYS}
+     * only accept tokens issued for the same audience. Defaults to the PAM service, see also: {@link #SERVICE}, and
+     * should be set to distinguish instances using the same service, e.g. to protect different URLs.
+     */
+    String SESSION_TOKEN_AUDIENCE = "sessionTokenAudience";
+
+    /**
+     * Whether concurrent requests with the same credentials should share a single PAM authentication, rather than each
+     * authenticate via PAM.
+     */
+    String COALESCE_AUTHENTICATIONS = "coalesceAuthentications";
+
+    /**
+     * Whether to expose the authenticated user as a {@link UnixUserPrincipal}, see also:
+     * {@link PamAuthResult#principal()}. {@link PamAuthFilter} exposes it to the rest of the filter chain via
+     * HttpServletRequest#getUserPrincipal(), along with HttpServletRequest#getRemoteUser(), and
+     * HttpServletRequest#isUserInRole(String) checking the user's Unix groups.
+     */
+    String USER_PRINCIPAL = "userPrincipal";
+
+    /**
+     * Maximum number of users whose principal and group membership are cached.
+     */
+    String USER_PRINCIPAL_CACHE_SIZE = "userPrincipalCacheSize";
+
+    /**
+     * Number of seconds after which a user's cached principal and group membership are rebuilt.
+     */
+    String USER_PRINCIPAL_TTL_SECONDS = "userPrincipalTtlSeconds";
+
+    /**
+     * File to which the cache of successful PAM authentications is written when the engine is closed, e.g. when the
+     * filter is destroyed, and from which it is restored on first use after a restart, so that clients are not all sent
+     * back to PAM at once. Passwords are never written, only the cache's salted digests, see also:
+     * {@link WarmStartSnapshot}. Requires the cache, and {@link #SNAPSHOT_KEY}, to be set.
+     */
+    String SNAPSHOT_FILE = "snapshotFile";
+
+    /**
+     * Base64-encoded secret key, of at least 16 bytes, used to sign the snapshot, which is ignored if its signature
+     * does not verify, e.g. because it was tampered with.
+     */
+    String SNAPSHOT_KEY = "snapshotKey";
+
+    /**
+     * Whether to watch {@link #WATCHED_FILES} for changes to accounts, and then discard the cached authentications,
+     * user principals and session tokens of the users affected, so that these may be cached for longer.
+     */
+    String WATCH_ACCOUNTS = "watchAccounts";
+
+    /**
+     * Comma-separated files to watch, see also: {@link AccountWatcher}. Defaults to {@link #DEFAULT_WATCHED_FILES} and
+     * /etc/pam.d/[service]. The snapshot, see also: {@link #SNAPSHOT_FILE}, is ignored if any of these changed since
+     * it was written, whether they are watched or not.
+     */
+    String WATCHED_FILES = "watchedFiles";
+
+    /**
+     * Number of milliseconds watched files must not have changed for before changes are processed, so that a burst
+     * of changes, e.g. a bulk user import, is processed once.
+     */
+    String WATCH_DEBOUNCE_MILLIS = "watchDebounceMillis";
+
+    String DEFAULT_REALM = "unknown";
+    String DEFAULT_SERVICE = "login";
+    int DEFAULT_CACHE_SIZE = 0;
+    int DEFAULT_CACHE_TTL_SECONDS = 300;
+    int DEFAULT_CACHE_IDLE_SECONDS = 60;
+    int DEFAULT_CACHE_DIGEST_ITERATIONS = 1000;
+    int DEFAULT_PAM_POOL_MIN_SIZE = 0;
+    int DEFAULT_PAM_POOL_MAX_SIZE = 0;
+    int DEFAULT_PAM_POOL_MAX_AGE_SECONDS = 300;
+    int DEFAULT_PAM_WORKERS = 0;
+    int DEFAULT_PAM_WORKER_TIMEOUT_MILLIS = 10000;
+    int DEFAULT_PAM_WORKER_QUEUE_SIZE = 16;
+    int DEFAULT_PAM_TIMEOUT_MILLIS = 0;
+    int DEFAULT_CIRCUIT_BREAKER_FAILURES = 0;
+    int DEFAULT_CIRCUIT_BREAKER_OPEN_SECONDS = 30;
+    int DEFAULT_CIRCUIT_BREAKER_GRACE_SECONDS = 0;
+    int DEFAULT_MAX_CONCURRENT_AUTHENTICATIONS = 0;
+    int DEFAULT_MIN_CONCURRENT_AUTHENTICATIONS = 1;
+    int DEFAULT_PAM_LATENCY_THRESHOLD_MILLIS = 500;
+    int DEFAULT_RETRY_AFTER_SECONDS = 1;
+    int DEFAULT_MAX_FAILURES_PER_IP = 0;
+    int DEFAULT_MAX_FAILURES_PER_USER = 0;
+    int DEFAULT_FAILURE_WINDOW_SECONDS = 60;
+    int DEFAULT_FAILURE_TRACKER_WIDTH = 1 << 16;
+    int DEFAULT_THROTTLED_STATUS = 429;
+    int DEFAULT_AUDIT_BUFFER_SIZE = 8192;
+    int DEFAULT_AUDIT_MAX_FILE_BYTES = 100 * 1024 * 1024;
+    int DEFAULT_AUDIT_MAX_FILES = 10;
+    String DEFAULT_AUDIT_OVERFLOW = "drop";
+    boolean DEFAULT_JMX = true;
+    int DEFAULT_SESSION_TOKEN_TTL_SECONDS = 0;
+    String DEFAULT_SESSION_TOKEN_TRANSPORT = "cookie";
+    String DEFAULT_SESSION_TOKEN_NAME = "PAM-Session";
+    int DEFAULT_SESSION_TOKEN_KEY_ROTATION_SECONDS = 3600;
+    boolean DEFAULT_COALESCE_AUTHENTICATIONS = false;
+    boolean DEFAULT_USER_PRINCIPAL = false;
+    int DEFAULT_USER_PRINCIPAL_CACHE_SIZE = 1024;
+    int DEFAULT_USER_PRINCIPAL_TTL_SECONDS = 300;
+    boolean DEFAULT_WATCH_ACCOUNTS = false;
+    String DEFAULT_WATCHED_FILES = "/etc/passwd,/etc/shadow,/etc/group";
+    int DEFAULT_WATCH_DEBOUNCE_MILLIS = 1000;
+    int DEFAULT_ASYNC_THREADS = 16;
+    int DEFAULT_ASYNC_QUEUE_SIZE = 256;
+    boolean DEFAULT_ASYNC_VIRTUAL_THREADS = false;
+}
@@ -0,0 +1,25 @@
+package com.carmatechnologies.servlet;
+
+/**
+ * HTTP request to authenticate, as seen by {@link PamAuthEngine}, independently of the server it was received by, e.g.
+ * a servlet container, or an event loop based server. Values are only read when needed, e.g. the Authorization header
+ * is not read for requests carrying a valid session token.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+public interface PamAuthRequest {
+    /**
+     * @return the value of the provided header, or null if the request does not have it.
+     */
+    String header(String name);
+
+    /**
+     * @return the value of the provided cookie, or null if the request does not have it.
+     */
+    String cookie(String name);
+
+    /**
+     * @return the IP address of the client, or null if unknown.
+     */
+    String remoteAddress();
+}
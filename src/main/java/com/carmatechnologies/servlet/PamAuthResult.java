@@ -0,0 +1,96 @@
+package com.carmatechnologies.servlet;
+
+import org.jvnet.libpam.UnixUser;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Result of the authentication of a {@link PamAuthRequest} by {@link PamAuthEngine}, along with what to respond with:
+ * either the status and headers to reject the request with, or the headers and session token cookie to add to the
+ * response of an authenticated request.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+public final class PamAuthResult {
+    private static final int SC_OK = 200;
+
+    private final AuthResult result;
+    private final int status;
+    private final Map<String, String> headers;
+    private final UnixUserPrincipal principal;
+    private final String sessionCookie;
+
+    private PamAuthResult(final AuthResult result, final int status, final Map<String, String> headers, final UnixUserPrincipal principal, final String sessionCookie) {
+        this.result = result;
+        this.status = status;
+        this.headers = headers;
+        this.principal = principal;
+        this.sessionCookie = sessionCookie;
+    }
+
+    /**
+     * @param headers unmodifiable headers to reject the request with, typically shared by all rejected requests.
+     */
+    static PamAuthResult rejected(final AuthResult result, final int status, final Map<String, String> headers) {
+        return new PamAuthResult(result, status, headers, null, null);
+    }
+
+    /**
+     * @param principal     the user's principal, or null if {@link PamAuthParameters#USER_PRINCIPAL} is disabled.
+     * @param sessionHeader name of the header to issue the provided session token in, or null to issue it as a cookie.
+     * @param sessionToken  the session token to issue, or null if none should be.
+     */
+    static PamAuthResult authenticated(final AuthResult result, final UnixUserPrincipal principal, final String sessionHeader, final String sessionToken) {
+        if ((sessionToken == null) || (sessionHeader == null)) {
+            return new PamAuthResult(result, SC_OK, Collections.<String, String>emptyMap(), principal, sessionToken);
+        }
+        return new PamAuthResult(result, SC_OK, Collections.singletonMap(sessionHeader, sessionToken), principal, null);
+    }
+
+    public boolean isAuthenticated() {
+        return result.outcome() == AuthOutcome.AUTHENTICATED;
+    }
+
+    /**
+     * @return the user authenticated, or null if not authenticated.
+     */
+    public UnixUser user() {
+        return result.user();
+    }
+
+    /**
+     * @return the principal of the user authenticated, or null if not authenticated, or if
+     * {@link PamAuthParameters#USER_PRINCIPAL} is disabled.
+     */
+    public UnixUserPrincipal principal() {
+        return principal;
+    }
+
+    /**
+     * @return the HTTP status to reject the request with, i.e. 401, 429 or 503, or 200 if it was authenticated.
+     */
+    public int status() {
+        return status;
+    }
+
+    /**
+     * @return the unmodifiable headers to add to the response, e.g. WWW-Authenticate or Retry-After for rejected
+     * requests, or the session token header for authenticated ones.
+     */
+    public Map<String, String> headers() {
+        return headers;
+    }
+
+    /**
+     * @return the session token to issue as an HTTP-only cookie named {@link PamAuthEngine#sessionTokenName()}, expiring
+     * after {@link PamAuthEngine#sessionTokenTtlSeconds()}, or null if none should be issued.
+     */
+    public String sessionCookie() {
+        return sessionCookie;
+    }
+
+    AuthResult result() {
+        return result;
+    }
+}
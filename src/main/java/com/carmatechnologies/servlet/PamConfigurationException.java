@@ -0,0 +1,19 @@
+package com.carmatechnologies.servlet;
+
+/**
+ * Thrown when {@link PamAuthEngine} cannot be created from the provided parameters, e.g. because one of them is invalid,
+ * or because PAM workers could not be started.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+public class PamConfigurationException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public PamConfigurationException(final String message) {
+        super(message);
+    }
+
+    public PamConfigurationException(final String message, final Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,226 @@
+package com.carmatechnologies.servlet;
+
+import org.jvnet.libpam.PAM;
+import org.jvnet.libpam.PAMException;
+import org.jvnet.libpam.UnixUser;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Pool of PAM handles for a given PAM service, so that requests do not each pay for a native pam_start/pam_end pair.
+ * - Handles are borrowed by one thread at a time, and borrowing never blocks: a new handle is created whenever no idle
+ *   handle is available.
+ * - At most maxSize idle handles are retained, and minSize of these are created upfront by {@link #start()}.
+ *   Once maxSize handles are idle, the least recently released one is disposed to make space for the next, so that
+ *   handles kept for users who no longer authenticate do not prevent other users' handles from being pooled.
+ *   A maxSize of 0 disables pooling: handles are then created and disposed for every authentication.
+ * - A PAM handle is a transaction for a single user, and PAM modules may keep per-handle state, e.g. via pam_set_data,
+ *   PAM_USER, or failure counters. libpam4j cannot reset a handle, hence a handle which authenticated a user is only
+ *   ever reused for the same user, as if the user authenticated again within the same transaction. Handles created
+ *   upfront, which did not authenticate anyone yet, are used for any user. This is safe with module stacks which
+ *   support repeated pam_authenticate calls on the same handle, e.g. pam_unix or pam_sss, and pooling should otherwise
+ *   be left disabled.
+ * - Handles are validated on borrow: handles older than maxAge, or created before the service's configuration file,
+ *   /etc/pam.d/[service], last changed, are disposed, so that changes to the PAM configuration are picked up. The
+ *   configuration file is checked once per borrow, and handles are released without checking it again.
+ * - Handles released after a PAM error are disposed rather than recycled, as they may have been left in a bad state.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+final class PamPool implements Authenticator {
+    private static final String PAM_CONFIGURATION_DIRECTORY = "/etc/pam.d";
+
+    private final String service;
+    private final Function<String, PAM> pamFactory;
+    private final int minSize;
+    private final long maxAgeNanos;
+    private final LongSupplier nanoClock;
+    private final LongSupplier configurationVersion;
+    private final BlockingDeque<Handle> idle;
+    private volatile boolean closed = false;
+
+    PamPool(final String service, final Function<String, PAM> pamFactory, final int minSize, final int maxSize, final long maxAgeSeconds) {
+        this(service, pamFactory, minSize, maxSize, maxAgeSeconds, System::nanoTime, configurationVersion(service));
+    }
+
+    /**
+     * @param configurationVersion returns a value which changes whenever the PAM service's configuration does.
+     */
+    PamPool(final String service, final Function<String, PAM> pamFactory, final int minSize, final int maxSize, final long maxAgeSeconds, final LongSupplier nanoClock,
+            final LongSupplier configurationVersion) {
+        if (service == null) {
+            throw new NullPointerException("Please provide a non-null PAM service.");
+        }
+        if (pamFactory == null) {
+            throw new NullPointerException("Please provide a non-null PAM factory.");
+        }
+        if ((minSize < 0) || (maxSize < minSize)) {
+            throw new IllegalArgumentException("Please provide pool sizes such that 0 <= minSize <= maxSize.");
+        }
+        if (maxAgeSeconds <= 0) {
+            throw new IllegalArgumentException("Please provide a strictly positive maximum age.");
+        }
+        if (nanoClock == null) {
+            throw new NullPointerException("Please provide a non-null clock.");
+        }
+        if (configurationVersion == null) {
+            throw new NullPointerException("Please provide a non-null configuration version.");
+        }
+        this.service = service;
+        this.pamFactory = pamFactory;
+        this.minSize = minSize;
+        this.maxAgeNanos = SECONDS.toNanos(maxAgeSeconds);
+        this.nanoClock = nanoClock;
+        this.configurationVersion = configurationVersion;
+        this.idle = (maxSize == 0) ? null : new LinkedBlockingDeque<>(maxSize);
+    }
+
+    /**
+     * @return the last modification time of the provided service's configuration file, or 0 if it cannot be read, in
+     * which case PAM falls back to its default configuration.
+     */
+    private static LongSupplier configurationVersion(final String service) {
+        final Path file = Paths.get(PAM_CONFIGURATION_DIRECTORY, service);
+        return () -> {
+            try {
+                return Files.getLastModifiedTime(file).toMillis();
+            } catch (final IOException e) {
+                return 0;
+            }
+        };
+    }
+
+    /**
+     * Creates the minimum number of idle handles.
+     */
+    void start() {
+        final long version = configurationVersion.getAsLong();
+        for (int i = 0; i < minSize; ++i) {
+            release(newHandle(version), true);
+        }
+    }
+
+    /**
+     * Authenticates the provided user with a borrowed handle, released afterwards.
+     */
+    @Override
+    public UnixUser authenticate(final String username, final String password) throws PAMException {
+        final Handle handle = borrow(username);
+        boolean healthy = false;
+        try {
+            final UnixUser user = handle.pam.authenticate(username, password);
+            handle.username = username;
+            healthy = true;
+            return user;
+        } finally {
+            release(handle, healthy);
+        }
+    }
+
+    /**
+     * @return a PAM handle for exclusive use by the calling thread, to authenticate the provided user, which must then
+     * be given back via {@link #release(Handle, boolean)}.
+     */
+    Handle borrow(final String username) {
+        // Read the configuration's version first, so that a change made while a handle is created invalidates it:
+        final long version = configurationVersion.getAsLong();
+        if (idle != null) {
+            // Most recently released handles first:
+            for (final Handle handle : idle) {
+                final boolean valid = isValid(handle, version);
+                if ((valid && !handle.canAuthenticate(username)) || !idle.remove(handle)) {
+                    continue; // Either kept for another user, or taken by another thread first.
+                }
+                if (valid) {
+                    return handle;
+                }
+                handle.pam.dispose();
+            }
+        }
+        return newHandle(version);
+    }
+
+    /**
+     * @param handle  the handle previously borrowed.
+     * @param healthy false if the handle was used in a failed PAM call, and should therefore not be reused.
+     */
+    void release(final Handle handle, final boolean healthy) {
+        if (closed || !healthy || (idle == null) || isExpired(handle)) {
+            handle.pam.dispose();
+            return;
+        }
+        while (!idle.offerFirst(handle)) {
+            // Full: evict the least recently released handle, rather than keep handles of users gone for good.
+            final Handle evicted = idle.pollLast();
+            if (evicted != null) {
+                evicted.pam.dispose();
+            }
+        }
+        if (closed && idle.remove(handle)) {
+            // Raced with close(), which may not have seen this handle:
+            handle.pam.dispose();
+        }
+    }
+
+    /**
+     * Disposes all idle handles. Handles currently borrowed are disposed when released.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (idle != null) {
+            Handle handle;
+            while ((handle = idle.pollFirst()) != null) {
+                handle.pam.dispose();
+            }
+        }
+    }
+
+    int idleSize() {
+        return (idle == null) ? 0 : idle.size();
+    }
+
+    private Handle newHandle(final long configurationVersion) {
+        return new Handle(pamFactory.apply(service), nanoClock.getAsLong(), configurationVersion);
+    }
+
+    private boolean isValid(final Handle handle, final long configurationVersion) {
+        return !isExpired(handle) && (handle.configurationVersion == configurationVersion);
+    }
+
+    private boolean isExpired(final Handle handle) {
+        return (nanoClock.getAsLong() - handle.createdNanos) >= maxAgeNanos;
+    }
+
+    static final class Handle {
+        private final PAM pam;
+        private final long createdNanos;
+        private final long configurationVersion;
+        // User this handle authenticated, if any, set before the handle is released, hence published to the next
+        // borrower by the pool's deque:
+        private String username;
+
+        private Handle(final PAM pam, final long createdNanos, final long configurationVersion) {
+            this.pam = pam;
+            this.createdNanos = createdNanos;
+            this.configurationVersion = configurationVersion;
+        }
+
+        PAM pam() {
+            return pam;
+        }
+
+        private boolean canAuthenticate(final String user) {
+            return (username == null) || username.equals(user);
+        }
+    }
+}
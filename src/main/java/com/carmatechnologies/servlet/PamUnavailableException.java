@@ -0,0 +1,18 @@
+package com.carmatechnologies.servlet;
+
+import org.jvnet.libpam.PAMException;
+
+/**
+ * Thrown when PAM could not tell whether a user is authenticated, e.g. because it did not respond in time, or because
+ * its helper process crashed, as opposed to when it rejected the user's credentials. Only the former counts towards
+ * opening {@link CircuitBreaker}.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+final class PamUnavailableException extends PAMException {
+    private static final long serialVersionUID = 1L;
+
+    PamUnavailableException(final String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,64 @@
+package com.carmatechnologies.servlet;
+
+import org.jvnet.libpam.PAM;
+import org.jvnet.libpam.PAMException;
+import org.jvnet.libpam.UnixUser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Helper process authenticating users via the native PAM library on behalf of {@link PamWorkers}, so that PAM modules
+ * which are not thread-safe, hang, or crash, do not affect the servlet container's JVM.
+ * Reads requests from its standard input, and writes responses to its standard output, see also:
+ * {@link PamWorkerProtocol}. Requests are processed one at a time, in order, and the process exits once its standard
+ * input is closed.
+ * Usage: java -cp [classpath] com.carmatechnologies.servlet.PamWorker [PAM service]
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+public final class PamWorker {
+    private static final int BUFFER_BYTES = 8 * 1024;
+
+    private PamWorker() {
+        // Process entry point only, do NOT instantiate.
+    }
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: java -cp [classpath] " + PamWorker.class.getName() + " [PAM service]");
+            System.exit(2);
+        }
+        final String service = args[0];
+        // Standard output carries responses only, hence anything else printed goes to standard error instead:
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), BUFFER_BYTES));
+        System.setOut(System.err);
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(FileDescriptor.in), BUFFER_BYTES));
+        PamWorkerProtocol.Request request;
+        while ((request = PamWorkerProtocol.readRequest(in)) != null) {
+            try {
+                PamWorkerProtocol.writeSuccess(out, request.id, authenticate(service, request.username, request.password));
+            } catch (final PAMException | RuntimeException e) {
+                PamWorkerProtocol.writeFailure(out, request.id, String.valueOf(e.getMessage()));
+            }
+            // Flush every response, rather than hold it until the next request is processed, as the caller times requests
+            // out from the time the previous response was received:
+            out.flush();
+        }
+    }
+
+    private static UnixUser authenticate(final String service, final String username, final String password) throws PAMException {
+        final PAM pam = new PAM(service);
+        try {
+            return pam.authenticate(username, password);
+        } finally {
+            pam.dispose();
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.carmatechnologies.servlet;
+
+import org.jvnet.libpam.UnixUser;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Binary framing of the messages exchanged between {@link PamWorkers} and {@link PamWorker} processes, over the
+ * workers' standard input and output. All integers are big-endian.
+ * - Frame:    length (int32, excluding itself), then the message.
+ * - Request:  id (int64), username (string), password (string).
+ * - Response: id (int64), status (int8), then either, on {@link #SUCCESS}: username, GECOS, home directory, shell
+ *             (strings), UID, GID (int32), number of groups (uint16) and groups (strings); or, on {@link #FAILURE}:
+ *             the PAM error message (string).
+ * - String:   length in bytes (uint16, {@link #NULL} for null), then UTF-8 bytes.
+ * Responses carry their request's id, so that a worker may be sent several requests without waiting for responses.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+final class PamWorkerProtocol {
+    static final byte SUCCESS = 0;
+    static final byte FAILURE = 1;
+    static final int MAX_FRAME_BYTES = 1 << 20;
+
+    private static final int NULL = 0xFFFF;
+    private static final int MAX_STRING_BYTES = NULL - 1;
+    private static final byte ZERO = 0;
+    private static final Charset UTF_8 = Charset.forName("UTF-8"); // UTF-8: eight-bit UCS Transformation Format.
+
+    private PamWorkerProtocol() {
+        // Pure utility class, do NOT instantiate.
+    }
+
+    static void writeRequest(final DataOutputStream out, final long id, final String username, final String password) throws IOException {
+        final byte[] usernameBytes = utf8(username);
+        final byte[] passwordBytes = utf8(password);
+        try {
+            out.writeInt(8 + stringLength(usernameBytes) + stringLength(passwordBytes));
+            out.writeLong(id);
+            writeString(out, usernameBytes);
+            writeString(out, passwordBytes);
+        } finally {
+            // Do not leave passwords lying around in memory for longer than necessary:
+            if (passwordBytes != null) {
+                Arrays.fill(passwordBytes, ZERO);
+            }
+        }
+    }
+
+    /**
+     * @return the next request, or null if the input was closed.
+     */
+    static Request readRequest(final DataInputStream in) throws IOException {
+        final ByteBuffer frame = readFrame(in);
+        if (frame == null) {
+            return null;
+        }
+        try {
+            final long id = frame.getLong();
+            final String username = readString(frame);
+            final String password = readString(frame);
+            return new Request(id, username, password);
+        } catch (final BufferUnderflowException e) {
+            throw new IOException("Malformed PAM worker request", e);
+        } finally {
+            Arrays.fill(frame.array(), ZERO);
+        }
+    }
+
+    static void writeSuccess(final DataOutputStream out, final long id, final UnixUser user) throws IOException {
+        final byte[] username = utf8(user.getUserName());
+        final byte[] gecos = utf8(user.getGecos());
+        final byte[] dir = utf8(user.getDir());
+        final byte[] shell = utf8(user.getShell());
+        final Set<String> groups = (user.getGroups() == null) ? Collections.<String>emptySet() : user.getGroups();
+        final byte[][] groupNames = new byte[Math.min(groups.size(), MAX_STRING_BYTES)][];
+        int length = 8 + 1 + stringLength(username) + stringLength(gecos) + stringLength(dir) + stringLength(shell) + 4 + 4 + 2;
+        int i = 0;
+        for (final String group : groups) {
+            if (i == groupNames.length) {
+                break;
+            }
+            groupNames[i] = utf8(group);
+            length += stringLength(groupNames[i++]);
+        }
+        out.writeInt(length);
+        out.writeLong(id);
+        out.writeByte(SUCCESS);
+        writeString(out, username);
+        writeString(out, gecos);
+        writeString(out, dir);
+        writeString(out, shell);
+        out.writeInt(user.getUID());
+        out.writeInt(user.getGID());
+        out.writeShort(groupNames.length);
+        for (final byte[] group : groupNames) {
+            writeString(out, group);
+        }
+    }
+
+    static void writeFailure(final DataOutputStream out, final long id, final String message) throws IOException {
+        final byte[] messageBytes = utf8(message);
+        out.writeInt(8 + 1 + stringLength(messageBytes));
+        out.writeLong(id);
+        out.writeByte(FAILURE);
+        writeString(out, messageBytes);
+    }
+
+    /**
+     * @return the next response, or null if the input was closed.
+     */
+    static Response readResponse(final DataInputStream in) throws IOException {
+        final ByteBuffer frame = readFrame(in);
+        if (frame == null) {
+            return null;
+        }
+        try {
+            final long id = frame.getLong();
+            final byte status = frame.get();
+            if (status == FAILURE) {
+                return new Response(id, null, readString(frame));
+            }
+            if (status != SUCCESS) {
+                throw new IOException("Unknown PAM worker response status: " + status);
+            }
+            final String username = readString(frame);
+            final String gecos = readString(frame);
+            final String dir = readString(frame);
+            final String shell = readString(frame);
+            final int uid = frame.getInt();
+            final int gid = frame.getInt();
+            final int groupCount = frame.getShort() & NULL;
+            final Set<String> groups = new HashSet<>(groupCount * 2);
+            for (int i = 0; i < groupCount; ++i) {
+                groups.add(readString(frame));
+            }
+            return new Response(id, UnixUsers.newUser(username, gecos, dir, shell, uid, gid, groups), null);
+        } catch (final BufferUnderflowException e) {
+            throw new IOException("Malformed PAM worker response", e);
+        }
+    }
+
+    private static ByteBuffer readFrame(final DataInputStream in) throws IOException {
+        final int length;
+        try {
+            length = in.readInt();
+        } catch (final EOFException e) {
+            return null;
+        }
+        if ((length < 0) || (length > MAX_FRAME_BYTES)) {
+            throw new IOException("Invalid PAM worker frame length: " + length);
+        }
+        final byte[] frame = new byte[length];
+        in.readFully(frame);
+        return ByteBuffer.wrap(frame);
+    }
+
+    private static byte[] utf8(final String value) {
+        if (value == null) {
+            return null;
+        }
+        final byte[] bytes = value.getBytes(UTF_8);
+        return (bytes.length <= MAX_STRING_BYTES) ? bytes : Arrays.copyOf(bytes, MAX_STRING_BYTES);
+    }
+
+    private static int stringLength(final byte[] bytes) {
+        return 2 + ((bytes == null) ? 0 : bytes.length);
+    }
+
+    private static void writeString(final DataOutputStream out, final byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeShort(NULL);
+        } else {
+            out.writeShort(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(final ByteBuffer frame) {
+        final int length = frame.getShort() & NULL;
+        if (length == NULL) {
+            return null;
+        }
+        if (length > frame.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        final String value = new String(frame.array(), frame.position(), length, UTF_8);
+        frame.position(frame.position() + length);
+        return value;
+    }
+
+    static final class Request {
+        final long id;
+        final String username;
+        final String password;
+
+        private Request(final long id, final String username, final String password) {
+            this.id = id;
+            this.username = username;
+            this.password = password;
+        }
+    }
+
+    static final class Response {
+        final long id;
+        /**
+         * Authenticated user, or null if authentication failed.
+         */
+        final UnixUser user;
+        final String message;
+
+        private Response(final long id, final UnixUser user, final String message) {
+            this.id = id;
+            this.user = user;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,422 @@
+package com.carmatechnologies.servlet;
+
+import com.sun.jna.Native;
+import org.jvnet.libpam.PAM;
+import org.jvnet.libpam.PAMException;
+import org.jvnet.libpam.UnixUser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.logging.Level.SEVERE;
+
+/**
+ * Authenticates users out-of-process, via a pool of long-lived {@link PamWorker} helper processes, rather than via the
+ * native PAM library within the servlet container's JVM. This isolates the container from PAM modules which are not
+ * thread-safe, serialise calls internally, hang, or crash.
+ * - Requests are sent to the worker with the fewest requests in flight, over its standard input, and responses are
+ *   read from its standard output by a dedicated thread, see also: {@link PamWorkerProtocol}. Requests are pipelined:
+ *   up to the queue size may be in flight on the same worker, and responses are matched to requests by id. Requests
+ *   beyond the queue size of all workers fail with a {@link PamUnavailableException}.
+ * - Each worker authenticates one request at a time, in order, hence several workers, e.g. one per core, authenticate
+ *   in parallel.
+ * - Workers which exit are restarted on their next use, at most once per {@link #RESTART_BACKOFF_MILLIS}. Workers
+ *   which take longer than the timeout to authenticate their current request, as opposed to the time this request
+ *   waited behind others, are considered hung, and killed: this request fails with a {@link PamUnavailableException},
+ *   and requests queued behind it, which the worker never started, are sent again to another worker.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+final class PamWorkers implements Authenticator {
+    static final long RESTART_BACKOFF_MILLIS = SECONDS.toMillis(1);
+
+    private static final Logger logger = Logger.getLogger(PamWorkers.class.getSimpleName());
+    private static final int BUFFER_BYTES = 8 * 1024;
+    private static final long MIN_WAIT_NANOS = MILLISECONDS.toNanos(1);
+
+    private final List<String> command;
+    private final int queueSize;
+    private final long timeoutMillis;
+    private final LongSupplier nanoClock;
+    private final Slot[] slots;
+    private final AtomicLong ids = new AtomicLong();
+    private volatile boolean closed = false;
+
+    /**
+     * @param command       command starting a worker process, see also: {@link #defaultCommand(String)}.
+     * @param size          number of worker processes.
+     * @param queueSize     maximum number of requests in flight on each worker.
+     * @param timeoutMillis time after which a worker which did not respond to the request it is processing is
+     *                      considered hung.
+     */
+    PamWorkers(final List<String> command, final int size, final int queueSize, final long timeoutMillis) {
+        this(command, size, queueSize, timeoutMillis, System::nanoTime);
+    }
+
+    /**
+     * @param nanoClock clock restarts are backed off with. Timeouts are always measured with {@link System#nanoTime()}.
+     */
+    PamWorkers(final List<String> command, final int size, final int queueSize, final long timeoutMillis, final LongSupplier nanoClock) {
+        if ((command == null) || command.isEmpty()) {
+            throw new IllegalArgumentException("Please provide a non-empty PAM worker command.");
+        }
+        if (size <= 0) {
+            throw new IllegalArgumentException("Please provide a strictly positive number of PAM workers.");
+        }
+        if (queueSize <= 0) {
+            throw new IllegalArgumentException("Please provide a strictly positive PAM worker queue size.");
+        }
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("Please provide a strictly positive PAM worker timeout.");
+        }
+        if (nanoClock == null) {
+            throw new NullPointerException("Please provide a non-null clock.");
+        }
+        this.command = new ArrayList<>(command);
+        this.queueSize = queueSize;
+        this.timeoutMillis = timeoutMillis;
+        this.nanoClock = nanoClock;
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; ++i) {
+            slots[i] = new Slot(i);
+        }
+    }
+
+    /**
+     * @return the command starting a {@link PamWorker} for the provided service, with the same Java runtime as this
+     * JVM, and a classpath made of this library and its dependencies.
+     */
+    static List<String> defaultCommand(final String service) {
+        final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        final String classpath = String.join(File.pathSeparator, new LinkedHashSet<>(Arrays.asList(
+                location(PamWorker.class), location(PAM.class), location(Native.class))));
+        return Arrays.asList(java, "-cp", classpath, PamWorker.class.getName(), service);
+    }
+
+    private static String location(final Class<?> clazz) {
+        try {
+            return new File(clazz.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+        } catch (final Exception e) {
+            throw new IllegalStateException("Failed to locate " + clazz.getName() + "'s classpath entry", e);
+        }
+    }
+
+    /**
+     * Starts all workers upfront, so that the first requests do not pay for starting them.
+     */
+    void start() throws IOException {
+        for (final Slot slot : slots) {
+            slot.start();
+        }
+    }
+
+    @Override
+    public UnixUser authenticate(final String username, final String password) throws PAMException {
+        for (int attempt = 0; ; ++attempt) {
+            if (closed) {
+                throw new PamUnavailableException("PAM workers are closed");
+            }
+            final Connection connection = select();
+            final CompletableFuture<PamWorkerProtocol.Response> response = connection.send(ids, username, password, queueSize);
+            final PamWorkerProtocol.Response result;
+            try {
+                result = await(connection, response);
+            } catch (final ExecutionException e) {
+                if (e.getCause() instanceof PamUnavailableException) {
+                    throw (PamUnavailableException) e.getCause();
+                }
+                if ((e.getCause() instanceof NotStartedException) && (attempt < slots.length)) {
+                    // The worker exited before it started this request, hence it is safe to send it to another worker:
+                    continue;
+                }
+                throw new PamUnavailableException("PAM worker failed: " + e.getCause().getMessage());
+            }
+            if (result.user == null) {
+                throw new PAMException(result.message);
+            }
+            return result.user;
+        }
+    }
+
+    /**
+     * Waits for the provided response, until the worker has been processing the same request, be it this one or the one
+     * this one is queued behind, for longer than the timeout, in which case the worker is killed.
+     */
+    private PamWorkerProtocol.Response await(final Connection connection, final CompletableFuture<PamWorkerProtocol.Response> response) throws PAMException, ExecutionException {
+        final long timeoutNanos = MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            while (true) {
+                try {
+                    return response.get(Math.max(connection.remainingNanos(timeoutNanos), MIN_WAIT_NANOS), NANOSECONDS);
+                } catch (final TimeoutException e) {
+                    connection.killIfHung(timeoutNanos, timeoutMillis);
+                }
+            }
+        } catch (final InterruptedException e) {
+            // The request is left pending, as the worker will still process it, and requests behind it wait for it:
+            Thread.currentThread().interrupt();
+            throw new PamUnavailableException("Interrupted while waiting for PAM worker");
+        }
+    }
+
+    /**
+     * @return the live worker with the fewest requests in flight, below the queue size, restarting workers which exited
+     * if due.
+     */
+    private Connection select() throws PAMException {
+        Connection best = null;
+        boolean busy = false;
+        for (final Slot slot : slots) {
+            final Connection connection = slot.live();
+            if (connection == null) {
+                continue;
+            }
+            final int pending = connection.pending.size();
+            if (pending >= queueSize) {
+                busy = true;
+            } else if ((best == null) || (pending < best.pending.size())) {
+                best = connection;
+                if (pending == 0) {
+                    break;
+                }
+            }
+        }
+        if (best == null) {
+            throw new PamUnavailableException(busy ? "All PAM workers are busy" : "No PAM worker available");
+        }
+        return best;
+    }
+
+    /**
+     * @return the number of workers currently running.
+     */
+    int liveWorkers() {
+        int live = 0;
+        for (final Slot slot : slots) {
+            final Connection connection = slot.connection;
+            if ((connection != null) && connection.alive) {
+                ++live;
+            }
+        }
+        return live;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (final Slot slot : slots) {
+            slot.close();
+        }
+    }
+
+    /**
+     * Position in the pool, holding the current worker process, if any.
+     */
+    private final class Slot {
+        private final int index;
+        private volatile Connection connection;
+        private long startedNanos;
+
+        private Slot(final int index) {
+            this.index = index;
+        }
+
+        private synchronized void start() throws IOException {
+            startedNanos = nanoClock.getAsLong();
+            final Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            connection = new Connection(index, process);
+        }
+
+        /**
+         * @return the running worker, or null if it exited and cannot be restarted yet.
+         */
+        private Connection live() {
+            final Connection current = connection;
+            if ((current != null) && current.alive) {
+                return current;
+            }
+            synchronized (this) {
+                if ((connection != null) && connection.alive) {
+                    return connection;
+                }
+                if (closed || ((connection != null) && ((nanoClock.getAsLong() - startedNanos) < MILLISECONDS.toNanos(RESTART_BACKOFF_MILLIS)))) {
+                    return null;
+                }
+                try {
+                    if (connection != null) {
+                        logger.warning(format("Restarting PAM worker [%d].", index));
+                    }
+                    start();
+                    return connection;
+                } catch (final IOException e) {
+                    logger.log(SEVERE, format("Failed to start PAM worker [%d]: %s", index, e.getMessage()), e);
+                    return null;
+                }
+            }
+        }
+
+        private synchronized void close() {
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * A running worker process, and the requests in flight on it, in the order they were sent, hence processed in.
+     */
+    private static final class Connection {
+        private final int slot;
+        private final Process process;
+        private final DataOutputStream out;
+        private final ConcurrentSkipListMap<Long, CompletableFuture<PamWorkerProtocol.Response>> pending = new ConcurrentSkipListMap<>();
+        // Time the worker started processing the oldest pending request, i.e. the time it was sent to an idle worker,
+        // or the time the response to the previous request was received:
+        private volatile long busySinceNanos;
+        private volatile boolean alive = true;
+        private volatile boolean hung = false;
+
+        private Connection(final int slot, final Process process) {
+            this.slot = slot;
+            this.process = process;
+            this.out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream(), BUFFER_BYTES));
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(process.getInputStream(), BUFFER_BYTES));
+            final Thread reader = new Thread(() -> read(in), "pam-worker-reader-" + slot);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private CompletableFuture<PamWorkerProtocol.Response> send(final AtomicLong ids, final String username, final String password, final int queueSize) throws PAMException {
+            final CompletableFuture<PamWorkerProtocol.Response> response = new CompletableFuture<>();
+            long id = 0;
+            try {
+                synchronized (out) {
+                    if (pending.size() >= queueSize) {
+                        throw new PamUnavailableException("All PAM workers are busy");
+                    }
+                    // Ids are allocated while holding the lock, so that pending requests are ordered as they are sent:
+                    id = ids.incrementAndGet();
+                    if (pending.isEmpty()) {
+                        busySinceNanos = System.nanoTime();
+                    }
+                    pending.put(id, response);
+                    PamWorkerProtocol.writeRequest(out, id, username, password);
+                    out.flush();
+                }
+            } catch (final IOException e) {
+                pending.remove(id);
+                kill();
+                throw new PamUnavailableException("Failed to send request to PAM worker: " + e.getMessage());
+            }
+            if (!alive) {
+                // Raced with the worker exiting, after it failed pending requests:
+                pending.remove(id);
+                throw new PamUnavailableException("PAM worker exited");
+            }
+            return response;
+        }
+
+        /**
+         * @return the time left before the request the worker is processing times out.
+         */
+        private long remainingNanos(final long timeoutNanos) {
+            return busySinceNanos + timeoutNanos - System.nanoTime();
+        }
+
+        /**
+         * Kills the worker if it has been processing its current request for longer than the timeout, failing this
+         * request only: requests queued behind it then fail with a {@link NotStartedException}.
+         */
+        private synchronized void killIfHung(final long timeoutNanos, final long timeoutMillis) {
+            // Read the oldest request before the time it started, as the reader thread updates them in reverse order:
+            final Map.Entry<Long, CompletableFuture<PamWorkerProtocol.Response>> current = pending.firstEntry();
+            if (!alive || (current == null) || (remainingNanos(timeoutNanos) > 0)) {
+                return;
+            }
+            if (pending.remove(current.getKey(), current.getValue())) {
+                logger.severe(format("PAM worker [%d] did not respond within %d ms, killing it.", slot, timeoutMillis));
+                hung = true;
+                kill();
+                current.getValue().completeExceptionally(new PamUnavailableException(format("PAM worker did not respond within %d ms", timeoutMillis)));
+            }
+        }
+
+        private void read(final DataInputStream in) {
+            try {
+                PamWorkerProtocol.Response response;
+                while ((response = PamWorkerProtocol.readResponse(in)) != null) {
+                    // The worker starts processing the next request as soon as it responded to the previous one:
+                    busySinceNanos = System.nanoTime();
+                    final CompletableFuture<PamWorkerProtocol.Response> request = pending.remove(response.id);
+                    if (request != null) {
+                        request.complete(response);
+                    }
+                }
+            } catch (final IOException e) {
+                if (alive) {
+                    logger.log(SEVERE, format("Failed to read from PAM worker [%d]: %s", slot, e.getMessage()), e);
+                }
+            } finally {
+                alive = false;
+                process.destroyForcibly();
+                // Only the oldest pending request may have been started by the worker, unless it was the one which hung
+                // and already failed, hence the others can safely be retried:
+                boolean started = !hung;
+                Map.Entry<Long, CompletableFuture<PamWorkerProtocol.Response>> request;
+                while ((request = pending.pollFirstEntry()) != null) {
+                    request.getValue().completeExceptionally(started ? new IOException("PAM worker exited") : new NotStartedException());
+                    started = false;
+                }
+            }
+        }
+
+        private void kill() {
+            alive = false;
+            process.destroyForcibly();
+        }
+
+        /**
+         * Closes the worker's standard input, so that it exits once done with the requests it already received.
+         */
+        private void close() {
+            try {
+                synchronized (out) {
+                    out.close();
+                }
+            } catch (final IOException e) {
+                kill();
+            }
+        }
+    }
+
+    /**
+     * Thrown for requests a worker which exited never started processing.
+     */
+    private static final class NotStartedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private NotStartedException() {
+            super("PAM worker exited before processing request");
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.carmatechnologies.servlet;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * {@link HttpServletRequest} to authenticate, as seen by {@link PamAuthEngine}.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+final class ServletAuthRequest implements PamAuthRequest {
+    private final HttpServletRequest request;
+
+    ServletAuthRequest(final HttpServletRequest request) {
+        this.request = request;
+    }
+
+    @Override
+    public String header(final String name) {
+        return request.getHeader(name);
+    }
+
+    @Override
+    public String cookie(final String name) {
+        final Cookie[] cookies = request.getCookies();
+        if (cookies != null) {
+            for (final Cookie cookie : cookies) {
+                if (name.equals(cookie.getName())) {
+                    return cookie.getValue();
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String remoteAddress() {
+        return request.getRemoteAddr();
+    }
+}
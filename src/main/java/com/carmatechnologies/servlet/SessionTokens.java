@@ -0,0 +1,355 @@
+package com.carmatechnologies.servlet;
+
+import org.jvnet.libpam.UnixUser;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.LongSupplier;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Issues and verifies compact, HMAC-SHA256-signed and expiring session tokens, so that requests from a client which
+ * already authenticated skip PAM (and the credential cache's key derivation) until the token expires.
+ * A token is: base64url(payload) + '.' + base64url(HMAC-SHA256(key, audience + payload)), where the payload carries a
+ * version, the signing key's identifier, the expiry time, and the user's name, UID, GID and groups. Nothing secret is
+ * stored in tokens, but clients can read their content.
+ * The audience, e.g. the PAM service, is signed but not sent, so that instances sharing keys but authenticating users
+ * differently, e.g. via different PAM services, reject each other's tokens.
+ * Keys are either provided, in which case the first one signs tokens and all of them verify tokens, so that keys can
+ * be rotated by prepending a new key and removing the oldest one once tokens it signed have expired; or randomly
+ * generated and periodically rotated, in which case tokens do not survive restarts, and are not shared across
+ * instances.
+ * Signatures are compared in constant time.
+ * Tokens cannot be recalled from clients, hence, when accounts change, the change is remembered until all tokens issued
+ * before it expire, and tokens issued before it to the users it affects are rejected.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+final class SessionTokens {
+    /**
+     * How session tokens are exchanged with clients.
+     */
+    enum Transport {
+        /**
+         * Issued as an HTTP-only cookie, and sent back by clients as such.
+         */
+        COOKIE,
+
+        /**
+         * Issued as a response header, and sent back by clients in the same request header.
+         */
+        HEADER
+    }
+
+    static final int MIN_KEY_LENGTH_BYTES = 16;
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final String KEY_ID_ALGORITHM = "SHA-256";
+    private static final int GENERATED_KEY_LENGTH_BYTES = 32;
+    private static final int MAC_LENGTH_BYTES = 32;
+    private static final byte VERSION = 2;
+    private static final char SEPARATOR = '.';
+    private static final int MAX_STRING_BYTES = 0xFFFF;
+    private static final Charset UTF_8 = Charset.forName("UTF-8"); // UTF-8: eight-bit UCS Transformation Format.
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+    private static final ThreadLocal<byte[]> MAC_BUFFER = ThreadLocal.withInitial(() -> new byte[MAC_LENGTH_BYTES]);
+
+    private final byte[] audience;
+    private final long ttlMillis;
+    private final long rotationMillis;
+    private final int generatedKeysKept;
+    private final LongSupplier clock;
+    private final SecureRandom random = new SecureRandom();
+    private volatile SigningKey[] keys;
+    private volatile long rotatedAtMillis;
+    private volatile Revocation[] revocations = new Revocation[0];
+
+    /**
+     * @param audience        what tokens are valid for, e.g. the PAM service: tokens issued for another audience are
+     *                        rejected.
+     * @param keys            secrets, the first of which signs tokens, or an empty list to use randomly generated
+     *                        secrets, rotated every rotationSeconds.
+     * @param ttlSeconds      time after which tokens expire, after which clients must authenticate via PAM again.
+     * @param rotationSeconds time after which a randomly generated secret is replaced. Previous secrets keep verifying
+     *                        tokens until these expire.
+     */
+    SessionTokens(final String audience, final List<byte[]> keys, final long ttlSeconds, final long rotationSeconds) {
+        this(audience, keys, ttlSeconds, rotationSeconds, System::currentTimeMillis);
+    }
+
+    SessionTokens(final String audience, final List<byte[]> keys, final long ttlSeconds, final long rotationSeconds, final LongSupplier clock) {
+        if (audience == null) {
+            throw new NullPointerException("Please provide a non-null audience.");
+        }
+        if (keys == null) {
+            throw new NullPointerException("Please provide a non-null list of keys.");
+        }
+        if (ttlSeconds <= 0) {
+            throw new IllegalArgumentException("Please provide a strictly positive time-to-live.");
+        }
+        if (keys.isEmpty() && (rotationSeconds <= 0)) {
+            throw new IllegalArgumentException("Please provide a strictly positive key rotation period.");
+        }
+        if (clock == null) {
+            throw new NullPointerException("Please provide a non-null clock.");
+        }
+        try {
+            Mac.getInstance(ALGORITHM);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available on this JVM.", e);
+        }
+        // Length-prefixed, so that no audience and payload can be signed as another:
+        final byte[] name = utf8(audience);
+        this.audience = ByteBuffer.allocate(2 + name.length).putShort((short) name.length).put(name).array();
+        this.ttlMillis = SECONDS.toMillis(ttlSeconds);
+        this.clock = clock;
+        if (keys.isEmpty()) {
+            this.rotationMillis = SECONDS.toMillis(rotationSeconds);
+            // Keep enough previous keys to verify all tokens which have not expired yet:
+            this.generatedKeysKept = (int) Math.min(Integer.MAX_VALUE - 1, ((ttlSeconds + rotationSeconds - 1) / rotationSeconds)) + 1;
+            this.keys = new SigningKey[]{generateKey()};
+        } else {
+            this.rotationMillis = 0;
+            this.generatedKeysKept = 0;
+            final List<SigningKey> signingKeys = new ArrayList<>(keys.size());
+            for (final byte[] key : keys) {
+                if ((key == null) || (key.length < MIN_KEY_LENGTH_BYTES)) {
+                    throw new IllegalArgumentException(String.format("Please provide keys of at least %d bytes.", MIN_KEY_LENGTH_BYTES));
+                }
+                signingKeys.add(new SigningKey(key));
+            }
+            this.keys = signingKeys.toArray(new SigningKey[signingKeys.size()]);
+        }
+        this.rotatedAtMillis = clock.getAsLong();
+    }
+
+    /**
+     * @return a token for the provided user, valid until the configured time-to-live elapses.
+     */
+    String issue(final UnixUser user) {
+        final long now = clock.getAsLong();
+        rotateIfDue(now);
+        final SigningKey key = keys[0];
+        final byte[] username = utf8(user.getUserName());
+        final Set<String> groups = (user.getGroups() == null) ? Collections.<String>emptySet() : user.getGroups();
+        final List<byte[]> groupNames = new ArrayList<>(groups.size());
+        int length = 1 + 4 + 8 + 4 + 4 + 2 + username.length + 2;
+        for (final String group : groups) {
+            final byte[] name = utf8(group);
+            groupNames.add(name);
+            length += 2 + name.length;
+        }
+        final ByteBuffer payload = ByteBuffer.allocate(length);
+        payload.put(VERSION).putInt(key.id).putLong(now + ttlMillis).putInt(user.getUID()).putInt(user.getGID());
+        putString(payload, username);
+        payload.putShort((short) Math.min(groupNames.size(), MAX_STRING_BYTES));
+        for (int i = 0; (i < groupNames.size()) && (i < MAX_STRING_BYTES); ++i) {
+            putString(payload, groupNames.get(i));
+        }
+        final byte[] bytes = Arrays.copyOf(payload.array(), payload.position());
+        final Mac mac = key.mac();
+        mac.update(audience);
+        return ENCODER.encodeToString(bytes) + SEPARATOR + ENCODER.encodeToString(mac.doFinal(bytes));
+    }
+
+    /**
+     * @return the user the provided token was issued for, or null if the token is malformed, was not signed by any of
+     * the current keys, was issued for another audience, or has expired.
+     */
+    UnixUser verify(final String token) {
+        final int separator = token.indexOf(SEPARATOR);
+        if ((separator <= 0) || (separator != token.lastIndexOf(SEPARATOR))) {
+            return null;
+        }
+        final byte[] payload;
+        final byte[] signature;
+        try {
+            payload = DECODER.decode(token.substring(0, separator));
+            signature = DECODER.decode(token.substring(separator + 1));
+        } catch (final IllegalArgumentException e) {
+            return null;
+        }
+        if ((payload.length < (1 + 4 + 8)) || (payload[0] != VERSION) || (signature.length != MAC_LENGTH_BYTES)) {
+            return null;
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(payload);
+        buffer.get(); // Version.
+        final SigningKey key = find(buffer.getInt());
+        if (key == null) {
+            return null;
+        }
+        final byte[] expected = MAC_BUFFER.get();
+        try {
+            final Mac mac = key.mac();
+            mac.update(audience);
+            mac.update(payload);
+            mac.doFinal(expected, 0);
+        } catch (final ShortBufferException e) {
+            throw new IllegalStateException("Failed to sign session token", e);
+        }
+        if (!MessageDigest.isEqual(expected, signature)) {
+            return null;
+        }
+        // Signature is valid, hence the payload was issued by this class, and can be trusted:
+        final long expiresAtMillis = buffer.getLong();
+        if (clock.getAsLong() >= expiresAtMillis) {
+            return null;
+        }
+        try {
+            final int uid = buffer.getInt();
+            final int gid = buffer.getInt();
+            final String username = getString(buffer);
+            final int groupCount = buffer.getShort() & MAX_STRING_BYTES;
+            final Set<String> groups = new HashSet<>(groupCount * 2);
+            for (int i = 0; i < groupCount; ++i) {
+                groups.add(getString(buffer));
+            }
+            if (isRevoked(expiresAtMillis - ttlMillis, username, gid, groups)) {
+                return null;
+            }
+            // Session tokens only carry what is relevant to authorisation, hence no GECOS, home directory nor shell:
+            return UnixUsers.newUser(username, null, null, null, uid, gid, groups);
+        } catch (final BufferUnderflowException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Rejects tokens issued, until now, to the users affected by the provided change.
+     */
+    synchronized void revoke(final AccountChange change) {
+        final long now = clock.getAsLong();
+        final List<Revocation> current = new ArrayList<>(revocations.length + 1);
+        for (final Revocation revocation : revocations) {
+            // Tokens issued before this revocation have all expired by now:
+            if ((now - revocation.atMillis) < ttlMillis) {
+                current.add(revocation);
+            }
+        }
+        current.add(new Revocation(now, change));
+        revocations = current.toArray(new Revocation[current.size()]);
+    }
+
+    private boolean isRevoked(final long issuedAtMillis, final String username, final int gid, final Set<String> groups) {
+        for (final Revocation revocation : revocations) {
+            if ((issuedAtMillis <= revocation.atMillis) && revocation.change.affects(username, gid, groups)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private SigningKey find(final int id) {
+        for (final SigningKey key : keys) {
+            if (key.id == id) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    private void rotateIfDue(final long now) {
+        if ((rotationMillis == 0) || ((now - rotatedAtMillis) < rotationMillis)) {
+            return;
+        }
+        synchronized (this) {
+            if ((now - rotatedAtMillis) < rotationMillis) {
+                return; // Another thread just rotated keys.
+            }
+            final SigningKey[] current = keys;
+            final SigningKey[] rotated = new SigningKey[Math.min(current.length + 1, generatedKeysKept)];
+            rotated[0] = generateKey();
+            System.arraycopy(current, 0, rotated, 1, rotated.length - 1);
+            keys = rotated;
+            rotatedAtMillis = now;
+        }
+    }
+
+    private SigningKey generateKey() {
+        final byte[] secret = new byte[GENERATED_KEY_LENGTH_BYTES];
+        random.nextBytes(secret);
+        return new SigningKey(secret);
+    }
+
+    private static byte[] utf8(final String value) {
+        final byte[] bytes = value.getBytes(UTF_8);
+        return (bytes.length <= MAX_STRING_BYTES) ? bytes : Arrays.copyOf(bytes, MAX_STRING_BYTES);
+    }
+
+    private static void putString(final ByteBuffer buffer, final byte[] bytes) {
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(final ByteBuffer buffer) {
+        final int length = buffer.getShort() & MAX_STRING_BYTES;
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        final String value = new String(buffer.array(), buffer.position(), length, UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    private static final class Revocation {
+        private final long atMillis;
+        private final AccountChange change;
+
+        private Revocation(final long atMillis, final AccountChange change) {
+            this.atMillis = atMillis;
+            this.change = change;
+        }
+    }
+
+    private static final class SigningKey {
+        private final int id;
+        private final ThreadLocal<Mac> macs;
+
+        private SigningKey(final byte[] secret) {
+            final SecretKeySpec spec = new SecretKeySpec(secret, ALGORITHM);
+            this.id = id(secret);
+            // Mac instances are not thread-safe, but are costly to create and initialise:
+            this.macs = ThreadLocal.withInitial(() -> {
+                try {
+                    final Mac mac = Mac.getInstance(ALGORITHM);
+                    mac.init(spec);
+                    return mac;
+                } catch (final GeneralSecurityException e) {
+                    throw new IllegalStateException("Failed to initialise " + ALGORITHM, e);
+                }
+            });
+        }
+
+        private Mac mac() {
+            return macs.get();
+        }
+
+        /**
+         * @return an identifier for the provided secret, which does not reveal it.
+         */
+        private static int id(final byte[] secret) {
+            try {
+                return ByteBuffer.wrap(MessageDigest.getInstance(KEY_ID_ALGORITHM).digest(secret)).getInt();
+            } catch (final NoSuchAlgorithmException e) {
+                throw new IllegalStateException(KEY_ID_ALGORITHM + " is not available on this JVM.", e);
+            }
+        }
+    }
+}
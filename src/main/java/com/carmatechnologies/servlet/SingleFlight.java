@@ -0,0 +1,141 @@
+package com.carmatechnologies.servlet;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent authentications of the same credentials for the same PAM service, so that e.g. the dozens of
+ * parallel requests a browser sends when opening a page result in a single PAM authentication, rather than dozens,
+ * which would multiply the load on PAM's backend, and could trip lockout modules like pam_faillock.
+ * The first request for a set of credentials (the leader) authenticates via PAM, and concurrent requests for the same
+ * credentials (followers) wait for, and share, its result. Entries are removed as soon as the leader completes, hence
+ * results are never reused by later requests (see also: {@link CredentialCache} for this).
+ * Coordination relies on a {@link ConcurrentHashMap} of futures, without any global lock.
+ * Passwords are never stored: entries are keyed on an HMAC-SHA256 digest of the PAM service, username and password,
+ * with a random key generated for each instance, which is much cheaper to compute than {@link CredentialCache}'s
+ * PBKDF2 digest, since entries only live for as long as a PAM authentication.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+final class SingleFlight {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int KEY_LENGTH_BYTES = 32;
+    private static final byte SEPARATOR = '\0';
+    private static final Charset UTF_8 = Charset.forName("UTF-8"); // UTF-8: eight-bit UCS Transformation Format.
+
+    private final ConcurrentHashMap<Key, CompletableFuture<AuthResult>> inFlight = new ConcurrentHashMap<>();
+    private final ThreadLocal<Mac> macs;
+
+    SingleFlight() {
+        final byte[] secret = new byte[KEY_LENGTH_BYTES];
+        new SecureRandom().nextBytes(secret);
+        final SecretKeySpec spec = new SecretKeySpec(secret, ALGORITHM);
+        try {
+            Mac.getInstance(ALGORITHM);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available on this JVM.", e);
+        }
+        // Mac instances are not thread-safe, but are costly to create and initialise:
+        this.macs = ThreadLocal.withInitial(() -> {
+            try {
+                final Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(spec);
+                return mac;
+            } catch (final GeneralSecurityException e) {
+                throw new IllegalStateException("Failed to initialise " + ALGORITHM, e);
+            }
+        });
+    }
+
+    /**
+     * @return the keyed digest of the provided credentials, identifying identical authentications.
+     */
+    Key key(final String service, final String username, final String password) {
+        final Mac mac = macs.get();
+        mac.update(service.getBytes(UTF_8));
+        mac.update(SEPARATOR);
+        mac.update(username.getBytes(UTF_8));
+        mac.update(SEPARATOR);
+        final byte[] passwordBytes = password.getBytes(UTF_8);
+        mac.update(passwordBytes);
+        Arrays.fill(passwordBytes, SEPARATOR);
+        return new Key(mac.doFinal());
+    }
+
+    /**
+     * Authenticates via the provided call, unless an identical authentication is already in flight, in which case
+     * this waits for it to complete, and returns its result, as {@link AuthResult#coalesced()}.
+     * Exceptions thrown by the call are rethrown to all waiting threads.
+     */
+    AuthResult authenticate(final Key key, final Supplier<AuthResult> call) {
+        final CompletableFuture<AuthResult> leader = new CompletableFuture<>();
+        final CompletableFuture<AuthResult> existing = inFlight.putIfAbsent(key, leader);
+        if (existing != null) {
+            return follow(existing);
+        }
+        try {
+            final AuthResult result = call.get();
+            leader.complete(result);
+            return result;
+        } catch (final RuntimeException | Error e) {
+            leader.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, leader);
+        }
+    }
+
+    private static AuthResult follow(final CompletableFuture<AuthResult> leader) {
+        try {
+            return leader.join().coalesced();
+        } catch (final CompletionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of distinct authentications currently in flight.
+     */
+    int size() {
+        return inFlight.size();
+    }
+
+    /**
+     * Keyed digest of a service, username and password.
+     */
+    static final class Key {
+        private final byte[] digest;
+        private final int hashCode;
+
+        private Key(final byte[] digest) {
+            this.digest = digest;
+            this.hashCode = Arrays.hashCode(digest);
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            return (this == other) || ((other instanceof Key) && Arrays.equals(digest, ((Key) other).digest));
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.carmatechnologies.servlet;
+
+import org.jvnet.libpam.PAMException;
+import org.jvnet.libpam.UnixUser;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Puts a deadline on authentications by another {@link Authenticator}, typically {@link PamPool}, whose native calls
+ * cannot be interrupted: calls run on a dedicated thread, which the caller stops waiting for after the timeout.
+ * A call which timed out keeps its thread until PAM eventually returns. At most maxThreads calls may be in progress,
+ * beyond which calls fail immediately, so that threads stuck in PAM cannot pile up indefinitely.
+ * Calls which timed out, or could not be started, throw {@link PamUnavailableException}.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+final class TimeLimitedAuthenticator implements Authenticator {
+    private static final String THREAD_NAME_PREFIX = "pam-call-";
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private final Authenticator delegate;
+    private final long timeoutMillis;
+    private final ThreadPoolExecutor executor;
+
+    TimeLimitedAuthenticator(final Authenticator delegate, final long timeoutMillis, final int maxThreads) {
+        if (delegate == null) {
+            throw new NullPointerException("Please provide a non-null authenticator.");
+        }
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("Please provide a strictly positive timeout.");
+        }
+        if (maxThreads <= 0) {
+            throw new IllegalArgumentException("Please provide a strictly positive number of threads.");
+        }
+        this.delegate = delegate;
+        this.timeoutMillis = timeoutMillis;
+        final AtomicInteger threads = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(0, maxThreads, KEEP_ALIVE_SECONDS, SECONDS, new SynchronousQueue<>(), (runnable) -> {
+            final Thread thread = new Thread(runnable, THREAD_NAME_PREFIX + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public UnixUser authenticate(final String username, final String password) throws PAMException {
+        final Future<UnixUser> user;
+        try {
+            user = executor.submit(() -> delegate.authenticate(username, password));
+        } catch (final RejectedExecutionException e) {
+            throw new PamUnavailableException(format("Too many PAM calls in progress (limit: [%d])", executor.getMaximumPoolSize()));
+        }
+        try {
+            return user.get(timeoutMillis, MILLISECONDS);
+        } catch (final TimeoutException e) {
+            user.cancel(true);
+            throw new PamUnavailableException(format("PAM did not respond within %d ms", timeoutMillis));
+        } catch (final InterruptedException e) {
+            user.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new PamUnavailableException("Interrupted while waiting for PAM");
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof PAMException) {
+                throw (PAMException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    int activeCalls() {
+        return executor.getActiveCount();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        delegate.close();
+    }
+}
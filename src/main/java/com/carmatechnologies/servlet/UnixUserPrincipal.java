@@ -0,0 +1,94 @@
+package com.carmatechnologies.servlet;
+
+import java.security.Principal;
+import java.util.Set;
+
+/**
+ * User authenticated by {@link PamAuthEngine}, as returned by {@link PamAuthResult#principal()}, and, behind
+ * {@link PamAuthFilter}, by {@link javax.servlet.http.HttpServletRequest#getUserPrincipal()}, when
+ * {@link PamAuthParameters#USER_PRINCIPAL} is enabled, with the UID, GID and groups PAM provided.
+ * Instances are immutable, and shared by all requests from the same user.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+public final class UnixUserPrincipal implements Principal {
+    private static final int BITS_PER_WORD_SHIFT = 6; // 64 bits per long.
+
+    private final String name;
+    private final int uid;
+    private final int gid;
+    private final Set<String> groups;
+    private final UserPrincipals.GroupIds groupIds;
+    private final long[] membership;
+
+    /**
+     * @param groups     unmodifiable set of the user's (interned) group names.
+     * @param membership bit set of the identifiers of the user's groups.
+     */
+    UnixUserPrincipal(final String name, final int uid, final int gid, final Set<String> groups, final UserPrincipals.GroupIds groupIds, final long[] membership) {
+        this.name = name;
+        this.uid = uid;
+        this.gid = gid;
+        this.groups = groups;
+        this.groupIds = groupIds;
+        this.membership = membership;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    public int getUid() {
+        return uid;
+    }
+
+    public int getGid() {
+        return gid;
+    }
+
+    /**
+     * @return the names of the groups the user belongs to, which cannot be modified.
+     */
+    public Set<String> getGroups() {
+        return groups;
+    }
+
+    /**
+     * @return true if the user belongs to the provided group. This neither allocates nor depends on the number of
+     * groups the user belongs to.
+     */
+    public boolean isMemberOf(final String group) {
+        if (group == null) {
+            return false;
+        }
+        final int id = groupIds.find(group);
+        if (id < 0) {
+            return false;
+        }
+        final int word = id >>> BITS_PER_WORD_SHIFT;
+        return (word < membership.length) && ((membership[word] & (1L << id)) != 0);
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof UnixUserPrincipal)) {
+            return false;
+        }
+        final UnixUserPrincipal that = (UnixUserPrincipal) other;
+        return (uid == that.uid) && (gid == that.gid) && name.equals(that.name) && groups.equals(that.groups);
+    }
+
+    @Override
+    public int hashCode() {
+        return (31 * name.hashCode()) + uid;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[name=%s, uid=%d, gid=%d, groups=%s]", UnixUserPrincipal.class.getSimpleName(), name, uid, gid, groups);
+    }
+}
@@ -0,0 +1,27 @@
+package com.carmatechnologies.servlet;
+
+import org.jvnet.libpam.UnixUser;
+
+import java.util.Set;
+
+/**
+ * Creates {@link UnixUser}s from details obtained elsewhere than from the native PAM library, e.g. from a session
+ * token, or from a PAM worker process, as {@link UnixUser}'s public constructors look users up natively.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+final class UnixUsers {
+    private UnixUsers() {
+        // Pure utility class, do NOT instantiate.
+    }
+
+    static UnixUser newUser(final String username, final String gecos, final String dir, final String shell, final int uid, final int gid, final Set<String> groups) {
+        return new DetachedUser(username, gecos, dir, shell, uid, gid, groups);
+    }
+
+    private static final class DetachedUser extends UnixUser {
+        private DetachedUser(final String username, final String gecos, final String dir, final String shell, final int uid, final int gid, final Set<String> groups) {
+            super(username, gecos, dir, shell, uid, gid, groups);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.carmatechnologies.servlet;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Set of servlet URL patterns, compiled once, so that matching a request's path neither allocates, nor depends on the
+ * number of patterns, but only on the path's length. Patterns follow the servlet specification's syntax:
+ * - exact: /health, matching only /health,
+ * - path prefix: /static/*, matching /static, and any path under /static/, but not /staticfiles,
+ * - extension: *.css, matching any path whose last segment ends with .css,
+ * - default: /, matching any path.
+ * Exact and path prefix patterns are stored in a trie walked from the start of the path, and extension patterns in a
+ * trie of reversed extensions, walked from the end of the path.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+final class UrlPatterns {
+    private static final char SLASH = '/';
+    private static final char DOT = '.';
+    private static final String PREFIX_SUFFIX = "/*";
+    private static final String EXTENSION_PREFIX = "*.";
+    private static final String DEFAULT = "/";
+
+    private final Node prefixes;
+    private final Node extensions;
+    private final boolean matchesAll;
+
+    private UrlPatterns(final Node prefixes, final Node extensions, final boolean matchesAll) {
+        this.prefixes = prefixes;
+        this.extensions = extensions;
+        this.matchesAll = matchesAll;
+    }
+
+    /**
+     * @param patterns servlet URL patterns, e.g. /health, /static/*, or *.css.
+     * @throws IllegalArgumentException if any of the provided patterns is invalid.
+     */
+    static UrlPatterns compile(final Iterable<String> patterns) {
+        final Builder prefixes = new Builder();
+        final Builder extensions = new Builder();
+        boolean matchesAll = false;
+        for (final String pattern : patterns) {
+            if (DEFAULT.equals(pattern)) {
+                matchesAll = true;
+            } else if (pattern.startsWith(EXTENSION_PREFIX)) {
+                final String extension = pattern.substring(EXTENSION_PREFIX.length());
+                if (extension.isEmpty() || (extension.indexOf(SLASH) >= 0) || (extension.indexOf('*') >= 0)) {
+                    throw new IllegalArgumentException("Invalid extension URL pattern: " + pattern);
+                }
+                extensions.add(new StringBuilder(extension).reverse()).exact = true;
+            } else if (pattern.startsWith(DEFAULT)) {
+                if (pattern.endsWith(PREFIX_SUFFIX)) {
+                    final String prefix = pattern.substring(0, pattern.length() - PREFIX_SUFFIX.length());
+                    if (prefix.indexOf('*') >= 0) {
+                        throw new IllegalArgumentException("Invalid path prefix URL pattern: " + pattern);
+                    }
+                    prefixes.add(prefix).prefix = true;
+                } else if (pattern.indexOf('*') >= 0) {
+                    throw new IllegalArgumentException("Invalid exact URL pattern: " + pattern);
+                } else {
+                    prefixes.add(pattern).exact = true;
+                }
+            } else {
+                throw new IllegalArgumentException("Invalid URL pattern: " + pattern + ". Please provide either /exact/path, /path/prefix/*, *.extension or /.");
+            }
+        }
+        return new UrlPatterns(prefixes.build(), extensions.build(), matchesAll);
+    }
+
+    /**
+     * @param servletPath as per {@link javax.servlet.http.HttpServletRequest#getServletPath()}, i.e. decoded and
+     *                    normalised by the container, or null.
+     * @param pathInfo    as per {@link javax.servlet.http.HttpServletRequest#getPathInfo()}, or null.
+     * @return true if the path made of the provided servlet path and path info matches any of the patterns.
+     */
+    boolean matches(final String servletPath, final String pathInfo) {
+        if (matchesAll) {
+            return true;
+        }
+        final String head = (servletPath == null) ? "" : servletPath;
+        final String tail = (pathInfo == null) ? "" : pathInfo;
+        final int length = head.length() + tail.length();
+        return matchesPrefix(head, tail, length) || matchesExtension(head, tail, length);
+    }
+
+    private boolean matchesPrefix(final String head, final String tail, final int length) {
+        Node node = prefixes;
+        for (int i = 0; ; ++i) {
+            if (node.prefix && ((i == length) || (charAt(head, tail, i) == SLASH))) {
+                return true;
+            }
+            if (i == length) {
+                return node.exact;
+            }
+            node = node.child(charAt(head, tail, i));
+            if (node == null) {
+                return false;
+            }
+        }
+    }
+
+    private boolean matchesExtension(final String head, final String tail, final int length) {
+        Node node = extensions;
+        for (int i = length - 1; i >= 0; --i) {
+            final char c = charAt(head, tail, i);
+            if (c == SLASH) {
+                return false;
+            }
+            if ((c == DOT) && node.exact) {
+                return true;
+            }
+            node = node.child(c);
+            if (node == null) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static char charAt(final String head, final String tail, final int i) {
+        return (i < head.length()) ? head.charAt(i) : tail.charAt(i - head.length());
+    }
+
+    /**
+     * Immutable trie node, whose children are looked up by binary search over their sorted keys.
+     */
+    private static final class Node {
+        private static final Node[] NO_CHILDREN = new Node[0];
+        private static final char[] NO_KEYS = new char[0];
+
+        private final char[] keys;
+        private final Node[] children;
+        private final boolean exact;
+        private final boolean prefix;
+
+        private Node(final char[] keys, final Node[] children, final boolean exact, final boolean prefix) {
+            this.keys = keys;
+            this.children = children;
+            this.exact = exact;
+            this.prefix = prefix;
+        }
+
+        private Node child(final char key) {
+            int low = 0;
+            int high = keys.length - 1;
+            while (low <= high) {
+                final int middle = (low + high) >>> 1;
+                final char candidate = keys[middle];
+                if (candidate < key) {
+                    low = middle + 1;
+                } else if (candidate > key) {
+                    high = middle - 1;
+                } else {
+                    return children[middle];
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Mutable trie node, only used while compiling patterns.
+     */
+    private static final class Builder {
+        private final Map<Character, Builder> children = new TreeMap<>();
+        private boolean exact;
+        private boolean prefix;
+
+        private Builder add(final CharSequence key) {
+            Builder node = this;
+            for (int i = 0; i < key.length(); ++i) {
+                node = node.children.computeIfAbsent(key.charAt(i), (c) -> new Builder());
+            }
+            return node;
+        }
+
+        private Node build() {
+            if (children.isEmpty()) {
+                return new Node(Node.NO_KEYS, Node.NO_CHILDREN, exact, prefix);
+            }
+            final char[] keys = new char[children.size()];
+            final Node[] nodes = new Node[children.size()];
+            int i = 0;
+            for (final Map.Entry<Character, Builder> child : children.entrySet()) {
+                keys[i] = child.getKey();
+                nodes[i++] = child.getValue().build();
+            }
+            return new Node(keys, nodes, exact, prefix);
+        }
+    }
+}
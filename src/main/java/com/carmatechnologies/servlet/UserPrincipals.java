@@ -0,0 +1,158 @@
+package com.carmatechnologies.servlet;
+
+import org.jvnet.libpam.UnixUser;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Cache of {@link UnixUserPrincipal}s, one per user, so that requests from the same user share the same immutable
+ * principal and precomputed group membership, rather than rebuilding these for every request.
+ * - Group names are interned, and assigned a small integer identifier, the first time any user is seen belonging to
+ *   them, hence each principal only stores a bit set of its groups' identifiers, and checking membership is a hash
+ *   lookup followed by a bit test.
+ * - A cached principal is reused as long as it has not expired, and PAM still reports the same UID, GID and groups for
+ *   the user. Otherwise, it is rebuilt.
+ * - Once the cache is full, expired principals are evicted, or, if none expired, the whole cache is cleared: this is
+ *   a cache of derived data, hence it is always safe to rebuild it.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+final class UserPrincipals {
+    private static final int BITS_PER_WORD = Long.SIZE;
+
+    private final int maxSize;
+    private final long ttlNanos;
+    private final LongSupplier nanoClock;
+    private final GroupIds groupIds = new GroupIds();
+    private final ConcurrentHashMap<String, CachedPrincipal> principals = new ConcurrentHashMap<>();
+
+    UserPrincipals(final int maxSize, final long ttlSeconds) {
+        this(maxSize, ttlSeconds, System::nanoTime);
+    }
+
+    UserPrincipals(final int maxSize, final long ttlSeconds, final LongSupplier nanoClock) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Please provide a strictly positive maximum cache size.");
+        }
+        if (ttlSeconds <= 0) {
+            throw new IllegalArgumentException("Please provide a strictly positive time-to-live.");
+        }
+        if (nanoClock == null) {
+            throw new NullPointerException("Please provide a non-null clock.");
+        }
+        this.maxSize = maxSize;
+        this.ttlNanos = SECONDS.toNanos(ttlSeconds);
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * @return the principal for the provided user, cached if it was recently built with the same details.
+     */
+    UnixUserPrincipal principal(final UnixUser user) {
+        final String name = user.getUserName();
+        final Set<String> groups = (user.getGroups() == null) ? Collections.<String>emptySet() : user.getGroups();
+        final long now = nanoClock.getAsLong();
+        final CachedPrincipal cached = principals.get(name);
+        if ((cached != null) && ((now - cached.createdNanos) < ttlNanos) && matches(cached.principal, user, groups)) {
+            return cached.principal;
+        }
+        final UnixUserPrincipal principal = build(name, user.getUID(), user.getGID(), groups);
+        if ((cached == null) && (principals.size() >= maxSize)) {
+            evict(now);
+        }
+        principals.put(name, new CachedPrincipal(principal, now));
+        return principal;
+    }
+
+    int size() {
+        return principals.size();
+    }
+
+    void clear() {
+        principals.clear();
+    }
+
+    /**
+     * Removes the principals of the users affected by the provided change.
+     */
+    void invalidate(final AccountChange change) {
+        principals.values().removeIf(cached -> change.affects(cached.principal.getName(), cached.principal.getGid(), cached.principal.getGroups()));
+    }
+
+    private static boolean matches(final UnixUserPrincipal principal, final UnixUser user, final Set<String> groups) {
+        return (principal.getUid() == user.getUID()) && (principal.getGid() == user.getGID()) && principal.getGroups().equals(groups);
+    }
+
+    private UnixUserPrincipal build(final String name, final int uid, final int gid, final Set<String> groups) {
+        final Set<String> interned = new HashSet<>(groups.size() * 2);
+        int maxId = -1;
+        final int[] ids = new int[groups.size()];
+        int i = 0;
+        for (final String group : groups) {
+            final Group interning = groupIds.intern(group);
+            interned.add(interning.name);
+            ids[i++] = interning.id;
+            maxId = Math.max(maxId, interning.id);
+        }
+        final long[] membership = new long[(maxId / BITS_PER_WORD) + 1];
+        for (final int id : ids) {
+            membership[id / BITS_PER_WORD] |= (1L << id);
+        }
+        return new UnixUserPrincipal(name, uid, gid, Collections.unmodifiableSet(interned), groupIds, membership);
+    }
+
+    private void evict(final long now) {
+        principals.values().removeIf(cached -> (now - cached.createdNanos) >= ttlNanos);
+        if (principals.size() >= maxSize) {
+            principals.clear();
+        }
+    }
+
+    /**
+     * Interned group names, and their identifiers.
+     */
+    static final class GroupIds {
+        private final ConcurrentHashMap<String, Group> groups = new ConcurrentHashMap<>();
+        private final AtomicInteger nextId = new AtomicInteger();
+
+        private Group intern(final String name) {
+            final Group group = groups.get(name);
+            return (group != null) ? group : groups.computeIfAbsent(name, key -> new Group(key, nextId.getAndIncrement()));
+        }
+
+        /**
+         * @return the identifier of the provided group, or -1 if no user was ever seen belonging to it.
+         */
+        int find(final String name) {
+            final Group group = groups.get(name);
+            return (group == null) ? -1 : group.id;
+        }
+    }
+
+    private static final class Group {
+        private final String name;
+        private final int id;
+
+        private Group(final String name, final int id) {
+            this.name = name;
+            this.id = id;
+        }
+    }
+
+    private static final class CachedPrincipal {
+        private final UnixUserPrincipal principal;
+        private final long createdNanos;
+
+        private CachedPrincipal(final UnixUserPrincipal principal, final long createdNanos) {
+            this.principal = principal;
+            this.createdNanos = createdNanos;
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package com.carmatechnologies.servlet;
+
+import org.jvnet.libpam.UnixUser;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import static java.lang.String.format;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.logging.Level.SEVERE;
+
+/**
+ * Snapshot of {@link CredentialCache}, written when the filter is destroyed, and restored after it is initialised, so
+ * that a restart does not make every client re-authenticate via PAM at once.
+ * Only what the cache already holds is written: its salt, the salted digests of credentials, when each entry was
+ * created and when it becomes useless, and the authenticated users, with their groups. Passwords are never written.
+ * The file is written with owner-only permissions, then atomically moved in place, and has the following binary
+ * layout, in big-endian order, strings being UTF-8 bytes prefixed by their uint16 length, 0xFFFF for null:
+ * - header: magic "PAMW", uint16 version, string PAM service, int32 digest iterations, uint8 salt length, salt,
+ *   int64 epoch millis written at, uint8 fingerprint length, fingerprint of the account files,
+ * - users: int32 count, then for each: string username, gecos, dir and shell, int32 UID, int32 GID, uint16 number of
+ *   groups, and each group's string,
+ * - entries, least recently used first: int32 count, then for each: uint8 digest length, digest, int32 user index,
+ *   int64 epoch millis created at, int64 epoch millis expires at,
+ * - trailer: HMAC-SHA256 of all the above.
+ * The file is memory-mapped when read, and ignored, with a warning, unless its MAC verifies with the configured key and
+ * it was written for the same service and digest iterations.
+ * Account files, e.g. /etc/shadow or /etc/pam.d/[service], may change while no process watches them, e.g. during a
+ * redeploy, hence the snapshot records their fingerprint, i.e. a SHA-256 digest of their paths, sizes and modification
+ * times, and is also ignored if any of them changed since it was written, rather than accept a changed password or a
+ * locked account.
+ *
+ * @author Marc CARRE (@marccarre / carre.marc@gmail.com)
+ */
+final class WarmStartSnapshot {
+    static final int VERSION = 2;
+
+    private static final Logger logger = Logger.getLogger(WarmStartSnapshot.class.getSimpleName());
+    private static final byte[] MAGIC = {'P', 'A', 'M', 'W'};
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final String FINGERPRINT_ALGORITHM = "SHA-256";
+    private static final long MISSING = -1;
+    private static final int MAC_LENGTH_BYTES = 32;
+    private static final int NULL = 0xFFFF;
+    private static final int MAX_STRING_BYTES = NULL - 1;
+    private static final int MAX_BYTE = 0xFF;
+    private static final Charset UTF_8 = Charset.forName("UTF-8"); // UTF-8: eight-bit UCS Transformation Format.
+    private static final String OWNER_ONLY = "rw-------";
+
+    private final Path file;
+    private final SecretKeySpec key;
+    private final String service;
+    private final List<Path> accountFiles;
+
+    /**
+     * @param key          secret key used to sign and verify snapshots, of at least
+     *                     {@link SessionTokens#MIN_KEY_LENGTH_BYTES}.
+     * @param accountFiles files which, if changed since the snapshot was written, make it ignored.
+     */
+    WarmStartSnapshot(final Path file, final byte[] key, final String service, final List<Path> accountFiles) {
+        if (file == null) {
+            throw new NullPointerException("Please provide a non-null snapshot file.");
+        }
+        if ((key == null) || (key.length < SessionTokens.MIN_KEY_LENGTH_BYTES)) {
+            throw new IllegalArgumentException(format("Please provide a snapshot key of at least %d bytes.", SessionTokens.MIN_KEY_LENGTH_BYTES));
+        }
+        if (service == null) {
+            throw new NullPointerException("Please provide a non-null PAM service.");
+        }
+        if (accountFiles == null) {
+            throw new NullPointerException("Please provide a non-null list of account files.");
+        }
+        try {
+            Mac.getInstance(ALGORITHM);
+            MessageDigest.getInstance(FINGERPRINT_ALGORITHM);
+        } catch (final GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " or " + FINGERPRINT_ALGORITHM + " is not available on this JVM.", e);
+        }
+        this.file = file;
+        this.key = new SecretKeySpec(key, ALGORITHM);
+        this.service = service;
+        this.accountFiles = Collections.unmodifiableList(new ArrayList<>(accountFiles));
+    }
+
+    /**
+     * @return the number of entries written.
+     */
+    int save(final CredentialCache cache) throws IOException {
+        final long nowMillis = System.currentTimeMillis();
+        final long nowNanos = cache.nanoTime();
+        final long retentionMillis = NANOSECONDS.toMillis(cache.retentionNanos());
+        final Map<UnixUser, Integer> userIndices = new IdentityHashMap<>();
+        final List<UnixUser> users = new ArrayList<>();
+        final ByteArrayOutputStream entryBytes = new ByteArrayOutputStream();
+        final DataOutputStream entries = new DataOutputStream(entryBytes);
+        final int[] count = {0};
+        final IOException[] error = {null};
+        cache.forEach((cacheKey, user, createdNanos) -> {
+            final long createdMillis = nowMillis - NANOSECONDS.toMillis(nowNanos - createdNanos);
+            final long expiresMillis = createdMillis + retentionMillis;
+            if ((expiresMillis <= nowMillis) || (error[0] != null)) {
+                return;
+            }
+            Integer index = userIndices.get(user);
+            if (index == null) {
+                index = users.size();
+                userIndices.put(user, index);
+                users.add(user);
+            }
+            try {
+                final byte[] digest = cacheKey.digest();
+                entries.writeByte(digest.length);
+                entries.write(digest);
+                entries.writeInt(index);
+                entries.writeLong(createdMillis);
+                entries.writeLong(expiresMillis);
+                ++count[0];
+            } catch (final IOException e) {
+                error[0] = e;
+            }
+        });
+        if (error[0] != null) {
+            throw error[0];
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(entryBytes.size() + (users.size() * 128) + 128);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.write(MAGIC);
+        out.writeShort(VERSION);
+        writeString(out, service);
+        out.writeInt(cache.iterations());
+        final byte[] salt = cache.salt();
+        out.writeByte(salt.length);
+        out.write(salt);
+        out.writeLong(nowMillis);
+        final byte[] fingerprint = fingerprint();
+        out.writeByte(fingerprint.length);
+        out.write(fingerprint);
+        out.writeInt(users.size());
+        for (final UnixUser user : users) {
+            writeUser(out, user);
+        }
+        out.writeInt(count[0]);
+        entryBytes.writeTo(out);
+        out.flush();
+        final byte[] body = bytes.toByteArray();
+        final byte[] mac = newMac().doFinal(body);
+
+        final Path directory = file.toAbsolutePath().getParent();
+        final Path temporary = FileSystems.getDefault().supportedFileAttributeViews().contains("posix")
+                ? Files.createTempFile(directory, file.getFileName().toString(), ".tmp", PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString(OWNER_ONLY)))
+                : Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, READ, WRITE)) {
+                final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, body.length + mac.length);
+                buffer.put(body).put(mac);
+                buffer.force();
+            }
+            Files.move(temporary, file, REPLACE_EXISTING, ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        logger.info(format("Saved %d PAM authentications to snapshot [%s].", count[0], file));
+        return count[0];
+    }
+
+    /**
+     * Restores the snapshot's entries into the provided, empty, cache, unless the snapshot is missing, was tampered
+     * with, or is incompatible with the cache.
+     *
+     * @return the number of entries restored, or -1 if the snapshot was ignored.
+     */
+    int load(final CredentialCache cache) {
+        final ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            final long size = channel.size();
+            if ((size < MAC_LENGTH_BYTES) || (size > Integer.MAX_VALUE)) {
+                return ignore("it has an invalid size: " + size);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (final NoSuchFileException e) {
+            logger.info(format("No PAM authentication snapshot [%s] to restore.", file));
+            return -1;
+        } catch (final IOException e) {
+            logger.log(SEVERE, format("Failed to read PAM authentication snapshot [%s]: %s", file, e.getMessage()), e);
+            return -1;
+        }
+        final int bodyLength = buffer.capacity() - MAC_LENGTH_BYTES;
+        final ByteBuffer body = (ByteBuffer) buffer.duplicate().limit(bodyLength);
+        final Mac mac = newMac();
+        mac.update(body.duplicate());
+        final byte[] expected = mac.doFinal();
+        final byte[] actual = new byte[MAC_LENGTH_BYTES];
+        ((ByteBuffer) buffer.duplicate().position(bodyLength)).get(actual);
+        if (!MessageDigest.isEqual(expected, actual)) {
+            return ignore("its MAC does not match, i.e. it was either tampered with or signed with another key");
+        }
+        try {
+            return restore(body, cache);
+        } catch (final BufferUnderflowException | IllegalArgumentException e) {
+            return ignore("it is malformed: " + e);
+        }
+    }
+
+    private int restore(final ByteBuffer in, final CredentialCache cache) {
+        final byte[] magic = new byte[MAGIC.length];
+        in.get(magic);
+        if (!MessageDigest.isEqual(magic, MAGIC)) {
+            return ignore("it is not a PAM authentication snapshot");
+        }
+        final int version = in.getShort() & NULL;
+        if (version != VERSION) {
+            return ignore(format("its version [%d] is not supported (expected: [%d])", version, VERSION));
+        }
+        final String snapshotService = readString(in);
+        if (!service.equals(snapshotService)) {
+            return ignore(format("it was written for service [%s] rather than [%s]", snapshotService, service));
+        }
+        final int iterations = in.getInt();
+        if (iterations != cache.iterations()) {
+            return ignore(format("its digests use %d iterations rather than %d", iterations, cache.iterations()));
+        }
+        final byte[] salt = new byte[in.get() & MAX_BYTE];
+        in.get(salt);
+        in.getLong(); // Written at, only for troubleshooting.
+        final byte[] fingerprint = new byte[in.get() & MAX_BYTE];
+        in.get(fingerprint);
+        if (!MessageDigest.isEqual(fingerprint, fingerprint())) {
+            return ignore("account files changed since it was written, and it may therefore hold revoked credentials");
+        }
+        final int userCount = in.getInt();
+        checkCount(userCount, in);
+        final UnixUser[] users = new UnixUser[userCount];
+        for (int i = 0; i < userCount; ++i) {
+            users[i] = readUser(in);
+        }
+        final int entryCount = in.getInt();
+        checkCount(entryCount, in);
+        // Parse all entries before touching the cache, so that a malformed snapshot leaves it untouched:
+        final CredentialCache.Key[] keys = new CredentialCache.Key[entryCount];
+        final UnixUser[] entryUsers = new UnixUser[entryCount];
+        final long[] ageNanos = new long[entryCount];
+        final long nowMillis = System.currentTimeMillis();
+        int restored = 0;
+        for (int i = 0; i < entryCount; ++i) {
+            final byte[] digest = new byte[in.get() & MAX_BYTE];
+            in.get(digest);
+            final int userIndex = in.getInt();
+            if ((userIndex < 0) || (userIndex >= userCount)) {
+                throw new IllegalArgumentException("Invalid user index: " + userIndex);
+            }
+            final long createdMillis = in.getLong();
+            final long expiresMillis = in.getLong();
+            if (expiresMillis > nowMillis) {
+                keys[restored] = new CredentialCache.Key(digest);
+                entryUsers[restored] = users[userIndex];
+                ageNanos[restored] = MILLISECONDS.toNanos(nowMillis - createdMillis);
+                ++restored;
+            }
+        }
+        if (in.hasRemaining()) {
+            throw new IllegalArgumentException(format("%d unexpected trailing bytes", in.remaining()));
+        }
+        cache.restoreSalt(salt);
+        for (int i = 0; i < restored; ++i) {
+            cache.restore(keys[i], entryUsers[i], ageNanos[i]);
+        }
+        logger.info(format("Restored %d PAM authentications from snapshot [%s].", restored, file));
+        return restored;
+    }
+
+    private int ignore(final String reason) {
+        logger.warning(format("Ignored PAM authentication snapshot [%s], as %s.", file, reason));
+        return -1;
+    }
+
+    /**
+     * @return a digest of the account files' paths, sizes and modification times, which only requires to be able to
+     * list their directories, e.g. not to read /etc/shadow.
+     */
+    private byte[] fingerprint() {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(FINGERPRINT_ALGORITHM);
+        } catch (final GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to initialise " + FINGERPRINT_ALGORITHM, e);
+        }
+        final ByteBuffer attributes = ByteBuffer.allocate(2 * 8);
+        for (final Path accountFile : accountFiles) {
+            digest.update(accountFile.toString().getBytes(UTF_8));
+            long size;
+            long modifiedMillis;
+            try {
+                final BasicFileAttributes basic = Files.readAttributes(accountFile, BasicFileAttributes.class);
+                size = basic.size();
+                modifiedMillis = basic.lastModifiedTime().toMillis();
+            } catch (final IOException e) {
+                size = MISSING;
+                modifiedMillis = MISSING;
+            }
+            attributes.clear();
+            attributes.putLong(size).putLong(modifiedMillis);
+            digest.update(attributes.array());
+        }
+        return digest.digest();
+    }
+
+    private Mac newMac() {
+        try {
+            final Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (final GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to initialise " + ALGORITHM, e);
+        }
+    }
+
+    private static void checkCount(final int count, final ByteBuffer in) {
+        // Each user or entry takes at least one byte, which bounds what a corrupted count may make us allocate:
+        if ((count < 0) || (count > in.remaining())) {
+            throw new IllegalArgumentException("Invalid count: " + count);
+        }
+    }
+
+    private static void writeUser(final DataOutputStream out, final UnixUser user) throws IOException {
+        writeString(out, user.getUserName());
+        writeString(out, user.getGecos());
+        writeString(out, user.getDir());
+        writeString(out, user.getShell());
+        out.writeInt(user.getUID());
+        out.writeInt(user.getGID());
+        final Set<String> groups = (user.getGroups() == null) ? Collections.<String>emptySet() : user.getGroups();
+        final int groupCount = Math.min(groups.size(), MAX_STRING_BYTES);
+        out.writeShort(groupCount);
+        int i = 0;
+        for (final String group : groups) {
+            if (i++ == groupCount) {
+                break;
+            }
+            writeString(out, group);
+        }
+    }
+
+    private static UnixUser readUser(final ByteBuffer in) {
+        final String username = readString(in);
+        final String gecos = readString(in);
+        final String dir = readString(in);
+        final String shell = readString(in);
+        final int uid = in.getInt();
+        final int gid = in.getInt();
+        final int groupCount = in.getShort() & NULL;
+        final Set<String> groups = new HashSet<>(groupCount * 2);
+        for (int i = 0; i < groupCount; ++i) {
+            groups.add(readString(in));
+        }
+        return UnixUsers.newUser(username, gecos, dir, shell, uid, gid, groups);
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        if (value == null) {
+            out.writeShort(NULL);
+            return;
+        }
+        final byte[] bytes = value.getBytes(UTF_8);
+        final int length = Math.min(bytes.length, MAX_STRING_BYTES);
+        out.writeShort(length);
+        out.write(bytes, 0, length);
+    }
+
+    private static String readString(final ByteBuffer in) {
+        final int length = in.getShort() & NULL;
+        if (length == NULL) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
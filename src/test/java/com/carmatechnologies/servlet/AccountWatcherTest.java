@@ -0,0 +1,146 @@
+package com.carmatechnologies.servlet;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class AccountWatcherTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8"); // UTF-8: eight-bit UCS Transformation Format.
+    private static final long DEBOUNCE_MILLIS = 100;
+    private static final String PASSWD = "luke_skywalker:x:1000:1000:Luke Skywalker:/home/luke:/bin/bash\n"
+            + "leia_organa:x:1001:1001:Leia Organa:/home/leia:/bin/zsh\n";
+    private static final String GROUP = "# Rebel Alliance\n"
+            + "jedi:x:2000:luke_skywalker\n"
+            + "rebels:x:2001:luke_skywalker,leia_organa\n";
+
+    private final BlockingQueue<AccountChange> changes = new LinkedBlockingQueue<>();
+    private AccountWatcher watcher;
+
+    @Rule
+    public final ExpectedException exception = ExpectedException.none();
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        if (watcher != null) {
+            watcher.close();
+        }
+    }
+
+    @Test
+    public void modifiedUserShouldBeTheOnlyOneAffected() throws IOException, InterruptedException {
+        final Path passwd = write("passwd", PASSWD);
+        watch(passwd);
+        write("passwd", PASSWD.replace("/bin/zsh", "/usr/sbin/nologin"));
+        final AccountChange change = nextChange();
+        assertThat(change.affects("leia_organa", 1001, null), is(true));
+        assertThat(change.affects("luke_skywalker", 1000, null), is(false));
+    }
+
+    @Test
+    public void addedAndRemovedUsersShouldBeAffected() throws IOException, InterruptedException {
+        final Path passwd = write("passwd", PASSWD);
+        watch(passwd);
+        write("passwd", "leia_organa:x:1001:1001:Leia Organa:/home/leia:/bin/zsh\nhan_solo:x:1002:1002::/home/han:/bin/sh\n");
+        final AccountChange change = nextChange();
+        assertThat(change.affects("luke_skywalker", 1000, null), is(true));
+        assertThat(change.affects("han_solo", 1002, null), is(true));
+        assertThat(change.affects("leia_organa", 1001, null), is(false));
+    }
+
+    @Test
+    public void modifiedGroupShouldAffectItsPreviousAndCurrentMembers() throws IOException, InterruptedException {
+        final Path group = write("group", GROUP);
+        watch(group);
+        write("group", GROUP.replace("jedi:x:2000:luke_skywalker", "jedi:x:2000:leia_organa"));
+        final AccountChange change = nextChange();
+        assertThat(change.affects("luke_skywalker", 1000, null), is(true));
+        assertThat(change.affects("leia_organa", 1001, null), is(true));
+        assertThat(change.affects("yoda", 2000, null), is(true)); // Primary group.
+        assertThat(change.affects("obi_wan", 1003, new HashSet<>(Collections.singletonList("jedi"))), is(true));
+        assertThat(change.affects("han_solo", 1002, new HashSet<>(Collections.singletonList("rebels"))), is(false));
+    }
+
+    @Test
+    public void commentsShouldBeIgnored() throws IOException, InterruptedException {
+        final Path group = write("group", GROUP);
+        watch(group);
+        write("group", GROUP.replace("# Rebel Alliance", "# Rebel Alliance, and friends"));
+        write("passwd", PASSWD); // Not watched, hence only observed to end the test.
+        assertThat(changes.poll(10 * DEBOUNCE_MILLIS, MILLISECONDS), is(nullValue()));
+    }
+
+    @Test
+    public void otherFilesShouldAffectAllAccounts() throws IOException, InterruptedException {
+        final Path pam = write("pam-servlet-filter", "auth required pam_unix.so\n");
+        watch(pam);
+        write("pam-servlet-filter", "auth required pam_deny.so\n");
+        assertThat(nextChange().affectsAll(), is(true));
+    }
+
+    @Test
+    public void createdFileShouldAffectAllAccounts() throws IOException, InterruptedException {
+        watch(folder.getRoot().toPath().resolve("passwd"));
+        write("passwd", PASSWD);
+        assertThat(nextChange().affectsAll(), is(true));
+    }
+
+    @Test
+    public void burstOfChangesShouldBeReportedOnce() throws IOException, InterruptedException {
+        final Path passwd = write("passwd", PASSWD);
+        watch(passwd);
+        final StringBuilder content = new StringBuilder(PASSWD);
+        for (int i = 0; i < 20; ++i) {
+            content.append("clone_").append(i).append(":x:").append(3000 + i).append(":3000::/home/clones:/bin/sh\n");
+            write("passwd", content.toString());
+            Thread.sleep(DEBOUNCE_MILLIS / 10);
+        }
+        final AccountChange change = nextChange();
+        assertThat(change.affects("clone_0", 3000, null), is(true));
+        assertThat(change.affects("clone_19", 3019, null), is(true));
+        assertThat(changes.poll(3 * DEBOUNCE_MILLIS, MILLISECONDS), is(nullValue()));
+    }
+
+    @Test
+    public void noFilesShouldThrowIllegalArgumentException() throws IOException {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("Please provide at least one file to watch.");
+        new AccountWatcher(Collections.<Path>emptyList(), DEBOUNCE_MILLIS, changes::add);
+    }
+
+    private void watch(final Path... files) throws IOException {
+        watcher = new AccountWatcher(Arrays.asList(files), DEBOUNCE_MILLIS, changes::add);
+        watcher.start();
+    }
+
+    private Path write(final String name, final String content) throws IOException {
+        return Files.write(folder.getRoot().toPath().resolve(name), content.getBytes(UTF_8));
+    }
+
+    private AccountChange nextChange() throws InterruptedException {
+        final AccountChange change = changes.poll(10, SECONDS);
+        assertThat(change, is(notNullValue()));
+        return change;
+    }
+}
@@ -0,0 +1,147 @@
+package com.carmatechnologies.servlet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.libpam.UnixUser;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AuditLogTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8"); // UTF-8: eight-bit UCS Transformation Format.
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void eventsShouldBeWrittenAsJsonLines() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("audit.log");
+        final AuditLog audit = new AuditLog(file, 16, 1024 * 1024, 1, AuditLog.Overflow.DROP);
+        audit.start();
+        final UnixUser user = mock(UnixUser.class);
+        when(user.getUID()).thenReturn(1000);
+        when(user.getGID()).thenReturn(100);
+        assertThat(audit.record(AuthResult.of(AuthEvent.PAM_SUCCESS, "luke_skywalker", user, MILLISECONDS.toNanos(42)), "127.0.0.1"), is(true));
+        assertThat(audit.record(AuthResult.of(AuthEvent.BLANK_HEADER), "127.0.0.2"), is(true));
+        audit.close();
+
+        final List<String> lines = Files.readAllLines(file, UTF_8);
+        assertThat(lines.size(), is(2));
+        assertThat(lines.get(0), containsString("\"ip\":\"127.0.0.1\",\"user\":\"luke_skywalker\",\"uid\":1000,\"gid\":100,\"event\":\"PAM_SUCCESS\",\"outcome\":\"AUTHENTICATED\",\"pamLatencyMicros\":42000}"));
+        assertThat(lines.get(1), containsString("\"ip\":\"127.0.0.2\",\"user\":null,\"event\":\"BLANK_HEADER\",\"outcome\":\"UNAUTHENTICATED\"}"));
+    }
+
+    @Test
+    public void stringsShouldBeEscaped() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("audit.log");
+        final AuditLog audit = new AuditLog(file, 16, 1024 * 1024, 1, AuditLog.Overflow.DROP);
+        audit.start();
+        audit.record(AuthResult.of(AuthEvent.PAM_FAILURE, "darth\"vader\\\n"), "127.0.0.1");
+        audit.close();
+        assertThat(Files.readAllLines(file, UTF_8).get(0), containsString("\"user\":\"darth\\\"vader\\\\\\u000a\""));
+    }
+
+    @Test
+    public void fileShouldBeRolledOverWhenFull() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("audit.log");
+        final AuditLog audit = new AuditLog(file, 16, 1, 2, AuditLog.Overflow.BLOCK);
+        audit.start();
+        for (int i = 0; i < 4; ++i) {
+            audit.record(AuthResult.of(AuthEvent.PAM_FAILURE, "user" + i), "127.0.0.1");
+            waitUntilWritten(file, "user" + i);
+        }
+        audit.close();
+        assertThat(Files.readAllLines(file, UTF_8).get(0), containsString("user3"));
+        assertThat(Files.readAllLines(file.resolveSibling("audit.log.1"), UTF_8).get(0), containsString("user2"));
+        assertThat(Files.readAllLines(file.resolveSibling("audit.log.2"), UTF_8).get(0), containsString("user1"));
+        assertThat(Files.exists(file.resolveSibling("audit.log.3")), is(false));
+    }
+
+    @Test(timeout = 10000)
+    public void failureToReopenTheFileAfterRollingItOverShouldKeepHistoryAndResumeWriting() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("audit.log");
+        final AtomicInteger opens = new AtomicInteger();
+        final AuditLog audit = new AuditLog(file, 16, 1, 2, AuditLog.Overflow.BLOCK, path -> {
+            if (opens.incrementAndGet() == 2) {
+                throw new IOException("Too many open files");
+            }
+            return AuditLog.openForAppend(path);
+        });
+        audit.start();
+        audit.record(AuthResult.of(AuthEvent.PAM_FAILURE, "user0"), "127.0.0.1");
+        waitUntilWritten(file, "user0");
+        audit.record(AuthResult.of(AuthEvent.PAM_FAILURE, "user1"), "127.0.0.1");
+        while (opens.get() < 2) {
+            Thread.yield();
+        }
+        for (int i = 2; i < 5; ++i) {
+            audit.record(AuthResult.of(AuthEvent.PAM_FAILURE, "user" + i), "127.0.0.1");
+            waitUntilWritten(file, "user" + i);
+        }
+        audit.close();
+        assertThat(Files.readAllLines(file, UTF_8).get(0), containsString("user4"));
+        assertThat(Files.readAllLines(file.resolveSibling("audit.log.1"), UTF_8).get(0), containsString("user3"));
+        assertThat(Files.readAllLines(file.resolveSibling("audit.log.2"), UTF_8).get(0), containsString("user2"));
+    }
+
+    @Test
+    public void eventsRecordedAfterCloseShouldBeDropped() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("audit.log");
+        final AuditLog audit = new AuditLog(file, 16, 1024 * 1024, 1, AuditLog.Overflow.BLOCK);
+        audit.start();
+        audit.close();
+        assertThat(audit.record(AuthResult.of(AuthEvent.PAM_FAILURE, "luke_skywalker"), "127.0.0.1"), is(false));
+        assertThat(audit.dropped(), is(1L));
+        assertThat(new String(Files.readAllBytes(file), UTF_8), not(containsString("luke_skywalker")));
+    }
+
+    @Test
+    public void eventWhichFailedToBeFormattedShouldBeSkipped() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("audit.log");
+        final AuditLog audit = new AuditLog(file, 16, 1024 * 1024, 1, AuditLog.Overflow.BLOCK);
+        audit.start();
+        final UnixUser user = mock(UnixUser.class);
+        when(user.getUID()).thenThrow(new IllegalStateException("Failed to get UID"));
+        audit.record(AuthResult.of(AuthEvent.PAM_SUCCESS, "darth_vader", user, MILLISECONDS.toNanos(42)), "127.0.0.1");
+        audit.record(AuthResult.of(AuthEvent.PAM_FAILURE, "luke_skywalker"), "127.0.0.1");
+        audit.close();
+        final List<String> lines = Files.readAllLines(file, UTF_8);
+        assertThat(lines.size(), is(1));
+        assertThat(lines.get(0), containsString("\"user\":\"luke_skywalker\""));
+    }
+
+    @Test(timeout = 10000)
+    public void eventsShouldBeDroppedRatherThanBlockOnceWriterFailed() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("audit.log");
+        final AuditLog audit = new AuditLog(file, 2, 1024 * 1024, 1, AuditLog.Overflow.BLOCK);
+        audit.start();
+        final UnixUser user = mock(UnixUser.class);
+        when(user.getUID()).thenThrow(new Error("Failed to get UID"));
+        audit.record(AuthResult.of(AuthEvent.PAM_SUCCESS, "darth_vader", user, MILLISECONDS.toNanos(42)), "127.0.0.1");
+        for (int i = 0; i < 10; ++i) {
+            audit.record(AuthResult.of(AuthEvent.PAM_FAILURE, "user" + i), "127.0.0.1");
+        }
+        assertThat(audit.dropped() > 0, is(true));
+        audit.close();
+    }
+
+    private static void waitUntilWritten(final Path file, final String text) throws IOException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!(Files.exists(file) && new String(Files.readAllBytes(file), UTF_8).contains(text)) && (System.currentTimeMillis() < deadline)) {
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.carmatechnologies.servlet;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class AuthExecutorTest {
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final CountDownLatch started = new CountDownLatch(2);
+    private AuthExecutor executor;
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        executor.shutdown();
+    }
+
+    @Test
+    public void platformThreadsExecutorShouldRejectTasksBeyondThreadsAndQueueSize() throws InterruptedException {
+        executor = AuthExecutor.platformThreads(1, 1);
+        assertRejectsTasksBeyond(2);
+    }
+
+    @Test
+    public void virtualThreadsExecutorShouldRejectTasksBeyondThreadsAndQueueSize() throws InterruptedException {
+        executor = AuthExecutor.virtualThreads(1, 1);
+        assertRejectsTasksBeyond(2);
+    }
+
+    private void assertRejectsTasksBeyond(final int capacity) throws InterruptedException {
+        for (int i = 0; i < capacity; ++i) {
+            executor.execute(this::block);
+        }
+        try {
+            executor.execute(this::block);
+            fail("Expected task to be rejected.");
+        } catch (final RejectedExecutionException e) {
+            release.countDown();
+        }
+        assertThat(started.await(5, SECONDS), is(true));
+    }
+
+    private void block() {
+        started.countDown();
+        try {
+            release.await();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.carmatechnologies.servlet;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class Base64DecoderTest {
+    private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/=-_ !\u00e9";
+
+    @Test
+    public void decodingShouldMatchJdkDecoderForValidInputs() {
+        final Random random = new Random(42);
+        for (int length = 0; length < 64; ++length) {
+            final byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+            assertDecodesLikeJdk(Base64.getEncoder().encodeToString(bytes));
+            assertDecodesLikeJdk(Base64.getEncoder().withoutPadding().encodeToString(bytes));
+        }
+    }
+
+    @Test
+    public void decodingShouldMatchJdkDecoderForArbitraryInputs() {
+        final Random random = new Random(42);
+        for (int i = 0; i < 100000; ++i) {
+            final char[] chars = new char[random.nextInt(10)];
+            for (int j = 0; j < chars.length; ++j) {
+                chars[j] = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+            }
+            assertDecodesLikeJdk(new String(chars));
+        }
+    }
+
+    @Test
+    public void decodingShouldOnlyDecodeTheProvidedRegion() {
+        final String header = "Basic bHVrZV9za3l3YWxrZXI6cGFzczEyMw==";
+        final byte[] buffer = new byte[Base64Decoder.maxDecodedLength(header.length() - 6)];
+        final int length = Base64Decoder.decode(header, 6, header.length(), buffer);
+        assertThat(new String(buffer, 0, length), is("luke_skywalker:pass123"));
+    }
+
+    private static void assertDecodesLikeJdk(final String encoded) {
+        final byte[] buffer = new byte[Base64Decoder.maxDecodedLength(encoded.length())];
+        final int length = Base64Decoder.decode(encoded, 0, encoded.length(), buffer);
+        try {
+            final byte[] expected = Base64.getDecoder().decode(encoded);
+            assertThat(encoded, Arrays.copyOf(buffer, length), is(expected));
+        } catch (final IllegalArgumentException e) {
+            assertThat(encoded, length, is(Base64Decoder.MALFORMED));
+        }
+    }
+}
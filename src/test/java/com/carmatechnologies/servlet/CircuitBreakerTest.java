@@ -0,0 +1,104 @@
+package com.carmatechnologies.servlet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.jvnet.libpam.PAMException;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class CircuitBreakerTest {
+    private final AtomicLong now = new AtomicLong();
+    private final CircuitBreaker breaker = new CircuitBreaker("login", 3, 30, now::get);
+
+    @Rule
+    public final ExpectedException exception = ExpectedException.none();
+
+    @Test
+    public void breakerShouldOpenAfterConsecutiveFailures() {
+        breaker.onUnavailable();
+        breaker.onUnavailable();
+        assertThat(breaker.state(), is(CircuitBreaker.State.CLOSED));
+        assertThat(breaker.allowRequest(), is(true));
+        breaker.onUnavailable();
+        assertThat(breaker.state(), is(CircuitBreaker.State.OPEN));
+        assertThat(breaker.allowRequest(), is(false));
+    }
+
+    @Test
+    public void availabilityShouldResetConsecutiveFailures() {
+        breaker.onUnavailable();
+        breaker.onUnavailable();
+        breaker.onAvailable();
+        breaker.onUnavailable();
+        breaker.onUnavailable();
+        assertThat(breaker.state(), is(CircuitBreaker.State.CLOSED));
+    }
+
+    @Test
+    public void breakerShouldLetASingleTrialThroughOnceOpenPeriodElapsed() {
+        open();
+        now.addAndGet(SECONDS.toNanos(29));
+        assertThat(breaker.allowRequest(), is(false));
+        now.addAndGet(SECONDS.toNanos(1));
+        assertThat(breaker.allowRequest(), is(true));
+        assertThat(breaker.state(), is(CircuitBreaker.State.HALF_OPEN));
+        assertThat(breaker.allowRequest(), is(false));
+    }
+
+    @Test
+    public void successfulTrialShouldCloseBreaker() {
+        open();
+        now.addAndGet(SECONDS.toNanos(30));
+        assertThat(breaker.allowRequest(), is(true));
+        breaker.onAvailable();
+        assertThat(breaker.state(), is(CircuitBreaker.State.CLOSED));
+        assertThat(breaker.allowRequest(), is(true));
+    }
+
+    @Test
+    public void failedTrialShouldReopenBreaker() {
+        open();
+        now.addAndGet(SECONDS.toNanos(30));
+        assertThat(breaker.allowRequest(), is(true));
+        breaker.onUnavailable();
+        assertThat(breaker.state(), is(CircuitBreaker.State.OPEN));
+        assertThat(breaker.allowRequest(), is(false));
+    }
+
+    @Test
+    public void lostTrialShouldBeRetriedOnceOpenPeriodElapsedAgain() {
+        open();
+        now.addAndGet(SECONDS.toNanos(30));
+        assertThat(breaker.allowRequest(), is(true));
+        now.addAndGet(SECONDS.toNanos(30));
+        assertThat(breaker.allowRequest(), is(true));
+        assertThat(breaker.state(), is(CircuitBreaker.State.HALF_OPEN));
+    }
+
+    @Test
+    public void onlyUnavailabilityErrorsShouldCount() {
+        assertThat(CircuitBreaker.isUnavailable(new PAMException("pam_authenticate failed : Authentication failure")), is(false));
+        assertThat(CircuitBreaker.isUnavailable(new PAMException("pam_authenticate failed : " + CircuitBreaker.AUTHINFO_UNAVAIL)), is(true));
+        assertThat(CircuitBreaker.isUnavailable(new PamUnavailableException("PAM did not respond within 100 ms")), is(true));
+        assertThat(CircuitBreaker.isUnavailable(new IllegalStateException("Failed to create PAM")), is(true));
+    }
+
+    @Test
+    public void zeroFailuresShouldThrowIllegalArgumentException() {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("Please provide a strictly positive number of failures.");
+        new CircuitBreaker("login", 0, 30, now::get);
+    }
+
+    private void open() {
+        for (int i = 0; i < 3; ++i) {
+            breaker.onUnavailable();
+        }
+        assertThat(breaker.state(), is(CircuitBreaker.State.OPEN));
+    }
+}
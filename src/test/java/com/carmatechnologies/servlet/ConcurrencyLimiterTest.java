@@ -0,0 +1,110 @@
+package com.carmatechnologies.servlet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ConcurrencyLimiterTest {
+    private static final long FAST = MILLISECONDS.toNanos(10);
+    private static final long SLOW = MILLISECONDS.toNanos(1000);
+
+    private final ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 10, 500);
+
+    @Rule
+    public final ExpectedException exception = ExpectedException.none();
+
+    @Test
+    public void acquiringBeyondLimitShouldFail() {
+        for (int i = 0; i < 10; ++i) {
+            assertThat(limiter.tryAcquire(), is(true));
+        }
+        assertThat(limiter.tryAcquire(), is(false));
+        assertThat(limiter.inFlight(), is(10));
+    }
+
+    @Test
+    public void releasingShouldAllowAcquiringAgain() {
+        for (int i = 0; i < 10; ++i) {
+            limiter.tryAcquire();
+        }
+        limiter.onFailure();
+        assertThat(limiter.tryAcquire(), is(true));
+    }
+
+    @Test
+    public void slowAuthenticationShouldDecreaseLimit() {
+        limiter.tryAcquire();
+        limiter.onSuccess(SLOW);
+        assertThat(limiter.limit(), is(9));
+        assertThat(limiter.inFlight(), is(0));
+    }
+
+    @Test
+    public void pamErrorShouldDecreaseLimit() {
+        limiter.tryAcquire();
+        limiter.onError();
+        assertThat(limiter.limit(), is(9));
+    }
+
+    @Test
+    public void failedAuthenticationShouldNotChangeLimit() {
+        limiter.tryAcquire();
+        limiter.onFailure();
+        assertThat(limiter.limit(), is(10));
+    }
+
+    @Test
+    public void limitShouldNeverGoBelowMinimum() {
+        for (int i = 0; i < 100; ++i) {
+            limiter.tryAcquire();
+            limiter.onSuccess(SLOW);
+        }
+        assertThat(limiter.limit(), is(2));
+    }
+
+    @Test
+    public void fastAuthenticationsUnderLoadShouldIncreaseLimitUpToMaximum() {
+        for (int i = 0; i < 20; ++i) {
+            limiter.tryAcquire();
+            limiter.onSuccess(SLOW);
+        }
+        assertThat(limiter.limit(), is(2));
+        for (int i = 0; i < 100; ++i) {
+            int acquired = 0;
+            while (limiter.tryAcquire()) {
+                ++acquired;
+            }
+            for (int j = 0; j < acquired; ++j) {
+                limiter.onSuccess(FAST);
+            }
+        }
+        assertThat(limiter.limit(), is(10));
+    }
+
+    @Test
+    public void fastAuthenticationsWithoutLoadShouldNotIncreaseLimit() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 10, 500);
+        for (int i = 0; i < 5; ++i) {
+            limiter.tryAcquire();
+            limiter.onSuccess(SLOW);
+        }
+        final int limit = limiter.limit();
+        for (int i = 0; i < 100; ++i) {
+            limiter.tryAcquire();
+            limiter.onSuccess(FAST);
+        }
+        assertThat(limiter.limit(), is(limit));
+    }
+
+    @Test
+    public void creatingLimiterWithMinLimitGreaterThanMaxLimitThrowsIllegalArgumentException() {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage(equalTo("Please provide limits such that 0 < minLimit <= maxLimit."));
+        new ConcurrencyLimiter(10, 2, 500);
+    }
+}
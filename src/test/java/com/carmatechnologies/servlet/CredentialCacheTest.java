@@ -0,0 +1,147 @@
+package com.carmatechnologies.servlet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.jvnet.libpam.UnixUser;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CredentialCacheTest {
+    private static final String SERVICE = "pam-servlet-filter";
+
+    private final AtomicLong now = new AtomicLong();
+    private final UnixUser luke = mock(UnixUser.class);
+    private final UnixUser leia = mock(UnixUser.class);
+    private final CredentialCache cache = new CredentialCache(2, 300, 60, 10, now::get);
+
+    @Rule
+    public final ExpectedException exception = ExpectedException.none();
+
+    @Test
+    public void cachedUserShouldBeReturnedForTheSameCredentials() {
+        cache.put(cache.key(SERVICE, "luke_skywalker", "pass123"), luke);
+        assertThat(cache.get(cache.key(SERVICE, "luke_skywalker", "pass123")), is(sameInstance(luke)));
+    }
+
+    @Test
+    public void cachedUserShouldNotBeReturnedForADifferentPassword() {
+        cache.put(cache.key(SERVICE, "luke_skywalker", "pass123"), luke);
+        assertThat(cache.get(cache.key(SERVICE, "luke_skywalker", "pass1234")), is(nullValue()));
+    }
+
+    @Test
+    public void cachedUserShouldNotBeReturnedForADifferentService() {
+        cache.put(cache.key(SERVICE, "luke_skywalker", "pass123"), luke);
+        assertThat(cache.get(cache.key("sshd", "luke_skywalker", "pass123")), is(nullValue()));
+    }
+
+    @Test
+    public void keysShouldNotBeAmbiguousAcrossFields() {
+        assertThat(cache.key(SERVICE, "luke", "_skywalker"), is(not(equalTo(cache.key(SERVICE, "luke_", "skywalker")))));
+    }
+
+    @Test
+    public void keysShouldBeSaltedPerCache() {
+        final CredentialCache other = new CredentialCache(2, 300, 60, 10, now::get);
+        assertThat(other.key(SERVICE, "luke_skywalker", "pass123"), is(not(equalTo(cache.key(SERVICE, "luke_skywalker", "pass123")))));
+    }
+
+    @Test
+    public void cachedUserShouldExpireAfterTimeToLive() {
+        final CredentialCache.Key key = cache.key(SERVICE, "luke_skywalker", "pass123");
+        cache.put(key, luke);
+        for (int i = 0; i < 9; ++i) {
+            now.addAndGet(SECONDS.toNanos(30));
+            assertThat(cache.get(key), is(sameInstance(luke)));
+        }
+        now.addAndGet(SECONDS.toNanos(30));
+        assertThat(cache.get(key), is(nullValue()));
+        assertThat(cache.size(), is(0));
+    }
+
+    @Test
+    public void cachedUserShouldExpireWhenIdle() {
+        final CredentialCache.Key key = cache.key(SERVICE, "luke_skywalker", "pass123");
+        cache.put(key, luke);
+        now.addAndGet(SECONDS.toNanos(60));
+        assertThat(cache.get(key), is(nullValue()));
+    }
+
+    @Test
+    public void leastRecentlyUsedUserShouldBeEvictedWhenFull() {
+        final CredentialCache.Key lukeKey = cache.key(SERVICE, "luke_skywalker", "pass123");
+        final CredentialCache.Key leiaKey = cache.key(SERVICE, "leia_organa", "alderaan");
+        cache.put(lukeKey, luke);
+        cache.put(leiaKey, leia);
+        cache.get(lukeKey);
+        cache.put(cache.key(SERVICE, "han_solo", "falcon"), mock(UnixUser.class));
+        assertThat(cache.size(), is(2));
+        assertThat(cache.get(lukeKey), is(sameInstance(luke)));
+        assertThat(cache.get(leiaKey), is(nullValue()));
+    }
+
+    @Test
+    public void creatingCacheWithNonPositiveSizeThrowsIllegalArgumentException() {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage(equalTo("Please provide a strictly positive maximum cache size."));
+        new CredentialCache(0, 300, 60, 10);
+    }
+
+    @Test
+    public void expiredUserShouldOnlyBeReturnedAsStaleWithinGracePeriod() {
+        final CredentialCache cache = new CredentialCache(2, 300, 60, 10, 600, now::get);
+        final CredentialCache.Key key = cache.key(SERVICE, "luke_skywalker", "pass123");
+        cache.put(key, luke);
+        now.addAndGet(SECONDS.toNanos(300));
+        assertThat(cache.get(key), is(nullValue()));
+        assertThat(cache.getStale(key), is(sameInstance(luke)));
+        now.addAndGet(SECONDS.toNanos(600));
+        assertThat(cache.getStale(key), is(nullValue()));
+        assertThat(cache.size(), is(0));
+    }
+
+    @Test
+    public void expiredUserShouldNotBeReturnedAsStaleWithoutGracePeriod() {
+        final CredentialCache.Key key = cache.key(SERVICE, "luke_skywalker", "pass123");
+        cache.put(key, luke);
+        assertThat(cache.getStale(key), is(sameInstance(luke)));
+        now.addAndGet(SECONDS.toNanos(300));
+        assertThat(cache.getStale(key), is(nullValue()));
+    }
+
+    @Test
+    public void invalidationShouldOnlyRemoveAffectedUsers() {
+        when(luke.getUserName()).thenReturn("luke_skywalker");
+        when(leia.getUserName()).thenReturn("leia_organa");
+        final CredentialCache.Key lukeKey = cache.key(SERVICE, "luke_skywalker", "pass123");
+        final CredentialCache.Key leiaKey = cache.key(SERVICE, "leia_organa", "secret789");
+        cache.put(lukeKey, luke);
+        cache.put(leiaKey, leia);
+        assertThat(cache.invalidate(AccountChange.of(Collections.singleton("luke_skywalker"), Collections.<String>emptySet(), Collections.<Integer>emptySet())), is(1));
+        assertThat(cache.get(lukeKey), is(nullValue()));
+        assertThat(cache.get(leiaKey), is(sameInstance(leia)));
+    }
+
+    @Test
+    public void userAuthenticatedBeforeInvalidationShouldNotBeCached() {
+        final CredentialCache.Key key = cache.key(SERVICE, "luke_skywalker", "pass123");
+        final long generation = cache.generation();
+        cache.invalidate(AccountChange.ALL);
+        cache.put(key, luke, generation);
+        assertThat(cache.get(key), is(nullValue()));
+        cache.put(key, luke, cache.generation());
+        assertThat(cache.get(key), is(sameInstance(luke)));
+    }
+}
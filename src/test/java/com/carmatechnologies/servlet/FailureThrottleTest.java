@@ -0,0 +1,72 @@
+package com.carmatechnologies.servlet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class FailureThrottleTest {
+    private final AtomicLong now = new AtomicLong(SECONDS.toNanos(6000));
+    private final FailureThrottle throttle = new FailureThrottle(3, 60, 1024, now::get);
+
+    @Rule
+    public final ExpectedException exception = ExpectedException.none();
+
+    @Test
+    public void keyShouldBeThrottledOnceThresholdIsReached() {
+        throttle.recordFailure("10.0.0.1");
+        throttle.recordFailure("10.0.0.1");
+        assertThat(throttle.isThrottled("10.0.0.1"), is(false));
+        throttle.recordFailure("10.0.0.1");
+        assertThat(throttle.isThrottled("10.0.0.1"), is(true));
+    }
+
+    @Test
+    public void otherKeysShouldNotBeThrottled() {
+        for (int i = 0; i < 10; ++i) {
+            throttle.recordFailure("10.0.0.1");
+        }
+        assertThat(throttle.isThrottled("10.0.0.2"), is(false));
+        assertThat(throttle.isThrottled("darth_vader"), is(false));
+    }
+
+    @Test
+    public void failuresShouldDecayOverTime() {
+        for (int i = 0; i < 6; ++i) {
+            throttle.recordFailure("10.0.0.1");
+        }
+        now.addAndGet(SECONDS.toNanos(60));
+        // 6 failures in the previous window count as 3:
+        assertThat(throttle.isThrottled("10.0.0.1"), is(true));
+        throttle.recordFailure("10.0.0.1");
+        now.addAndGet(SECONDS.toNanos(60));
+        // 4 failures in the previous window count as 2:
+        assertThat(throttle.isThrottled("10.0.0.1"), is(false));
+        now.addAndGet(SECONDS.toNanos(60));
+        throttle.recordFailure("10.0.0.1");
+        throttle.recordFailure("10.0.0.1");
+        assertThat(throttle.isThrottled("10.0.0.1"), is(false));
+    }
+
+    @Test
+    public void manyDistinctKeysShouldNotThrottleEveryone() {
+        final FailureThrottle throttle = new FailureThrottle(3, 60, 1 << 16, now::get);
+        for (int i = 0; i < 10000; ++i) {
+            throttle.recordFailure("10.0." + (i / 256) + "." + (i % 256));
+        }
+        assertThat(throttle.isThrottled("192.168.0.1"), is(false));
+    }
+
+    @Test
+    public void creatingThrottleWithWidthWhichIsNotAPowerOfTwoThrowsIllegalArgumentException() {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage(equalTo("Please provide a width which is a power of two."));
+        new FailureThrottle(3, 60, 1000);
+    }
+}
@@ -0,0 +1,78 @@
+package com.carmatechnologies.servlet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    @Rule
+    public final ExpectedException exception = ExpectedException.none();
+
+    @Test
+    public void emptyHistogramShouldReportZero() {
+        assertThat(histogram.percentile(50), is(0L));
+        assertThat(histogram.count(), is(0L));
+    }
+
+    @Test
+    public void smallValuesShouldBeRecordedExactly() {
+        for (long i = 0; i < LatencyHistogram.SUB_BUCKETS; ++i) {
+            assertThat(LatencyHistogram.upperBound(LatencyHistogram.index(i)), is(i));
+        }
+    }
+
+    @Test
+    public void valuesShouldBeWithinTheirBucketBounds() {
+        for (long value = 1; value > 0; value = (value * 3) + 1) {
+            final long upperBound = LatencyHistogram.upperBound(LatencyHistogram.index(value));
+            assertTrue(value + " <= " + upperBound, value <= upperBound);
+            assertTrue(value + " within 1/16 of " + upperBound, (upperBound - value) <= (value / LatencyHistogram.SUB_BUCKETS));
+        }
+        assertThat(LatencyHistogram.upperBound(LatencyHistogram.index(Long.MAX_VALUE)), is(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentilesShouldBeReportedWithinBucketPrecision() {
+        for (int i = 1; i <= 1000; ++i) {
+            histogram.record(MILLISECONDS.toNanos(i));
+        }
+        assertThat(histogram.count(), is(1000L));
+        assertWithinPrecision(histogram.percentile(50), MILLISECONDS.toNanos(500));
+        assertWithinPrecision(histogram.percentile(99), MILLISECONDS.toNanos(990));
+        assertWithinPrecision(histogram.percentile(99.9), MILLISECONDS.toNanos(999));
+        assertWithinPrecision(histogram.percentile(100), MILLISECONDS.toNanos(1000));
+    }
+
+    @Test
+    public void resetShouldClearRecordedValues() {
+        histogram.record(42);
+        histogram.reset();
+        assertThat(histogram.count(), is(0L));
+        assertThat(histogram.percentile(99), is(0L));
+    }
+
+    @Test
+    public void negativeValuesShouldBeRecordedAsZero() {
+        histogram.record(-1);
+        assertThat(histogram.percentile(100), is(0L));
+    }
+
+    @Test
+    public void invalidPercentileShouldThrowIllegalArgumentException() {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("Please provide a percentile between 0 and 100.");
+        histogram.percentile(100.1);
+    }
+
+    private static void assertWithinPrecision(final long actual, final long expected) {
+        assertTrue(actual + " >= " + expected, actual >= expected);
+        assertTrue(actual + " within 1/16 of " + expected, (actual - expected) <= (expected / LatencyHistogram.SUB_BUCKETS));
+    }
+}
@@ -0,0 +1,85 @@
+package com.carmatechnologies.servlet;
+
+import org.junit.After;
+import org.junit.Test;
+import org.jvnet.libpam.PAM;
+import org.jvnet.libpam.UnixUser;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class NonBlockingPamAuthTest {
+    private static final String AUTHORIZATION = "Authorization";
+    private static final String LUKE_SKYWALKER = "Basic bHVrZV9za3l3YWxrZXI6cGFzczEyMw=="; // luke_skywalker:pass123
+    private static final String IP = "127.0.0.1";
+
+    private final PAM pam = mock(PAM.class);
+    private final UnixUser luke = UnixUsers.newUser("luke_skywalker", "Luke Skywalker", "/home/luke", "/bin/bash", 1000, 1000, new HashSet<>(Arrays.asList("jedi", "rebels")));
+    private final Map<String, String> parameters = new HashMap<>();
+    private final ExecutorService eventLoop = Executors.newSingleThreadExecutor();
+    private NonBlockingPamAuth auth;
+
+    @After
+    public void tearDown() {
+        eventLoop.shutdownNow();
+        if (auth != null) {
+            auth.close();
+        }
+    }
+
+    @Test
+    public void pamShouldNeverBeCalledOnTheEventLoop() throws Exception {
+        final AtomicReference<Thread> pamThread = new AtomicReference<>();
+        when(pam.authenticate("luke_skywalker", "pass123")).thenAnswer(invocation -> {
+            pamThread.set(Thread.currentThread());
+            return luke;
+        });
+        auth = new NonBlockingPamAuth(null, parameters::get, service -> pam);
+        final Thread eventLoopThread = eventLoop.submit(Thread::currentThread).get(10, SECONDS);
+        final CompletableFuture<Thread> completedOn = new CompletableFuture<>();
+        final CompletableFuture<PamAuthResult> result = new CompletableFuture<>();
+        eventLoop.execute(() -> auth.authenticate(new StubAuthRequest(IP).withHeader(AUTHORIZATION, LUKE_SKYWALKER), eventLoop).thenAccept(authenticated -> {
+            completedOn.complete(Thread.currentThread());
+            result.complete(authenticated);
+        }));
+        assertThat(result.get(10, SECONDS).isAuthenticated(), is(true));
+        assertThat(pamThread.get(), is(not(eventLoopThread)));
+        assertThat(completedOn.get(10, SECONDS), is(eventLoopThread));
+    }
+
+    @Test
+    public void requestsBeyondTheQueueShouldBeRejectedWithError503RatherThanAuthenticatedOnTheEventLoop() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        when(pam.authenticate(anyString(), anyString())).thenAnswer(invocation -> {
+            release.await();
+            return luke;
+        });
+        parameters.put(PamAuthParameters.ASYNC_THREADS, "1");
+        parameters.put(PamAuthParameters.ASYNC_QUEUE_SIZE, "1");
+        auth = new NonBlockingPamAuth(null, parameters::get, service -> pam);
+        final CompletableFuture<PamAuthResult> running = auth.authenticate(new StubAuthRequest(IP).withHeader(AUTHORIZATION, LUKE_SKYWALKER), eventLoop).toCompletableFuture();
+        final CompletableFuture<PamAuthResult> queued = auth.authenticate(new StubAuthRequest(IP).withHeader(AUTHORIZATION, LUKE_SKYWALKER), eventLoop).toCompletableFuture();
+        final CompletableFuture<PamAuthResult> rejected = auth.authenticate(new StubAuthRequest(IP).withHeader(AUTHORIZATION, LUKE_SKYWALKER), eventLoop).toCompletableFuture();
+        assertThat(rejected.isDone(), is(true));
+        assertThat(rejected.get().status(), is(503));
+        assertThat(running.isDone(), is(false));
+        release.countDown();
+        assertThat(running.get(10, SECONDS).isAuthenticated(), is(true));
+        assertThat(queued.get(10, SECONDS).isAuthenticated(), is(true));
+    }
+}
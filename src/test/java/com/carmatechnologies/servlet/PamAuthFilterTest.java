@@ -5,27 +5,49 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
 import org.jvnet.libpam.PAM;
 import org.jvnet.libpam.PAMException;
 import org.jvnet.libpam.UnixUser;
+import org.mockito.ArgumentCaptor;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.AsyncContext;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static java.lang.String.format;
+import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.startsWith;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assume.assumeThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -34,6 +56,9 @@ public class PamAuthFilterTest {
     private static final String WWW_AUTHENTICATE = "WWW-Authenticate";
     private static final String BASIC_REALM_TATOOINE = "Basic realm=\"Tatooine\"";
     private static final int HTTP_STATUS_CODE_401_AUTHORIZED = 401;
+    private static final int HTTP_STATUS_CODE_429_TOO_MANY_REQUESTS = 429;
+    private static final int HTTP_STATUS_CODE_503_SERVICE_UNAVAILABLE = 503;
+    private static final String RETRY_AFTER = "Retry-After";
     private static final Charset UTF_8 = Charset.forName("UTF-8"); // UTF-8: eight-bit UCS Transformation Format.
 
     private final HttpServletRequest request = mock(HttpServletRequest.class);
@@ -46,6 +71,9 @@ public class PamAuthFilterTest {
     @Rule
     public final ExpectedException exception = ExpectedException.none();
 
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
     @Before
     public void setUp() throws ServletException {
         when(request.getRemoteAddr()).thenReturn("127.0.0.1");
@@ -75,6 +103,14 @@ public class PamAuthFilterTest {
         verify(filterChain).doFilter(request, response);
     }
 
+    @Test
+    public void authorisedUserShouldProceedToTheNextFilter_withNonAsciiCredentialsAndColonInPassword() throws IOException, ServletException, PAMException {
+        when(pam.authenticate("chewbacca_\u00e9", "pass:w\u00f6rd")).thenReturn(mock(UnixUser.class));
+        when(request.getHeader(AUTHORIZATION)).thenReturn("Basic " + Base64.getEncoder().encodeToString("chewbacca_\u00e9:pass:w\u00f6rd".getBytes(UTF_8)));
+        filter.doFilter(request, response, filterChain);
+        verify(filterChain).doFilter(request, response);
+    }
+
     @Test
     public void unauthorisedUserShouldReturnError401() throws IOException, ServletException, PAMException {
         when(pam.authenticate("darth_vader", "secret456")).thenThrow(new PAMException("Sith Lords are not allowed here, go away!"));
@@ -93,6 +129,531 @@ public class PamAuthFilterTest {
         verify(response).sendError(HTTP_STATUS_CODE_401_AUTHORIZED);
     }
 
+    @Test
+    public void authorisedUserShouldNotGoThroughPamAgainWhenCached() throws IOException, ServletException, PAMException {
+        final PamAuthFilter filter = new PamAuthFilter((String) -> pam);
+        when(filterConfig.getInitParameter("cacheSize")).thenReturn("10");
+        filter.init(filterConfig);
+        when(pam.authenticate("luke_skywalker", "pass123")).thenReturn(mock(UnixUser.class));
+        when(request.getHeader(AUTHORIZATION)).thenReturn("Basic bHVrZV9za3l3YWxrZXI6cGFzczEyMw=="); // luke_skywalker:pass123
+        filter.doFilter(request, response, filterChain);
+        filter.doFilter(request, response, filterChain);
+        verify(filterChain, times(2)).doFilter(request, response);
+        verify(pam, times(1)).authenticate("luke_skywalker", "pass123");
+    }
+
+    @Test
+    public void unauthorisedUserShouldGoThroughPamEveryTimeWhenCacheIsEnabled() throws IOException, ServletException, PAMException {
+        final PamAuthFilter filter = new PamAuthFilter((String) -> pam);
+        when(filterConfig.getInitParameter("cacheSize")).thenReturn("10");
+        filter.init(filterConfig);
+        when(pam.authenticate("darth_vader", "secret456")).thenThrow(new PAMException("Sith Lords are not allowed here, go away!"));
+        when(request.getHeader(AUTHORIZATION)).thenReturn("Basic ZGFydGhfdmFkZXI6c2VjcmV0NDU2"); // darth_vader:secret456
+        filter.doFilter(request, response, filterChain);
+        filter.doFilter(request, response, filterChain);
+        verify(pam, times(2)).authenticate("darth_vader", "secret456");
+        verify(response, times(2)).sendError(HTTP_STATUS_CODE_401_AUTHORIZED);
+    }
+
+    @Test
+    public void authorisedUserShouldNotGoThroughPamAfterRestartWhenSnapshotted() throws IOException, ServletException, PAMException {
+        when(filterConfig.getInitParameter("cacheSize")).thenReturn("10");
+        when(filterConfig.getInitParameter("snapshotFile")).thenReturn(folder.getRoot().toPath().resolve("pam.snapshot").toString());
+        when(filterConfig.getInitParameter("snapshotKey")).thenReturn("MDEyMzQ1Njc4OWFiY2RlZg=="); // 0123456789abcdef
+        when(pam.authenticate("luke_skywalker", "pass123")).thenReturn(mock(UnixUser.class));
+        when(request.getHeader(AUTHORIZATION)).thenReturn("Basic bHVrZV9za3l3YWxrZXI6cGFzczEyMw=="); // luke_skywalker:pass123
+        final PamAuthFilter before = new PamAuthFilter((String) -> pam);
+        before.init(filterConfig);
+        before.doFilter(request, response, filterChain);
+        before.destroy();
+        final PamAuthFilter after = new PamAuthFilter((String) -> pam);
+        after.init(filterConfig);
+        after.doFilter(request, response, filterChain);
+        after.destroy();
+        verify(filterChain, times(2)).doFilter(request, response);
+        verify(pam, times(1)).authenticate("luke_skywalker", "pass123");
+    }
+
+    @Test
+    public void snapshotWithoutCacheShouldThrowServletException() throws ServletException {
+        final PamAuthFilter filter = new PamAuthFilter((String) -> pam);
+        when(filterConfig.getInitParameter("snapshotFile")).thenReturn("pam.snapshot");
+        when(filterConfig.getInitParameter("snapshotKey")).thenReturn("MDEyMzQ1Njc4OWFiY2RlZg==");
+        exception.expect(ServletException.class);
+        exception.expectMessage("Invalid snapshotFile [pam.snapshot]: please also enable the cache via cacheSize.");
+        filter.init(filterConfig);
+    }
+
+    @Test
+    public void cachedUserShouldGoThroughPamAgainAfterTheirAccountChanged() throws IOException, ServletException, PAMException, InterruptedException {
+        final Path passwd = folder.getRoot().toPath().resolve("passwd");
+        Files.write(passwd, "luke_skywalker:x:1000:1000::/home/luke:/bin/bash\n".getBytes(UTF_8));
+        final PamAuthFilter filter = new PamAuthFilter((String) -> pam);
+        when(filterConfig.getInitParameter("cacheSize")).thenReturn("10");
+        when(filterConfig.getInitParameter("watchAccounts")).thenReturn("true");
+        when(filterConfig.getInitParameter("watchedFiles")).thenReturn(passwd.toString());
+        when(filterConfig.getInitParameter("watchDebounceMillis")).thenReturn("10");
+        when(filterConfig.getInitParameter("jmx")).thenReturn("false");
+        filter.init(filterConfig);
+        try {
+            when(pam.authenticate("luke_skywalker", "pass123")).thenReturn(UnixUsers.newUser("luke_skywalker", null, "/home/luke", "/bin/bash", 1000, 1000, new HashSet<>()));
+            when(request.getHeader(AUTHORIZATION)).thenReturn("Basic bHVrZV9za3l3YWxrZXI6cGFzczEyMw=="); // luke_skywalker:pass123
+            filter.doFilter(request, response, filterChain);
+            filter.doFilter(request, response, filterChain);
+            assertThat(filter.metrics().getPamSuccesses(), is(1L));
+            Files.write(passwd, "luke_skywalker:x:1000:1000::/home/luke:/usr/sbin/nologin\n".getBytes(UTF_8));
+            final long deadline = System.currentTimeMillis() + 10000;
+            while ((filter.metrics().getPamSuccesses() < 2) && (System.currentTimeMillis() < deadline)) {
+                Thread.sleep(10);
+                filter.doFilter(request, response, filterChain);
+            }
+            assertThat(filter.metrics().getPamSuccesses(), is(2L));
+        } finally {
+            filter.destroy();
+        }
+    }
+
+    @Test
+    public void pamShouldBeDisposedAfterEachAuthenticationByDefault() throws IOException, ServletException, PAMException {
+        when(pam.authenticate("luke_skywalker", "pass123")).thenReturn(mock(UnixUser.class));
+        when(request.getHeader(AUTHORIZATION)).thenReturn("Basic bHVrZV9za3l3YWxrZXI6cGFzczEyMw=="); // luke_skywalker:pass123
+        filter.doFilter(request, response, filterChain);
+        verify(pam).dispose();
+    }
+
+    @Test
+    public void pooledPamShouldBeReusedAndDisposedOnDestroy() throws IOException, ServletException, PAMException {
+        final PamAuthFilter filter = new PamAuthFilter((String) -> pam);
+        when(filterConfig.getInitParameter("pamPoolMaxSize")).thenReturn("1");
+        filter.init(filterConfig);
+        when(pam.authenticate("luke_skywalker", "pass123")).thenReturn(mock(UnixUser.class));
+        when(request.getHeader(AUTHORIZATION)).thenReturn("Basic bHVrZV9za3l3YWxrZXI6cGFzczEyMw=="); // luke_skywalker:pass123
+        filter.doFilter(request, response, filterChain);
+        filter.doFilter(request, response, filterChain);
+        verify(pam, never()).dispose();
+        filter.destroy();
+        verify(pam).dispose();
+    }
+
+    @Test
+    public void pooledPamShouldBeDisposedAfterFailedAuthentication() throws IOException, ServletException, PAMException {
+        final PamAuthFilter filter = new PamAuthFilter((String) -> pam);
+        when(filterConfig.getInitParameter("pamPoolMaxSize")).thenReturn("1");
+        filter.init(filterConfig);
+        when(pam.authenticate("darth_vader", "secret456")).thenThrow(new PAMException("Sith Lords are not allowed here, go away!"));
+        when(request.getHeader(AUTHORIZATION)).thenReturn("Basic ZGFydGhfdmFkZXI6c2VjcmV0NDU2"); // darth_vader:secret456
+        filter.doFilter(request, response, filterChain);
+        verify(pam).dispose();
+    }
+
+    @Test
+    public void authenticationBeyondConcurrencyLimitShouldReturnError503() throws IOException, ServletException, PAMException {
+        final PamAuthFilter filter = new PamAuthFilter((String) -> pam);
+        when(filterConfig.getInitParameter("maxConcurrentAuthentications")).thenReturn("1");
+        when(filterConfig.getInitParameter("retryAfterSeconds")).thenReturn("5");
+        filter.init(filterConfig);
+        final HttpServletResponse concurrentResponse = mock(HttpServletResponse.class);
+        when(pam.authenticate("luke_skywalker", "pass123")).then(invocation -> {
+            // Another request comes in while this authentication is still in flight:
+            filter.doFilter(request, concurrentResponse, filterChain);
+            return mock(UnixUser.class);
+        });
+        when(request.getHeader(AUTHORIZATION)).thenReturn("Basic bHVrZV9za3l3YWxrZXI6cGFzczEyMw=="); // luke_skywalker:pass123
+        filter.doFilter(request, response, filterChain);
+        verify(filterChain).doFilter(request, response);
+        verify(concurrentResponse).setHeader(RETRY_AFTER, "5");
+        verify(concurrentResponse).sendError(HTTP_STATUS_CODE_503_SERVICE_UNAVAILABLE);
+        verify(filterChain, never()).doFilter(request, concurrentResponse);
+    }
+
+    @Test
+    public void authorisedUserShouldProceedToTheNextFilterOnDedicatedThreadInAsyncMode() throws IOException, ServletException, PAMException {
+        final PamAuthFilter filter = new PamAuthFilter((String) -> pam);
+        when(filterConfig.getInitParameter("async")).thenReturn("true");
+        filter.init(filterConfig);
+        final AsyncContext asyncContext = mock(AsyncContext.class);
+        when(request.isAsyncSupported()).thenReturn(true);
+        when(request.startAsync()).thenReturn(asyncContext);
+        final AtomicReference<String> threadName = new AtomicReference<>();
+        doAnswer(invocation -> {
+            threadName.set(Thread.currentThread().getName());
+            return null;
+        }).when(filterChain).doFilter(request, response);
+        when(pam.authenticate("luke_skywalker", "pass123")).thenReturn(mock(UnixUser.class));
+        when(request.getHeader(AUTHORIZATION)).thenReturn("Basic bHVrZV9za3l3YWxrZXI6cGFzczEyMw=="); // luke_skywalker:pass123
+        filter.doFilter(request, response, filterChain);
+        verify(asyncContext, timeout(5000)).complete();
+        verify(filterChain).doFilter(request, response);
+        assertThat(threadName.get(), startsWith("pam-auth-"));
+        filter.destroy();
+    }
+
+    @Test
+    public void unauthorisedUserShouldReturnError401InAsyncMode() throws IOException, ServletException, PAMException {
+        final PamAuthFilter filter = new PamAuthFilter((String) -> pam);
+        when(filterConfig.getInitParameter("async")).thenReturn("true");
+        filter.init(filterConfig);
+        final AsyncContext asyncContext = mock(AsyncContext.class);
+        when(request.isAsyncSupported()).thenReturn(true);
+        when(request.startAsync()).thenReturn(asyncContext);
+        when(pam.authenticate("darth_vader", "secret456")).thenThrow(new PAMException("Sith Lords are not allowed here, go away!"));
+        when(request.getHeader(AUTHORIZATION)).thenReturn("Basic ZGFydGhfdmFkZXI6c2VjcmV0NDU2"); // darth_vader:secret456
+        filter.doFilter(request, response, filterChain);
+        verify(asyncContext, timeout(5000)).complete();
+        verify(response).setHeader(WWW_AUTHENTICATE, BASIC_REALM_TATOOINE);
+        verify(response).sendError(HTTP_STATUS_CODE_401_AUTHORIZED);
+        filter.destroy();
+    }
+
+    @Test
+    public void requestNotSupportingAsyncShouldBeAuthenticatedSynchronouslyInAsyncMode() throws IOException, ServletException, PAMException {
+        final PamAuthFilter filter = new PamAuthFilter((String) -> pam);
+        when(filterConfig.getInitParameter("async")).thenReturn("true");
+        filter.init(filterConfig);
+        when(request.isAsyncSupported()).thenReturn(false);
+        when(pam.authenticate("luke_skywalker", "pass123")).thenReturn(mock(UnixUser.class));
+        when(request.getHeader(AUTHORIZATION)).thenReturn("Basic bHVrZV9za3l3YWxrZXI6cGFzczEyMw=="); // luke_skywalker:pass123
+        filter.doFilter(request, response, filterChain);
+        verify(filterChain).doFilter(request, response);
+        verify(request, never()).startAsync();
+        filter.destroy();
+    }
+
+    @Test
+    public void clientShouldBeThrottledAfterTooManyFailuresFromItsIp() throws IOException, ServletException, PAMException {
+        final PamAuthFilter filter = new PamAuthFilter((String) -> pam);
+        when(filterConfig.getInitParameter("maxFailuresPerIp")).thenReturn("2");
+        filter.init(filterConfig);
+        when(request.getHeader(AUTHORIZATION)).thenReturn("Basic Hello-World!");
+        filter.doFilter(request, response, filterChain);
+        filter.doFilter(request, response, filterChain);
+        verify(response, times(2)).sendError(HTTP_STATUS_CODE_401_AUTHORIZED);
+        filter.doFilter(request, response, filterChain);
+        verify(response).setHeader(RETRY_AFTER, "60");
+        verify(response).sendError(HTTP_STATUS_CODE_429_TOO_MANY_REQUESTS);
+        verify(request, times(2)).getHeader(AUTHORIZATION);
+    }
+
+    @Test
+    public void requestsWithoutCredentialsShouldNeverThrottleTheirIp() throws IOException, ServletException, PAMException {
+        final PamAuthFilter filter = new PamAuthFilter((String) -> pam);
+        when(filterConfig.getInitParameter("maxFailuresPerIp")).thenReturn("2");
+        filter.init(filterConfig);
+        for (int i = 0; i < 5; ++i) {
+            filter.doFilter(request, response, filterChain);
+        }
+        verify(response, times(5)).sendError(HTTP_STATUS_CODE_401_AUTHORIZED);
+        verify(response, never()).sendError(HTTP_STATUS_CODE_429_TOO_MANY_REQUESTS);
+        assertThat(filter.metrics().getThrottledRequests(), is(0L));
+    }
+
+    @Test
+    public void userShouldBeThrottledAfterTooManyFailuresWithoutCallingPam() throws IOException, ServletException, PAMException {
+        final PamAuthFilter filter = new PamAuthFilter((String) -> pam);
+        when(filterConfig.getInitParameter("maxFailuresPerUser")).thenReturn("2");
+        when(filterConfig.getInitParameter("throttledStatus")).thenReturn("401");
+        filter.init(filterConfig);
+        when(pam.authenticate("darth_vader", "secret456")).thenThrow(new PAMException("Sith Lords are not allowed here, go away!"));
+        when(request.getHeader(AUTHORIZATION)).thenReturn("Basic ZGFydGhfdmFkZXI6c2VjcmV0NDU2"); // darth_vader:secret456
+        filter.doFilter(request, response, filterChain);
+        filter.doFilter(request, response, filterChain);
+        filter.doFilter(request, response, filterChain);
+        verify(pam, times(2)).authenticate("darth_vader", "secret456");
+        verify(response, times(3)).setHeader(WWW_AUTHENTICATE, BASIC_REALM_TATOOINE);
+        verify(response, times(3)).sendError(HTTP_STATUS_CODE_401_AUTHORIZED);
+    }
+
+    @Test
+    public void authenticationEventsShouldBeAuditedWhenAuditFileIsConfigured() throws IOException, ServletException, PAMException {
+        final Path file = folder.getRoot().toPath().resolve("audit.log");
+        final PamAuthFilter filter = new PamAuthFilter((String) -> pam);
+        when(filterConfig.getInitParameter("auditFile")).thenReturn(file.toString());
+        filter.init(filterConfig);
+        when(pam.authenticate("luke_skywalker", "pass123")).thenReturn(mock(UnixUser.class));
+        when(request.getHeader(AUTHORIZATION)).thenReturn("Basic bHVrZV9za3l3YWxrZXI6cGFzczEyMw=="); // luke_skywalker:pass123
+        filter.doFilter(request, response, filterChain);
+        when(request.getHeader(AUTHORIZATION)).thenReturn("Complex bHVrZV9za3l3YWxrZXI6cGFzczEyMw==");
+        filter.doFilter(request, response, filterChain);
+        filter.destroy();
+
+        final List<String> lines = Files.readAllLines(file, UTF_8);
+        assertThat(lines.size(), is(2));
+        assertThat(lines.get(0), containsString("\"user\":\"luke_skywalker\",\"uid\":0,\"gid\":0,\"event\":\"PAM_SUCCESS\""));
+        assertThat(lines.get(1), containsString("\"event\":\"MALFORMED_HEADER\",\"outcome\":\"UNAUTHENTICATED\",\"detail\":\"[[Complex],[********************************]]\""));
+    }
+
+    @Test
+    public void metricsShouldBeExposedViaJmxUntilFilterIsDestroyed() throws Exception {
+        final PamAuthFilter filter = new PamAuthFilter((String) -> pam);
+        when(filterConfig.getFilterName()).thenReturn("jmx-test");
+        filter.init(filterConfig);
+        final ObjectName name = new ObjectName("com.carmatechnologies.servlet:type=PamAuthFilter,name=\"jmx-test\",service=\"pam-servlet-filter\"");
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertThat(server.isRegistered(name), is(true));
+
+        when(pam.authenticate("luke_skywalker", "pass123")).thenReturn(mock(UnixUser.class));
+        when(request.getHeader(AUTHORIZATION)).thenReturn("Basic bHVrZV9za3l3YWxrZXI6cGFzczEyMw=="); // luke_skywalker:pass123
+        filter.doFilter(request, response, filterChain);
+        when(request.getHeader(AUTHORIZATION)).thenReturn("Basic Hello-World!");
+        filter.doFilter(request, response, filterChain);
+        filter.doFilter(request, response, filterChain);
+
+        assertThat(server.getAttribute(name, "PamSuccesses"), is(1L));
+        assertThat(server.getAttribute(name, "MalformedBase64"), is(2L));
+        assertThat(server.getAttribute(name, "PamFailures"), is(0L));
+        assertThat(server.getAttribute(name, "RequestsInFlight"), is(0));
+        assertThat(server.getAttribute(name, "PamAuthenticationsInFlight"), is(0));
+        assertThat((Double) server.getAttribute(name, "FilterLatencyP50Millis") > 0, is(true));
+
+        filter.destroy();
+        assertThat(server.isRegistered(name), is(false));
+    }
+
+    @Test
+    public void sessionTokenIssuedAfterPamAuthenticationShouldSkipPam() throws IOException, ServletException, PAMException {
+        final PamAuthFilter filter = new PamAuthFilter((String) -> pam);
+        when(filterConfig.getInitParameter("sessionTokenTtlSeconds")).thenReturn("60");
+        when(filterConfig.getInitParameter("sessionTokenTransport")).thenReturn("header");
+        filter.init(filterConfig);
+        final UnixUser user = mock(UnixUser.class);
+        when(user.getUserName()).thenReturn("luke_skywalker");
+        when(pam.authenticate("luke_skywalker", "pass123")).thenReturn(user);
+        when(request.getHeader(AUTHORIZATION)).thenReturn("Basic bHVrZV9za3l3YWxrZXI6cGFzczEyMw=="); // luke_skywalker:pass123
+        filter.doFilter(request, response, filterChain);
+        final ArgumentCaptor<String> token = ArgumentCaptor.forClass(String.class);
+        verify(response).setHeader(eq("PAM-Session"), token.capture());
+
+        when(request.getHeader(AUTHORIZATION)).thenReturn(null);
+        when(request.getHeader("PAM-Session")).thenReturn(token.getValue());
+        filter.doFilter(request, response, filterChain);
+        verify(filterChain, times(2)).doFilter(request, response);
+        verify(pam, times(1)).authenticate("luke_skywalker", "pass123");
+
+        when(request.getHeader("PAM-Session")).thenReturn(token.getValue() + "A");
+        filter.doFilter(request, response, filterChain);
+        verify(response).setHeader(WWW_AUTHENTICATE, BASIC_REALM_TATOOINE);
+        verify(response).sendError(HTTP_STATUS_CODE_401_AUTHORIZED);
+        filter.destroy();
+    }
+
+    @Test
+    public void sessionTokenShouldBeIssuedAsHttpOnlyCookieByDefault() throws IOException, ServletException, PAMException {
+        final PamAuthFilter filter = new PamAuthFilter((String) -> pam);
+        when(filterConfig.getInitParameter("sessionTokenTtlSeconds")).thenReturn("60");
+        when(filterConfig.getInitParameter("sessionTokenKeys")).thenReturn(Base64.getEncoder().encodeToString("0123456789abcdef".getBytes(UTF_8)));
+        filter.init(filterConfig);
+        final UnixUser user = mock(UnixUser.class);
+        when(user.getUserName()).thenReturn("luke_skywalker");
+        when(pam.authenticate("luke_skywalker", "pass123")).thenReturn(user);
+        when(request.getHeader(AUTHORIZATION)).thenReturn("Basic bHVrZV9za3l3YWxrZXI6cGFzczEyMw=="); // luke_skywalker:pass123
+        filter.doFilter(request, response, filterChain);
+        final ArgumentCaptor<Cookie> cookie = ArgumentCaptor.forClass(Cookie.class);
+        verify(response).addCookie(cookie.capture());
+        assertThat(cookie.getValue().getName(), is("PAM-Session"));
+        assertThat(cookie.getValue().isHttpOnly(), is(true));
+        assertThat(cookie.getValue().getMaxAge(), is(60));
+        assertThat(cookie.getValue().getPath(), is("/"));
+
+        when(request.getHeader(AUTHORIZATION)).thenReturn(null);
+        when(request.getCookies()).thenReturn(new Cookie[]{new Cookie("JSESSIONID", "42"), cookie.getValue()});
+        filter.doFilter(request, response, filterChain);
+        verify(filterChain, times(2)).doFilter(request, response);
+        verify(pam, times(1)).authenticate("luke_skywalker", "pass123");
+        filter.destroy();
+    }
+
+    @Test
+    public void authenticatedUserShouldBeExposedToTheNextFilterWhenUserPrincipalIsEnabled() throws IOException, ServletException, PAMException {
+        final PamAuthFilter filter = new PamAuthFilter((String) -> pam);
+        when(filterConfig.getInitParameter("userPrincipal")).thenReturn("true");
+        filter.init(filterConfig);
+        final UnixUser user = mock(UnixUser.class);
+        when(user.getUserName()).thenReturn("luke_skywalker");
+        when(user.getUID()).thenReturn(1000);
+        when(user.getGroups()).thenReturn(new HashSet<>(Arrays.asList("jedi", "rebels")));
+        when(pam.authenticate("luke_skywalker", "pass123")).thenReturn(user);
+        when(request.getHeader(AUTHORIZATION)).thenReturn("Basic bHVrZV9za3l3YWxrZXI6cGFzczEyMw=="); // luke_skywalker:pass123
+        filter.doFilter(request, response, filterChain);
+        final ArgumentCaptor<HttpServletRequest> authenticated = ArgumentCaptor.forClass(HttpServletRequest.class);
+        verify(filterChain).doFilter(authenticated.capture(), eq(response));
+        assertThat(authenticated.getValue().getRemoteUser(), is("luke_skywalker"));
+        assertThat(authenticated.getValue().getUserPrincipal().getName(), is("luke_skywalker"));
+        assertThat(((UnixUserPrincipal) authenticated.getValue().getUserPrincipal()).getUid(), is(1000));
+        assertThat(authenticated.getValue().getAuthType(), is(HttpServletRequest.BASIC_AUTH));
+        assertThat(authenticated.getValue().isUserInRole("jedi"), is(true));
+        assertThat(authenticated.getValue().isUserInRole("sith"), is(false));
+        assertThat(authenticated.getValue().isUserInRole("**"), is(true));
+        assertThat(authenticated.getValue().getRemoteAddr(), is("127.0.0.1"));
+        filter.destroy();
+    }
+
+    @Test
+    public void usersShouldBeAuthenticatedOutOfProcessWhenPamWorkersAreEnabled() throws IOException, ServletException, PAMException {
+        final PamAuthFilter filter = new PamAuthFilter((String) -> pam);
+        when(filterConfig.getInitParameter("pamWorkers")).thenReturn("2");
+        when(filterConfig.getInitParameter("pamWorkerCommand")).thenReturn(String.join(" ", System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+                "-cp", System.getProperty("java.class.path"), StubPamWorker.class.getName()));
+        filter.init(filterConfig);
+        when(request.getHeader(AUTHORIZATION)).thenReturn("Basic bHVrZV9za3l3YWxrZXI6cGFzczEyMw=="); // luke_skywalker:pass123
+        filter.doFilter(request, response, filterChain);
+        verify(filterChain).doFilter(request, response);
+        when(request.getHeader(AUTHORIZATION)).thenReturn("Basic ZGFydGhfdmFkZXI6c2VjcmV0NDU2"); // darth_vader:secret456
+        filter.doFilter(request, response, filterChain);
+        verify(response).sendError(HTTP_STATUS_CODE_401_AUTHORIZED);
+        verify(pam, never()).authenticate(anyString(), anyString());
+        filter.destroy();
+    }
+
+    @Test
+    public void uninitialisedFilterShouldReturnNullRealmServiceCircuitBreakerStateAndMetrics() {
+        final PamAuthFilter filter = new PamAuthFilter((String) -> pam);
+        assertThat(filter.realm(), is(nullValue()));
+        assertThat(filter.service(), is(nullValue()));
+        assertThat(filter.circuitBreakerState(), is(nullValue()));
+        assertThat(filter.metrics(), is(nullValue()));
+    }
+
+    @Test
+    public void excludedPathsAndMethodsShouldProceedToTheNextFilterWithoutAuthentication() throws IOException, ServletException, PAMException {
+        final PamAuthFilter filter = new PamAuthFilter((String) -> pam);
+        when(filterConfig.getInitParameter("excludeUrlPatterns")).thenReturn("/health, /static/*, *.css");
+        when(filterConfig.getInitParameter("excludeMethods")).thenReturn("options");
+        filter.init(filterConfig);
+        when(request.getMethod()).thenReturn("GET");
+        when(request.getServletPath()).thenReturn("/static");
+        when(request.getPathInfo()).thenReturn("/js/app.js");
+        filter.doFilter(request, response, filterChain);
+        when(request.getServletPath()).thenReturn("/health");
+        when(request.getPathInfo()).thenReturn(null);
+        filter.doFilter(request, response, filterChain);
+        when(request.getMethod()).thenReturn("OPTIONS");
+        when(request.getServletPath()).thenReturn("/admin");
+        filter.doFilter(request, response, filterChain);
+        verify(filterChain, times(3)).doFilter(request, response);
+        verify(request, never()).getHeader(AUTHORIZATION);
+        verify(pam, never()).authenticate(anyString(), anyString());
+        filter.destroy();
+    }
+
+    @Test
+    public void pathsNotIncludedShouldProceedToTheNextFilterWithoutAuthentication() throws IOException, ServletException, PAMException {
+        final PamAuthFilter filter = new PamAuthFilter((String) -> pam);
+        when(filterConfig.getInitParameter("includeUrlPatterns")).thenReturn("/api/*");
+        when(filterConfig.getInitParameter("excludeUrlPatterns")).thenReturn("/api/status");
+        filter.init(filterConfig);
+        when(request.getServletPath()).thenReturn("/index.html");
+        filter.doFilter(request, response, filterChain);
+        when(request.getServletPath()).thenReturn("/api/status");
+        filter.doFilter(request, response, filterChain);
+        verify(filterChain, times(2)).doFilter(request, response);
+        verify(request, never()).getHeader(AUTHORIZATION);
+        when(request.getServletPath()).thenReturn("/api/users");
+        when(request.getHeader(AUTHORIZATION)).thenReturn(null);
+        filter.doFilter(request, response, filterChain);
+        verify(response).sendError(HTTP_STATUS_CODE_401_AUTHORIZED);
+        verify(filterChain, times(2)).doFilter(request, response);
+        filter.destroy();
+    }
+
+    @Test
+    public void invalidUrlPatternShouldThrowServletException() throws ServletException {
+        final PamAuthFilter filter = new PamAuthFilter((String) -> pam);
+        when(filterConfig.getInitParameter("excludeUrlPatterns")).thenReturn("health");
+        exception.expect(ServletException.class);
+        exception.expectMessage("Invalid excludeUrlPatterns [health]");
+        filter.init(filterConfig);
+    }
+
+    @Test
+    public void circuitBreakerShouldOpenAfterConsecutiveUnavailabilityAndFailFast() throws IOException, ServletException, PAMException {
+        final PamAuthFilter filter = new PamAuthFilter((String) -> pam);
+        when(filterConfig.getInitParameter("circuitBreakerFailures")).thenReturn("2");
+        filter.init(filterConfig);
+        assertThat(filter.circuitBreakerState(), is("CLOSED"));
+        when(pam.authenticate("luke_skywalker", "pass123")).thenThrow(new PAMException("pam_authenticate failed : Authentication service cannot retrieve authentication info"));
+        when(request.getHeader(AUTHORIZATION)).thenReturn("Basic bHVrZV9za3l3YWxrZXI6cGFzczEyMw=="); // luke_skywalker:pass123
+        filter.doFilter(request, response, filterChain);
+        filter.doFilter(request, response, filterChain);
+        assertThat(filter.circuitBreakerState(), is("OPEN"));
+        filter.doFilter(request, response, filterChain);
+        verify(pam, times(2)).authenticate("luke_skywalker", "pass123");
+        verify(response, times(3)).sendError(HTTP_STATUS_CODE_503_SERVICE_UNAVAILABLE);
+        verify(filterChain, never()).doFilter(request, response);
+        assertThat(filter.metrics().getPamUnavailable(), is(2L));
+        assertThat(filter.metrics().getCircuitOpenRejections(), is(1L));
+        assertThat(filter.metrics().getCircuitBreakerState(), is("OPEN"));
+        filter.destroy();
+    }
+
+    @Test
+    public void rejectedCredentialsShouldNotOpenCircuitBreaker() throws IOException, ServletException, PAMException {
+        final PamAuthFilter filter = new PamAuthFilter((String) -> pam);
+        when(filterConfig.getInitParameter("circuitBreakerFailures")).thenReturn("1");
+        filter.init(filterConfig);
+        when(pam.authenticate("darth_vader", "secret456")).thenThrow(new PAMException("Sith Lords are not allowed here, go away!"));
+        when(request.getHeader(AUTHORIZATION)).thenReturn("Basic ZGFydGhfdmFkZXI6c2VjcmV0NDU2"); // darth_vader:secret456
+        filter.doFilter(request, response, filterChain);
+        filter.doFilter(request, response, filterChain);
+        assertThat(filter.circuitBreakerState(), is("CLOSED"));
+        verify(response, times(2)).sendError(HTTP_STATUS_CODE_401_AUTHORIZED);
+        filter.destroy();
+    }
+
+    @Test
+    public void recentlyAuthenticatedUserShouldBeAcceptedWhileCircuitBreakerIsOpenWithinGracePeriod() throws IOException, ServletException, PAMException {
+        final PamAuthFilter filter = new PamAuthFilter((String) -> pam);
+        when(filterConfig.getInitParameter("cacheSize")).thenReturn("10");
+        when(filterConfig.getInitParameter("cacheTtlSeconds")).thenReturn("1");
+        when(filterConfig.getInitParameter("cacheIdleSeconds")).thenReturn("0");
+        when(filterConfig.getInitParameter("circuitBreakerFailures")).thenReturn("1");
+        when(filterConfig.getInitParameter("circuitBreakerGraceSeconds")).thenReturn("3600");
+        filter.init(filterConfig);
+        when(pam.authenticate("luke_skywalker", "pass123")).thenReturn(mock(UnixUser.class));
+        when(pam.authenticate("darth_vader", "secret456")).thenThrow(new PAMException("pam_authenticate failed : Authentication service cannot retrieve authentication info"));
+        when(request.getHeader(AUTHORIZATION)).thenReturn("Basic bHVrZV9za3l3YWxrZXI6cGFzczEyMw=="); // luke_skywalker:pass123
+        filter.doFilter(request, response, filterChain);
+        when(request.getHeader(AUTHORIZATION)).thenReturn("Basic ZGFydGhfdmFkZXI6c2VjcmV0NDU2"); // darth_vader:secret456
+        filter.doFilter(request, response, filterChain);
+        assertThat(filter.circuitBreakerState(), is("OPEN"));
+        try {
+            Thread.sleep(1100); // Let luke_skywalker's cached authentication expire.
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        when(request.getHeader(AUTHORIZATION)).thenReturn("Basic bHVrZV9za3l3YWxrZXI6cGFzczEyMw=="); // luke_skywalker:pass123
+        filter.doFilter(request, response, filterChain);
+        verify(filterChain, times(2)).doFilter(request, response);
+        verify(pam, times(1)).authenticate("luke_skywalker", "pass123");
+        assertThat(filter.metrics().getStaleSuccesses(), is(1L));
+        filter.destroy();
+    }
+
+    @Test
+    public void gracePeriodWithoutCacheShouldThrowServletException() throws ServletException {
+        final PamAuthFilter filter = new PamAuthFilter((String) -> pam);
+        when(filterConfig.getInitParameter("circuitBreakerFailures")).thenReturn("1");
+        when(filterConfig.getInitParameter("circuitBreakerGraceSeconds")).thenReturn("60");
+        exception.expect(ServletException.class);
+        exception.expectMessage("Invalid circuitBreakerGraceSeconds [60]: please also enable the cache via cacheSize.");
+        filter.init(filterConfig);
+    }
+
+    @Test
+    public void pamCallBeyondTimeoutShouldReturnError503() throws IOException, ServletException, PAMException {
+        final PamAuthFilter filter = new PamAuthFilter((String) -> pam);
+        when(filterConfig.getInitParameter("pamTimeoutMillis")).thenReturn("50");
+        filter.init(filterConfig);
+        when(pam.authenticate("luke_skywalker", "pass123")).thenAnswer((invocation) -> {
+            Thread.sleep(500);
+            return mock(UnixUser.class);
+        });
+        when(request.getHeader(AUTHORIZATION)).thenReturn("Basic bHVrZV9za3l3YWxrZXI6cGFzczEyMw=="); // luke_skywalker:pass123
+        filter.doFilter(request, response, filterChain);
+        verify(response).sendError(HTTP_STATUS_CODE_503_SERVICE_UNAVAILABLE);
+        verify(filterChain, never()).doFilter(request, response);
+        filter.destroy();
+    }
+
     @Test
     public void nullAuthorizationHeaderShouldReturnError401() throws IOException, ServletException {
         when(request.getHeader(AUTHORIZATION)).thenReturn(null);
@@ -140,6 +701,14 @@ public class PamAuthFilterTest {
         verify(response).sendError(HTTP_STATUS_CODE_401_AUTHORIZED);
     }
 
+    @Test
+    public void malformedAuthorizationHeaderShouldReturnError401_BasicCredentialsAreEmpty() throws IOException, ServletException {
+        when(request.getHeader(AUTHORIZATION)).thenReturn("Basic ");
+        filter.doFilter(request, response, filterChain);
+        verify(response).setHeader(WWW_AUTHENTICATE, BASIC_REALM_TATOOINE);
+        verify(response).sendError(HTTP_STATUS_CODE_401_AUTHORIZED);
+    }
+
     @Test
     public void malformedAuthorizationHeaderShouldReturnError401_BasicCredentialsAreNotColonSeparated() throws IOException, ServletException {
         when(request.getHeader(AUTHORIZATION)).thenReturn("Basic bm9Db2xvbkJldHdlZW5Vc2VybmFtZUFuZFBhc3N3b3Jk"); // noColonBetweenUsernameAndPassword
@@ -233,6 +802,33 @@ public class PamAuthFilterTest {
         assertThat(filter.service(), is("login"));
     }
 
+    @Test
+    public void initFilterWithInvalidCacheSizeThrowsServletException() throws ServletException {
+        PamAuthFilter filter = new PamAuthFilter((String) -> pam);
+        when(filterConfig.getInitParameter("cacheSize")).thenReturn("lots");
+        exception.expect(ServletException.class);
+        exception.expectMessage(equalTo("Invalid cacheSize [lots]: please provide a positive integer."));
+        filter.init(filterConfig);
+    }
+
+    @Test
+    public void initFilterWithInvalidAsyncFlagThrowsServletException() throws ServletException {
+        PamAuthFilter filter = new PamAuthFilter((String) -> pam);
+        when(filterConfig.getInitParameter("async")).thenReturn("maybe");
+        exception.expect(ServletException.class);
+        exception.expectMessage(equalTo("Invalid async [maybe]: please provide either true or false."));
+        filter.init(filterConfig);
+    }
+
+    @Test
+    public void initFilterWithInvalidThrottledStatusThrowsServletException() throws ServletException {
+        PamAuthFilter filter = new PamAuthFilter((String) -> pam);
+        when(filterConfig.getInitParameter("throttledStatus")).thenReturn("403");
+        exception.expect(ServletException.class);
+        exception.expectMessage(equalTo("Invalid throttledStatus [403]: please provide either 429 or 401."));
+        filter.init(filterConfig);
+    }
+
     @Test
     public void authorisedUserShouldProceedToTheNextFilter_FunctionalTest() throws IOException, ServletException {
         final String username = System.getenv("PAM_USERNAME");
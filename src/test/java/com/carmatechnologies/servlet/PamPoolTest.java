@@ -0,0 +1,184 @@
+package com.carmatechnologies.servlet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.jvnet.libpam.PAM;
+import org.jvnet.libpam.PAMException;
+import org.jvnet.libpam.UnixUser;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PamPoolTest {
+    private static final String LUKE = "luke_skywalker";
+
+    private final AtomicLong now = new AtomicLong();
+    private final AtomicLong version = new AtomicLong();
+
+    @Rule
+    public final ExpectedException exception = ExpectedException.none();
+
+    @Test
+    public void startShouldCreateMinimumNumberOfHandles() {
+        final PamPool pool = new PamPool("login", (service) -> mock(PAM.class), 2, 4, 300, now::get, version::get);
+        pool.start();
+        assertThat(pool.idleSize(), is(2));
+    }
+
+    @Test
+    public void releasedHandleShouldBeReused() {
+        final PamPool pool = new PamPool("login", (service) -> mock(PAM.class), 0, 4, 300, now::get, version::get);
+        final PamPool.Handle handle = pool.borrow(LUKE);
+        pool.release(handle, true);
+        assertThat(pool.borrow(LUKE), is(sameInstance(handle)));
+        verify(handle.pam(), never()).dispose();
+    }
+
+    @Test
+    public void unhealthyHandleShouldBeDisposed() {
+        final PamPool pool = new PamPool("login", (service) -> mock(PAM.class), 0, 4, 300, now::get, version::get);
+        final PamPool.Handle handle = pool.borrow(LUKE);
+        pool.release(handle, false);
+        verify(handle.pam()).dispose();
+        assertThat(pool.idleSize(), is(0));
+    }
+
+    @Test
+    public void expiredHandleShouldBeDisposedOnBorrow() {
+        final PamPool pool = new PamPool("login", (service) -> mock(PAM.class), 0, 4, 300, now::get, version::get);
+        final PamPool.Handle handle = pool.borrow(LUKE);
+        pool.release(handle, true);
+        now.addAndGet(SECONDS.toNanos(300));
+        assertThat(pool.borrow(LUKE), is(not(sameInstance(handle))));
+        verify(handle.pam()).dispose();
+    }
+
+    @Test
+    public void handleShouldBeDisposedOnBorrowWhenPamConfigurationChanged() {
+        final PamPool pool = new PamPool("login", (service) -> mock(PAM.class), 0, 4, 300, now::get, version::get);
+        final PamPool.Handle handle = pool.borrow(LUKE);
+        pool.release(handle, true);
+        version.incrementAndGet();
+        assertThat(pool.borrow(LUKE), is(not(sameInstance(handle))));
+        verify(handle.pam()).dispose();
+    }
+
+    @Test
+    public void handleWhichAuthenticatedAUserShouldOnlyBeReusedForThisUser() throws PAMException {
+        final PamPool pool = new PamPool("login", (service) -> {
+            final PAM pam = mock(PAM.class);
+            try {
+                when(pam.authenticate(LUKE, "pass123")).thenReturn(mock(UnixUser.class));
+            } catch (final PAMException e) {
+                throw new AssertionError(e);
+            }
+            return pam;
+        }, 1, 4, 300, now::get, version::get);
+        pool.start();
+        pool.authenticate(LUKE, "pass123");
+        assertThat(pool.idleSize(), is(1));
+        final PamPool.Handle other = pool.borrow("darth_vader");
+        assertThat(pool.idleSize(), is(1));
+        final PamPool.Handle luke = pool.borrow(LUKE);
+        assertThat(luke, is(not(sameInstance(other))));
+        assertThat(pool.idleSize(), is(0));
+        verify(luke.pam()).authenticate(LUKE, "pass123");
+        verify(luke.pam(), never()).dispose();
+    }
+
+    @Test
+    public void handleCreatedUpfrontShouldBeUsedForAnyUser() {
+        final PamPool pool = new PamPool("login", (service) -> mock(PAM.class), 1, 4, 300, now::get, version::get);
+        pool.start();
+        pool.borrow("darth_vader");
+        assertThat(pool.idleSize(), is(0));
+    }
+
+    @Test
+    public void leastRecentlyReleasedHandleShouldBeDisposedBeyondMaximumSize() {
+        final PamPool pool = new PamPool("login", (service) -> mock(PAM.class), 0, 1, 300, now::get, version::get);
+        final PamPool.Handle first = pool.borrow(LUKE);
+        final PamPool.Handle second = pool.borrow(LUKE);
+        pool.release(first, true);
+        pool.release(second, true);
+        assertThat(pool.idleSize(), is(1));
+        verify(first.pam()).dispose();
+        verify(second.pam(), never()).dispose();
+        assertThat(pool.borrow(LUKE), is(sameInstance(second)));
+    }
+
+    @Test
+    public void moreUsersThanMaximumSizeShouldKeepTheMostRecentUsersHandles() throws PAMException {
+        final AtomicInteger created = new AtomicInteger();
+        final PamPool pool = new PamPool("login", (service) -> {
+            created.incrementAndGet();
+            return mock(PAM.class);
+        }, 0, 2, 300, now::get, version::get);
+        for (int i = 0; i < 5; ++i) {
+            pool.authenticate("user" + i, "pass123");
+        }
+        assertThat(created.get(), is(5));
+        assertThat(pool.idleSize(), is(2));
+        pool.authenticate("user3", "pass123");
+        pool.authenticate("user4", "pass123");
+        assertThat(created.get(), is(5));
+        pool.authenticate("user0", "pass123");
+        assertThat(created.get(), is(6));
+        assertThat(pool.idleSize(), is(2));
+    }
+
+    @Test
+    public void pamConfigurationShouldBeCheckedOncePerAuthentication() throws PAMException {
+        final AtomicInteger checks = new AtomicInteger();
+        final PamPool pool = new PamPool("login", (service) -> mock(PAM.class), 1, 4, 300, now::get, () -> {
+            checks.incrementAndGet();
+            return 0;
+        });
+        pool.start();
+        checks.set(0);
+        pool.authenticate(LUKE, "pass123");
+        pool.authenticate(LUKE, "pass123");
+        pool.authenticate("darth_vader", "pass123");
+        assertThat(checks.get(), is(3));
+    }
+
+    @Test
+    public void handlesShouldAlwaysBeDisposedWhenPoolingIsDisabled() {
+        final PamPool pool = new PamPool("login", (service) -> mock(PAM.class), 0, 0, 300, now::get, version::get);
+        final PamPool.Handle handle = pool.borrow(LUKE);
+        pool.release(handle, true);
+        verify(handle.pam()).dispose();
+    }
+
+    @Test
+    public void closeShouldDisposeIdleHandlesAndHandlesReleasedAfterwards() {
+        final PamPool pool = new PamPool("login", (service) -> mock(PAM.class), 1, 4, 300, now::get, version::get);
+        pool.start();
+        final PamPool.Handle idle = pool.borrow(LUKE);
+        final PamPool.Handle borrowed = pool.borrow(LUKE);
+        pool.release(idle, true);
+        pool.close();
+        verify(idle.pam()).dispose();
+        pool.release(borrowed, true);
+        verify(borrowed.pam()).dispose();
+    }
+
+    @Test
+    public void creatingPoolWithMinSizeGreaterThanMaxSizeThrowsIllegalArgumentException() {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage(equalTo("Please provide pool sizes such that 0 <= minSize <= maxSize."));
+        new PamPool("login", (service) -> mock(PAM.class), 2, 1, 300);
+    }
+}
@@ -0,0 +1,66 @@
+package com.carmatechnologies.servlet;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class PamWorkerProtocolTest {
+    @Test
+    public void requestsShouldRoundTrip() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        PamWorkerProtocol.writeRequest(out, 1, "luke_skywalker", "pass123");
+        PamWorkerProtocol.writeRequest(out, 2, "l\u00e9a", null);
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        final PamWorkerProtocol.Request first = PamWorkerProtocol.readRequest(in);
+        assertThat(first.id, is(1L));
+        assertThat(first.username, is("luke_skywalker"));
+        assertThat(first.password, is("pass123"));
+        final PamWorkerProtocol.Request second = PamWorkerProtocol.readRequest(in);
+        assertThat(second.id, is(2L));
+        assertThat(second.username, is("l\u00e9a"));
+        assertThat(second.password, is(nullValue()));
+        assertThat(PamWorkerProtocol.readRequest(in), is(nullValue()));
+    }
+
+    @Test
+    public void responsesShouldRoundTrip() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        PamWorkerProtocol.writeSuccess(out, 1, UnixUsers.newUser("luke_skywalker", null, "/home/luke_skywalker", "/bin/bash", 1000, 100, new HashSet<>(Arrays.asList("jedi", "rebels"))));
+        PamWorkerProtocol.writeFailure(out, 2, "Authentication failure");
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        final PamWorkerProtocol.Response success = PamWorkerProtocol.readResponse(in);
+        assertThat(success.id, is(1L));
+        assertThat(success.user.getUserName(), is("luke_skywalker"));
+        assertThat(success.user.getGecos(), is(nullValue()));
+        assertThat(success.user.getDir(), is("/home/luke_skywalker"));
+        assertThat(success.user.getShell(), is("/bin/bash"));
+        assertThat(success.user.getUID(), is(1000));
+        assertThat(success.user.getGID(), is(100));
+        assertThat(success.user.getGroups(), is(equalTo(new HashSet<>(Arrays.asList("jedi", "rebels")))));
+        final PamWorkerProtocol.Response failure = PamWorkerProtocol.readResponse(in);
+        assertThat(failure.id, is(2L));
+        assertThat(failure.user, is(nullValue()));
+        assertThat(failure.message, is("Authentication failure"));
+        assertThat(PamWorkerProtocol.readResponse(in), is(nullValue()));
+    }
+
+    @Test(expected = IOException.class)
+    public void oversizedFrameShouldThrowIOException() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeInt(PamWorkerProtocol.MAX_FRAME_BYTES + 1);
+        PamWorkerProtocol.readResponse(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+}
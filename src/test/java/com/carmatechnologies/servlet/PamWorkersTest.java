@@ -0,0 +1,261 @@
+package com.carmatechnologies.servlet;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.jvnet.libpam.PAMException;
+import org.jvnet.libpam.UnixUser;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class PamWorkersTest {
+    private static final int QUEUE_SIZE = 16;
+    private static final List<String> COMMAND = Arrays.asList(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+            "-cp", System.getProperty("java.class.path"), StubPamWorker.class.getName());
+
+    private final AtomicLong now = new AtomicLong();
+    private PamWorkers workers;
+
+    @Rule
+    public final ExpectedException exception = ExpectedException.none();
+
+    @After
+    public void tearDown() {
+        if (workers != null) {
+            workers.close();
+        }
+    }
+
+    @Test
+    public void validCredentialsShouldReturnUser() throws Exception {
+        workers = start(1, 10000);
+        final UnixUser user = workers.authenticate(StubPamWorker.USERNAME, StubPamWorker.PASSWORD);
+        assertThat(user.getUserName(), is(StubPamWorker.USERNAME));
+        assertThat(user.getGecos(), is("Luke Skywalker"));
+        assertThat(user.getDir(), is("/home/luke_skywalker"));
+        assertThat(user.getShell(), is("/bin/bash"));
+        assertThat(user.getUID(), is(1000));
+        assertThat(user.getGID(), is(1000));
+        assertThat(user.getGroups(), is(equalTo(new HashSet<>(Arrays.asList("jedi", "rebels")))));
+    }
+
+    @Test
+    public void invalidCredentialsShouldThrowPamException() throws Exception {
+        workers = start(1, 10000);
+        exception.expect(PAMException.class);
+        exception.expectMessage("Authentication failure");
+        workers.authenticate(StubPamWorker.USERNAME, "wrong");
+    }
+
+    @Test
+    public void concurrentRequestsShouldBePipelinedAndSpreadAcrossWorkers() throws Exception {
+        workers = start(2, 10000);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<UnixUser>> users = new ArrayList<>();
+            for (int i = 0; i < 200; ++i) {
+                users.add(executor.submit(() -> workers.authenticate(StubPamWorker.USERNAME, StubPamWorker.PASSWORD)));
+            }
+            for (final Future<UnixUser> user : users) {
+                assertThat(user.get().getUserName(), is(StubPamWorker.USERNAME));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertThat(workers.liveWorkers(), is(2));
+    }
+
+    @Test
+    public void crashedWorkerShouldFailRequestAndBeRestarted() throws Exception {
+        workers = start(1, 10000);
+        try {
+            workers.authenticate("crash", "whatever");
+            fail("Expected PAMException");
+        } catch (final PAMException e) {
+            assertThat(e.getMessage(), is("PAM worker failed: PAM worker exited"));
+        }
+        waitForNoLiveWorker();
+        now.addAndGet(MILLISECONDS.toNanos(PamWorkers.RESTART_BACKOFF_MILLIS));
+        assertThat(workers.authenticate(StubPamWorker.USERNAME, StubPamWorker.PASSWORD).getUserName(), is(StubPamWorker.USERNAME));
+        assertThat(workers.liveWorkers(), is(1));
+    }
+
+    @Test
+    public void crashedWorkerShouldNotBeRestartedBeforeBackoff() throws Exception {
+        workers = start(1, 10000);
+        try {
+            workers.authenticate("crash", "whatever");
+            fail("Expected PAMException");
+        } catch (final PAMException e) {
+            // Expected.
+        }
+        waitForNoLiveWorker();
+        exception.expect(PAMException.class);
+        exception.expectMessage("No PAM worker available");
+        workers.authenticate(StubPamWorker.USERNAME, StubPamWorker.PASSWORD);
+    }
+
+    @Test
+    public void hungWorkerShouldTimeOutAndBeRestarted() throws Exception {
+        workers = start(1, 500);
+        try {
+            workers.authenticate("hang", "whatever");
+            fail("Expected PAMException");
+        } catch (final PAMException e) {
+            assertThat(e.getMessage(), is("PAM worker did not respond within 500 ms"));
+        }
+        waitForNoLiveWorker();
+        now.addAndGet(MILLISECONDS.toNanos(PamWorkers.RESTART_BACKOFF_MILLIS));
+        assertThat(workers.authenticate(StubPamWorker.USERNAME, StubPamWorker.PASSWORD).getUserName(), is(StubPamWorker.USERNAME));
+    }
+
+    @Test
+    public void requestsQueuedBehindSlowRequestsShouldNotTimeOut() throws Exception {
+        // 5 requests of 200 ms each take 1 s in total on a single worker, but each of them takes less than the timeout:
+        workers = start(1, 500);
+        final ExecutorService executor = Executors.newFixedThreadPool(5);
+        try {
+            final List<Future<String>> messages = new ArrayList<>();
+            for (int i = 0; i < 5; ++i) {
+                messages.add(executor.submit(() -> {
+                    try {
+                        workers.authenticate("slow", "whatever");
+                        return null;
+                    } catch (final PAMException e) {
+                        return e.getMessage();
+                    }
+                }));
+            }
+            for (final Future<String> message : messages) {
+                assertThat(message.get(), is("Authentication failure"));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertThat(workers.liveWorkers(), is(1));
+    }
+
+    @Test
+    public void requestsBeyondQueueSizeShouldThrowPamException() throws Exception {
+        workers = start(1, 2, 10000);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (int i = 0; i < 2; ++i) {
+                executor.submit(() -> {
+                    try {
+                        workers.authenticate("slow", "whatever");
+                    } catch (final PAMException e) {
+                        // Expected.
+                    }
+                });
+            }
+            Thread.sleep(50);
+            exception.expect(PAMException.class);
+            exception.expectMessage("All PAM workers are busy");
+            workers.authenticate(StubPamWorker.USERNAME, StubPamWorker.PASSWORD);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void hungRequestShouldOnlyFailItselfAndRequestsQueuedBehindItShouldBeRetried() throws Exception {
+        workers = start(1, 2000);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<String> hung = executor.submit(() -> {
+                try {
+                    workers.authenticate("hang", "whatever");
+                    return null;
+                } catch (final PAMException e) {
+                    return e.getMessage();
+                }
+            });
+            Thread.sleep(50);
+            // Let the hung worker be restarted as soon as it is killed:
+            now.addAndGet(MILLISECONDS.toNanos(PamWorkers.RESTART_BACKOFF_MILLIS));
+            assertThat(workers.authenticate(StubPamWorker.USERNAME, StubPamWorker.PASSWORD).getUserName(), is(StubPamWorker.USERNAME));
+            assertThat(hung.get(), is("PAM worker did not respond within 2000 ms"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void slowRequestShouldNotDelayRequestsOnOtherWorkers() throws Exception {
+        workers = start(2, 10000);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<?> slow = executor.submit(() -> {
+                try {
+                    workers.authenticate("slow", "whatever");
+                } catch (final PAMException e) {
+                    // Expected.
+                }
+                return null;
+            });
+            Thread.sleep(50);
+            final long start = System.nanoTime();
+            assertThat(workers.authenticate(StubPamWorker.USERNAME, StubPamWorker.PASSWORD).getUserName(), is(StubPamWorker.USERNAME));
+            assertThat(System.nanoTime() - start < MILLISECONDS.toNanos(150), is(true));
+            slow.get();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void closedWorkersShouldThrowPamException() throws Exception {
+        workers = start(1, 10000);
+        workers.close();
+        exception.expect(PAMException.class);
+        exception.expectMessage("PAM workers are closed");
+        workers.authenticate(StubPamWorker.USERNAME, StubPamWorker.PASSWORD);
+    }
+
+    @Test
+    public void emptyCommandShouldThrowIllegalArgumentException() {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("Please provide a non-empty PAM worker command.");
+        new PamWorkers(new ArrayList<>(), 1, QUEUE_SIZE, 10000);
+    }
+
+    @Test
+    public void defaultCommandShouldRunPamWorkerForService() {
+        final List<String> command = PamWorkers.defaultCommand("login");
+        assertThat(command.get(command.size() - 2), is(PamWorker.class.getName()));
+        assertThat(command.get(command.size() - 1), is("login"));
+    }
+
+    private PamWorkers start(final int size, final long timeoutMillis) throws Exception {
+        return start(size, QUEUE_SIZE, timeoutMillis);
+    }
+
+    private PamWorkers start(final int size, final int queueSize, final long timeoutMillis) throws Exception {
+        final PamWorkers workers = new PamWorkers(COMMAND, size, queueSize, timeoutMillis, now::get);
+        workers.start();
+        return workers;
+    }
+
+    private void waitForNoLiveWorker() throws InterruptedException {
+        for (int i = 0; (i < 100) && (workers.liveWorkers() > 0); ++i) {
+            Thread.sleep(10);
+        }
+        assertThat(workers.liveWorkers(), is(0));
+    }
+}
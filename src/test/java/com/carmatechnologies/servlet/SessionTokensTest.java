@@ -0,0 +1,156 @@
+package com.carmatechnologies.servlet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.jvnet.libpam.UnixUser;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SessionTokensTest {
+    private static final String AUDIENCE = "pam-servlet-filter";
+    private static final byte[] KEY_1 = "0123456789abcdef0123456789abcdef".getBytes();
+    private static final byte[] KEY_2 = "fedcba9876543210fedcba9876543210".getBytes();
+
+    private final AtomicLong clock = new AtomicLong(1_000_000);
+    private final UnixUser user = user("luke_skywalker", 1000, 100, "jedi", "rebels");
+
+    @Rule
+    public final ExpectedException exception = ExpectedException.none();
+
+    @Test
+    public void issuedTokenShouldBeVerifiedAndCarryUser() {
+        final SessionTokens tokens = new SessionTokens(AUDIENCE, Collections.singletonList(KEY_1), 60, 0, clock::get);
+        final UnixUser verified = tokens.verify(tokens.issue(user));
+        assertThat(verified, is(notNullValue()));
+        assertThat(verified.getUserName(), is("luke_skywalker"));
+        assertThat(verified.getUID(), is(1000));
+        assertThat(verified.getGID(), is(100));
+        assertThat(verified.getGroups(), is(equalTo(new HashSet<>(Arrays.asList("jedi", "rebels")))));
+    }
+
+    @Test
+    public void nonAsciiUsernameAndGroupsShouldBeVerified() {
+        final SessionTokens tokens = new SessionTokens(AUDIENCE, Collections.singletonList(KEY_1), 60, 0, clock::get);
+        final UnixUser verified = tokens.verify(tokens.issue(user("chewbacca_\u00e9", 1001, 101, "w\u00f6okiees")));
+        assertThat(verified.getUserName(), is("chewbacca_\u00e9"));
+        assertThat(verified.getGroups(), is(equalTo(Collections.singleton("w\u00f6okiees"))));
+    }
+
+    @Test
+    public void expiredTokenShouldBeRejected() {
+        final SessionTokens tokens = new SessionTokens(AUDIENCE, Collections.singletonList(KEY_1), 60, 0, clock::get);
+        final String token = tokens.issue(user);
+        clock.addAndGet(SECONDS.toMillis(59));
+        assertThat(tokens.verify(token), is(notNullValue()));
+        clock.addAndGet(SECONDS.toMillis(1));
+        assertThat(tokens.verify(token), is(nullValue()));
+    }
+
+    @Test
+    public void tamperedTokenShouldBeRejected() {
+        final SessionTokens tokens = new SessionTokens(AUDIENCE, Collections.singletonList(KEY_1), 60, 0, clock::get);
+        final String token = tokens.issue(user);
+        final String other = tokens.issue(user("darth_vader", 0, 0));
+        final String forged = other.substring(0, other.indexOf('.')) + token.substring(token.indexOf('.'));
+        assertThat(tokens.verify(forged), is(nullValue()));
+        final char last = token.charAt(token.length() - 1);
+        assertThat(tokens.verify(token.substring(0, token.length() - 1) + ((last == 'A') ? 'B' : 'A')), is(nullValue()));
+    }
+
+    @Test
+    public void malformedTokensShouldBeRejected() {
+        final SessionTokens tokens = new SessionTokens(AUDIENCE, Collections.singletonList(KEY_1), 60, 0, clock::get);
+        for (final String token : Arrays.asList("", ".", "abc", "abc.", ".abc", "a.b.c", "!!!.???", "AQ.AQ")) {
+            assertThat(token, tokens.verify(token), is(nullValue()));
+        }
+    }
+
+    @Test
+    public void tokenSignedWithAnotherKeyShouldBeRejected() {
+        final String token = new SessionTokens(AUDIENCE, Collections.singletonList(KEY_2), 60, 0, clock::get).issue(user);
+        assertThat(new SessionTokens(AUDIENCE, Collections.singletonList(KEY_1), 60, 0, clock::get).verify(token), is(nullValue()));
+    }
+
+    @Test
+    public void tokenIssuedForAnotherAudienceShouldBeRejected() {
+        final String token = new SessionTokens("sshd", Collections.singletonList(KEY_1), 60, 0, clock::get).issue(user);
+        assertThat(new SessionTokens(AUDIENCE, Collections.singletonList(KEY_1), 60, 0, clock::get).verify(token), is(nullValue()));
+        assertThat(new SessionTokens("sshd", Collections.singletonList(KEY_1), 60, 0, clock::get).verify(token), is(notNullValue()));
+    }
+
+    @Test
+    public void tokenSignedWithPreviousKeyShouldBeVerifiedAfterRotation() {
+        final String token = new SessionTokens(AUDIENCE, Collections.singletonList(KEY_1), 60, 0, clock::get).issue(user);
+        final List<byte[]> rotated = Arrays.asList(KEY_2, KEY_1);
+        final SessionTokens tokens = new SessionTokens(AUDIENCE, rotated, 60, 0, clock::get);
+        assertThat(tokens.verify(token), is(notNullValue()));
+        final String newToken = tokens.issue(user);
+        assertThat(new SessionTokens(AUDIENCE, Collections.singletonList(KEY_2), 60, 0, clock::get).verify(newToken), is(notNullValue()));
+        assertThat(new SessionTokens(AUDIENCE, Collections.singletonList(KEY_1), 60, 0, clock::get).verify(newToken), is(nullValue()));
+    }
+
+    @Test
+    public void generatedKeysShouldBeRotatedAndKeptUntilTokensExpire() {
+        final SessionTokens tokens = new SessionTokens(AUDIENCE, Collections.<byte[]>emptyList(), 60, 30, clock::get);
+        final String first = tokens.issue(user);
+        clock.addAndGet(SECONDS.toMillis(30));
+        final String second = tokens.issue(user);
+        assertThat(second.substring(1, 9), is(not(first.substring(1, 9)))); // Different key identifiers.
+        assertThat(tokens.verify(first), is(notNullValue()));
+        clock.addAndGet(SECONDS.toMillis(29));
+        tokens.issue(user);
+        assertThat(tokens.verify(first), is(notNullValue()));
+        assertThat(tokens.verify(second), is(notNullValue()));
+    }
+
+    @Test
+    public void tooShortKeyShouldThrowIllegalArgumentException() {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("Please provide keys of at least 16 bytes.");
+        new SessionTokens(AUDIENCE, Collections.singletonList(new byte[15]), 60, 0);
+    }
+
+    @Test
+    public void zeroTtlShouldThrowIllegalArgumentException() {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("Please provide a strictly positive time-to-live.");
+        new SessionTokens(AUDIENCE, Collections.singletonList(KEY_1), 0, 0);
+    }
+
+    @Test
+    public void tokenIssuedBeforeRevocationShouldOnlyBeRejectedForAffectedUsers() {
+        final SessionTokens tokens = new SessionTokens(AUDIENCE, Collections.singletonList(KEY_1), 60, 0, clock::get);
+        final String lukeToken = tokens.issue(user);
+        final String leiaToken = tokens.issue(user("leia_organa", 1001, 101, "rebels"));
+        clock.addAndGet(SECONDS.toMillis(1));
+        tokens.revoke(AccountChange.of(Collections.singleton("luke_skywalker"), Collections.<String>emptySet(), Collections.<Integer>emptySet()));
+        assertThat(tokens.verify(lukeToken), is(nullValue()));
+        assertThat(tokens.verify(leiaToken), is(notNullValue()));
+        clock.addAndGet(SECONDS.toMillis(1));
+        assertThat(tokens.verify(tokens.issue(user)), is(notNullValue()));
+    }
+
+    private static UnixUser user(final String username, final int uid, final int gid, final String... groups) {
+        final UnixUser user = mock(UnixUser.class);
+        when(user.getUserName()).thenReturn(username);
+        when(user.getUID()).thenReturn(uid);
+        when(user.getGID()).thenReturn(gid);
+        when(user.getGroups()).thenReturn(new HashSet<>(Arrays.asList(groups)));
+        return user;
+    }
+}
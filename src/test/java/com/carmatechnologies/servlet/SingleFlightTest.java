@@ -0,0 +1,105 @@
+package com.carmatechnologies.servlet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.jvnet.libpam.UnixUser;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class SingleFlightTest {
+    private final SingleFlight singleFlight = new SingleFlight();
+    private final UnixUser user = mock(UnixUser.class);
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @Rule
+    public final ExpectedException exception = ExpectedException.none();
+
+    @Test
+    public void identicalCredentialsShouldHaveEqualKeys() {
+        assertThat(singleFlight.key("login", "luke_skywalker", "pass123"), is(equalTo(singleFlight.key("login", "luke_skywalker", "pass123"))));
+        assertThat(singleFlight.key("login", "luke_skywalker", "pass123"), is(not(equalTo(singleFlight.key("login", "luke_skywalker", "pass456")))));
+        assertThat(singleFlight.key("login", "luke_skywalker", "pass123"), is(not(equalTo(singleFlight.key("sshd", "luke_skywalker", "pass123")))));
+        assertThat(singleFlight.key("login", "luke", "_skywalker"), is(not(equalTo(singleFlight.key("login", "luke_", "skywalker")))));
+    }
+
+    @Test
+    public void sequentialAuthenticationsShouldNotBeCoalesced() {
+        final SingleFlight.Key key = singleFlight.key("login", "luke_skywalker", "pass123");
+        final AuthResult result = AuthResult.of(AuthEvent.PAM_SUCCESS, "luke_skywalker", user, 42);
+        assertThat(singleFlight.authenticate(key, () -> count(result)), is(sameInstance(result)));
+        assertThat(singleFlight.authenticate(key, () -> count(result)), is(sameInstance(result)));
+        assertThat(calls.get(), is(2));
+        assertThat(singleFlight.size(), is(0));
+    }
+
+    @Test
+    public void concurrentIdenticalAuthenticationsShouldShareTheLeadersResult() throws InterruptedException {
+        final SingleFlight.Key key = singleFlight.key("login", "luke_skywalker", "pass123");
+        final AuthResult result = AuthResult.of(AuthEvent.PAM_SUCCESS, "luke_skywalker", user, 42);
+        final CountDownLatch leaderStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Thread leader = new Thread(() -> singleFlight.authenticate(key, () -> {
+            leaderStarted.countDown();
+            await(release);
+            return count(result);
+        }));
+        leader.start();
+        leaderStarted.await();
+
+        final AtomicReference<AuthResult> followerResult = new AtomicReference<>();
+        final Thread follower = new Thread(() -> followerResult.set(singleFlight.authenticate(key, () -> count(result))));
+        follower.start();
+        waitUntilWaiting(follower);
+        release.countDown();
+        leader.join();
+        follower.join();
+
+        assertThat(calls.get(), is(1));
+        assertThat(followerResult.get().event(), is(AuthEvent.COALESCED_SUCCESS));
+        assertThat(followerResult.get().user(), is(sameInstance(user)));
+        assertThat(followerResult.get().pamLatencyNanos(), is(0L));
+        assertThat(singleFlight.size(), is(0));
+    }
+
+    @Test
+    public void leadersExceptionShouldBeRethrownAndEntryRemoved() {
+        final SingleFlight.Key key = singleFlight.key("login", "luke_skywalker", "pass123");
+        try {
+            singleFlight.authenticate(key, () -> {
+                throw new IllegalStateException("PAM is down");
+            });
+        } catch (final IllegalStateException e) {
+            assertThat(e.getMessage(), is("PAM is down"));
+        }
+        assertThat(singleFlight.size(), is(0));
+    }
+
+    private AuthResult count(final AuthResult result) {
+        calls.incrementAndGet();
+        return result;
+    }
+
+    private static void await(final CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void waitUntilWaiting(final Thread thread) {
+        while ((thread.getState() != Thread.State.WAITING) && thread.isAlive()) {
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.carmatechnologies.servlet;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link PamAuthRequest} with the provided headers and cookies, as an event loop based server would build it.
+ */
+final class StubAuthRequest implements PamAuthRequest {
+    private final Map<String, String> headers = new HashMap<>();
+    private final Map<String, String> cookies = new HashMap<>();
+    private final String remoteAddress;
+
+    StubAuthRequest(final String remoteAddress) {
+        this.remoteAddress = remoteAddress;
+    }
+
+    StubAuthRequest withHeader(final String name, final String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    StubAuthRequest withCookie(final String name, final String value) {
+        cookies.put(name, value);
+        return this;
+    }
+
+    @Override
+    public String header(final String name) {
+        return headers.get(name);
+    }
+
+    @Override
+    public String cookie(final String name) {
+        return cookies.get(name);
+    }
+
+    @Override
+    public String remoteAddress() {
+        return remoteAddress;
+    }
+}
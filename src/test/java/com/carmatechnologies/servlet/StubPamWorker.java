@@ -0,0 +1,57 @@
+package com.carmatechnologies.servlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Stand-in for {@link PamWorker}, speaking the same protocol, but without calling PAM:
+ * - [luke_skywalker] with password [pass123] is authenticated,
+ * - [crash] makes the process exit,
+ * - [hang] makes the process hang,
+ * - [slow] is rejected after 200 ms,
+ * - anyone else is rejected.
+ */
+public final class StubPamWorker {
+    static final String USERNAME = "luke_skywalker";
+    static final String PASSWORD = "pass123";
+
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(FileDescriptor.in)));
+        PamWorkerProtocol.Request request;
+        while ((request = PamWorkerProtocol.readRequest(in)) != null) {
+            switch (request.username) {
+                case "crash":
+                    System.exit(1);
+                    break;
+                case "hang":
+                    Thread.sleep(Long.MAX_VALUE);
+                    break;
+                case "slow":
+                    Thread.sleep(200);
+                    PamWorkerProtocol.writeFailure(out, request.id, "Authentication failure");
+                    break;
+                case USERNAME:
+                    if (PASSWORD.equals(request.password)) {
+                        PamWorkerProtocol.writeSuccess(out, request.id, UnixUsers.newUser(USERNAME, "Luke Skywalker", "/home/luke_skywalker", "/bin/bash", 1000, 1000,
+                                new HashSet<>(Arrays.asList("jedi", "rebels"))));
+                    } else {
+                        PamWorkerProtocol.writeFailure(out, request.id, "Authentication failure");
+                    }
+                    break;
+                default:
+                    PamWorkerProtocol.writeFailure(out, request.id, "Authentication failure");
+                    break;
+            }
+            out.flush();
+        }
+    }
+}
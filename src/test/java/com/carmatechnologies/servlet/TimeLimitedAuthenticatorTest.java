@@ -0,0 +1,94 @@
+package com.carmatechnologies.servlet;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.jvnet.libpam.PAMException;
+import org.jvnet.libpam.UnixUser;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TimeLimitedAuthenticatorTest {
+    private final Authenticator delegate = mock(Authenticator.class);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final TimeLimitedAuthenticator authenticator = new TimeLimitedAuthenticator(delegate, 100, 1);
+
+    @Rule
+    public final ExpectedException exception = ExpectedException.none();
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        authenticator.close();
+    }
+
+    @Test
+    public void userShouldBeReturnedWithinTimeout() throws PAMException {
+        final UnixUser user = mock(UnixUser.class);
+        when(delegate.authenticate("luke_skywalker", "pass123")).thenReturn(user);
+        assertThat(authenticator.authenticate("luke_skywalker", "pass123"), is(sameInstance(user)));
+    }
+
+    @Test
+    public void rejectedCredentialsShouldBeRethrownAsIs() throws PAMException {
+        final PAMException rejected = new PAMException("Authentication failure");
+        when(delegate.authenticate("darth_vader", "secret456")).thenThrow(rejected);
+        try {
+            authenticator.authenticate("darth_vader", "secret456");
+            fail("Expected PAMException");
+        } catch (final PAMException e) {
+            assertThat(e, is(sameInstance(rejected)));
+        }
+    }
+
+    @Test
+    public void slowCallShouldTimeOut() throws PAMException {
+        when(delegate.authenticate("luke_skywalker", "pass123")).thenAnswer((invocation) -> {
+            release.await();
+            return null;
+        });
+        exception.expect(PamUnavailableException.class);
+        exception.expectMessage("PAM did not respond within 100 ms");
+        authenticator.authenticate("luke_skywalker", "pass123");
+    }
+
+    @Test
+    public void callsBeyondMaximumThreadsShouldFailImmediately() throws PAMException {
+        when(delegate.authenticate("luke_skywalker", "pass123")).thenAnswer((invocation) -> {
+            // Native PAM calls cannot be interrupted, hence keep the thread busy when the timed out call is cancelled:
+            while (release.getCount() > 0) {
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    // Ignored.
+                }
+            }
+            return null;
+        });
+        try {
+            authenticator.authenticate("luke_skywalker", "pass123");
+            fail("Expected PamUnavailableException");
+        } catch (final PamUnavailableException e) {
+            // Expected, and the call is still stuck in PAM.
+        }
+        assertThat(authenticator.activeCalls(), is(1));
+        exception.expect(PamUnavailableException.class);
+        exception.expectMessage("Too many PAM calls in progress (limit: [1])");
+        authenticator.authenticate("luke_skywalker", "pass123");
+    }
+
+    @Test
+    public void closeShouldCloseDelegate() {
+        authenticator.close();
+        verify(delegate).close();
+    }
+}
@@ -0,0 +1,90 @@
+package com.carmatechnologies.servlet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class UrlPatternsTest {
+    private final UrlPatterns patterns = UrlPatterns.compile(Arrays.asList("/health", "/static/*", "/api/v1/status", "*.css", "*.tar.gz"));
+
+    @Rule
+    public final ExpectedException exception = ExpectedException.none();
+
+    @Test
+    public void exactPatternShouldOnlyMatchSamePath() {
+        assertThat(patterns.matches("/health", null), is(true));
+        assertThat(patterns.matches("/api/v1/status", null), is(true));
+        assertThat(patterns.matches("/api", "/v1/status"), is(true));
+        assertThat(patterns.matches("/healthz", null), is(false));
+        assertThat(patterns.matches("/health/", null), is(false));
+        assertThat(patterns.matches("/heal", null), is(false));
+        assertThat(patterns.matches("/api/v1", null), is(false));
+    }
+
+    @Test
+    public void pathPrefixPatternShouldMatchPathAndSubPaths() {
+        assertThat(patterns.matches("/static", null), is(true));
+        assertThat(patterns.matches("/static/", null), is(true));
+        assertThat(patterns.matches("/static", "/js/app.js"), is(true));
+        assertThat(patterns.matches("/staticfiles", null), is(false));
+        assertThat(patterns.matches("/stat", null), is(false));
+    }
+
+    @Test
+    public void extensionPatternShouldMatchLastSegmentOnly() {
+        assertThat(patterns.matches("/css/site.css", null), is(true));
+        assertThat(patterns.matches("", "/site.css"), is(true));
+        assertThat(patterns.matches("/downloads/release.tar.gz", null), is(true));
+        assertThat(patterns.matches("/downloads/release.gz", null), is(false));
+        assertThat(patterns.matches("/site.css/admin", null), is(false));
+        assertThat(patterns.matches("/sitecss", null), is(false));
+        assertThat(patterns.matches("/site.scss", null), is(false));
+    }
+
+    @Test
+    public void defaultPatternShouldMatchAnyPath() {
+        final UrlPatterns patterns = UrlPatterns.compile(Collections.singletonList("/"));
+        assertThat(patterns.matches("/anything", "/at/all"), is(true));
+        assertThat(patterns.matches(null, null), is(true));
+    }
+
+    @Test
+    public void rootPathPrefixPatternShouldMatchAnyPath() {
+        final UrlPatterns patterns = UrlPatterns.compile(Collections.singletonList("/*"));
+        assertThat(patterns.matches("/anything", null), is(true));
+        assertThat(patterns.matches("", null), is(true));
+    }
+
+    @Test
+    public void nullPathsShouldOnlyMatchEmptyExactPattern() {
+        assertThat(patterns.matches(null, null), is(false));
+        assertThat(UrlPatterns.compile(Collections.singletonList("/health")).matches(null, "/health"), is(true));
+    }
+
+    @Test
+    public void patternWithoutLeadingSlashShouldThrowIllegalArgumentException() {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("Invalid URL pattern: health");
+        UrlPatterns.compile(Collections.singletonList("health"));
+    }
+
+    @Test
+    public void patternWithWildcardInTheMiddleShouldThrowIllegalArgumentException() {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("Invalid exact URL pattern: /api/*/status");
+        UrlPatterns.compile(Collections.singletonList("/api/*/status"));
+    }
+
+    @Test
+    public void emptyExtensionShouldThrowIllegalArgumentException() {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("Invalid extension URL pattern: *.");
+        UrlPatterns.compile(Collections.singletonList("*."));
+    }
+}
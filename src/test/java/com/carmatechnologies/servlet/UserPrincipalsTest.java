@@ -0,0 +1,115 @@
+package com.carmatechnologies.servlet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.jvnet.libpam.UnixUser;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class UserPrincipalsTest {
+    private final AtomicLong clock = new AtomicLong();
+    private final UserPrincipals principals = new UserPrincipals(2, 60, clock::get);
+
+    @Rule
+    public final ExpectedException exception = ExpectedException.none();
+
+    @Test
+    public void principalShouldCarryUserDetails() {
+        final UnixUserPrincipal principal = principals.principal(user("luke_skywalker", 1000, 100, "jedi", "rebels"));
+        assertThat(principal.getName(), is("luke_skywalker"));
+        assertThat(principal.getUid(), is(1000));
+        assertThat(principal.getGid(), is(100));
+        assertThat(principal.getGroups(), is(equalTo(new HashSet<>(Arrays.asList("jedi", "rebels")))));
+    }
+
+    @Test
+    public void membershipShouldOnlyIncludeUsersGroups() {
+        principals.principal(user("darth_vader", 1001, 101, "sith", "empire"));
+        final UnixUserPrincipal luke = principals.principal(user("luke_skywalker", 1000, 100, "jedi", "rebels"));
+        assertThat(luke.isMemberOf("jedi"), is(true));
+        assertThat(luke.isMemberOf("rebels"), is(true));
+        assertThat(luke.isMemberOf("sith"), is(false));
+        assertThat(luke.isMemberOf("unknown"), is(false));
+        assertThat(luke.isMemberOf(null), is(false));
+    }
+
+    @Test
+    public void membershipShouldSupportManyGroups() {
+        final String[] groups = new String[200];
+        for (int i = 0; i < groups.length; ++i) {
+            groups[i] = "group" + i;
+        }
+        principals.principal(user("darth_vader", 1001, 101, groups));
+        final UnixUserPrincipal luke = principals.principal(user("luke_skywalker", 1000, 100, "group0", "group150"));
+        assertThat(luke.isMemberOf("group0"), is(true));
+        assertThat(luke.isMemberOf("group150"), is(true));
+        assertThat(luke.isMemberOf("group64"), is(false));
+        assertThat(luke.isMemberOf("group199"), is(false));
+    }
+
+    @Test
+    public void principalShouldBeSharedUntilItExpires() {
+        final UnixUserPrincipal first = principals.principal(user("luke_skywalker", 1000, 100, "jedi"));
+        clock.addAndGet(SECONDS.toNanos(59));
+        assertThat(principals.principal(user("luke_skywalker", 1000, 100, "jedi")), is(sameInstance(first)));
+        clock.addAndGet(SECONDS.toNanos(1));
+        final UnixUserPrincipal second = principals.principal(user("luke_skywalker", 1000, 100, "jedi"));
+        assertThat(second, is(not(sameInstance(first))));
+        assertThat(second, is(equalTo(first)));
+    }
+
+    @Test
+    public void principalShouldBeRebuiltWhenGroupsChange() {
+        final UnixUserPrincipal first = principals.principal(user("luke_skywalker", 1000, 100, "rebels"));
+        final UnixUserPrincipal second = principals.principal(user("luke_skywalker", 1000, 100, "rebels", "jedi"));
+        assertThat(first.isMemberOf("jedi"), is(false));
+        assertThat(second.isMemberOf("jedi"), is(true));
+    }
+
+    @Test
+    public void cacheShouldBeBounded() {
+        principals.principal(user("luke_skywalker", 1000, 100));
+        principals.principal(user("leia_organa", 1001, 100));
+        principals.principal(user("han_solo", 1002, 100));
+        assertThat(principals.size() <= 2, is(true));
+    }
+
+    @Test
+    public void groupsShouldNotBeModifiable() {
+        exception.expect(UnsupportedOperationException.class);
+        principals.principal(user("luke_skywalker", 1000, 100, "jedi")).getGroups().add("sith");
+    }
+
+    @Test
+    public void invalidationShouldOnlyRemoveAffectedPrincipals() {
+        final UnixUser luke = user("luke_skywalker", 1000, 100, "jedi", "rebels");
+        final UnixUser vader = user("darth_vader", 1001, 101, "sith");
+        final UnixUserPrincipal lukePrincipal = principals.principal(luke);
+        final UnixUserPrincipal vaderPrincipal = principals.principal(vader);
+        principals.invalidate(AccountChange.of(Collections.<String>emptySet(), Collections.singleton("jedi"), Collections.<Integer>emptySet()));
+        assertThat(principals.principal(luke), is(not(sameInstance(lukePrincipal))));
+        assertThat(principals.principal(vader), is(sameInstance(vaderPrincipal)));
+    }
+
+    private static UnixUser user(final String username, final int uid, final int gid, final String... groups) {
+        final UnixUser user = mock(UnixUser.class);
+        when(user.getUserName()).thenReturn(username);
+        when(user.getUID()).thenReturn(uid);
+        when(user.getGID()).thenReturn(gid);
+        when(user.getGroups()).thenReturn(new HashSet<>(Arrays.asList(groups)));
+        return user;
+    }
+}
@@ -0,0 +1,235 @@
+package com.carmatechnologies.servlet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.libpam.UnixUser;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class WarmStartSnapshotTest {
+    private static final String SERVICE = "pam-servlet-filter";
+    private static final Charset UTF_8 = Charset.forName("UTF-8"); // UTF-8: eight-bit UCS Transformation Format.
+    private static final byte[] KEY = "0123456789abcdef".getBytes(UTF_8);
+    private static final int MAC_LENGTH_BYTES = 32;
+    private static final List<Path> NO_ACCOUNT_FILES = Collections.emptyList();
+
+    private final AtomicLong now = new AtomicLong();
+    private final UnixUser luke = UnixUsers.newUser("luke_skywalker", "Luke Skywalker", "/home/luke", "/bin/bash", 1000, 1000, new HashSet<>(Arrays.asList("jedi", "rebels")));
+    private final UnixUser leia = UnixUsers.newUser("leia_organa", null, "/home/leia", "/bin/zsh", 1001, 1001, new HashSet<>(Arrays.asList("rebels", "princesses_\u00e9")));
+
+    @Rule
+    public final ExpectedException exception = ExpectedException.none();
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void restoredCacheShouldAuthenticateTheSameCredentials() throws IOException {
+        final Path file = file();
+        final CredentialCache cache = newCache();
+        cache.put(cache.key(SERVICE, "luke_skywalker", "pass123"), luke);
+        cache.put(cache.key(SERVICE, "leia_organa", "secret789"), leia);
+        assertThat(new WarmStartSnapshot(file, KEY, SERVICE, NO_ACCOUNT_FILES).save(cache), is(2));
+
+        final CredentialCache restored = newCache();
+        assertThat(new WarmStartSnapshot(file, KEY, SERVICE, NO_ACCOUNT_FILES).load(restored), is(2));
+        final UnixUser user = restored.get(restored.key(SERVICE, "leia_organa", "secret789"));
+        assertThat(user, is(notNullValue()));
+        assertThat(user.getUserName(), is("leia_organa"));
+        assertThat(user.getGecos(), is(nullValue()));
+        assertThat(user.getDir(), is("/home/leia"));
+        assertThat(user.getShell(), is("/bin/zsh"));
+        assertThat(user.getUID(), is(1001));
+        assertThat(user.getGroups(), is(equalTo(leia.getGroups())));
+        assertThat(restored.get(restored.key(SERVICE, "luke_skywalker", "pass123")).getUserName(), is("luke_skywalker"));
+        assertThat(restored.get(restored.key(SERVICE, "luke_skywalker", "wrong")), is(nullValue()));
+    }
+
+    @Test
+    public void snapshotShouldNotContainPasswords() throws IOException {
+        final Path file = file();
+        final CredentialCache cache = newCache();
+        cache.put(cache.key(SERVICE, "luke_skywalker", "pass123"), luke);
+        new WarmStartSnapshot(file, KEY, SERVICE, NO_ACCOUNT_FILES).save(cache);
+        assertThat(new String(Files.readAllBytes(file), UTF_8).contains("pass123"), is(false));
+    }
+
+    @Test
+    public void restoredEntriesShouldKeepTheirOriginalExpiry() throws IOException {
+        final Path file = file();
+        final CredentialCache cache = newCache();
+        cache.put(cache.key(SERVICE, "luke_skywalker", "pass123"), luke);
+        now.addAndGet(SECONDS.toNanos(250));
+        new WarmStartSnapshot(file, KEY, SERVICE, NO_ACCOUNT_FILES).save(cache);
+
+        final CredentialCache restored = newCache();
+        new WarmStartSnapshot(file, KEY, SERVICE, NO_ACCOUNT_FILES).load(restored);
+        final CredentialCache.Key key = restored.key(SERVICE, "luke_skywalker", "pass123");
+        assertThat(restored.get(key), is(notNullValue()));
+        now.addAndGet(SECONDS.toNanos(60));
+        assertThat(restored.get(key), is(nullValue()));
+    }
+
+    @Test
+    public void expiredEntriesShouldNotBeSnapshotted() throws IOException {
+        final Path file = file();
+        final CredentialCache cache = newCache();
+        cache.put(cache.key(SERVICE, "luke_skywalker", "pass123"), luke);
+        now.addAndGet(SECONDS.toNanos(300));
+        cache.put(cache.key(SERVICE, "leia_organa", "secret789"), leia);
+        assertThat(new WarmStartSnapshot(file, KEY, SERVICE, NO_ACCOUNT_FILES).save(cache), is(1));
+    }
+
+    @Test
+    public void tamperedSnapshotShouldBeIgnored() throws IOException {
+        final Path file = file();
+        final CredentialCache cache = newCache();
+        cache.put(cache.key(SERVICE, "luke_skywalker", "pass123"), luke);
+        new WarmStartSnapshot(file, KEY, SERVICE, NO_ACCOUNT_FILES).save(cache);
+        final byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(file, bytes);
+
+        final CredentialCache restored = newCache();
+        assertThat(new WarmStartSnapshot(file, KEY, SERVICE, NO_ACCOUNT_FILES).load(restored), is(-1));
+        assertThat(restored.size(), is(0));
+    }
+
+    @Test
+    public void truncatedSnapshotShouldBeIgnored() throws IOException {
+        final Path file = file();
+        final CredentialCache cache = newCache();
+        cache.put(cache.key(SERVICE, "luke_skywalker", "pass123"), luke);
+        new WarmStartSnapshot(file, KEY, SERVICE, NO_ACCOUNT_FILES).save(cache);
+        final byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 1));
+        assertThat(new WarmStartSnapshot(file, KEY, SERVICE, NO_ACCOUNT_FILES).load(newCache()), is(-1));
+        Files.write(file, Arrays.copyOf(bytes, 3));
+        assertThat(new WarmStartSnapshot(file, KEY, SERVICE, NO_ACCOUNT_FILES).load(newCache()), is(-1));
+    }
+
+    @Test
+    public void signedButMalformedSnapshotShouldLeaveTheCacheUntouched() throws Exception {
+        final Path file = file();
+        final CredentialCache cache = newCache();
+        cache.put(cache.key(SERVICE, "luke_skywalker", "pass123"), luke);
+        cache.put(cache.key(SERVICE, "leia_organa", "alderaan"), leia);
+        new WarmStartSnapshot(file, KEY, SERVICE, NO_ACCOUNT_FILES).save(cache);
+        final byte[] bytes = Files.readAllBytes(file);
+        // Drop the last entry's final byte and the MAC, and sign what remains, as a buggy writer would:
+        final byte[] body = Arrays.copyOf(bytes, bytes.length - MAC_LENGTH_BYTES - 1);
+        final Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(KEY, "HmacSHA256"));
+        final byte[] signed = Arrays.copyOf(body, body.length + MAC_LENGTH_BYTES);
+        System.arraycopy(mac.doFinal(body), 0, signed, body.length, MAC_LENGTH_BYTES);
+        Files.write(file, signed);
+
+        final CredentialCache restored = newCache();
+        final byte[] salt = restored.salt();
+        assertThat(new WarmStartSnapshot(file, KEY, SERVICE, NO_ACCOUNT_FILES).load(restored), is(-1));
+        assertThat(restored.salt(), is(equalTo(salt)));
+        assertThat(restored.size(), is(0));
+    }
+
+    @Test
+    public void snapshotShouldBeRestoredWhenAccountFilesDidNotChange() throws IOException {
+        final Path file = file();
+        final List<Path> accountFiles = Arrays.asList(folder.newFile("shadow").toPath(), folder.getRoot().toPath().resolve("missing"));
+        Files.write(accountFiles.get(0), "luke_skywalker:$6$hash:18000::::::\n".getBytes(UTF_8));
+        final CredentialCache cache = newCache();
+        cache.put(cache.key(SERVICE, "luke_skywalker", "pass123"), luke);
+        new WarmStartSnapshot(file, KEY, SERVICE, accountFiles).save(cache);
+        assertThat(new WarmStartSnapshot(file, KEY, SERVICE, accountFiles).load(newCache()), is(1));
+    }
+
+    @Test
+    public void snapshotShouldBeIgnoredWhenAccountFilesChangedSinceItWasWritten() throws IOException {
+        final Path file = file();
+        final Path shadow = folder.newFile("shadow").toPath();
+        final Path group = folder.getRoot().toPath().resolve("group");
+        final List<Path> accountFiles = Arrays.asList(shadow, group);
+        Files.write(shadow, "luke_skywalker:$6$hash:18000::::::\n".getBytes(UTF_8));
+        final CredentialCache cache = newCache();
+        cache.put(cache.key(SERVICE, "luke_skywalker", "pass123"), luke);
+        new WarmStartSnapshot(file, KEY, SERVICE, accountFiles).save(cache);
+
+        // E.g. password changed while the server was being redeployed:
+        Files.write(shadow, "luke_skywalker:$6$other_hash:18001::::::\n".getBytes(UTF_8));
+        final CredentialCache restored = newCache();
+        final byte[] salt = restored.salt();
+        assertThat(new WarmStartSnapshot(file, KEY, SERVICE, accountFiles).load(restored), is(-1));
+        assertThat(restored.salt(), is(equalTo(salt)));
+        assertThat(restored.size(), is(0));
+
+        // Or, a file which did not exist was created:
+        new WarmStartSnapshot(file, KEY, SERVICE, accountFiles).save(cache);
+        Files.write(group, "jedi:x:1000:luke_skywalker\n".getBytes(UTF_8));
+        assertThat(new WarmStartSnapshot(file, KEY, SERVICE, accountFiles).load(newCache()), is(-1));
+    }
+
+    @Test
+    public void snapshotSignedWithAnotherKeyShouldBeIgnored() throws IOException {
+        final Path file = file();
+        final CredentialCache cache = newCache();
+        cache.put(cache.key(SERVICE, "luke_skywalker", "pass123"), luke);
+        new WarmStartSnapshot(file, KEY, SERVICE, NO_ACCOUNT_FILES).save(cache);
+        assertThat(new WarmStartSnapshot(file, "fedcba9876543210".getBytes(UTF_8), SERVICE, NO_ACCOUNT_FILES).load(newCache()), is(-1));
+    }
+
+    @Test
+    public void snapshotOfAnotherServiceShouldBeIgnored() throws IOException {
+        final Path file = file();
+        final CredentialCache cache = newCache();
+        cache.put(cache.key(SERVICE, "luke_skywalker", "pass123"), luke);
+        new WarmStartSnapshot(file, KEY, SERVICE, NO_ACCOUNT_FILES).save(cache);
+        assertThat(new WarmStartSnapshot(file, KEY, "sshd", NO_ACCOUNT_FILES).load(newCache()), is(-1));
+    }
+
+    @Test
+    public void snapshotWithOtherDigestIterationsShouldBeIgnored() throws IOException {
+        final Path file = file();
+        final CredentialCache cache = newCache();
+        cache.put(cache.key(SERVICE, "luke_skywalker", "pass123"), luke);
+        new WarmStartSnapshot(file, KEY, SERVICE, NO_ACCOUNT_FILES).save(cache);
+        assertThat(new WarmStartSnapshot(file, KEY, SERVICE, NO_ACCOUNT_FILES).load(new CredentialCache(10, 300, 0, 20, now::get)), is(-1));
+    }
+
+    @Test
+    public void missingSnapshotShouldBeIgnored() {
+        assertThat(new WarmStartSnapshot(file(), KEY, SERVICE, NO_ACCOUNT_FILES).load(newCache()), is(-1));
+    }
+
+    @Test
+    public void shortKeyShouldThrowIllegalArgumentException() {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("Please provide a snapshot key of at least 16 bytes.");
+        new WarmStartSnapshot(file(), "too_short".getBytes(UTF_8), SERVICE, NO_ACCOUNT_FILES);
+    }
+
+    private Path file() {
+        return folder.getRoot().toPath().resolve("pam.snapshot");
+    }
+
+    private CredentialCache newCache() {
+        return new CredentialCache(10, 300, 0, 10, now::get);
+    }
+}